@@ -4,16 +4,29 @@ import com.mobifone.vdi.common.LogApi;
 import com.mobifone.vdi.configuration.RabbitMQConfig;
 import com.mobifone.vdi.dto.ApiResponse;
 import com.mobifone.vdi.dto.request.AnsibleJobMessageRequest;
+import com.mobifone.vdi.dto.response.JournalEntryResponse;
+import com.mobifone.vdi.dto.response.LogChunkResponse;
 import com.mobifone.vdi.entity.AnsibleJob;
+import com.mobifone.vdi.service.AnsibleLogStreamService;
 import com.mobifone.vdi.service.AnsibleRunnerService;
+import com.mobifone.vdi.service.JobJournalService;
+import com.mobifone.vdi.service.LogArchiveService;
 import lombok.AccessLevel;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.util.List;
 import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @RestController
 @RequestMapping("/api/jobs")
@@ -23,6 +36,10 @@ import java.util.UUID;
 public class AnsibleJobController {
     RabbitTemplate rabbitTemplate;
     AnsibleRunnerService ansibleRunnerService;
+    AnsibleLogStreamService logStreamService;
+    JobJournalService journalService;
+
+    static final Pattern BYTE_RANGE = Pattern.compile("bytes=(\\d{0,18})-(\\d{0,18})");
 
     @LogApi
     @PostMapping
@@ -51,6 +68,78 @@ public class AnsibleJobController {
                 .result(ansibleRunnerService.getJobLog(jobId)).build();
     }
 
+    /** Marker vòng đời job (attempt/retry/cancel) – đọc local, không qua SSH */
+    @LogApi
+    @GetMapping("/detail/{jobId}/journal")
+    public ApiResponse<List<JournalEntryResponse>> getJobJournal(@PathVariable String jobId) {
+        ansibleRunnerService.getJob(jobId);
+        return ApiResponse.<List<JournalEntryResponse>>builder()
+                .result(journalService.entries(jobId)).build();
+    }
+
+    /** Đọc log theo đoạn: ?offset=&limit=, trả nextOffset để đọc tiếp */
+    @GetMapping("/detail/{jobId}/log/chunk")
+    public ApiResponse<LogChunkResponse> getJobLogChunk(@PathVariable String jobId,
+                                                        @RequestParam(defaultValue = "0") long offset,
+                                                        @RequestParam(defaultValue = "65536") int limit) {
+        return ApiResponse.<LogChunkResponse>builder()
+                .result(logStreamService.readChunk(jobId, offset, limit)).build();
+    }
+
+    /**
+     * Log thô theo byte, hỗ trợ header Range (bytes=a-b | bytes=a- | bytes=-n).
+     * ?path= cho log của từng bước/app (AppDeployment.logPath); bỏ trống = log chính của job.
+     * Job đã kết thúc đọc từ archive local (giải nén theo segment), không qua SSH.
+     */
+    @GetMapping("/detail/{jobId}/log/raw")
+    public ResponseEntity<byte[]> getJobLogRaw(@PathVariable String jobId,
+                                               @RequestParam(required = false) String path,
+                                               @RequestHeader(value = HttpHeaders.RANGE, required = false) String range) {
+        Matcher m = range == null ? null : BYTE_RANGE.matcher(range.trim());
+        boolean ranged = m != null && m.matches() && !(m.group(1).isEmpty() && m.group(2).isEmpty());
+
+        long start = 0;
+        long end = Long.MAX_VALUE - 1;
+        if (ranged && m.group(1).isEmpty()) {
+            // bytes=-n: n byte cuối → cần kích thước file trước
+            long size = logStreamService.readRange(jobId, path, 0, 0).size();
+            start = Math.max(0, size - Long.parseLong(m.group(2)));
+            end = size - 1;
+        } else if (ranged) {
+            start = Long.parseLong(m.group(1));
+            if (!m.group(2).isEmpty()) end = Long.parseLong(m.group(2));
+        }
+        LogArchiveService.Range r = logStreamService.readRange(jobId, path, start, Math.max(0, end - start + 1));
+        if (ranged && (end < start || start >= r.size())) {
+            return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(HttpHeaders.CONTENT_RANGE, "bytes */" + r.size())
+                    .build();
+        }
+        // không có Range nhưng file lớn hơn giới hạn 1 lần đọc → vẫn trả 206 để client đọc tiếp
+        if (!ranged && r.data().length >= r.size()) {
+            return ResponseEntity.ok()
+                    .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                    .contentType(MediaType.TEXT_PLAIN)
+                    .body(r.data());
+        }
+        long last = start + r.data().length - 1;
+        return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + last + "/" + r.size())
+                .contentType(MediaType.TEXT_PLAIN)
+                .body(r.data());
+    }
+
+    /** SSE: event "log" cho mỗi đoạn mới; "end" khi job kết thúc; "lag" nếu client đọc không kịp */
+    @GetMapping(value = "/detail/{jobId}/log/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamJobLog(@PathVariable String jobId,
+                                   @RequestParam(required = false) Long offset,
+                                   @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        long from = offset != null ? offset
+                : (lastEventId != null && lastEventId.matches("\\d+") ? Long.parseLong(lastEventId) : 0L);
+        return logStreamService.stream(jobId, from);
+    }
+
     @LogApi
     @PostMapping("/{jobId}/cancel")
     public ApiResponse<String> cancel(@PathVariable String jobId) {
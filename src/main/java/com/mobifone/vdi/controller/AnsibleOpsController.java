@@ -0,0 +1,130 @@
+package com.mobifone.vdi.controller;
+
+import com.mobifone.vdi.dto.ApiResponse;
+import com.mobifone.vdi.dto.response.AnsibleExecutorMetricsResponse;
+import com.mobifone.vdi.dto.response.LogSearchResponse;
+import com.mobifone.vdi.dto.response.PfSenseNatTableResponse;
+import com.mobifone.vdi.dto.response.ProcessRunResponse;
+import com.mobifone.vdi.dto.response.RetryAttemptResponse;
+import com.mobifone.vdi.dto.response.SchedulerMetricsResponse;
+import com.mobifone.vdi.dto.response.SshPoolMetricsResponse;
+import com.mobifone.vdi.dto.response.TaskTimingResponse;
+import com.mobifone.vdi.entity.AnsibleTaskResult;
+import com.mobifone.vdi.service.AnsibleExecutionScheduler;
+import com.mobifone.vdi.service.AnsibleRunnerService;
+import com.mobifone.vdi.service.AnsibleTaskResultService;
+import com.mobifone.vdi.service.LogSearchIndexService;
+import com.mobifone.vdi.service.PfSenseControlPlane;
+import com.mobifone.vdi.service.ProcessSupervisor;
+import com.mobifone.vdi.service.RetryScheduler;
+import com.mobifone.vdi.service.SshConnectionPool;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Map;
+
+/** Số liệu vận hành tầng automation (SSH pool, ...) */
+@RestController
+@RequestMapping("/api/ansible")
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Slf4j
+public class AnsibleOpsController {
+    SshConnectionPool sshPool;
+    AnsibleExecutionScheduler scheduler;
+    RetryScheduler retryScheduler;
+    PfSenseControlPlane pfSense;
+    ProcessSupervisor supervisor;
+    AnsibleTaskResultService taskResults;
+    AnsibleRunnerService ansible;
+    LogSearchIndexService logSearch;
+
+    @GetMapping("/metrics/ssh-pool")
+    public ApiResponse<SshPoolMetricsResponse> sshPool() {
+        return ApiResponse.<SshPoolMetricsResponse>builder()
+                .result(sshPool.metrics()).build();
+    }
+
+    /** Ngừng (drain=true) / mở lại (drain=false) việc gắn job mới vào 1 Ansible control host */
+    @PostMapping("/hosts/{name}/drain")
+    public ApiResponse<Boolean> drainHost(@PathVariable String name,
+                                          @RequestParam(defaultValue = "true") boolean drain) {
+        return ApiResponse.<Boolean>builder()
+                .result(sshPool.drain(name, drain)).build();
+    }
+
+    @GetMapping("/metrics/scheduler")
+    public ApiResponse<SchedulerMetricsResponse> scheduler() {
+        return ApiResponse.<SchedulerMetricsResponse>builder()
+                .result(scheduler.metrics()).build();
+    }
+
+    /** Lịch sử các lần thử của 1 job/run (jobId MQ, hoặc runId NAT/app) */
+    @GetMapping("/retries/{key}")
+    public ApiResponse<List<RetryAttemptResponse>> retries(@PathVariable String key) {
+        return ApiResponse.<List<RetryAttemptResponse>>builder()
+                .result(retryScheduler.history(key)).build();
+    }
+
+    /** Mirror bảng NAT pfSense (đối soát định kỳ với config.xml) */
+    @GetMapping("/pfsense/nat")
+    public ApiResponse<PfSenseNatTableResponse> pfSenseNat() {
+        return ApiResponse.<PfSenseNatTableResponse>builder()
+                .result(pfSense.natTable()).build();
+    }
+
+    /** Executor đang dùng (ssh | simulated) + thống kê theo role/playbook */
+    @GetMapping("/metrics/executor")
+    public ApiResponse<AnsibleExecutorMetricsResponse> executor() {
+        return ApiResponse.<AnsibleExecutorMetricsResponse>builder()
+                .result(ansible.executorMetrics()).build();
+    }
+
+    /** Các lần chạy SSH (đang chạy + gần đây) kèm wall/CPU/exit; lọc theo jobId nếu có */
+    @GetMapping("/runs")
+    public ApiResponse<List<ProcessRunResponse>> runs(@RequestParam(required = false) String jobId) {
+        return ApiResponse.<List<ProcessRunResponse>>builder()
+                .result(supervisor.runs(jobId)).build();
+    }
+
+    /** Task chậm nhất của từng role (trung bình trên mọi job trong sinceDays ngày) */
+    @GetMapping("/tasks/slowest")
+    public ApiResponse<Map<String, List<TaskTimingResponse>>> slowestTasks(@RequestParam(required = false) String role,
+                                                                            @RequestParam(defaultValue = "10") int limit,
+                                                                            @RequestParam(defaultValue = "30") int sinceDays) {
+        return ApiResponse.<Map<String, List<TaskTimingResponse>>>builder()
+                .result(taskResults.slowestByRole(role, limit, sinceDays)).build();
+    }
+
+    /** Kết quả từng task của 1 lần chạy (jobId MQ hoặc subJobId app) */
+    @GetMapping("/tasks/{runId}")
+    public ApiResponse<List<AnsibleTaskResult>> runTasks(@PathVariable String runId) {
+        return ApiResponse.<List<AnsibleTaskResult>>builder()
+                .result(taskResults.byRun(runId)).build();
+    }
+
+    /**
+     * Tìm job lỗi theo chữ ký trong log đã lưu trữ (chỉ mục local, không SSH).
+     * Ví dụ: ?q=timed out&role=install_chrome&days=7 → các job trong 7 ngày có task của role đó lỗi "timed out".
+     */
+    @GetMapping("/logs/search")
+    public ApiResponse<LogSearchResponse> searchLogs(@RequestParam(required = false) String q,
+                                                     @RequestParam(required = false) String role,
+                                                     @RequestParam(required = false) String task,
+                                                     @RequestParam(required = false) String host,
+                                                     @RequestParam(required = false) String failureClass,
+                                                     @RequestParam(defaultValue = "7") int days,
+                                                     @RequestParam(defaultValue = "50") int limit) {
+        return ApiResponse.<LogSearchResponse>builder()
+                .result(logSearch.search(q, role, task, host, failureClass, days, limit)).build();
+    }
+}
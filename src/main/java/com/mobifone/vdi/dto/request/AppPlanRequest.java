@@ -4,6 +4,7 @@ import jakarta.validation.constraints.NotBlank;
 import lombok.*;
 import lombok.experimental.FieldDefaults;
 
+import java.util.List;
 import java.util.Map;
 
 @Data
@@ -17,4 +18,5 @@ public class AppPlanRequest {
     String winVersion;              // optional
     String linuxVersion;            // optional
     Map<String, Object> vars;       // extra vars riêng cho app
+    List<String> after;             // optional: code các app trong plan phải xong trước (bổ sung dependsOn của AppDefinition)
 }
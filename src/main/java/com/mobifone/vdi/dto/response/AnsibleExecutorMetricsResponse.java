@@ -0,0 +1,29 @@
+package com.mobifone.vdi.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class AnsibleExecutorMetricsResponse {
+    String executor;          // ssh | simulated
+    boolean remote;           // chạy thật trên Ansible host
+    List<Label> labels;       // thống kê theo role/playbook (executor mô phỏng)
+
+    @Data @Builder
+    public static class Label {
+        String label;
+        String profile;       // phân phối độ trễ đang áp dụng, ví dụ lognormal:60000:0.4@0.05
+        long runs;
+        long failures;
+        long cancelled;
+        int inFlight;
+        long avgMs;
+        long maxMs;
+    }
+}
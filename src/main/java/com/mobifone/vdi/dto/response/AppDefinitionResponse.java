@@ -30,4 +30,7 @@ public class AppDefinitionResponse {
     RunType runType;     // ROLE|PLAYBOOK
     String roleName;     // nếu ROLE
     String playbookPath; // nếu PLAYBOOK
+
+    List<String> dependsOn;     // code các app phải xong trước (cùng VM)
+    List<String> conflictsWith; // code các app không chạy đồng thời (cùng VM)
 }
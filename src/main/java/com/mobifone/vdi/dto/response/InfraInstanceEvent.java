@@ -0,0 +1,25 @@
+package com.mobifone.vdi.dto.response;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+/**
+ * Event từng phần của 1 task infra: 1 instance đã chạy (infra báo dần khi build nhiều VM),
+ * ví dụ {"identifier": "...", "infra_id": "...", "instance": {"id": "...", "access_ip_v4": "..."}}.
+ * Event cuối (InfraSuccessEvent) vẫn là danh sách đầy đủ.
+ * Đây là contract đề xuất cho infra, infra hiện CHƯA gửi: chỉ xử lý khi provision.streaming.enabled=true.
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class InfraInstanceEvent {
+
+    @JsonProperty("identifier")
+    private String identifier;
+
+    @JsonProperty("infra_id")
+    private String infraId;
+
+    @JsonProperty("instance")
+    private InfraSuccessEvent.Attributes instance;
+}
@@ -20,6 +20,12 @@ public class JobStatusResponse {
     int failedVMs;
     String message;
 
+    LocalDateTime createdAt;
+    LocalDateTime firstReadyAt;
+    LocalDateTime finishedAt;
+    Long timeToFirstDesktopMs;   // createdAt → VM đầu tiên xong
+    Long makespanMs;             // createdAt → job xong
+
     List<StepEntry> steps; // ✨ timeline cấp job
     List<JobVDISnapshot> virtualDesktops;
 
@@ -28,6 +34,8 @@ public class JobStatusResponse {
         String step;      // create_instance|save_db|assign_interface|create_nat|apps|winrm_disable|exception|install:<code>
         String status;    // INFO|SUCCESS|FAILED
         String detail;    // logPath hoặc error message ngắn
+        String failureClass; // UNREACHABLE|CONNECTION|TIMEOUT|LOCK_CONTENTION|TASK_FAILED|CONFIG|UNKNOWN
+        Integer attempts;    // số lần chạy (bước có retry)
         LocalDateTime at; // thời điểm
     }
 
@@ -0,0 +1,18 @@
+package com.mobifone.vdi.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.time.ZonedDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class JournalEntryResponse {
+    long seq;                 // thứ tự trong job (tăng dần)
+    ZonedDateTime at;
+    String message;
+    boolean flushed;          // đã ghi xuống log từ xa
+}
@@ -0,0 +1,18 @@
+package com.mobifone.vdi.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class LogChunkResponse {
+    String jobId;
+    long offset;              // byte offset (file gốc) của đoạn này
+    long nextOffset;          // offset để đọc tiếp (?offset=)
+    long size;                // kích thước file log hiện tại
+    boolean eof;              // job đã kết thúc và đã đọc hết log
+    String data;              // nội dung (đã bỏ mã màu ANSI)
+}
@@ -0,0 +1,40 @@
+package com.mobifone.vdi.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class LogSearchResponse {
+    long tookMs;
+    int totalJobs;    // số job khớp (trước khi cắt theo limit)
+    int totalHits;    // số dòng lỗi khớp
+    int indexedJobs;  // số job đang có trong chỉ mục
+    List<JobHit> jobs;
+
+    @Data @Builder
+    public static class JobHit {
+        String jobId;
+        LocalDateTime at;     // thời điểm job được lưu trữ (≈ kết thúc)
+        int hits;
+        List<String> hosts;   // host lỗi trong job
+        List<LineHit> lines;  // vài dòng mẫu
+    }
+
+    @Data @Builder
+    public static class LineHit {
+        String file;          // tên file log (đọc tiếp qua /api/jobs/detail/{jobId}/log/raw?path=)
+        long offset;          // byte offset của dòng trong file
+        String role;
+        String task;
+        String host;
+        String failureClass;
+        String line;
+    }
+}
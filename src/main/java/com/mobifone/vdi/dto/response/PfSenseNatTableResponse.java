@@ -0,0 +1,29 @@
+package com.mobifone.vdi.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class PfSenseNatTableResponse {
+    boolean synced;           // đã load được từ config.xml ít nhất 1 lần
+    long syncedAt;            // epoch ms lần reconcile gần nhất
+    int pendingOps;           // số thao tác đang chờ writer
+    int dirty;                // số key có lần ghi cuối lỗi/timeout → không tin cho tới reconcile
+    int size;
+    List<Rule> rules;
+
+    @Data @Builder
+    public static class Rule {
+        String wanIp;
+        int port;
+        String target;
+        int localPort;
+        String descr;
+    }
+}
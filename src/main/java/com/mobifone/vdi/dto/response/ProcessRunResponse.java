@@ -0,0 +1,24 @@
+package com.mobifone.vdi.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class ProcessRunResponse {
+    String handle;            // id duy nhất của lần chạy (owner.rN)
+    String owner;             // jobId/subJobId của caller
+    String host;              // Ansible control host
+    long pid;                 // pid tiến trình ssh local
+    LocalDateTime startedAt;
+    long wallMs;
+    Long remoteCpuMs;         // CPU user+sys của tiến trình con trên control host (bash times); null khi đang chạy / bị kill
+    Integer exitCode;         // null khi đang chạy / timeout / cancel
+    String status;            // RUNNING, EXITED, TIMEOUT, CANCELLED, ERROR
+    long outputBytes;
+}
@@ -0,0 +1,23 @@
+package com.mobifone.vdi.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class RetryAttemptResponse {
+    String key;               // jobId / runId
+    int attempt;              // lần thứ mấy (1-based)
+    int maxAttempts;
+    LocalDateTime startedAt;
+    long durationMs;
+    String result;            // SUCCESS | FAILED | ERROR | CANCELLED
+    String error;             // exception (nếu có)
+    String failureClass;      // lớp lỗi (chỉ với retry có phân loại), xem FailureClass
+    long nextDelayMs;         // -1 nếu không retry nữa
+}
@@ -0,0 +1,29 @@
+package com.mobifone.vdi.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.util.List;
+import java.util.Map;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class SchedulerMetricsResponse {
+    int maxConcurrent;
+    int running;
+    int queueDepth;
+    List<ClassStats> classes;   // NAT | APP | BULK
+
+    @Data @Builder
+    public static class ClassStats {
+        String priority;
+        int queueDepth;
+        Map<String, Integer> queueDepthByTenant;
+        long admitted;
+        long avgWaitMs;
+        long maxWaitMs;
+    }
+}
@@ -0,0 +1,52 @@
+package com.mobifone.vdi.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class SshPoolMetricsResponse {
+    boolean enabled;
+    String routing;           // project-hash | least-loaded
+    int poolSize;             // tổng số master connection (mọi host)
+    int channelsInUse;        // tổng channel đang mượn
+    long totalAcquires;
+    long acquireTimeouts;
+    long avgWaitMs;           // thời gian chờ mượn channel
+    long maxWaitMs;
+    List<Host> hosts;
+    List<Connection> connections;
+
+    @Data @Builder
+    public static class Host {
+        String name;
+        String address;
+        boolean healthy;
+        boolean draining;     // không nhận job mới
+        int capacity;         // số channel/run đồng thời tối đa
+        int active;           // channel đang mượn
+        int queued;           // đang chờ channel
+        long totalLeases;
+        long failures;        // lỗi kết nối/probe/timeout tích luỹ
+        int consecutiveFailures;
+        int boundJobs;        // số job đang gắn vào host
+        long lastProbeAt;
+    }
+
+    @Data @Builder
+    public static class Connection {
+        String host;
+        int index;
+        boolean connected;
+        boolean healthy;
+        int channelsInUse;
+        int channelsCapacity;
+        long handshakes;      // số lần thực sự handshake
+        long channelUses;     // số lần tái sử dụng master
+    }
+}
@@ -0,0 +1,19 @@
+package com.mobifone.vdi.dto.response;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class TaskTimingResponse {
+    String role;
+    String task;
+    Long runs;                // số lần task chạy (mỗi host 1 lần)
+    Double avgMs;
+    Long maxMs;
+    Long totalMs;             // tổng thời gian task chiếm trên mọi job
+    Long failed;              // failed + unreachable
+}
@@ -0,0 +1,38 @@
+package com.mobifone.vdi.entity;
+
+import jakarta.persistence.*;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.time.LocalDateTime;
+
+/** Kết quả 1 task trên 1 host của 1 lần chạy ansible (từ callback vdi_task_events) */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@FieldDefaults(level = lombok.AccessLevel.PRIVATE)
+@Entity
+@Table(name = "ansible_task_result", indexes = {
+        @Index(name = "idx_task_result_run", columnList = "runId"),
+        @Index(name = "idx_task_result_role", columnList = "role, startedAt")
+})
+public class AnsibleTaskResult {
+    @Id
+    String id;
+
+    String runId;                    // jobId / subJobId của lần chạy
+    String host;                     // alias/IP trong inventory
+    String role;                     // null nếu task không thuộc role
+
+    @Column(length = 512)
+    String task;
+
+    String action;                   // module: win_package, win_shell ...
+
+    @Column(length = 16)
+    String status;                   // ok|changed|failed|ignored|unreachable|skipped
+
+    Long durationMs;
+    LocalDateTime startedAt;
+}
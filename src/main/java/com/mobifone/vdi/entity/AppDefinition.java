@@ -54,6 +54,16 @@ public class AppDefinition {
     String roleName;                 // nếu runType=ROLE
     String playbookPath;             // nếu runType=PLAYBOOK
 
+    // thứ tự trên cùng 1 VM: chỉ chạy sau khi các app này (nếu có trong plan) chạy xong thành công
+    @Convert(converter = ListStringJsonConverter.class)
+    @Column(columnDefinition = "TEXT")
+    List<String> dependsOn;
+
+    // không chạy đồng thời với các app này trên cùng 1 VM (app đứng sau trong plan chờ app đứng trước)
+    @Convert(converter = ListStringJsonConverter.class)
+    @Column(columnDefinition = "TEXT")
+    List<String> conflictsWith;
+
     @Builder.Default
     Boolean enabled = true;
 }
\ No newline at end of file
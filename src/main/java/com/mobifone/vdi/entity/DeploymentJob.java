@@ -21,7 +21,7 @@ public class DeploymentJob {
     String requesterId;
 
     @Column(length = 16)
-    String status;           // PENDING|RUNNING|SUCCESS|FAILED|PARTIAL_FAILED
+    String status;           // PENDING|RUNNING|SUBMITTING|SUCCESS|FAILED|PARTIAL_FAILED
 
     Integer totalVms;
     Integer successVms;
@@ -30,6 +30,26 @@ public class DeploymentJob {
     @Column(columnDefinition = "LONGTEXT")
     String message;
 
+    // ===== Checkpoint cấp job (chạy tiếp sau khi node restart) =====
+    @Column(columnDefinition = "LONGTEXT")
+    String requestJson;      // ProvisionAndConfigureRequest gốc
+    String osRegion;
+    String infraRequestKey;  // identifier gửi infra, lưu (SUBMITTING) trước khi gọi → chạy tiếp tra theo key, không tạo lần 2
+    String infraTaskId;      // có → không gọi lại OpenStack khi chạy tiếp
+    String infraId;
+
+    // chỉ ghi qua DeploymentJobRepository.heartbeat/claim: save(job) với bản entity cũ không được kéo lùi heartbeat
+    @Column(updatable = false)
+    String ownerNode;        // node đang chạy job
+    @Column(updatable = false)
+    LocalDateTime heartbeatAt;
+    Integer resumeCount;
+
+    // ===== Thời gian (time-to-first-desktop = firstReadyAt - createdAt, makespan = finishedAt - createdAt) =====
+    @Column(updatable = false)
+    LocalDateTime firstReadyAt;   // VM đầu tiên xong; chỉ ghi qua DeploymentJobRepository.markFirstReady
+    LocalDateTime finishedAt;
+
     LocalDateTime createdAt;
     LocalDateTime updatedAt;
 }
@@ -1,5 +1,6 @@
 package com.mobifone.vdi.entity;
 
+import com.mobifone.vdi.entity.enumeration.FailureClass;
 import jakarta.persistence.*;
 import lombok.*;
 import lombok.experimental.FieldDefaults;
@@ -27,5 +28,11 @@ public class JobStepLog {
     @Column(columnDefinition = "LONGTEXT")  // <--- CHO PHÉP LÂU DÒNG
     String detail;
 
+    @Enumerated(EnumType.STRING)
+    @Column(length = 24)
+    FailureClass failureClass;       // lớp lỗi của bước ansible (null nếu thành công / không phân loại)
+
+    Integer attempts;                // số lần chạy của bước (có retry)
+
     LocalDateTime createdAt;
 }
@@ -0,0 +1,36 @@
+package com.mobifone.vdi.entity;
+
+import com.mobifone.vdi.entity.enumeration.ProvisionStep;
+import jakarta.persistence.*;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.time.LocalDateTime;
+
+/** Checkpoint của 1 VM trong job provision: bước cuối đã xong → job bị gián đoạn chạy tiếp từ bước sau */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@FieldDefaults(level = lombok.AccessLevel.PRIVATE)
+@Entity
+@Table(name = "vm_provision_state",
+        indexes = @Index(name = "idx_vm_provision_state_job", columnList = "jobId"))
+public class VmProvisionState {
+    @Id
+    String id;                       // <jobId>:<vmIndex>
+
+    String jobId;
+    Integer vmIndex;                 // vị trí trong danh sách instance của infra
+    String instanceId;
+    String vdId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(length = 24)
+    ProvisionStep step;              // bước cuối đã xong (null: chưa xong bước nào)
+
+    @Column(length = 16)
+    String status;                   // RUNNING|READY|FAILED
+
+    LocalDateTime updatedAt;
+}
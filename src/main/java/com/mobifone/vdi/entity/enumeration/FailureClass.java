@@ -0,0 +1,23 @@
+package com.mobifone.vdi.entity.enumeration;
+
+/** Phân loại lỗi của 1 bước ansible: chỉ lớp transient mới được retry tại chỗ */
+public enum FailureClass {
+    UNREACHABLE(true),       // host không tới được (exit 4, UNREACHABLE!)
+    CONNECTION(true),        // reset/refused/broken pipe trên WinRM/SSH
+    TIMEOUT(true),           // WinRM read/operation timeout, run bị timeout
+    LOCK_CONTENTION(true),   // pfSense config lock, MSI 1618 (đang có bản cài khác)...
+    TASK_FAILED(false),      // task ansible fail thật (exit 2)
+    CONFIG(false),           // lỗi playbook/role/biến: chạy lại vẫn lỗi
+    CANCELLED(false),        // job/run bị cancel: không chạy lại
+    UNKNOWN(false);
+
+    private final boolean transientFailure;
+
+    FailureClass(boolean transientFailure) {
+        this.transientFailure = transientFailure;
+    }
+
+    public boolean isTransient() {
+        return transientFailure;
+    }
+}
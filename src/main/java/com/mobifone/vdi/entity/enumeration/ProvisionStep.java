@@ -0,0 +1,24 @@
+package com.mobifone.vdi.entity.enumeration;
+
+/**
+ * Các bước của luồng provision 1 VM, theo đúng thứ tự chạy (checkpoint = bước cuối đã xong).
+ * Bước không áp dụng cho mode (ví dụ DC_BOOTSTRAP ở add-resource) thì được bỏ qua, thứ tự vẫn giữ nguyên.
+ */
+public enum ProvisionStep {
+    SAVE_DB,
+    ASSIGN_INTERFACE,
+    CREATE_NAT,
+    CREATE_NAT_WINRM,
+    WAIT_NAT_WINRM,
+    APPS,
+    DC_BOOTSTRAP,
+    AD_ACCOUNT,
+    JOIN_DOMAIN,
+    DELETE_NAT_WINRM,
+    READY;
+
+    /** Checkpoint này đã đi qua bước step chưa */
+    public boolean reached(ProvisionStep step) {
+        return ordinal() >= step.ordinal();
+    }
+}
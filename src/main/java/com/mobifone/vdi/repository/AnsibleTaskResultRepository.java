@@ -0,0 +1,29 @@
+package com.mobifone.vdi.repository;
+
+import com.mobifone.vdi.dto.response.TaskTimingResponse;
+import com.mobifone.vdi.entity.AnsibleTaskResult;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface AnsibleTaskResultRepository extends JpaRepository<AnsibleTaskResult, String> {
+    List<AnsibleTaskResult> findByRunIdOrderByStartedAtAsc(String runId);
+
+    @Query("""
+            select new com.mobifone.vdi.dto.response.TaskTimingResponse(
+                t.role, t.task, count(t), avg(t.durationMs), max(t.durationMs), sum(t.durationMs),
+                sum(case when t.status in ('failed', 'unreachable') then 1L else 0L end))
+            from AnsibleTaskResult t
+            where t.startedAt >= :since and t.role is not null
+              and (:role is null or t.role = :role)
+              and t.status <> 'skipped'
+            group by t.role, t.task
+            order by t.role, avg(t.durationMs) desc
+            """)
+    List<TaskTimingResponse> aggregateByRoleAndTask(@Param("role") String role, @Param("since") LocalDateTime since);
+}
@@ -2,9 +2,41 @@ package com.mobifone.vdi.repository;
 
 import com.mobifone.vdi.entity.DeploymentJob;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 
 @Repository
 public interface DeploymentJobRepository extends JpaRepository<DeploymentJob, String> {
 
+    List<DeploymentJob> findByStatusIn(Collection<String> statuses);
+
+    /** Node đang chạy các job này vẫn sống */
+    @Modifying
+    @Transactional
+    @Query("update DeploymentJob j set j.heartbeatAt = :now, j.ownerNode = :node where j.id in :ids")
+    int heartbeat(@Param("ids") Collection<String> ids, @Param("node") String node, @Param("now") LocalDateTime now);
+
+    /** Nhận job bị bỏ rơi (heartbeat cũ hơn staleBefore); 1 = nhận được, 0 = node khác đã nhận/còn sống */
+    @Modifying
+    @Transactional
+    @Query("""
+            update DeploymentJob j set j.heartbeatAt = :now, j.ownerNode = :node
+            where j.id = :id and j.status in ('PENDING', 'RUNNING', 'SUBMITTING')
+              and (j.heartbeatAt is null or j.heartbeatAt < :staleBefore)
+            """)
+    int claim(@Param("id") String id, @Param("node") String node,
+              @Param("now") LocalDateTime now, @Param("staleBefore") LocalDateTime staleBefore);
+
+    /** Mốc VM đầu tiên dùng được: chỉ VM xong sớm nhất ghi được */
+    @Modifying
+    @Transactional
+    @Query("update DeploymentJob j set j.firstReadyAt = :now where j.id = :id and j.firstReadyAt is null")
+    int markFirstReady(@Param("id") String id, @Param("now") LocalDateTime now);
 }
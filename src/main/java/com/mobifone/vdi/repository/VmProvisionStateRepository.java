@@ -0,0 +1,12 @@
+package com.mobifone.vdi.repository;
+
+import com.mobifone.vdi.entity.VmProvisionState;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface VmProvisionStateRepository extends JpaRepository<VmProvisionState, String> {
+    List<VmProvisionState> findByJobIdOrderByVmIndexAsc(String jobId);
+}
@@ -0,0 +1,106 @@
+package com.mobifone.vdi.service;
+
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Executor qua agent (ansible.executor.type=agent): không tạo tiến trình ssh cho mỗi lần chạy,
+ * exit/stdout/task event được agent đẩy về trên kết nối lâu dài → không poll, không đọc lại file events.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class AgentAnsibleExecutor implements AnsibleExecutor {
+
+    final AnsibleAgentClient agent;
+    final SshConnectionPool sshPool;
+    final AnsibleTaskResultService taskResults;
+
+    final Map<String, Long> cancelledJobs = new ConcurrentHashMap<>();   // jobId -> thời điểm cancel
+
+    @NonFinal @Value("${ansible.supervisor.cancel-ttl-minutes:30}")
+    long cancelTtlMinutes;
+
+    @Override
+    public String name() {
+        return "agent";
+    }
+
+    @Override
+    public boolean isRemote() {
+        return true;
+    }
+
+    @Override
+    public boolean pushesTaskEvents() {
+        return true;
+    }
+
+    @Override
+    public Result execute(AnsibleExecRequest req) {
+        String runId = req.getRunId();
+        if (isCancelled(runId)) {
+            log.warn("[agent] job {} đã bị cancel, bỏ qua run {}", runId, req.getLabel());
+            return AnsibleExecutor.noExit(NoExit.CANCELLED);
+        }
+        // cùng quy tắc định tuyến với ssh: job đã bind → đúng control host đó
+        String host = sshPool.hostFor(runId);
+        AnsibleAgentClient.Call call = null;
+        try {
+            call = agent.submit(host, runId, req.getScript(), req.getEventsFile(),
+                    req.isCaptureOutput(), req.getLineSink(), req.getTimeoutMs());
+            Integer exit = req.getTimeoutMs() > 0
+                    ? call.exit().get(req.getTimeoutMs() + TimeUnit.SECONDS.toMillis(30), TimeUnit.MILLISECONDS)
+                    : call.exit().get();
+            if (req.getEventsFile() != null) taskResults.saveAsync(runId, call.events());
+            if (exit == null) {
+                log.warn("Agent run timeout/cancel for job {}", runId);
+                return AnsibleExecutor.noExit(isCancelled(runId) ? NoExit.CANCELLED : NoExit.TIMEOUT);
+            }
+            return new Result(exit, call.output());
+        } catch (TimeoutException te) {
+            // agent tự kill khi quá timeoutMs; không thấy exit → chủ động cancel
+            log.warn("Agent run {} on {} did not finish in time → cancel", call.getId(), host);
+            agent.cancelRun(call);
+            return AnsibleExecutor.noExit(NoExit.TIMEOUT);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            if (call != null) agent.cancelRun(call);
+            return AnsibleExecutor.noExit(NoExit.CANCELLED);
+        } catch (Exception e) {
+            log.error("Agent execution error for job {} on {}", runId, host, e);
+            return AnsibleExecutor.noExit(NoExit.ERROR);
+        }
+    }
+
+    @Override
+    public int cancel(String jobId) {
+        cancelledJobs.put(jobId, System.currentTimeMillis());
+        return agent.cancelOwner(jobId);
+    }
+
+    @Override
+    public void clearCancelled(String jobId) {
+        cancelledJobs.remove(jobId);
+    }
+
+    private boolean isCancelled(String owner) {
+        long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(Math.max(1, cancelTtlMinutes));
+        cancelledJobs.values().removeIf(at -> at < cutoff);
+        for (String jobId : cancelledJobs.keySet()) {
+            if (owner.equals(jobId) || owner.startsWith(jobId + "_")) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,48 @@
+package com.mobifone.vdi.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Khung tin của giao thức agent: 4 byte độ dài (big-endian) + JSON UTF-8.
+ * Dùng chung cho backend (AnsibleAgentClient) và agent giả trong test; agent thật: resources/ansible/agent/vdi_agent.py
+ *
+ * backend → agent: submit {id, owner, script, events?, stream, capture, timeoutMs} | cancel {id, owner?|run?}
+ *                  | read {id, path, offset, limit} | ping {id}
+ * agent → backend: accepted {id} | out {id, line} | event {id, event} | exit {id, code}
+ *                  | cancelled {id, count} | data {id, size, data(base64)} | pong {id} | error {id, message}
+ */
+final class AgentFrames {
+
+    static final ObjectMapper JSON = new ObjectMapper();
+    static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    private AgentFrames() {}
+
+    /** Đọc 1 frame; null khi đầu kia đóng kết nối */
+    static JsonNode read(DataInputStream in) throws IOException {
+        int len;
+        try {
+            len = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (len < 0 || len > MAX_FRAME) throw new IOException("Invalid agent frame length " + len);
+        byte[] buf = new byte[len];
+        in.readFully(buf);
+        return JSON.readTree(buf);
+    }
+
+    /** Ghi 1 frame; caller giữ lock của stream (nhiều thread cùng gửi) */
+    static void write(DataOutputStream out, JsonNode frame) throws IOException {
+        byte[] buf = JSON.writeValueAsBytes(frame);
+        out.writeInt(buf.length);
+        out.write(buf);
+        out.flush();
+    }
+}
@@ -0,0 +1,420 @@
+package com.mobifone.vdi.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Kết nối lâu dài tới agent trên từng Ansible control host (thay cho mỗi lệnh 1 tiến trình ssh):
+ * - transport ssh-stdio: 1 phiên ssh duy nhất chạy vdi_agent.py --stdio, frame đi qua stdin/stdout của phiên
+ * - transport tcp: connect thẳng tới agent đang listen (qua tunnel dựng sẵn), dùng cho agent giả trong test
+ * - nhiều run chạy song song trên cùng kết nối, phân biệt theo id; stdout, task event, exit được agent đẩy về
+ * - cancel/read log/ping là request-response theo id
+ * Mất kết nối → mọi run đang chờ trên kết nối đó kết thúc null (agent cũng kill run của kết nối đã đóng).
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class AnsibleAgentClient {
+
+    static final String AGENT_RESOURCE = "/ansible/agent/vdi_agent.py";
+
+    final SshConnectionPool sshPool;
+
+    final Map<String, Connection> connections = new ConcurrentHashMap<>();   // control host -> kết nối
+    final Map<String, Object> connectLocks = new ConcurrentHashMap<>();
+    final Set<String> installed = ConcurrentHashMap.newKeySet();
+    final AtomicLong seq = new AtomicLong();
+
+    @NonFinal @Value("${ansible.executor.type:ssh}")
+    String executorType;
+
+    @NonFinal @Value("${ansible.agent.transport:ssh-stdio}")
+    String transport;
+
+    // tcp: "default=127.0.0.1:7070, ans2=127.0.0.1:7071" (tên control host = tên trong ansible.hosts.list)
+    @NonFinal @Value("${ansible.agent.endpoints:}")
+    String endpointsSpec;
+
+    @NonFinal @Value("${ansible.agent.path:/ansible-host/agent/vdi_agent.py}")
+    String agentPath;
+
+    @NonFinal @Value("${ansible.agent.python:python3}")
+    String python;
+
+    @NonFinal @Value("${ansible.agent.install:true}")
+    boolean install;
+
+    @NonFinal @Value("${ansible.agent.connect-timeout-ms:10000}")
+    long connectTimeoutMs;
+
+    @NonFinal @Value("${ansible.agent.request-timeout-ms:30000}")
+    long requestTimeoutMs;
+
+    @NonFinal @Value("${ansible.supervisor.capture-max-bytes:8388608}")
+    int captureMaxBytes;
+
+    public boolean isActive() {
+        return "agent".equalsIgnoreCase(executorType);
+    }
+
+    // ===================== API =====================
+
+    /** Gửi 1 run cho agent của host; kết quả qua Call.exit */
+    public Call submit(String host, String owner, String script, String eventsFile,
+                       boolean capture, Consumer<String> lineSink, long timeoutMs) throws IOException {
+        Connection c = connection(host);
+        Call call = new Call(owner + "." + seq.incrementAndGet(), owner, host, capture, lineSink);
+        ObjectNode f = AgentFrames.JSON.createObjectNode()
+                .put("type", "submit")
+                .put("id", call.id)
+                .put("owner", owner)
+                .put("script", script)
+                .put("stream", lineSink != null)
+                .put("capture", capture)
+                .put("timeoutMs", timeoutMs);
+        if (eventsFile != null) f.put("events", eventsFile);
+        c.runs.put(call.id, call);
+        try {
+            c.send(f);
+        } catch (IOException e) {
+            c.runs.remove(call.id);
+            c.close("send failed: " + e.getMessage());
+            throw e;
+        }
+        return call;
+    }
+
+    /** Dừng 1 run (timeout phía backend) */
+    public void cancelRun(Call call) {
+        Connection c = connections.get(call.host);
+        if (c == null || c.closed) return;
+        try {
+            c.request(AgentFrames.JSON.createObjectNode().put("type", "cancel").put("run", call.id));
+        } catch (Exception e) {
+            log.warn("[agent {}] cancel run {} failed: {}", call.host, call.id, e.getMessage());
+        }
+    }
+
+    /** Dừng mọi run của job (owner = jobId hoặc jobId_xxx) trên mọi agent đang kết nối; trả số run đã kill */
+    public int cancelOwner(String jobId) {
+        int n = 0;
+        for (Connection c : connections.values()) {
+            if (c.closed) continue;
+            try {
+                JsonNode r = c.request(AgentFrames.JSON.createObjectNode().put("type", "cancel").put("owner", jobId));
+                n += r.path("count").asInt(0);
+            } catch (Exception e) {
+                log.warn("[agent {}] cancel job {} failed: {}", c.host, jobId, e.getMessage());
+            }
+        }
+        return n;
+    }
+
+    public record Range(long size, byte[] data) {}
+
+    /** Đọc [offset, offset+limit) của 1 file trên host (size = -1 nếu file chưa có) */
+    public Range read(String host, String path, long offset, int limit) throws IOException {
+        JsonNode r = connection(host).request(AgentFrames.JSON.createObjectNode()
+                .put("type", "read")
+                .put("path", path)
+                .put("offset", offset)
+                .put("limit", limit));
+        String data = r.path("data").asText("");
+        return new Range(r.path("size").asLong(-1), data.isEmpty() ? new byte[0] : Base64.getDecoder().decode(data));
+    }
+
+    /** Giữ kết nối sống + phát hiện agent chết sớm (kết nối lỗi → đóng, lần gọi sau connect lại) */
+    @Scheduled(fixedDelayString = "${ansible.agent.ping-ms:15000}")
+    public void ping() {
+        for (Connection c : connections.values()) {
+            if (c.closed) continue;
+            try {
+                c.request(AgentFrames.JSON.createObjectNode().put("type", "ping"));
+            } catch (Exception e) {
+                c.close("ping failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        connections.values().forEach(c -> c.close("shutdown"));
+    }
+
+    // ===================== CONNECT =====================
+
+    private Connection connection(String host) throws IOException {
+        Connection c = connections.get(host);
+        if (c != null && !c.closed) return c;
+        synchronized (connectLocks.computeIfAbsent(host, k -> new Object())) {
+            c = connections.get(host);
+            if (c != null && !c.closed) return c;
+            c = "tcp".equalsIgnoreCase(transport) ? connectTcp(host) : connectSsh(host);
+            Connection conn = c;
+            Thread.ofVirtual().name("agent-reader-" + host).start(conn::readLoop);
+            try {
+                conn.request(AgentFrames.JSON.createObjectNode().put("type", "ping"), connectTimeoutMs);
+            } catch (IOException e) {
+                conn.close("handshake failed");
+                throw e;
+            }
+            connections.put(host, conn);
+            log.info("[agent {}] connected ({})", host, transport);
+            return conn;
+        }
+    }
+
+    private Connection connectTcp(String host) throws IOException {
+        String endpoint = endpoints().get(host);
+        if (endpoint == null) throw new IOException("No agent endpoint for control host " + host);
+        int colon = endpoint.lastIndexOf(':');
+        Socket s = new Socket();
+        s.setTcpNoDelay(true);
+        s.connect(new InetSocketAddress(endpoint.substring(0, colon), Integer.parseInt(endpoint.substring(colon + 1))),
+                (int) connectTimeoutMs);
+        return new Connection(host, s.getInputStream(), s.getOutputStream(), s, null, null);
+    }
+
+    private Connection connectSsh(String host) throws IOException {
+        SshConnectionPool.Lease lease = null;
+        try {
+            if (install && !installed.contains(host)) installAgent(host);
+            // phiên ssh giữ 1 channel của pool trong suốt thời gian kết nối
+            lease = sshPool.acquireOn(host);
+            Process p = new ProcessBuilder(lease.command(python + " " + AnsibleRunnerService.shellQuote(agentPath) + " --stdio"))
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            return new Connection(host, p.getInputStream(), p.getOutputStream(), null, p, lease);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            if (lease != null) lease.close();
+            throw new InterruptedIOException("Interrupted while connecting agent on " + host);
+        } catch (IOException | RuntimeException e) {
+            if (lease != null) lease.close();
+            throw e;
+        }
+    }
+
+    /** Ghi agent (từ resources) lên host qua file tạm + mv: agent đang chạy không đọc phải file ghi dở */
+    private void installAgent(String host) throws IOException, InterruptedException {
+        byte[] agent;
+        try (InputStream in = AnsibleAgentClient.class.getResourceAsStream(AGENT_RESOURCE)) {
+            if (in == null) throw new IOException("Missing resource " + AGENT_RESOURCE);
+            agent = in.readAllBytes();
+        }
+        String path = AnsibleRunnerService.shellQuote(agentPath);
+        String dir = AnsibleRunnerService.shellQuote(agentPath.substring(0, Math.max(1, agentPath.lastIndexOf('/'))));
+        try (SshConnectionPool.Lease lease = sshPool.acquireOn(host)) {
+            Process p = new ProcessBuilder(lease.command("mkdir -p " + dir + " && cat > " + path + ".$$ && mv -f "
+                    + path + ".$$ " + path))
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            try (OutputStream os = p.getOutputStream()) {
+                os.write(agent);
+            }
+            if (!p.waitFor(connectTimeoutMs, TimeUnit.MILLISECONDS)) {
+                p.destroyForcibly();
+                throw new IOException("Agent install timeout on " + host);
+            }
+            if (p.exitValue() != 0) throw new IOException("Agent install failed on " + host + " (exit=" + p.exitValue() + ")");
+        }
+        installed.add(host);
+    }
+
+    private Map<String, String> endpoints() {
+        Map<String, String> out = new HashMap<>();
+        if (endpointsSpec == null || endpointsSpec.isBlank()) return out;
+        for (String part : endpointsSpec.split(",")) {
+            String spec = part.trim();
+            if (spec.isEmpty()) continue;
+            int eq = spec.indexOf('=');
+            out.put(eq > 0 ? spec.substring(0, eq).trim() : "default", spec.substring(eq + 1).trim());
+        }
+        return out;
+    }
+
+    // ===================== CALL / CONNECTION =====================
+
+    /** 1 run đang chạy trên agent */
+    public static final class Call {
+        @Getter final String id;
+        @Getter final String owner;
+        @Getter final String host;
+        final boolean capture;
+        final Consumer<String> lineSink;
+        final StringBuilder output = new StringBuilder();
+        final List<JsonNode> events = Collections.synchronizedList(new ArrayList<>());
+        /** exit code; null nếu bị kill (cancel/timeout) hoặc mất kết nối */
+        final CompletableFuture<Integer> exit = new CompletableFuture<>();
+
+        Call(String id, String owner, String host, boolean capture, Consumer<String> lineSink) {
+            this.id = id;
+            this.owner = owner;
+            this.host = host;
+            this.capture = capture;
+            this.lineSink = lineSink;
+        }
+
+        public CompletableFuture<Integer> exit() {
+            return exit;
+        }
+
+        public String output() {
+            synchronized (output) {
+                return output.toString();
+            }
+        }
+
+        public List<JsonNode> events() {
+            synchronized (events) {
+                return new ArrayList<>(events);
+            }
+        }
+    }
+
+    private final class Connection {
+        final String host;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final Socket socket;
+        final Process process;
+        final SshConnectionPool.Lease lease;
+        final Map<String, Call> runs = new ConcurrentHashMap<>();
+        final Map<String, CompletableFuture<JsonNode>> pending = new ConcurrentHashMap<>();
+        volatile boolean closed;
+
+        Connection(String host, InputStream in, OutputStream out, Socket socket, Process process,
+                   SshConnectionPool.Lease lease) {
+            this.host = host;
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.socket = socket;
+            this.process = process;
+            this.lease = lease;
+        }
+
+        void send(JsonNode frame) throws IOException {
+            if (closed) throw new IOException("Agent connection to " + host + " closed");
+            synchronized (out) {
+                AgentFrames.write(out, frame);
+            }
+        }
+
+        JsonNode request(ObjectNode frame) throws IOException {
+            return request(frame, requestTimeoutMs);
+        }
+
+        JsonNode request(ObjectNode frame, long timeoutMs) throws IOException {
+            String id = "q" + seq.incrementAndGet();
+            CompletableFuture<JsonNode> f = new CompletableFuture<>();
+            pending.put(id, f);
+            try {
+                send(frame.put("id", id));
+                JsonNode r = f.get(timeoutMs, TimeUnit.MILLISECONDS);
+                if ("error".equals(r.path("type").asText())) throw new IOException(r.path("message").asText("agent error"));
+                return r;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for agent " + host);
+            } catch (TimeoutException te) {
+                throw new IOException("Agent " + host + " did not answer " + frame.path("type").asText() + " in " + timeoutMs + " ms");
+            } catch (ExecutionException ee) {
+                throw new IOException(ee.getCause().getMessage(), ee.getCause());
+            } finally {
+                pending.remove(id);
+            }
+        }
+
+        void readLoop() {
+            try {
+                JsonNode f;
+                while ((f = AgentFrames.read(in)) != null) dispatch(f);
+                close("agent closed the connection");
+            } catch (Exception e) {
+                close(e.getMessage());
+            }
+        }
+
+        private void dispatch(JsonNode f) {
+            String id = f.path("id").asText();
+            switch (f.path("type").asText()) {
+                case "out" -> {
+                    Call c = runs.get(id);
+                    if (c == null) return;
+                    String line = f.path("line").asText("");
+                    if (c.lineSink != null) c.lineSink.accept(line);
+                    if (c.capture) {
+                        synchronized (c.output) {
+                            c.output.append(line).append('\n');
+                            // giữ phần cuối (PLAY RECAP), cắt theo lô để không copy mỗi dòng
+                            if (c.output.length() > 2L * captureMaxBytes) {
+                                c.output.delete(0, c.output.length() - captureMaxBytes);
+                            }
+                        }
+                    }
+                }
+                case "event" -> {
+                    Call c = runs.get(id);
+                    if (c != null && f.hasNonNull("event")) c.events.add(f.get("event"));
+                }
+                case "exit" -> {
+                    Call c = runs.remove(id);
+                    if (c != null) c.exit.complete(f.path("killed").asBoolean(false) ? null : f.path("code").asInt(-1));
+                }
+                case "accepted" -> { }
+                case "error" -> {
+                    Call c = runs.remove(id);
+                    if (c != null) {
+                        log.warn("[agent {}] run {} rejected: {}", host, id, f.path("message").asText());
+                        c.exit.complete(null);
+                        return;
+                    }
+                    CompletableFuture<JsonNode> p = pending.get(id);
+                    if (p != null) p.complete(f);
+                }
+                default -> {
+                    CompletableFuture<JsonNode> p = pending.get(id);
+                    if (p != null) p.complete(f);
+                }
+            }
+        }
+
+        void close(String reason) {
+            if (closed) return;
+            closed = true;
+            connections.remove(host, this);
+            log.warn("[agent {}] connection closed: {} ({} run(s) lost)", host, reason, runs.size());
+            runs.values().forEach(c -> c.exit.complete(null));
+            runs.clear();
+            IOException lost = new IOException("Agent connection to " + host + " closed: " + reason);
+            pending.values().forEach(p -> p.completeExceptionally(lost));
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException ignored) {
+                // đang đóng
+            }
+            if (process != null) process.destroyForcibly();
+            if (lease != null) lease.close();
+        }
+    }
+}
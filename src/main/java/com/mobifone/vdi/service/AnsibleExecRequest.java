@@ -0,0 +1,29 @@
+package com.mobifone.vdi.service;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 1 lần chạy gửi cho AnsibleExecutor: script bash (mkdir + heredoc + ansible-playbook ...) kèm metadata
+ * để executor mô phỏng (label, hosts) hoặc định tuyến/cancel (runId).
+ */
+@Getter
+@Builder
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class AnsibleExecRequest {
+    String runId;                    // jobId / jobId_xxx → chọn control host, cancel theo job
+    String label;                    // role / playbook (chrome, pfsense_nat_create ...) → thống kê, mô phỏng
+    String script;                   // nội dung stdin của `bash -s`
+    String eventsFile;               // file JSON lines của callback vdi_task_events (optional)
+
+    @Singular
+    List<String> hosts;              // alias host trong inventory (executor mô phỏng sinh PLAY RECAP)
+
+    boolean captureOutput;           // trả stdout về (PLAY RECAP / dump)
+    Consumer<String> lineSink;       // nhận từng dòng output (optional, thay cho captureOutput)
+    long timeoutMs;
+}
@@ -0,0 +1,205 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.dto.response.SchedulerMetricsResponse;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Admission control trước AnsibleRunnerService:
+ * - trần số ansible-playbook chạy đồng thời trên Ansible host (global cap)
+ * - ưu tiên theo lớp: NAT > APP > BULK (strict priority)
+ * - trong mỗi lớp: hàng đợi riêng theo tenant (project/user), chia lượt bằng deficit round robin
+ */
+@Service
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class AnsibleExecutionScheduler {
+
+    public enum Priority { NAT, APP, BULK }
+
+    @NonFinal
+    @Value("${ansible.scheduler.max-concurrent:8}")
+    int maxConcurrent;
+
+    @NonFinal
+    @Value("${ansible.scheduler.quantum:1}")
+    int quantum;
+
+    final Object lock = new Object();
+    final EnumMap<Priority, ClassQueue> queues = new EnumMap<>(Priority.class);
+    int running;
+
+    final EnumMap<Priority, AtomicLong> admitted = new EnumMap<>(Priority.class);
+    final EnumMap<Priority, AtomicLong> totalWaitMs = new EnumMap<>(Priority.class);
+    final EnumMap<Priority, AtomicLong> maxWaitMs = new EnumMap<>(Priority.class);
+
+    public AnsibleExecutionScheduler() {
+        for (Priority p : Priority.values()) {
+            queues.put(p, new ClassQueue());
+            admitted.put(p, new AtomicLong());
+            totalWaitMs.put(p, new AtomicLong());
+            maxWaitMs.put(p, new AtomicLong());
+        }
+    }
+
+    /** Chờ tới lượt (chặn thread gọi – thường là virtual thread) rồi chạy work; luôn trả slot khi xong */
+    public <T> T run(String tenant, Priority priority, String label, Supplier<T> work) {
+        Ticket t = enqueue(tenant, priority, label);
+        t.admission.join();
+        try {
+            return work.get();
+        } finally {
+            release();
+        }
+    }
+
+    /** Bản bất đồng bộ: future hoàn tất khi work chạy xong */
+    public <T> CompletableFuture<T> submit(String tenant, Priority priority, String label, Supplier<T> work) {
+        Ticket t = enqueue(tenant, priority, label);
+        return t.admission.thenApplyAsync(v -> {
+            try {
+                return work.get();
+            } finally {
+                release();
+            }
+        }, r -> Thread.ofVirtual().name("ansible-sched-" + label).start(r));
+    }
+
+    private Ticket enqueue(String tenant, Priority priority, String label) {
+        Ticket t = new Ticket(tenant == null || tenant.isBlank() ? "_default" : tenant, priority, label);
+        synchronized (lock) {
+            queues.get(priority).add(t);
+            dispatch();
+        }
+        return t;
+    }
+
+    private void release() {
+        synchronized (lock) {
+            running--;
+            dispatch();
+        }
+    }
+
+    /** Gọi trong lock: admit ticket tiếp theo khi còn slot */
+    private void dispatch() {
+        while (running < Math.max(1, maxConcurrent)) {
+            Ticket next = null;
+            for (Priority p : Priority.values()) {
+                next = queues.get(p).poll(Math.max(1, quantum));
+                if (next != null) break;
+            }
+            if (next == null) return;
+            running++;
+            long waited = System.currentTimeMillis() - next.enqueuedAt;
+            admitted.get(next.priority).incrementAndGet();
+            totalWaitMs.get(next.priority).addAndGet(waited);
+            maxWaitMs.get(next.priority).accumulateAndGet(waited, Math::max);
+            if (waited > 1000) {
+                log.info("[sched] admit {} ({}/{}) after {} ms", next.label, next.priority, next.tenant, waited);
+            }
+            next.admission.complete(null);
+        }
+    }
+
+    public SchedulerMetricsResponse metrics() {
+        synchronized (lock) {
+            List<SchedulerMetricsResponse.ClassStats> classes = new ArrayList<>();
+            int depth = 0;
+            for (Priority p : Priority.values()) {
+                ClassQueue q = queues.get(p);
+                long n = admitted.get(p).get();
+                depth += q.size();
+                classes.add(SchedulerMetricsResponse.ClassStats.builder()
+                        .priority(p.name())
+                        .queueDepth(q.size())
+                        .queueDepthByTenant(q.depthByTenant())
+                        .admitted(n)
+                        .avgWaitMs(n == 0 ? 0 : totalWaitMs.get(p).get() / n)
+                        .maxWaitMs(maxWaitMs.get(p).get())
+                        .build());
+            }
+            return SchedulerMetricsResponse.builder()
+                    .maxConcurrent(maxConcurrent)
+                    .running(running)
+                    .queueDepth(depth)
+                    .classes(classes)
+                    .build();
+        }
+    }
+
+    // ===================== TYPES =====================
+
+    private static final class Ticket {
+        final String tenant;
+        final Priority priority;
+        final String label;
+        final long enqueuedAt = System.currentTimeMillis();
+        final CompletableFuture<Void> admission = new CompletableFuture<>();
+
+        Ticket(String tenant, Priority priority, String label) {
+            this.tenant = tenant;
+            this.priority = priority;
+            this.label = label;
+        }
+    }
+
+    /** 1 lớp ưu tiên: hàng đợi theo tenant + vòng DRR (chi phí mỗi lần chạy = 1) */
+    private static final class ClassQueue {
+        final Map<String, Deque<Ticket>> byTenant = new HashMap<>();
+        final Map<String, Integer> deficit = new HashMap<>();
+        final Deque<String> active = new ArrayDeque<>();
+        int size;
+
+        void add(Ticket t) {
+            Deque<Ticket> q = byTenant.computeIfAbsent(t.tenant, k -> new ArrayDeque<>());
+            if (q.isEmpty()) {
+                active.addLast(t.tenant);
+                deficit.putIfAbsent(t.tenant, 0);
+            }
+            q.addLast(t);
+            size++;
+        }
+
+        Ticket poll(int quantum) {
+            while (!active.isEmpty()) {
+                String tenant = active.peekFirst();
+                int d = deficit.getOrDefault(tenant, 0);
+                if (d < 1) {
+                    // hết lượt → nạp quantum và chuyển tenant xuống cuối vòng
+                    deficit.put(tenant, d + quantum);
+                    active.addLast(active.pollFirst());
+                    continue;
+                }
+                Deque<Ticket> q = byTenant.get(tenant);
+                Ticket t = q.pollFirst();
+                size--;
+                deficit.put(tenant, d - 1);
+                if (q.isEmpty()) {
+                    byTenant.remove(tenant);
+                    active.pollFirst();
+                    deficit.remove(tenant);
+                }
+                return t;
+            }
+            return null;
+        }
+
+        int size() { return size; }
+
+        Map<String, Integer> depthByTenant() {
+            Map<String, Integer> m = new LinkedHashMap<>();
+            byTenant.forEach((k, v) -> m.put(k, v.size()));
+            return m;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.dto.response.AnsibleExecutorMetricsResponse;
+
+import java.util.List;
+
+/**
+ * Cách thực thi ansible của AnsibleRunnerService (chọn bằng ansible.executor.type):
+ * - ssh: bash -s qua SSH tới Ansible control host (pool ControlMaster)
+ * - agent: gửi qua kết nối lâu dài tới agent trên Ansible host, kết quả được đẩy về
+ * - simulated: không chạy gì, mô phỏng độ trễ/tỉ lệ lỗi theo role → load test orchestrator
+ */
+public interface AnsibleExecutor {
+
+    /** Kết quả 1 run: noExit != null → không có exit code (exit = NO_EXIT_CODE), lý do nằm trong noExit */
+    record Result(int exit, String output, NoExit noExit) {
+        public Result(int exit, String output) {
+            this(exit, output, null);
+        }
+
+        public boolean hasExit() {
+            return noExit == null;
+        }
+    }
+
+    int NO_EXIT_CODE = -1;
+
+    /** Lý do 1 run không có exit code → classifier phân biệt timeout với cancel/lỗi transport */
+    enum NoExit { TIMEOUT, CANCELLED, NO_CAPACITY, ERROR }
+
+    /** Kết quả không có exit code: executor dùng ở mọi nhánh timeout/cancel/lỗi transport */
+    static Result noExit(NoExit reason) {
+        return new Result(NO_EXIT_CODE, null, reason);
+    }
+
+    String name();
+
+    /** true: chạy thật trên Ansible host (có log, pid file, events file ở đó) */
+    boolean isRemote();
+
+    /** true: executor tự lưu kết quả task (event đẩy về trong lúc chạy), runner không cần đọc file events */
+    default boolean pushesTaskEvents() {
+        return false;
+    }
+
+    /** Chạy và chờ; không bao giờ null: timeout/bị cancel/lỗi transport → hasExit() = false */
+    Result execute(AnsibleExecRequest request);
+
+    /** Dừng mọi run của job (jobId hoặc jobId_xxx); trả số run đã dừng */
+    int cancel(String jobId);
+
+    /** Cho phép job đã cancel chạy lại với cùng jobId */
+    void clearCancelled(String jobId);
+
+    /** Thống kê theo role/playbook (nếu executor có) */
+    default List<AnsibleExecutorMetricsResponse.Label> stats() {
+        return List.of();
+    }
+}
@@ -0,0 +1,17 @@
+package com.mobifone.vdi.service;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+/** 1 host Windows trong inventory nhiều host (alias riêng vì nhiều VM dùng chung IP public NAT) */
+@Getter
+@Builder
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class AnsibleHostTarget {
+    String alias;        // tên host trong inventory / PLAY RECAP, ví dụ vd_<vdId>
+    String ip;           // ansible_host
+    int port;            // ansible_port (NAT WinRM)
+    String user;
+    String pass;
+}
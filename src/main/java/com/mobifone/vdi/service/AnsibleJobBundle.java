@@ -0,0 +1,41 @@
+package com.mobifone.vdi.service;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Toàn bộ artifact của 1 lần chạy ansible (inventory, playbook, thư mục cần tạo + lệnh chạy),
+ * được stream lên Ansible host trong 1 round-trip duy nhất.
+ */
+@Getter
+@Builder
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class AnsibleJobBundle {
+    String runId;                    // key để cancel/kill (RUNNING)
+    String label;                    // role/playbook (thống kê, executor mô phỏng)
+
+    @Singular
+    List<String> dirs;               // mkdir -p trước khi ghi file
+
+    @Singular
+    Map<String, String> files;       // remotePath -> nội dung (giữ thứ tự khai báo)
+
+    @Singular
+    Map<String, String> cachedFiles; // path theo nội dung (cache/pb_<sha>.yml) -> nội dung; host đã có → không upload
+
+    @Singular
+    List<String> journalLines;       // marker của journal chưa flush → append vào log trước khi chạy
+
+    String rolesPath;                // export ANSIBLE_ROLES_PATH (optional)
+    String pidFile;                  // ghi $$ để killRemote (optional)
+    String logFile;                  // file log từ xa
+    String startMarker;              // ví dụ: "===== APP chrome START ====="
+    String endMarkerPrefix;          // ví dụ: "===== APP chrome END" → "... (exit=N) ====="
+    String command;                  // ví dụ: "ansible-playbook -i inv.ini pb.yml"
+    String eventsFile;               // bật callback vdi_task_events → JSON lines kết quả từng task (optional)
+    boolean captureRecap;            // trả PLAY RECAP về stdout (chạy nhiều host)
+}
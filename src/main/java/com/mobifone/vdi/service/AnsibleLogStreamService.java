@@ -0,0 +1,408 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.dto.response.LogChunkResponse;
+import com.mobifone.vdi.entity.AnsibleJob;
+import com.mobifone.vdi.exception.AppException;
+import com.mobifone.vdi.exception.ErrorCode;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+/**
+ * Stream log ansible theo byte offset:
+ * - mỗi job có đúng 1 follower đọc phần mới của file log trên Ansible host (poll qua SSH pool)
+ * - follower phát các đoạn mới cho mọi subscriber (SSE); mỗi subscriber có hàng đợi giới hạn
+ * - subscriber chậm bị cắt với event "lag" kèm offset để client đọc lại bằng ?offset=
+ * - executor agent: đọc qua kết nối agent sẵn có thay vì mỗi lần đọc 1 tiến trình ssh
+ * - job đã kết thúc: đọc từ LogArchiveService (archive local), không qua SSH
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class AnsibleLogStreamService {
+
+    static final Pattern ANSI = Pattern.compile("\u001B\\[[0-9;?]*[A-Za-z]");
+    static final Set<String> TERMINAL = Set.of("SUCCESS", "FAILED", "CANCELLED");
+    static final int MAX_RANGE_BYTES = 8 << 20;
+
+    final AnsibleRunnerService runner;
+    final SshConnectionPool sshPool;
+    final AnsibleAgentClient agent;
+    final LogArchiveService logArchive;
+
+    final Map<String, Follower> followers = new ConcurrentHashMap<>();
+
+    @NonFinal @Value("${ansible.log-stream.chunk-bytes:32768}")
+    int chunkBytes;
+
+    @NonFinal @Value("${ansible.log-stream.max-pending-chunks:32}")
+    int maxPendingChunks;
+
+    @NonFinal @Value("${ansible.log-stream.poll-min-ms:500}")
+    long pollMinMs;
+
+    @NonFinal @Value("${ansible.log-stream.poll-max-ms:3000}")
+    long pollMaxMs;
+
+    @NonFinal @Value("${ansible.log-stream.idle-grace-ms:10000}")
+    long idleGraceMs;
+
+    @NonFinal @Value("${ansible.log-stream.emitter-timeout-ms:1800000}")
+    long emitterTimeoutMs;
+
+    /** Đọc 1 đoạn log từ offset (tối đa limit byte), cắt ở cuối dòng hoàn chỉnh */
+    public LogChunkResponse readChunk(String jobId, long offset, int limit) {
+        AnsibleJob job = runner.getJob(jobId);
+        String path = requirePath(job);
+        long from = Math.max(0, offset);
+        boolean terminal = TERMINAL.contains(job.getStatus());
+        RawRange r = readRaw(jobId, path, from, Math.max(1, Math.min(limit, chunkBytes * 8)), terminal);
+        boolean atEnd = from + r.data.length >= r.size;
+        int n = completeLength(r.data, terminal && atEnd, atEnd);
+        long next = from + n;
+        return LogChunkResponse.builder()
+                .jobId(jobId)
+                .offset(from)
+                .nextOffset(next)
+                .size(r.size)
+                .eof(terminal && next >= r.size)
+                .data(clean(r.data, n))
+                .build();
+    }
+
+    /**
+     * Đọc khoảng byte thô của 1 file log thuộc job (log job MQ hoặc AppDeployment/JobStepLog.logPath của job provision).
+     * Dùng cho GET .../log/raw có header Range; tối đa MAX_RANGE_BYTES mỗi lần.
+     */
+    public LogArchiveService.Range readRange(String jobId, String path, long offset, long limit) {
+        if (path == null || path.isBlank()) path = requirePath(runner.getJob(jobId));
+        if (!LogArchiveService.baseName(path).startsWith(jobId)) throw new AppException(ErrorCode.LOG_FILE_PATH);
+        RawRange r = readRaw(jobId, path, Math.max(0, offset), (int) Math.max(0, Math.min(limit, MAX_RANGE_BYTES)), false);
+        return new LogArchiveService.Range(r.size, r.data);
+    }
+
+    /** Mở SSE stream từ offset; các subscriber cùng job dùng chung 1 follower */
+    public SseEmitter stream(String jobId, long offset) {
+        String path = requirePath(runner.getJob(jobId));
+        SseEmitter emitter = new SseEmitter(emitterTimeoutMs);
+        Subscriber sub = new Subscriber(jobId, path, emitter, Math.max(0, offset));
+
+        while (true) {
+            Follower f = followers.computeIfAbsent(jobId, k -> new Follower(k, path));
+            synchronized (f) {
+                if (!f.stopped) {
+                    if (!f.started) f.position = sub.from;   // follower mới: bắt đầu từ offset của client đầu tiên
+                    sub.follower = f;
+                    sub.liveFrom = f.position;
+                    f.subs.add(sub);
+                    f.startOnce();
+                    break;
+                }
+            }
+            followers.remove(jobId, f);
+        }
+
+        emitter.onCompletion(sub::close);
+        emitter.onTimeout(sub::close);
+        emitter.onError(e -> sub.close());
+        Thread.ofVirtual().name("log-sse-" + jobId).start(sub);
+        return emitter;
+    }
+
+    // ===================== REMOTE READ =====================
+
+    private record RawRange(long size, byte[] data) {}
+
+    private RawRange readRaw(String jobId, String path, long offset, int limit) {
+        return readRaw(jobId, path, offset, limit, false);
+    }
+
+    /** finished: job đã kết thúc → chưa lưu trữ thì lưu trữ ngay rồi đọc từ archive */
+    private RawRange readRaw(String jobId, String path, long offset, int limit, boolean finished) {
+        RawRange archived = readArchived(jobId, path, offset, limit, finished);
+        if (archived != null) return archived;
+        if (agent.isActive()) {
+            try {
+                AnsibleAgentClient.Range r = agent.read(sshPool.hostFor(jobId), path, offset, limit);
+                return new RawRange(Math.max(r.size(), 0), r.data());
+            } catch (Exception e) {
+                throw new AppException(ErrorCode.LOG_FILE_READ);
+            }
+        }
+        String f = AnsibleRunnerService.shellQuote(path);
+        // dòng đầu: kích thước file (-1 nếu chưa có); phần sau: byte [offset, offset+limit)
+        String cmd = "s=$(stat -c %s " + f + " 2>/dev/null || echo -1); echo \"$s\"; "
+                + "if [ \"$s\" -gt " + offset + " ]; then tail -c +" + (offset + 1) + " " + f
+                + " | head -c " + limit + "; fi";
+        try (SshConnectionPool.Lease lease = sshPool.acquireFor(jobId)) {
+            Process p = new ProcessBuilder(lease.command(cmd)).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            try (InputStream in = p.getInputStream()) {
+                ByteArrayOutputStream head = new ByteArrayOutputStream();
+                int b;
+                while ((b = in.read()) != -1 && b != '\n') head.write(b);
+                long size = Long.parseLong(head.toString(StandardCharsets.US_ASCII).trim());
+                byte[] data = in.readNBytes(limit);
+                if (!p.waitFor(30, TimeUnit.SECONDS)) p.destroyForcibly();
+                return new RawRange(Math.max(size, 0), data);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new AppException(ErrorCode.LOG_FILE_READ);
+        } catch (Exception e) {
+            throw new AppException(ErrorCode.LOG_FILE_READ);
+        }
+    }
+
+    private RawRange readArchived(String jobId, String path, long offset, int limit, boolean finished) {
+        boolean ready = logArchive.isArchived(jobId)
+                || ((finished || logArchive.isArchiving(jobId)) && logArchive.ensureArchived(jobId));
+        if (!ready) return null;
+        try {
+            LogArchiveService.Range r = logArchive.read(jobId, path, offset, limit);
+            return r == null ? null : new RawRange(r.size(), r.data());
+        } catch (IllegalArgumentException e) {
+            throw new AppException(ErrorCode.LOG_FILE_PATH);
+        } catch (IOException e) {
+            throw new AppException(ErrorCode.LOG_FILE_READ);
+        }
+    }
+
+    /**
+     * Số byte được phát: tới hết dòng cuối cùng; dòng dở ở cuối file (atEnd) chờ lần đọc sau,
+     * dòng dài hơn cả buffer thì cắt ở ranh giới UTF-8
+     */
+    static int completeLength(byte[] data, boolean takeAll, boolean atEnd) {
+        if (takeAll || data.length == 0) return data.length;
+        for (int i = data.length - 1; i >= 0; i--) {
+            if (data[i] == '\n') return i + 1;
+        }
+        if (atEnd) return 0;
+        int i = data.length;
+        while (i > 0 && (data[i - 1] & 0xC0) == 0x80 && data.length - i < 3) i--;
+        if (i > 0 && (data[i - 1] & 0x80) != 0) {
+            int lead = data[i - 1] & 0xFF;
+            int need = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+            if (data.length - (i - 1) < need) return i - 1;
+        }
+        return data.length;
+    }
+
+    static String clean(byte[] data, int len) {
+        return ANSI.matcher(new String(data, 0, len, StandardCharsets.UTF_8)).replaceAll("");
+    }
+
+    private String requirePath(AnsibleJob job) {
+        String path = job.getLogPath();
+        if (path == null || path.isEmpty()) throw new AppException(ErrorCode.LOG_FILE_PATH);
+        return path;
+    }
+
+    private boolean isTerminal(String jobId) {
+        try {
+            return TERMINAL.contains(runner.getJob(jobId).getStatus());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // ===================== FOLLOWER / SUBSCRIBER =====================
+
+    private record Chunk(long offset, long nextOffset, long size, String data) {}
+    private record Signal(String event, long nextOffset) {}
+
+    private static final Signal WAKE = new Signal("wake", -1);
+
+    /** Đọc phần mới của 1 file log và phát cho mọi subscriber của job */
+    private final class Follower implements Runnable {
+        final String jobId;
+        final String path;
+        final List<Subscriber> subs = new CopyOnWriteArrayList<>();
+        long position;
+        boolean stopped;
+        boolean started;
+
+        Follower(String jobId, String path) {
+            this.jobId = jobId;
+            this.path = path;
+        }
+
+        /** Gọi trong synchronized(this) */
+        void startOnce() {
+            if (started) return;
+            started = true;
+            Thread.ofVirtual().name("log-follow-" + jobId).start(this);
+        }
+
+        @Override
+        public void run() {
+            long sleep = pollMinMs;
+            long idleSince = System.currentTimeMillis();
+            try {
+                while (true) {
+                    long pos;
+                    synchronized (this) { pos = position; }
+                    RawRange r = readRaw(jobId, path, pos, chunkBytes);
+                    boolean caughtUp = pos + r.data.length >= r.size;
+                    boolean terminal = caughtUp && isTerminal(jobId);
+                    int n = completeLength(r.data, terminal, caughtUp);
+
+                    synchronized (this) {
+                        if (n > 0) {
+                            Chunk c = new Chunk(pos, pos + n, r.size, clean(r.data, n));
+                            position = pos + n;
+                            subs.forEach(s -> s.offer(c));
+                        }
+                        if (terminal && position >= r.size) {
+                            stopped = true;
+                            Signal end = new Signal("end", position);
+                            subs.forEach(s -> s.signal(end));
+                            return;
+                        }
+                        if (subs.isEmpty()) {
+                            if (System.currentTimeMillis() - idleSince > idleGraceMs) {
+                                stopped = true;
+                                return;
+                            }
+                        } else {
+                            idleSince = System.currentTimeMillis();
+                        }
+                    }
+
+                    if (n > 0 && !caughtUp) continue;   // còn dữ liệu → đọc tiếp ngay
+                    sleep = n > 0 ? pollMinMs : Math.min(sleep * 2, pollMaxMs);
+                    Thread.sleep(sleep);
+                }
+            } catch (Exception e) {
+                log.warn("[log-stream {}] follower stopped: {}", jobId, e.getMessage());
+                synchronized (this) {
+                    stopped = true;
+                    Signal err = new Signal("error", position);
+                    subs.forEach(s -> s.signal(err));
+                }
+            } finally {
+                followers.remove(jobId, this);
+            }
+        }
+    }
+
+    /** 1 client SSE: catch-up từ offset yêu cầu rồi nhận các đoạn live qua hàng đợi giới hạn */
+    private final class Subscriber implements Runnable {
+        final String jobId;
+        final String path;
+        final SseEmitter emitter;
+        final long from;
+        final BlockingQueue<Object> queue;
+        volatile Follower follower;
+        volatile long liveFrom;
+        volatile boolean closed;
+
+        Subscriber(String jobId, String path, SseEmitter emitter, long from) {
+            this.jobId = jobId;
+            this.path = path;
+            this.emitter = emitter;
+            this.from = from;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, maxPendingChunks) + 1);
+        }
+
+        /** Gọi bởi follower (trong lock); không bao giờ chặn */
+        void offer(Chunk c) {
+            if (closed) return;
+            if (queue.remainingCapacity() > 1) {
+                queue.offer(c);
+                return;
+            }
+            // client đọc không kịp → bỏ buffer, báo offset để client tự đọc lại
+            Object head = queue.peek();
+            long resume = head instanceof Chunk h ? h.offset() : c.offset();
+            closed = true;
+            queue.clear();
+            queue.offer(new Signal("lag", resume));
+        }
+
+        void signal(Signal s) {
+            if (closed) return;
+            if (!queue.offer(s)) {
+                queue.clear();
+                queue.offer(s);
+            }
+        }
+
+        void close() {
+            closed = true;
+            Follower f = follower;
+            if (f != null) f.subs.remove(this);
+            queue.offer(WAKE);
+        }
+
+        @Override
+        public void run() {
+            try {
+                // 1) catch-up: [from, liveFrom) đọc trực tiếp, không đi qua follower
+                long pos = from;
+                while (pos < liveFrom && !closed) {
+                    RawRange r = readRaw(jobId, path, pos, (int) Math.min(chunkBytes, liveFrom - pos));
+                    if (r.data.length == 0) break;
+                    int n = completeLength(r.data, pos + r.data.length >= liveFrom, false);
+                    if (n == 0) n = r.data.length;
+                    send(new Chunk(pos, pos + n, r.size, clean(r.data, n)));
+                    pos += n;
+                }
+                // 2) live
+                while (true) {
+                    Object o = queue.take();
+                    if (o instanceof Chunk c) {
+                        if (closed) return;
+                        if (c.nextOffset() <= from) continue;
+                        send(c);
+                    } else if (o instanceof Signal s) {
+                        if (s == WAKE) return;
+                        emitter.send(SseEmitter.event().name(s.event())
+                                .id(String.valueOf(s.nextOffset()))
+                                .data(Map.of("nextOffset", s.nextOffset()), MediaType.APPLICATION_JSON));
+                        emitter.complete();
+                        return;
+                    }
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | IllegalStateException e) {
+                // client đã đóng kết nối
+            } catch (Exception e) {
+                emitter.completeWithError(e);
+            } finally {
+                close();
+            }
+        }
+
+        private void send(Chunk c) throws IOException {
+            LogChunkResponse body = LogChunkResponse.builder()
+                    .jobId(follower.jobId)
+                    .offset(c.offset())
+                    .nextOffset(c.nextOffset())
+                    .size(c.size())
+                    .data(c.data())
+                    .build();
+            // id = nextOffset → EventSource tự gửi Last-Event-ID khi reconnect
+            emitter.send(SseEmitter.event().name("log")
+                    .id(String.valueOf(c.nextOffset()))
+                    .data(body, MediaType.APPLICATION_JSON));
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.mobifone.vdi.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mobifone.vdi.dto.request.AnsibleJobMessageRequest;
+import com.mobifone.vdi.dto.response.AnsibleExecutorMetricsResponse;
 import com.mobifone.vdi.entity.AnsibleJob;
 import com.mobifone.vdi.entity.AppDefinition;
 import com.mobifone.vdi.exception.AppException;
@@ -15,17 +17,17 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
-import java.io.FileWriter;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 @RequiredArgsConstructor
@@ -34,23 +36,57 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class AnsibleRunnerService {
 
     final AnsibleJobRepository jobRepository;
+    final SshConnectionPool sshPool;
+    final AnsibleExecutionScheduler execScheduler;
+    final RetryScheduler retryScheduler;
+    final JobJournalService journal;
+    final AnsibleTaskResultService taskResults;
+    final List<AnsibleExecutor> executors;
+    final PlaybookCacheService playbookCache;
+    final LogArchiveService logArchive;
 
-    // Tiến trình SSH local theo jobId để có thể cancel
-    final ConcurrentMap<String, Process> RUNNING = new ConcurrentHashMap<>();
+    static final ObjectMapper JSON = new ObjectMapper();
 
-    // ====== Config từ application.yml (có default) ======
-    @NonFinal
-    @Value("${ansible.max-retries:1}")
-    protected int maxRetries;
+    // Số dòng cuối log trả về stdout khi exit != 0 (cho FailureClassifier)
+    static final int FAILURE_TAIL_LINES = 40;
+
+    /**
+     * Kết quả 1 run ansible kèm dấu vết lỗi (trả thẳng cho caller, không qua state của thread):
+     * exit null = không có exit code, lý do ở noExit; tail = đuôi log khi exit != 0.
+     */
+    public record RunOutcome(boolean ok, Integer exit, String tail, AnsibleExecutor.NoExit noExit) {
+        static final RunOutcome OK = new RunOutcome(true, 0, null, null);
+
+        static RunOutcome of(AnsibleExecutor.Result r) {
+            if (!r.hasExit()) return new RunOutcome(false, null, null, r.noExit());
+            return new RunOutcome(r.exit() == 0, r.exit(), r.exit() == 0 ? null : r.output(), null);
+        }
+
+        static RunOutcome error() {
+            return new RunOutcome(false, null, null, AnsibleExecutor.NoExit.ERROR);
+        }
+
+        /** Dấu vết cho FailureClassifier; null nếu run thành công */
+        public FailureClassifier.Evidence evidence() {
+            return ok ? null : new FailureClassifier.Evidence(exit, tail, noExit);
+        }
+    }
 
+    /** Kết quả run nhiều host: OK theo alias (PLAY RECAP) + dấu vết lỗi của từng host lỗi */
+    public record HostsOutcome(Map<String, Boolean> ok, Map<String, FailureClassifier.Evidence> failures) {}
+
+    // Callback ghi kết quả từng task (stage kèm mỗi lần chạy, xem resources/ansible/callback_plugins)
+    static final String TASK_EVENTS_CALLBACK = "vdi_task_events";
+    static final String TASK_EVENTS_PLUGIN = loadResource("/ansible/callback_plugins/" + TASK_EVENTS_CALLBACK + ".py");
+
+    // Playbook batch NAT ship kèm backend (schema nat_rules: xem đầu file), stage theo nội dung như playbook role
+    static final String NAT_BATCH_PLAYBOOK = loadResource("/ansible/pfsense/nat_batch.yml");
+
+    // ====== Config từ application.yml (có default) ======
     @NonFinal
     @Value("${ansible.timeout-minutes:30}")
     protected long timeoutMinutes;
 
-    @NonFinal
-    @Value("${ansible.retry-backoff-ms:10000}")
-    protected long retryBackoffMs;
-
     @NonFinal
     @Value("${ansible.remote.host:42.1.124.196}")
     protected String remoteHost;
@@ -75,71 +111,143 @@ public class AnsibleRunnerService {
     @Value("${ansible.remote.port:2223}")
     protected int remotePort;
 
+    @NonFinal
+    @Value("${ansible.batch.max-forks:20}")
+    protected int batchMaxForks;
+
+    @NonFinal
+    @Value("${ansible.executor.type:ssh}")
+    protected String executorType;
+
+    @NonFinal
+    AnsibleExecutor executor;
+
     // ✅ THÊM: inventory pfSense đúng chỗ bạn đang để
     @NonFinal @Value("${ansible.pfsense.inventory:/ansible-host/pfsense2.8/pfsense.ini}")
     protected String pfsenseInventory;
 
-    // ✅ THÊM: tuỳ chọn ssh để không bị hỏi host key + không lưu known_hosts
-    private static final String SSH_OPTS = "-o StrictHostKeyChecking=no -o UserKnownHostsFile=/dev/null";
-
     /** NAT forward: dùng đúng inventory pfSense + đảm bảo mkdir logs trước khi ghi */
-    public boolean runNatCreate(String jobId, String wanIp, int destPort, String localIp, int localPort) {
+    public RunOutcome runNatCreate(String jobId, String wanIp, int destPort, String localIp, int localPort) {
         String logFile = remoteLogsDir + "/" + jobId + "_nat.log";
         String cmd = String.format(
-                "ssh %s -p %d %s@%s \"mkdir -p %s; " +
+                "mkdir -p %s; " +
                         "echo '===== NAT START =====' >> %s; " +
                         "{ ansible-playbook /ansible-host/pfsense2.8/create_nat.yml -i %s " +
-                        "-e \\\"wan_ip=%s destination_port=%d target=%s localip=%s local_port=%d\\\" >> %s 2>&1; rc=$?; } ; " +
-                        "echo '===== NAT END (exit='$rc') =====' >> %s; exit $rc\"",
-                SSH_OPTS, remotePort, remoteUser, remoteHost, remoteLogsDir,
+                        "-e \"wan_ip=%s destination_port=%d target=%s localip=%s local_port=%d\" >> %s 2>&1; rc=$?; } ; " +
+                        "echo '===== NAT END (exit='$rc') =====' >> %s; exit $rc",
+                remoteLogsDir,
                 logFile,
                 pfsenseInventory,
                 wanIp, destPort, localIp, localIp, localPort,
                 logFile, logFile
         );
-        return execAndWait(jobId, cmd, logFile);
+        return execAndWait(jobId, "pfsense_nat_create", cmd, logFile);
+    }
+
+    /**
+     * Áp nhiều rule NAT trong 1 lần ansible-playbook (1 lần ghi config + reload pfSense).
+     * Playbook (resources/ansible/pfsense/nat_batch.yml) được gửi kèm run, nhận biến
+     * nat_rules: [{action, wan_ip, destination_port, port, target, localip, local_port, descr}]
+     */
+    public RunOutcome runNatBatch(String runId, List<NatRule> rules) {
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (NatRule r : rules) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("action", r.getAction() == NatRule.Action.CREATE ? "create" : "delete");
+            m.put("wan_ip", r.getWanIp());
+            m.put("destination_port", r.getPort());
+            m.put("port", r.getPort());
+            if (r.getAction() == NatRule.Action.CREATE) {
+                m.put("target", r.getLocalIp());
+                m.put("localip", r.getLocalIp());
+                m.put("local_port", r.getLocalPort());
+                m.put("descr", r.getRunId());
+            }
+            items.add(m);
+        }
+        String varsJson;
+        try {
+            varsJson = JSON.writeValueAsString(Map.of("nat_rules", items));
+        } catch (Exception e) {
+            log.error("Cannot serialize NAT batch {}", runId, e);
+            return RunOutcome.error();
+        }
+
+        String varsFile = remoteJobsDir + "/" + runId + "_nat_rules.json";
+        String playbook = playbookCache.pathOf(NAT_BATCH_PLAYBOOK);
+        AnsibleJobBundle bundle = AnsibleJobBundle.builder()
+                .runId(runId)
+                .label("pfsense_nat_batch")
+                .dir(remoteJobsDir).dir(remoteLogsDir).dir(playbookCache.cacheDir())
+                .cachedFile(playbook, NAT_BATCH_PLAYBOOK)
+                .file(varsFile, varsJson)
+                .logFile(remoteLogsDir + "/" + runId + "_nat_batch.log")
+                .startMarker("===== NAT BATCH START (" + rules.size() + " rules) =====")
+                .endMarkerPrefix("===== NAT BATCH END")
+                .command("ansible-playbook " + shellQuote(playbook) + " -i " + shellQuote(pfsenseInventory)
+                        + " -e @" + shellQuote(varsFile))
+                .build();
+        return stageAndRun(bundle);
+    }
+
+    /** Đọc config.xml của pfSense (ad-hoc raw qua inventory pfSense); null nếu lỗi */
+    public String dumpPfSenseConfig() {
+        String script = "export ANSIBLE_NOCOLOR=1\n"
+                + "ansible all -i " + shellQuote(pfsenseInventory) + " -m raw -a 'cat /conf/config.xml' < /dev/null\n";
+        AnsibleExecutor.Result r = execScriptCapture("pfsense_dump_" + UUID.randomUUID().toString().substring(0, 8),
+                "pfsense_dump", List.of(), null, script, true);
+        if (!r.hasExit() || r.exit() != 0) {
+            log.warn("pfSense config dump failed (exit={})", r.hasExit() ? r.exit() : r.noExit());
+            return null;
+        }
+        return r.output();
+    }
+
+    /** Playbook batch NAT có trong bản build không (được stage kèm mỗi run, không phụ thuộc Ansible host) */
+    public boolean natBatchPlaybookPresent() {
+        return NAT_BATCH_PLAYBOOK != null;
     }
 
     // ✅ THÊM: NAT delete (delete-nat.yml -e "wan_ip=... port=...")
-    public boolean runNatDelete(String jobId, String wanIp, int destPort) {
+    public RunOutcome runNatDelete(String jobId, String wanIp, int destPort) {
         String logFile = remoteLogsDir + "/" + jobId + "_nat_delete.log";
         String cmd = String.format(
-                "ssh %s -p %d %s@%s \"mkdir -p %s; " +
+                "mkdir -p %s; " +
                         "echo '===== NAT DELETE START =====' >> %s; " +
                         "{ ansible-playbook /ansible-host/pfsense2.8/delete-nat.yml -i %s " +
-                        "-e \\\"wan_ip=%s port=%d\\\" >> %s 2>&1; rc=$?; } ; " +
-                        "echo '===== NAT DELETE END (exit='$rc') =====' >> %s; exit $rc\"",
-                SSH_OPTS, remotePort, remoteUser, remoteHost, remoteLogsDir,
+                        "-e \"wan_ip=%s port=%d\" >> %s 2>&1; rc=$?; } ; " +
+                        "echo '===== NAT DELETE END (exit='$rc') =====' >> %s; exit $rc",
+                remoteLogsDir,
                 logFile,
                 pfsenseInventory,
                 wanIp, destPort,
                 logFile, logFile
         );
-        return execAndWait(jobId, cmd, logFile);
+        return execAndWait(jobId, "pfsense_nat_delete", cmd, logFile);
     }
 
     /** Assign interface cho ORGANIZATION: dùng đúng inventory pfSense + mkdir logs */
-    public boolean runAssignInterface(String jobId, String assignName, String assignType, String assignDescr,
+    public RunOutcome runAssignInterface(String jobId, String assignName, String assignType, String assignDescr,
                                       String assignIp, int assignMask) {
         String logFile = remoteLogsDir + "/" + jobId + "_assign_interface.log";
         String cmd = String.format(
-                "ssh %s -p %d %s@%s \"mkdir -p %s; " +
+                "mkdir -p %s; " +
                         "echo '===== ASSIGN START =====' >> %s; " +
                         "{ ansible-playbook /ansible-host/pfsense2.8/enable-assign-interface.yml -i %s " +
-                        "-e \\\"assign_name=%s assign_type=%s assign_descr=%s assign_ip=%s assign_mask=%d\\\" >> %s 2>&1; rc=$?; } ; " +
-                        "echo '===== ASSIGN END (exit='$rc') =====' >> %s; exit $rc\"",
-                SSH_OPTS, remotePort, remoteUser, remoteHost, remoteLogsDir,
+                        "-e \"assign_name=%s assign_type=%s assign_descr=%s assign_ip=%s assign_mask=%d\" >> %s 2>&1; rc=$?; } ; " +
+                        "echo '===== ASSIGN END (exit='$rc') =====' >> %s; exit $rc",
+                remoteLogsDir,
                 logFile,
                 pfsenseInventory,
                 assignName, assignType, assignDescr, assignIp, assignMask,
                 logFile, logFile
         );
 
-        return execAndWait(jobId, cmd, logFile);
+        return execAndWait(jobId, "pfsense_assign_interface", cmd, logFile);
     }
 
 
-    public boolean runWinRmDisable(String jobId, String ip, String port, String user, String pass, String winVersion) {
+    public RunOutcome runWinRmDisable(String jobId, String ip, String port, String user, String pass, String winVersion) {
         String logFile = remoteLogsDir + "/" + jobId + "_winrm_disable.log";
 
         // inventory sử dụng ipPublic & portWinrmPublic
@@ -152,9 +260,6 @@ public class AnsibleRunnerService {
                 "ansible_winrm_transport=basic\n" +
                 "ansible_winrm_server_cert_validation=ignore\n";
         String invPath = remoteJobsDir + "/inventory_" + jobId + "_disable.ini";
-        try { writeRemoteFile(invPath, inv); } catch (Exception e) { return false; }
-
-        String pbPath = remoteJobsDir + "/playbook_" + jobId + "_winrm_disable.yml";
         String play =
                 "- hosts: windows\n" +
                         "  gather_facts: yes\n" +
@@ -162,19 +267,18 @@ public class AnsibleRunnerService {
                         "    - role: winrm_disable\n" +
                         "      win_version: " + yamlScalar(winVersion) + "\n" +
                         "      winrm_action: remove\n";
-        try { writeRemoteFile(pbPath, play); } catch (Exception e) { return false; }
 
-        String cmd = String.format(
-                "ssh %s -p %d %s@%s \"export ANSIBLE_ROLES_PATH='%s'; " +
-                        "echo '===== WINRM DISABLE START =====' >> %s; " +
-                        "{ ansible-playbook -i %s %s >> %s 2>&1; rc=$?; } ; " +
-                        "echo '===== WINRM DISABLE END (exit='$rc') =====' >> %s; exit $rc\"",
-                SSH_OPTS, remotePort, remoteUser, remoteHost, remoteRolesDir,
-                logFile,
-                invPath, pbPath, logFile,
-                logFile
-        );
-        return execAndWait(jobId, cmd, logFile);
+        AnsibleJobBundle.AnsibleJobBundleBuilder b = AnsibleJobBundle.builder()
+                .runId(jobId)
+                .label("winrm_disable")
+                .dir(remoteJobsDir).dir(remoteLogsDir)
+                .file(invPath, inv)
+                .rolesPath(remoteRolesDir)
+                .logFile(logFile)
+                .startMarker("===== WINRM DISABLE START =====")
+                .endMarkerPrefix("===== WINRM DISABLE END")
+                .eventsFile(eventsFileOf(jobId));
+        return stageAndRun(withPlaybook(b, jobId, invPath, play, Map.of(), "").build());
     }
 
     // ===== DC post bootstrap (OU/Group/User trên DC sau khi promote) =====
@@ -211,47 +315,32 @@ public class AnsibleRunnerService {
     }
 
     /**
-     * Chạy role theo mẫu “viết file → export ROLES_PATH → ansible-playbook”.
+     * Chạy role theo mẫu “viết file → export ROLES_PATH → ansible-playbook” (gộp 1 round-trip).
      * logTag dùng để đặt tên file log cho dễ tra.
      */
-    private boolean runRoleOnce(String subJobId,
+    private RunOutcome runRoleOnce(String subJobId,
                                 String ip, int port, String user, String pass,
                                 String roleName, Map<String,Object> vars,
                                 String logTag) {
-        try {
-            // 1) Upload inventory + playbook
-            String invPath = remoteJobsDir + "/inventory_" + subJobId + ".ini";
-            String pbPath  = remoteJobsDir + "/playbook_"  + subJobId + ".yml";
-            writeRemoteFile(invPath, buildWinInventory(ip, port, user, pass));
-            writeRemoteFile(pbPath,  buildRolePlaybook(roleName, vars));
-
-            // 2) Đảm bảo thư mục logs tồn tại
-            execLocal(String.format(
-                    "ssh %s -p %d %s@%s \"mkdir -p %s\"",
-                    SSH_OPTS, remotePort, remoteUser, remoteHost, remoteLogsDir
-            ));
-
-            // 3) Chạy ansible-playbook + export ROLES_PATH
-            String logFile = remoteLogsDir + "/" + subJobId + "_" + logTag + ".log";
-            String cmd = String.format(
-                    "ssh %s -p %d %s@%s \"export ANSIBLE_ROLES_PATH='%s'; " +
-                            "echo '===== %s START =====' >> %s; " +
-                            "{ ansible-playbook -i %s %s >> %s 2>&1; rc=$?; } ; " +
-                            "echo '===== %s END (exit='$rc') =====' >> %s; exit $rc\"",
-                    SSH_OPTS, remotePort, remoteUser, remoteHost, remoteRolesDir,
-                    logTag.toUpperCase(), logFile,
-                    invPath, pbPath, logFile,
-                    logTag.toUpperCase(), logFile
-            );
-
-            return execAndWait(subJobId, cmd, logFile);
-        } catch (Exception ex) {
-            log.error("runRoleOnce error ({})", roleName, ex);
-            return false;
-        }
+        // inventory + playbook (cache theo nội dung) + mkdir + ansible-playbook: 1 round-trip
+        String invPath = remoteJobsDir + "/inventory_" + subJobId + ".ini";
+        String logFile = remoteLogsDir + "/" + subJobId + "_" + logTag + ".log";
+        PlaybookCacheService.SplitVars sv = playbookCache.split(vars);
+
+        AnsibleJobBundle.AnsibleJobBundleBuilder b = AnsibleJobBundle.builder()
+                .runId(subJobId)
+                .label(roleName)
+                .dir(remoteJobsDir).dir(remoteLogsDir)
+                .file(invPath, buildWinInventory(ip, port, user, pass))
+                .rolesPath(remoteRolesDir)
+                .logFile(logFile)
+                .startMarker("===== " + logTag.toUpperCase() + " START =====")
+                .endMarkerPrefix("===== " + logTag.toUpperCase() + " END")
+                .eventsFile(eventsFileOf(subJobId));
+        return stageAndRun(withPlaybook(b, subJobId, invPath, buildRolePlaybook(roleName, sv.plain()), sv.secret(), "").build());
     }
 
-    public boolean runDcPostBootstrap(String subJobId, String ip, int port,
+    public RunOutcome runDcPostBootstrap(String subJobId, String ip, int port,
                                       String user, String pass,
                                       String domainName, String ouName,
                                       String adminGroupName, String adminUserName, String adminUserPass) {
@@ -266,7 +355,7 @@ public class AnsibleRunnerService {
                 "dc_post_bootstrap", v, "dc_post_bootstrap");
     }
 
-    public boolean runAdAccountBootstrap(String subJobId, String ip, int port,
+    public RunOutcome runAdAccountBootstrap(String subJobId, String ip, int port,
                                          String user, String pass,
                                          String domainName, String ouName,
                                          String groupName, String newUser, String newPass) {
@@ -281,7 +370,7 @@ public class AnsibleRunnerService {
                 "ad_account_bootstrap", v, "ad_account_bootstrap");
     }
 
-    public boolean runJoinDomain(String subJobId, String ip, int port,
+    public RunOutcome runJoinDomain(String subJobId, String ip, int port,
                                  String localAdmin, String localPass,
                                  String domainName, String dcIp,
                                  String domainUser, String domainPass,
@@ -298,6 +387,29 @@ public class AnsibleRunnerService {
                 "join_domain", v, "join_domain");
     }
 
+    /**
+     * Playbook theo nội dung (cache/pb_<sha>.yml, dùng chung giữa các VM/job) + vars bí mật của run
+     * (vars_<runId>.json, -e @) → thêm vào bundle kèm lệnh ansible-playbook.
+     */
+    private AnsibleJobBundle.AnsibleJobBundleBuilder withPlaybook(AnsibleJobBundle.AnsibleJobBundleBuilder b,
+                                                                  String runId, String invPath, String playbook,
+                                                                  Map<String, Object> secrets, String options) {
+        String pbPath = playbookCache.pathOf(playbook);
+        b.dir(playbookCache.cacheDir()).cachedFile(pbPath, playbook);
+        StringBuilder cmd = new StringBuilder("ansible-playbook ").append(options)
+                .append("-i ").append(shellQuote(invPath)).append(' ').append(shellQuote(pbPath));
+        if (secrets != null && !secrets.isEmpty()) {
+            String varsPath = remoteJobsDir + "/vars_" + runId + ".json";
+            try {
+                b.file(varsPath, JSON.writeValueAsString(secrets));
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Cannot serialize vars of " + runId, e);
+            }
+            cmd.append(" -e @").append(shellQuote(varsPath));
+        }
+        return b.command(cmd.toString());
+    }
+
     // === Helper: render giá trị an toàn cho YAML ===
     private String yamlScalar(Object v) {
         if (v == null) return "''";                // chuỗi rỗng
@@ -319,42 +431,21 @@ public class AnsibleRunnerService {
         return "'" + s + "'";
     }
 
-    /** SSH chạy gọn, không log file, trả true/false theo exit code */
-    private boolean execAndStream(String jobId, java.util.List<String> args, long timeoutMinutes) {
-        try {
-            ProcessBuilder pb = new ProcessBuilder(args);
-            pb.redirectErrorStream(true);
-            Process p = pb.start();
-            RUNNING.put(jobId, p);
-
-            Thread t = new Thread(() -> {
-                try (var br = new java.io.BufferedReader(
-                        new java.io.InputStreamReader(p.getInputStream(), java.nio.charset.StandardCharsets.UTF_8))) {
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        log.info("[{}] {}", jobId, line);
-                    }
-                } catch (Exception ignored) {}
-            }, "ssh-stream-" + jobId);
-            t.setDaemon(true);
-            t.start();
-
-            boolean finished = p.waitFor(timeoutMinutes, java.util.concurrent.TimeUnit.MINUTES);
-            if (!finished) {
-                try { p.destroyForcibly(); } catch (Exception ignored) {}
-                RUNNING.remove(jobId);
-                log.warn("[{}] timeout khi chạy SSH", jobId);
-                return false;
-            }
-
-            int exit = p.exitValue();
-            RUNNING.remove(jobId);
-            log.info("[{}] SSH exit={}", jobId, exit);
-            return exit == 0;
-        } catch (Exception e) {
-            log.error("execAndStream(args) error", e);
+    /** Chạy gọn, không log file, log từng dòng output; trả true/false theo exit code */
+    private boolean execAndStream(String jobId, String label, String remoteScript, long timeoutMinutes) {
+        AnsibleExecutor.Result r = executor().execute(AnsibleExecRequest.builder()
+                .runId(jobId)
+                .label(label)
+                .script(remoteScript + "\n")
+                .lineSink(line -> log.info("[{}] {}", jobId, line))
+                .timeoutMs(TimeUnit.MINUTES.toMillis(timeoutMinutes))
+                .build());
+        if (!r.hasExit()) {
+            log.warn("[{}] {} khi chạy SSH", jobId, r.noExit());
             return false;
         }
+        log.info("[{}] SSH exit={}", jobId, r.exit());
+        return r.exit() == 0;
     }
     /**
      * Kiểm tra TCP connect từ Ansible host tới host:port.
@@ -391,24 +482,16 @@ public class AnsibleRunnerService {
                 attempts
         );
 
-        // Gọi SSH bằng danh sách tham số (không đi qua cmd.exe/bash local)
-        java.util.List<String> cmd = new java.util.ArrayList<>();
-        cmd.add("ssh");
-        cmd.add("-o"); cmd.add("StrictHostKeyChecking=no");
-        cmd.add("-o"); cmd.add("UserKnownHostsFile=/dev/null");
-        cmd.add("-p"); cmd.add(String.valueOf(remotePort));
-        cmd.add(remoteUser + "@" + remoteHost);
-        cmd.add("bash"); cmd.add("-lc"); cmd.add(remoteScript);
-
+        // Gọi qua pool SSH (không đi qua cmd.exe/bash local)
         String jobId = "portcheck_" + host + "_" + port;
-        boolean ok = execAndStream(jobId, cmd, timeoutMinutes);
+        boolean ok = execAndStream(jobId, "portcheck", remoteScript, timeoutMinutes);
         log.info("NAT wait-port END: {}:{} -> {}", host, port, ok ? "READY" : "NOT READY");
         return ok;
     }
 
 
     /** Cài 1 app theo AppDefinition (role) */
-    public boolean runPlanForApp(String subJobId, AppDefinition def,
+    public RunOutcome runPlanForApp(String subJobId, AppDefinition def,
                                  String ip, int port, String user, String pass,
                                  Map<String, Object> vars) {
         log.info("ippppppppppppppp: {}", ip);
@@ -428,80 +511,330 @@ public class AnsibleRunnerService {
                 "ansible_winrm_read_timeout_sec=900\n"+
                 "ansible_winrm_operation_timeout_sec=120\n";
         String invPath = remoteJobsDir + "/inventory_" + subJobId + ".ini";
-        try { writeRemoteFile(invPath, inv); } catch (Exception e) { return false; }
 
-        // 2) Playbook gọi role theo AppDefinition
-        StringBuilder rolesYaml = new StringBuilder();
-        rolesYaml.append("  - role: ").append(def.getCode()).append("\n");
-        if (vars != null) {
-            for (Map.Entry<String,Object> e : vars.entrySet()) {
-                rolesYaml.append("    ")
-                        .append(e.getKey())
-                        .append(": ")
-                        .append(yamlScalar(e.getValue()))
-                        .append("\n");
+        // 2) Playbook gọi role theo AppDefinition: dùng chung giữa các VM cùng role + vars (cache theo nội dung),
+        //    vars bí mật tách ra file vars của run
+        PlaybookCacheService.SplitVars sv = playbookCache.split(vars);
+        String play = buildRolePlaybook(def.getCode(), sv.plain());
+
+        // 3) 1 round-trip: mkdir + ghi inventory/playbook + export ROLES_PATH + ansible-playbook
+        AnsibleJobBundle.AnsibleJobBundleBuilder b = AnsibleJobBundle.builder()
+                .runId(subJobId)
+                .label(def.getCode())
+                .dir(remoteJobsDir).dir(remoteLogsDir)
+                .file(invPath, inv)
+                .rolesPath(remoteRolesDir)
+                .logFile(logFile)
+                .startMarker("===== APP " + def.getCode() + " START =====")
+                .endMarkerPrefix("===== APP " + def.getCode() + " END")
+                .eventsFile(eventsFileOf(subJobId));
+        return stageAndRun(withPlaybook(b, subJobId, invPath, play, sv.secret(), "").build());
+    }
+
+    /**
+     * Cài 1 app cho nhiều VM trong 1 lần ansible-playbook: inventory nhiều host (vars riêng từng host),
+     * forks = số host (chặn bởi max-forks). Trả kết quả theo alias host, đọc từ PLAY RECAP.
+     */
+    public HostsOutcome runPlanForHosts(String subJobId, AppDefinition def,
+                                                List<AnsibleHostTarget> hosts,
+                                                Map<String, Object> vars) {
+        String logFile = remoteLogsDir + "/" + subJobId + ".log";
+        String invPath = remoteJobsDir + "/inventory_" + subJobId + ".ini";
+        int forks = Math.max(1, Math.min(hosts.size(), batchMaxForks));
+        PlaybookCacheService.SplitVars sv = playbookCache.split(vars);
+
+        AnsibleJobBundle.AnsibleJobBundleBuilder b = AnsibleJobBundle.builder()
+                .runId(subJobId)
+                .label(def.getCode())
+                .dir(remoteJobsDir).dir(remoteLogsDir)
+                .file(invPath, buildMultiHostInventory(hosts))
+                .rolesPath(remoteRolesDir)
+                .logFile(logFile)
+                .startMarker("===== APP " + def.getCode() + " START (" + hosts.size() + " hosts) =====")
+                .endMarkerPrefix("===== APP " + def.getCode() + " END")
+                .eventsFile(eventsFileOf(subJobId))
+                .captureRecap(true);
+        AnsibleJobBundle bundle = withPlaybook(b, subJobId, invPath,
+                buildRolePlaybook(def.getCode(), sv.plain()), sv.secret(), "-f " + forks + " ").build();
+
+        AnsibleExecutor.Result res = runBundle(bundle, hosts.stream().map(AnsibleHostTarget::getAlias).toList(), true);
+        collectTaskResults(bundle);
+        Map<String, Boolean> out = new HashMap<>();
+        Map<String, Boolean> recap = res.hasExit() ? parseRecap(res.output()) : Map.of();
+        Map<String, String> recapLines = res.hasExit() ? recapLines(res.output()) : Map.of();
+        Map<String, FailureClassifier.Evidence> failures = new HashMap<>();
+        for (AnsibleHostTarget h : hosts) {
+            boolean ok = recap.getOrDefault(h.getAlias(), false);
+            out.put(h.getAlias(), ok);
+            if (!ok) {
+                // dòng recap có unreachable=N → classifier nhận ra host không tới được
+                failures.put(h.getAlias(), new FailureClassifier.Evidence(res.hasExit() ? res.exit() : null,
+                        recapLines.get(h.getAlias()), res.noExit()));
             }
         }
+        if (!res.hasExit() || res.exit() != 0) {
+            log.warn("Batched run {} exit={} ({} hosts). Check remote log: {}",
+                    subJobId, res.hasExit() ? res.exit() : res.noExit(), hosts.size(), logFile);
+        }
+        return new HostsOutcome(out, failures);
+    }
 
-        String play =
-                "- hosts: windows\n" +
-                        "  gather_facts: yes\n" +
-                        "  roles:\n" + rolesYaml;
+    private String buildMultiHostInventory(List<AnsibleHostTarget> hosts) {
+        StringBuilder sb = new StringBuilder("[windows]\n");
+        for (AnsibleHostTarget h : hosts) {
+            sb.append(h.getAlias())
+                    .append(" ansible_host=").append(h.getIp())
+                    .append(" ansible_port=").append(h.getPort())
+                    .append(" ansible_user=").append(iniQuote(h.getUser()))
+                    .append(" ansible_password=").append(iniQuote(h.getPass()))
+                    .append("\n");
+        }
+        sb.append("\n[windows:vars]\n")
+                .append("ansible_connection=winrm\n")
+                .append("ansible_winrm_scheme=http\n")
+                .append("ansible_winrm_transport=basic\n")
+                .append("ansible_winrm_server_cert_validation=ignore\n")
+                .append("ansible_winrm_read_timeout_sec=900\n")
+                .append("ansible_winrm_operation_timeout_sec=120\n");
+        return sb.toString();
+    }
 
-        String pbPath = remoteJobsDir + "/playbook_" + subJobId + ".yml";
-        try { writeRemoteFile(pbPath, play); } catch (Exception e) { return false; }
+    // host line của inventory INI được tách kiểu shlex ('#' là comment) → luôn quote giá trị
+    private String iniQuote(String v) {
+        if (v == null) return "\"\"";
+        return "\"" + v.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
 
-        // 3) SSH VÀO ANSIBLE HOST (đúng port) + export ROLES_PATH + chạy ansible-playbook
-        String cmd = String.format(
-                "ssh %s -p %d %s@%s \"mkdir -p %s; " +                       // đảm bảo thư mục logs có sẵn
-                        "export ANSIBLE_ROLES_PATH='%s'; " +
-                        "echo '===== APP %s START =====' >> %s; " +
-                        "{ ansible-playbook -i %s %s >> %s 2>&1; rc=$?; } ; " +
-                        "echo '===== APP %s END (exit='$rc') =====' >> %s; exit $rc\"",
-                SSH_OPTS, remotePort, remoteUser, remoteHost, remoteLogsDir,
-                remoteRolesDir,
-                def.getCode(), logFile,
-                invPath, pbPath, logFile,
-                def.getCode(), logFile
-        );
+    private static final java.util.regex.Pattern RECAP_LINE = java.util.regex.Pattern.compile(
+            "^(\\S+)\\s*:\\s*ok=(\\d+)\\s+changed=(\\d+)\\s+unreachable=(\\d+)\\s+failed=(\\d+)");
 
-        return execAndWait(subJobId, cmd, logFile);
+    /** PLAY RECAP → host OK khi unreachable=0 && failed=0 */
+    static Map<String, Boolean> parseRecap(String output) {
+        Map<String, Boolean> out = new HashMap<>();
+        recapLines(output).forEach((host, line) -> {
+            java.util.regex.Matcher m = RECAP_LINE.matcher(line);
+            if (m.find()) {
+                out.put(host, Integer.parseInt(m.group(4)) == 0 && Integer.parseInt(m.group(5)) == 0);
+            }
+        });
+        return out;
     }
 
+    /** Dòng PLAY RECAP (đã bỏ màu) theo host */
+    private static Map<String, String> recapLines(String output) {
+        Map<String, String> out = new HashMap<>();
+        if (output == null) return out;
+        for (String line : output.split("\\R")) {
+            String clean = line.replaceAll("\\u001B\\[[;\\d]*m", "").trim();
+            java.util.regex.Matcher m = RECAP_LINE.matcher(clean);
+            if (m.find()) out.put(m.group(1), clean);
+        }
+        return out;
+    }
 
-    /** Hàm dùng chung chạy SSH + chờ */
-    private boolean execAndWait(String jobId, String command, String logFile) {
-        try {
-            ProcessBuilder pb = new ProcessBuilder(detectShell(), detectShellFlag(), command);
-            Process p = pb.start();
-            RUNNING.put(jobId, p);
-
-            boolean finished = p.waitFor(timeoutMinutes, TimeUnit.MINUTES);
-            if (!finished) {
-                log.warn("SSH command timeout for job {}", jobId);
-                try { p.destroyForcibly(); } catch (Exception ignored) {}
-                RUNNING.remove(jobId);
-                return false;
-            }
+    /**
+     * Staging 1 round-trip: script (mkdir + heredoc từng file + ansible-playbook) được stream qua stdin
+     * của 1 channel SSH, không tạo file tạm local, không scp.
+     */
+    public RunOutcome stageAndRun(AnsibleJobBundle bundle) {
+        // stdout chỉ có đuôi log khi lỗi (xem renderStageScript) → capture rẻ
+        AnsibleExecutor.Result r = runBundle(bundle, List.of(), true);
+        collectTaskResults(bundle);
+        RunOutcome out = RunOutcome.of(r);
+        if (out.exit() != null && !out.ok()) {
+            log.error("Staged run exit={} for job {}. Check remote log: {}", out.exit(), bundle.getRunId(), bundle.getLogFile());
+        }
+        return out;
+    }
+
+    /**
+     * Chạy bundle qua executor. File cache host đã có thì không gửi nội dung; host mất file
+     * (GC/đổi host) → script thoát CACHE_MISS_EXIT trước khi chạy gì → gửi lại đủ nội dung 1 lần.
+     */
+    private AnsibleExecutor.Result runBundle(AnsibleJobBundle b, List<String> hosts, boolean captureOutput) {
+        String host = sshPool.hostOf(b.getRunId());
+        Set<String> present = playbookCache.presentOn(host, b.getCachedFiles());
+        AnsibleExecutor.Result r = execScriptCapture(b.getRunId(), b.getLabel(), hosts, b.getEventsFile(),
+                renderStageScript(b, present), captureOutput);
+        if (r.hasExit() && r.exit() == PlaybookCacheService.CACHE_MISS_EXIT && !present.isEmpty()) {
+            log.info("[{}] playbook cache miss on host {} → re-upload", b.getRunId(), host);
+            playbookCache.forget(host, present);
+            r = execScriptCapture(b.getRunId(), b.getLabel(), hosts, b.getEventsFile(),
+                    renderStageScript(b, Set.of()), captureOutput);
+        }
+        if (r.hasExit() && r.exit() != PlaybookCacheService.CACHE_MISS_EXIT) {
+            playbookCache.remember(host, b.getCachedFiles().keySet());
+        }
+        return r;
+    }
 
-            int exit = p.exitValue();
-            RUNNING.remove(jobId);
+    String renderStageScript(AnsibleJobBundle b) {
+        return renderStageScript(b, Set.of());
+    }
 
-            if (exit != 0) {
-                log.error("SSH command exit={} for job {}. Check remote log: {}", exit, jobId, logFile);
+    /**
+     * Render script bash cho 1 bundle (heredoc delimiter ngẫu nhiên → nội dung không thể "thoát" heredoc).
+     * present: file cache host đã có → chỉ kiểm tra tồn tại + touch (giữ khỏi GC), không gửi nội dung.
+     */
+    String renderStageScript(AnsibleJobBundle b, Set<String> present) {
+        StringBuilder sh = new StringBuilder();
+        if (!b.getDirs().isEmpty()) {
+            sh.append("mkdir -p");
+            for (String d : b.getDirs()) sh.append(' ').append(shellQuote(d));
+            sh.append('\n');
+        }
+        String eof = "__VDI_EOF_" + UUID.randomUUID().toString().replace("-", "") + "__";
+        for (Map.Entry<String, String> f : b.getFiles().entrySet()) {
+            String content = f.getValue() == null ? "" : f.getValue();
+            sh.append("cat > ").append(shellQuote(f.getKey())).append(" <<'").append(eof).append("'\n")
+                    .append(content);
+            if (!content.endsWith("\n")) sh.append('\n');
+            sh.append(eof).append('\n');
+        }
+        for (Map.Entry<String, String> f : b.getCachedFiles().entrySet()) {
+            String path = shellQuote(f.getKey());
+            if (present.contains(f.getKey())) {
+                sh.append("test -f ").append(path).append(" || exit ").append(PlaybookCacheService.CACHE_MISS_EXIT).append('\n')
+                        .append("touch -c ").append(path).append('\n');
+                continue;
             }
-            return exit == 0;
-        } catch (Exception e) {
-            log.error("SSH execution error", e);
-            return false;
+            // ghi file tạm + mv: run khác cùng nội dung có thể đang đọc file này
+            String content = f.getValue() == null ? "" : f.getValue();
+            sh.append("test -f ").append(path).append(" && touch -c ").append(path).append(" || { cat > ").append(path)
+                    .append(".$$ <<'").append(eof).append("'\n").append(content);
+            if (!content.endsWith("\n")) sh.append('\n');
+            sh.append(eof).append('\n')
+                    .append("mv -f ").append(path).append(".$$ ").append(path).append("; }\n");
+        }
+        if (b.getPidFile() != null) {
+            sh.append("echo $$ > ").append(shellQuote(b.getPidFile())).append('\n');
+        }
+        if (b.getRolesPath() != null) {
+            sh.append("export ANSIBLE_ROLES_PATH=").append(shellQuote(b.getRolesPath())).append('\n');
+        }
+        if (b.getEventsFile() != null && TASK_EVENTS_PLUGIN != null) {
+            // ghi plugin qua file tạm + mv → run khác đang nạp plugin không đọc phải file ghi dở
+            String pluginDir = remoteJobsDir + "/callback_plugins";
+            String plugin = pluginDir + "/" + TASK_EVENTS_CALLBACK + ".py";
+            sh.append("mkdir -p ").append(shellQuote(pluginDir)).append('\n')
+                    .append("cat > ").append(shellQuote(plugin)).append(".$$ <<'").append(eof).append("'\n")
+                    .append(TASK_EVENTS_PLUGIN);
+            if (!TASK_EVENTS_PLUGIN.endsWith("\n")) sh.append('\n');
+            sh.append(eof).append('\n')
+                    .append("mv -f ").append(shellQuote(plugin)).append(".$$ ").append(shellQuote(plugin)).append('\n')
+                    .append("export ANSIBLE_CALLBACK_PLUGINS=").append(shellQuote(pluginDir)).append('\n')
+                    .append("export ANSIBLE_CALLBACKS_ENABLED=").append(TASK_EVENTS_CALLBACK).append('\n')
+                    .append("export ANSIBLE_CALLBACK_WHITELIST=").append(TASK_EVENTS_CALLBACK).append('\n')
+                    .append("export VDI_TASK_EVENTS=").append(shellQuote(b.getEventsFile())).append('\n');
+        }
+        String logFile = shellQuote(b.getLogFile());
+        if (!b.getJournalLines().isEmpty()) {
+            sh.append("cat >> ").append(logFile).append(" <<'").append(eof).append("'\n");
+            for (String line : b.getJournalLines()) sh.append(line).append('\n');
+            sh.append(eof).append('\n');
+        }
+        if (b.getStartMarker() != null) {
+            sh.append("echo ").append(shellQuote(b.getStartMarker())).append(" >> ").append(logFile).append('\n');
+        }
+        // script tới qua stdin của bash -s → lệnh không được đọc stdin, nếu không sẽ "nuốt" phần script còn lại
+        if (b.isCaptureRecap()) {
+            // vẫn ghi đủ vào log, nhưng chỉ trả PLAY RECAP về stdout để parse kết quả từng host
+            sh.append("set -o pipefail\n");
+            sh.append("export ANSIBLE_NOCOLOR=1\n");
+            sh.append(b.getCommand()).append(" < /dev/null 2>&1 | tee -a ").append(logFile)
+                    .append(" | sed -n '/^PLAY RECAP/,$p'\n");
+        } else {
+            sh.append(b.getCommand()).append(" < /dev/null >> ").append(logFile).append(" 2>&1\n");
+        }
+        sh.append("rc=$?\n");
+        if (b.getEndMarkerPrefix() != null) {
+            sh.append("echo ").append(shellQuote(b.getEndMarkerPrefix())).append("\" (exit=$rc) =====\" >> ")
+                    .append(logFile).append('\n');
         }
+        if (!b.isCaptureRecap()) sh.append(failureTail(b.getLogFile()));
+        sh.append("exit $rc\n");
+        return sh.toString();
     }
 
+    /** File JSON lines của callback cho 1 lần chạy (duy nhất, xoá sau khi thu thập) */
+    private String eventsFileOf(String runId) {
+        return remoteLogsDir + "/" + runId + "." + UUID.randomUUID().toString().substring(0, 8) + ".events.jsonl";
+    }
+
+    private void collectTaskResults(AnsibleJobBundle b) {
+        if (b.getEventsFile() == null || taskResults == null) return;
+        if (executor().isRemote() && !executor().pushesTaskEvents()) taskResults.collectAsync(b.getRunId(), b.getEventsFile());
+    }
+
+    private static String loadResource(String path) {
+        try (var in = AnsibleRunnerService.class.getResourceAsStream(path)) {
+            return in == null ? null : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (java.io.IOException e) {
+            return null;
+        }
+    }
 
+    static String shellQuote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    /** Executor theo ansible.executor.type (ssh | simulated), chọn 1 lần */
+    AnsibleExecutor executor() {
+        AnsibleExecutor e = executor;
+        if (e == null) {
+            String type = executorType == null || executorType.isBlank() ? "ssh" : executorType.trim();
+            e = executors.stream().filter(x -> x.name().equalsIgnoreCase(type)).findFirst()
+                    .orElseThrow(() -> new IllegalStateException("Unknown ansible.executor.type: " + type));
+            executor = e;
+        }
+        return e;
+    }
 
+    public AnsibleExecutorMetricsResponse executorMetrics() {
+        AnsibleExecutor e = executor();
+        return AnsibleExecutorMetricsResponse.builder()
+                .executor(e.name())
+                .remote(e.isRemote())
+                .labels(e.stats())
+                .build();
+    }
+
+    private AnsibleExecutor.Result execScriptCapture(String runId, String label, List<String> hosts, String eventsFile,
+                                                     String script, boolean captureOutput) {
+        return executor().execute(AnsibleExecRequest.builder()
+                .runId(runId)
+                .label(label)
+                .hosts(hosts)
+                .eventsFile(eventsFile)
+                .script(script)
+                .captureOutput(captureOutput)
+                .timeoutMs(TimeUnit.MINUTES.toMillis(timeoutMinutes))
+                .build());
+    }
+
+    /** Hàm dùng chung chạy 1 lệnh (qua executor) + chờ; lỗi → trả đuôi log để phân loại */
+    private RunOutcome execAndWait(String jobId, String label, String command, String logFile) {
+        // lệnh có thể tự "exit $rc" → chạy trong subshell để vẫn in được đuôi log;
+        // stdin của subshell là /dev/null: script tới qua stdin của bash -s, ansible không được đọc tiếp
+        String script = "(\n" + command + "\n) < /dev/null\nrc=$?\n" + failureTail(logFile) + "exit $rc\n";
+        RunOutcome out = RunOutcome.of(execScriptCapture(jobId, label, List.of(), null, script, true));
+        if (out.exit() != null && !out.ok()) {
+            log.error("SSH command exit={} for job {}. Check remote log: {}", out.exit(), jobId, logFile);
+        }
+        return out;
+    }
+
+    private String failureTail(String logFile) {
+        return "if [ $rc -ne 0 ]; then tail -n " + FAILURE_TAIL_LINES + " " + shellQuote(logFile) + " 2>/dev/null; fi\n";
+    }
 
     // ===================== PUBLIC API =====================
 
+    /** Gắn job vào 1 Ansible control host (affinity: project/tenant) → mọi run/log của job ở cùng host */
+    public String bindJob(String jobId, String affinity) {
+        return sshPool.bind(jobId, affinity);
+    }
+
     @Async
     public void runAnsibleJob(AnsibleJobMessageRequest jobRequest) {
         final String jobId = jobRequest.getJobId();
@@ -509,88 +842,97 @@ public class AnsibleRunnerService {
 
         AnsibleJob job = jobRepository.findByJobId(jobId)
                 .orElseThrow(() -> new AppException(ErrorCode.ANSIBLE_JOB_NOT_FOUND));
+        executor().clearCancelled(jobId);   // cùng jobId được gửi lại sau khi cancel
+        sshPool.bind(jobId, jobId);         // job MQ không có project → rải theo jobId
         job.setStatus("RUNNING");
         job.setLogPath(logFile);
         job.setUpdatedAt(LocalDateTime.now());
         jobRepository.save(job);
 
-        // Scheduler cho retry (không BusyWait)
-        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
-            Thread t = new Thread(r, "ansible-retry-" + jobId);
-            t.setDaemon(true);
-            return t;
-        });
-
-        AtomicInteger attempt = new AtomicInteger(0);
-
-        Runnable attemptTask = new Runnable() {
-            @Override
-            public void run() {
-                int nth = attempt.incrementAndGet();
-                try {
-                    appendRemoteLog(jobId, String.format("===== ATTEMPT #%d START =====", nth));
-                    log.info("🔄 Job {} – attempt {}/{}", jobId, nth, maxRetries + 1);
+        // Retry dùng chung (1 timer cho cả process), attempt chạy trên virtual thread
+        // job từ MQ: install → lớp APP, config → BULK (nhường NAT/app của orchestrator)
+        AnsibleExecutionScheduler.Priority prio = "install".equalsIgnoreCase(jobRequest.getActionType())
+                ? AnsibleExecutionScheduler.Priority.APP
+                : AnsibleExecutionScheduler.Priority.BULK;
+        RetryScheduler.Policy policy = retryScheduler.jobPolicy();
 
-                    boolean ok = runOnce(jobRequest, nth); // chạy 1 lần; true nếu SUCCESS
-
-                    if (ok) {
-                        appendRemoteLog(jobId, String.format("===== ATTEMPT #%d RESULT: SUCCESS =====", nth));
-                        updateStatus(jobId, "SUCCESS");
-                        scheduler.shutdown();
-                        return;
-                    }
-
-                    if (nth <= maxRetries) {
-                        long delay = retryBackoffMs * nth; // backoff tăng dần
-                        appendRemoteLog(jobId, String.format("===== ATTEMPT #%d RESULT: FAILED → RETRY in %d ms =====", nth, delay));
-                        log.warn("⏳ Job {} failed attempt {}/{}. Retry in {} ms", jobId, nth, maxRetries + 1, delay);
-                        scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
-                    } else {
-                        appendRemoteLog(jobId, String.format("===== ATTEMPT #%d RESULT: FAILED (NO MORE RETRIES) =====", nth));
-                        updateStatus(jobId, "FAILED");
-                        scheduler.shutdown();
+        retryScheduler.execute(jobId, policy, nth -> {
+            mark(jobId, String.format("===== ATTEMPT #%d START =====", nth));
+            log.info("🔄 Job {} – attempt {}/{}", jobId, nth, policy.getMaxAttempts());
+            try {
+                return execScheduler.run("mq", prio, jobId, () -> {
+                    try {
+                        return runOnce(jobRequest, nth); // chạy 1 lần; true nếu SUCCESS
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
                     }
-                } catch (Exception ex) {
-                    appendRemoteLog(jobId, String.format("===== ATTEMPT #%d EXCEPTION → %s =====", nth, ex.getClass().getSimpleName()));
-                    log.error("❌ Job {} error at attempt {}/{}", jobId, nth, maxRetries + 1, ex);
-                    if (nth <= maxRetries) {
-                        long delay = retryBackoffMs * nth;
-                        scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+                });
+            } catch (CompletionException ce) {
+                throw ce.getCause() instanceof Exception e ? e : ce;
+            }
+        }, rec -> {
+            int nth = rec.getAttempt();
+            switch (rec.getResult()) {
+                case "SUCCESS" -> mark(jobId, String.format("===== ATTEMPT #%d RESULT: SUCCESS =====", nth));
+                case "ERROR" -> {
+                    mark(jobId, String.format("===== ATTEMPT #%d EXCEPTION → %s =====", nth, rec.getError()));
+                    log.error("❌ Job {} error at attempt {}/{}: {}", jobId, nth, rec.getMaxAttempts(), rec.getError());
+                }
+                default -> {
+                    if (rec.getNextDelayMs() >= 0) {
+                        mark(jobId, String.format("===== ATTEMPT #%d RESULT: FAILED → RETRY in %d ms =====",
+                                nth, rec.getNextDelayMs()));
+                        log.warn("⏳ Job {} failed attempt {}/{}. Retry in {} ms",
+                                jobId, nth, rec.getMaxAttempts(), rec.getNextDelayMs());
                     } else {
-                        updateStatus(jobId, "FAILED");
-                        scheduler.shutdown();
+                        mark(jobId, String.format("===== ATTEMPT #%d RESULT: FAILED (NO MORE RETRIES) =====", nth));
                     }
                 }
             }
-        };
-
-        // chạy lần đầu ngay lập tức
-        scheduler.schedule(attemptTask, 0, TimeUnit.MILLISECONDS);
+        }).thenAccept(ok -> {
+            // job đã bị cancel → giữ nguyên trạng thái CANCEL*
+            String current = jobRepository.findByJobId(jobId).map(AnsibleJob::getStatus).orElse("");
+            if (!current.startsWith("CANCEL")) updateStatus(jobId, ok ? "SUCCESS" : "FAILED");
+            journal.close(jobId);        // flush marker xuống log từ xa trước khi kéo log về lưu trữ
+            logArchive.archiveAsync(jobId);
+        });
     }
 
+    /**
+     * Cancel job: dừng mọi run (mọi VM/app/NAT) thuộc jobId qua executor.
+     * Job MQ (có bản ghi AnsibleJob) thì cập nhật trạng thái + marker; job provision chỉ cần kill.
+     */
     public void cancelJob(String jobId) {
-        AnsibleJob job = jobRepository.findByJobId(jobId)
-                .orElseThrow(() -> new AppException(ErrorCode.ANSIBLE_JOB_NOT_FOUND));
+        Optional<AnsibleJob> found = jobRepository.findByJobId(jobId);
+        if (found.isEmpty()) {
+            // job provision: không có bản ghi AnsibleJob, cancel theo nhóm run
+            if (executor().cancel(jobId) == 0) throw new AppException(ErrorCode.ANSIBLE_JOB_NOT_FOUND);
+            return;
+        }
+        AnsibleJob job = found.get();
 
         job.setStatus("CANCEL_REQUESTED");
         job.setUpdatedAt(LocalDateTime.now());
         jobRepository.save(job);
 
-        appendRemoteLog(jobId, "===== CANCEL REQUESTED → killing remote processes =====");
+        mark(jobId, "===== CANCEL REQUESTED → killing remote processes =====");
 
-        // kill SSH local
-        Process p = RUNNING.remove(jobId);
-        if (p != null) {
-            try { p.destroyForcibly(); } catch (Exception ignored) {}
-        }
+        // bỏ các lần retry đang chờ
+        retryScheduler.cancel(jobId);
 
-        // kill từ xa
-        killRemote(jobId);
+        // kill cây tiến trình local + từ xa của mọi run thuộc job, chặn run mới
+        int killed = executor().cancel(jobId);
+        mark(jobId, "===== " + killed + " RUN(S) KILLED =====");
 
-        appendRemoteLog(jobId, "===== CANCELLED =====");
+        // kill từ xa theo pid file/tên playbook cũ (phòng run khởi động trước khi có supervisor)
+        if (executor().isRemote()) killRemote(jobId);
+
+        mark(jobId, "===== CANCELLED =====");
+        journal.close(jobId);
         job.setStatus("CANCELLED");
         job.setUpdatedAt(LocalDateTime.now());
         jobRepository.save(job);
+        logArchive.archiveAsync(jobId);
     }
 
     public AnsibleJob getJob(String jobId) {
@@ -604,29 +946,35 @@ public class AnsibleRunnerService {
             String path = job.getLogPath();
             if (path == null || path.isEmpty()) throw new AppException(ErrorCode.LOG_FILE_PATH);
 
-            String command = String.format(
-                    "ssh %s -p %d %s@%s cat %s",
-                    SSH_OPTS, remotePort, remoteUser, remoteHost, path
-            );
-            ProcessBuilder pb = new ProcessBuilder(detectShell(), detectShellFlag(), command);
-            Process process = pb.start();
-            byte[] out = process.getInputStream().readAllBytes();
-            int exit = process.waitFor();
-            if (exit != 0) throw new AppException(ErrorCode.LOG_FILE_READ);
+            // job đã kết thúc → đọc từ archive local, không qua SSH
+            if (isFinished(job) && logArchive.ensureArchived(jobId)) {
+                byte[] archived = logArchive.readAll(jobId, path);
+                if (archived != null) return new String(archived, StandardCharsets.UTF_8);
+            }
 
-            return new String(out, StandardCharsets.UTF_8);
+            try (SshConnectionPool.Lease lease = sshPool.acquireFor(jobId)) {
+                Process process = new ProcessBuilder(lease.command("cat " + path)).start();
+                byte[] out = process.getInputStream().readAllBytes();
+                int exit = process.waitFor();
+                if (exit != 0) throw new AppException(ErrorCode.LOG_FILE_READ);
+
+                return new String(out, StandardCharsets.UTF_8);
+            }
         } catch (Exception e) {
             throw new AppException(ErrorCode.LOG_FILE_READ);
         }
     }
 
+    private static boolean isFinished(AnsibleJob job) {
+        return Set.of("SUCCESS", "FAILED", "CANCELLED").contains(job.getStatus());
+    }
+
     // ===================== CORE EXECUTION =====================
 
     /** Chạy 1 lần ansible cho job, trả true nếu SUCCESS */
     private boolean runOnce(AnsibleJobMessageRequest req, int attemptNo) throws Exception {
         final String jobId = req.getJobId();
         final String inventoryFileName = "inventory_" + jobId + ".ini";
-        final String playbookFileName  = "playbook_" + jobId + ".yml";
         final String logFile = remoteLogsDir + "/" + jobId + ".log";
 
 //        // 1) Sinh inventory
@@ -660,8 +1008,10 @@ public class AnsibleRunnerService {
                         .append("ansible_winrm_transport=basic\n")
                         .append("ansible_winrm_server_cert_validation=ignore\n");
 
-        // 2) Playbook – nhúng extraVars vào block role
-        Map<String, Object> extraVars = Optional.ofNullable(req.getExtraVars()).orElse(new HashMap<>());
+        // 2) Playbook – nhúng extraVars không bí mật vào block role (playbook dùng chung theo nội dung),
+        //    extraVars bí mật → file vars của job (-e @)
+        PlaybookCacheService.SplitVars sv = playbookCache.split(req.getExtraVars());
+        Map<String, Object> extraVars = sv.plain();
 
         String rolesYaml = req.getApps().stream()
                 .map(app -> {
@@ -691,54 +1041,47 @@ public class AnsibleRunnerService {
                         "  roles:\n" +
                         rolesYaml + "\n";
 
-        // 3) Upload file
-        writeRemoteFile(remoteJobsDir + "/" + inventoryFileName, inventory.toString());
-        writeRemoteFile(remoteJobsDir + "/" + playbookFileName,  playbook);
-
-        // 4) Tạo thư mục từ xa (jobs/logs/pids)
-        execLocal(String.format(
-                "ssh %s -p %d %s@%s \"mkdir -p %s %s /ansible-host/pids\"",
-                SSH_OPTS, remotePort, remoteUser, remoteHost, remoteJobsDir, remoteLogsDir
-        ));
-
-        // 5) Chạy ansible-playbook, export ROLES_PATH & ghi ssh pid, APPEND log + marker END
-        String command = String.format(
-                "ssh %s -p %d %s@%s \"export ANSIBLE_ROLES_PATH='%s'; " +
-                        "echo $$ > /ansible-host/pids/%s.sshpid; " +
-                        "echo '===== ATTEMPT #%d START ansible-playbook =====' >> %s; " +
-                        "{ ansible-playbook -i %s/%s %s/%s >> %s 2>&1; rc=$?; } ; " +
-                        "echo '===== ATTEMPT #%d END (exit='$rc') =====' >> %s; " +
-                        "exit $rc\"",
-                SSH_OPTS, remotePort, remoteUser, remoteHost, remoteRolesDir,
-                jobId,
-                attemptNo, logFile,
-                remoteJobsDir, inventoryFileName, remoteJobsDir, playbookFileName, logFile,
-                attemptNo, logFile
-        );
-
-
-
-        ProcessBuilder pb = new ProcessBuilder(detectShell(), detectShellFlag(), command);
-        Process process = pb.start();
-        RUNNING.put(jobId, process);
-
-        boolean finished = process.waitFor(timeoutMinutes, TimeUnit.MINUTES);
-        if (!finished) {
-            appendRemoteLog(jobId, "===== TIMEOUT → killing remote processes =====");
+        // 3) 1 round-trip: mkdir (jobs/logs/pids) + ghi inventory/playbook (cache) + ghi ssh pid
+        //    + export ROLES_PATH + ansible-playbook, APPEND log + marker END
+        JobJournalService.Drain drained = journal.drain(jobId);
+        AnsibleJobBundle.AnsibleJobBundleBuilder b = AnsibleJobBundle.builder()
+                .runId(jobId)
+                .label(String.join("+", req.getApps()))
+                .dir(remoteJobsDir).dir(remoteLogsDir).dir("/ansible-host/pids")
+                .file(remoteJobsDir + "/" + inventoryFileName, inventory.toString())
+                .pidFile("/ansible-host/pids/" + jobId + ".sshpid")
+                .rolesPath(remoteRolesDir)
+                .logFile(logFile)
+                .journalLines(drained.lines())
+                .startMarker(String.format("===== ATTEMPT #%d START ansible-playbook =====", attemptNo))
+                .endMarkerPrefix(String.format("===== ATTEMPT #%d END", attemptNo))
+                .eventsFile(eventsFileOf(jobId));
+        AnsibleJobBundle bundle = withPlaybook(b, jobId, remoteJobsDir + "/" + inventoryFileName,
+                playbook, sv.secret(), "").build();
+
+        AnsibleExecutor.Result r = runBundle(bundle, List.of(), false);
+        if (!journalWritten(r)) journal.restore(drained);
+        Integer exit = r.hasExit() ? r.exit() : null;
+        collectTaskResults(bundle);
+        if (exit == null) {
+            mark(jobId, "===== TIMEOUT → killing remote processes =====");
             log.warn("Job {} timeout sau {} phút", jobId, timeoutMinutes);
-            killRemote(jobId);
-            try { process.destroyForcibly(); } catch (Exception ignored) {}
-            RUNNING.remove(jobId);
+            if (executor().isRemote()) killRemote(jobId);
             return false;
         }
-
-        int exit = process.exitValue();
-        RUNNING.remove(jobId);
         return exit == 0;
     }
 
     // ===================== UTILITIES =====================
 
+    /**
+     * Script staging chắc chắn đã ghi marker journal: có exit code của chính script (không phải ssh 255,
+     * không phải cache miss thoát trước khi chạy). Không có exit (timeout/cancel/lỗi ssh) → coi như chưa ghi.
+     */
+    static boolean journalWritten(AnsibleExecutor.Result r) {
+        return r.hasExit() && r.exit() != SshConnectionPool.SSH_TRANSPORT_ERROR && r.exit() != PlaybookCacheService.CACHE_MISS_EXIT;
+    }
+
     private void updateStatus(String jobId, String status) {
         AnsibleJob job = jobRepository.findByJobId(jobId)
                 .orElseThrow(() -> new AppException(ErrorCode.ANSIBLE_JOB_NOT_FOUND));
@@ -749,70 +1092,31 @@ public class AnsibleRunnerService {
 
     private void killRemote(String jobId) {
         try {
-            // placeholders: %1$s remoteUser, %2$s remoteHost, %3$s jobId
             String kill = String.format(
-                    "ssh %s -p %d %s@%s \"(test -f /ansible-host/pids/%s.pid && kill -9 \\$(cat /ansible-host/pids/%s.pid) 2>/dev/null || true); " +
-                            "(test -f /ansible-host/pids/%s.sshpid && kill -9 \\$(cat /ansible-host/pids/%s.sshpid) 2>/dev/null || true); " +
-                            "pkill -f playbook_%s.yml || true\"",
-                    SSH_OPTS, remotePort, remoteUser, remoteHost,
+                    "(test -f /ansible-host/pids/%s.pid && kill -9 $(cat /ansible-host/pids/%s.pid) 2>/dev/null || true); " +
+                            "(test -f /ansible-host/pids/%s.sshpid && kill -9 $(cat /ansible-host/pids/%s.sshpid) 2>/dev/null || true); " +
+                            "pkill -f inventory_%s.ini || true",
                     jobId, jobId, jobId, jobId, jobId
             );
-            execLocal(kill);
+            execRemoteQuiet(jobId, kill);
         } catch (Exception e) {
             log.warn("killRemote failed for job {}", jobId, e);
         }
     }
 
-    private String detectShell() {
-        String os = System.getProperty("os.name").toLowerCase();
-        return os.contains("win") ? "cmd.exe" : "bash";
-    }
-
-    private String detectShellFlag() {
-        String os = System.getProperty("os.name").toLowerCase();
-        return os.contains("win") ? "/c" : "-lc"; // -lc để bash hiểu export/pipe
-    }
-
-    private void execLocal(String command) throws Exception {
-        ProcessBuilder pb = new ProcessBuilder(detectShell(), detectShellFlag(), command);
-        Process proc = pb.start();
-        proc.waitFor();
-    }
-
-    private void writeRemoteFile(String remotePath, String content) throws Exception {
-        String tmp = Files.createTempFile("ansible_", ".tmp").toString();
-        // chuẩn hoá path khi đang chạy trên Windows cho scp
-        if (System.getProperty("os.name").toLowerCase().contains("win")) {
-            tmp = tmp.replace("\\", "/");
+    /** Chạy 1 lệnh ngắn trên Ansible host của job qua pool, bỏ qua output */
+    private void execRemoteQuiet(String jobId, String remoteCommand) throws Exception {
+        try (SshConnectionPool.Lease lease = sshPool.acquireFor(jobId)) {
+            Process proc = new ProcessBuilder(lease.command(remoteCommand))
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            proc.waitFor();
         }
-        try (FileWriter fw = new FileWriter(tmp, StandardCharsets.UTF_8)) {
-            fw.write(content);
-        }
-        String scpCmd = String.format(
-                "scp -P %d -o StrictHostKeyChecking=no -o UserKnownHostsFile=/dev/null \"%s\" %s@%s:%s",
-                remotePort, tmp, remoteUser, remoteHost, remotePath
-        );
-        execLocal(scpCmd);
-
-
-        // xoá file tạm local
-        Files.deleteIfExists(Paths.get(tmp.replace("/", FileSystems.getDefault().getSeparator())));
     }
 
-    /** Append 1 dòng message vào log từ xa theo thời gian thực (giữ log cũ + thêm marker) */
-    private void appendRemoteLog(String jobId, String message) {
-        try {
-            String logFile = remoteLogsDir + "/" + jobId + ".log";
-            String cmd = String.format(
-                    "ssh %s -p %d %s@%s \"echo '[%s] %s' >> %s\"",
-                    SSH_OPTS, remotePort, remoteUser, remoteHost,
-                    java.time.ZonedDateTime.now(),
-                    message.replace("\"","\\\""),
-                    logFile
-            );
-            execLocal(cmd);
-        } catch (Exception e) {
-            log.warn("appendRemoteLog failed for job {}", jobId, e);
-        }
+    /** Marker vòng đời job → journal local (flush theo lô xuống log từ xa) */
+    private void mark(String jobId, String message) {
+        journal.append(jobId, remoteLogsDir + "/" + jobId + ".log", message);
     }
 }
@@ -0,0 +1,162 @@
+package com.mobifone.vdi.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mobifone.vdi.dto.response.TaskTimingResponse;
+import com.mobifone.vdi.entity.AnsibleTaskResult;
+import com.mobifone.vdi.repository.AnsibleTaskResultRepository;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kết quả từng task (host, task, thời gian, changed/failed/unreachable) của mọi lần chạy ansible:
+ * - callback vdi_task_events ghi JSON lines trên Ansible host trong lúc chạy
+ * - sau khi run xong, đọc file đó qua 1 lần ssh, parse dần theo dòng, lưu theo lô rồi xoá file
+ *   (transport agent: event được đẩy về trong lúc chạy → lưu thẳng, không đọc lại file)
+ * - truy vấn task chậm nhất theo role trên mọi job
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class AnsibleTaskResultService {
+
+    static final ObjectMapper JSON = new ObjectMapper();
+
+    final AnsibleTaskResultRepository repository;
+    final SshConnectionPool sshPool;
+
+    @NonFinal @Value("${ansible.task-results.batch-size:200}")
+    int batchSize;
+
+    /** Thu thập không chặn caller (chạy trên virtual thread) */
+    public void collectAsync(String runId, String eventsFile) {
+        Thread.ofVirtual().name("task-results-" + runId).start(() -> collect(runId, eventsFile));
+    }
+
+    /** Đọc + lưu kết quả task của 1 run; trả số bản ghi */
+    public int collect(String runId, String eventsFile) {
+        String f = AnsibleRunnerService.shellQuote(eventsFile);
+        int[] saved = {0};
+        try (SshConnectionPool.Lease lease = sshPool.acquireFor(runId)) {
+            Process p = new ProcessBuilder(lease.command("cat " + f + " 2>/dev/null; rm -f " + f))
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            try (InputStream in = p.getInputStream();
+                 MappingIterator<JsonNode> it = JSON.readerFor(JsonNode.class).readValues(in)) {
+                save(runId, it, n -> saved[0] = n);
+            }
+            if (!p.waitFor(30, TimeUnit.SECONDS)) p.destroyForcibly();
+            log.debug("[task-results {}] {} task results saved", runId, saved[0]);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("[task-results {}] collect failed after {} records: {}", runId, saved[0], e.getMessage());
+        }
+        return saved[0];
+    }
+
+    public void saveAsync(String runId, List<JsonNode> events) {
+        if (events == null || events.isEmpty()) return;
+        Thread.ofVirtual().name("task-results-" + runId).start(() -> save(runId, events));
+    }
+
+    /** Lưu các event đã có sẵn (agent đẩy về trong lúc chạy) */
+    public int save(String runId, List<JsonNode> events) {
+        if (events == null || events.isEmpty()) return 0;
+        int[] saved = {0};
+        try {
+            save(runId, events.iterator(), n -> saved[0] = n);
+        } catch (Exception e) {
+            log.warn("[task-results {}] save failed after {} records: {}", runId, saved[0], e.getMessage());
+        }
+        return saved[0];
+    }
+
+    /**
+     * Lưu theo lô; progress nhận tổng số bản ghi đã lưu sau mỗi lô.
+     * Dòng hỏng (run bị kill giữa lúc callback ghi) → vẫn lưu phần lô đã parse trước dòng đó rồi mới báo lỗi.
+     */
+    private void save(String runId, Iterator<JsonNode> it, java.util.function.IntConsumer progress) {
+        int saved = 0;
+        List<AnsibleTaskResult> batch = new ArrayList<>();
+        while (true) {
+            JsonNode n;
+            try {
+                if (!it.hasNext()) break;
+                n = it.next();
+            } catch (RuntimeException e) {
+                if (!batch.isEmpty()) {
+                    repository.saveAll(batch);
+                    progress.accept(saved + batch.size());
+                }
+                throw e;
+            }
+            AnsibleTaskResult r = toEntity(runId, n);
+            if (r == null) continue;
+            batch.add(r);
+            if (batch.size() >= Math.max(1, batchSize)) {
+                repository.saveAll(batch);
+                saved += batch.size();
+                progress.accept(saved);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            repository.saveAll(batch);
+            saved += batch.size();
+            progress.accept(saved);
+        }
+    }
+
+    public List<AnsibleTaskResult> byRun(String runId) {
+        return repository.findByRunIdOrderByStartedAtAsc(runId);
+    }
+
+    /** Top-N task chậm nhất (theo thời gian trung bình) của từng role trong sinceDays ngày gần đây */
+    public Map<String, List<TaskTimingResponse>> slowestByRole(String role, int limit, int sinceDays) {
+        LocalDateTime since = LocalDateTime.now().minusDays(Math.max(1, sinceDays));
+        Map<String, List<TaskTimingResponse>> out = new LinkedHashMap<>();
+        // query đã sắp theo role, avg giảm dần → chỉ cần cắt mỗi role limit dòng đầu
+        for (TaskTimingResponse t : repository.aggregateByRoleAndTask(role, since)) {
+            List<TaskTimingResponse> l = out.computeIfAbsent(t.getRole(), k -> new ArrayList<>());
+            if (l.size() < Math.max(1, limit)) l.add(t);
+        }
+        return out;
+    }
+
+    private static AnsibleTaskResult toEntity(String runId, JsonNode n) {
+        if (n == null || !n.hasNonNull("task")) return null;
+        double start = n.path("start").asDouble(0);
+        return AnsibleTaskResult.builder()
+                .id(UUID.randomUUID().toString())
+                .runId(runId)
+                .host(n.path("host").asText(null))
+                .role(n.hasNonNull("role") ? n.get("role").asText() : null)
+                .task(truncate(n.get("task").asText(), 512))
+                .action(n.path("action").asText(null))
+                .status(truncate(n.path("status").asText("unknown"), 16))
+                .durationMs(n.path("duration_ms").asLong(0))
+                .startedAt(start > 0
+                        ? LocalDateTime.ofInstant(Instant.ofEpochMilli((long) (start * 1000)), ZoneId.systemDefault())
+                        : LocalDateTime.now())
+                .build();
+    }
+
+    private static String truncate(String s, int max) {
+        return s == null || s.length() <= max ? s : s.substring(0, max);
+    }
+}
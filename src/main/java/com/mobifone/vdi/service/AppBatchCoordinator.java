@@ -0,0 +1,244 @@
+package com.mobifone.vdi.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.mobifone.vdi.entity.AppDefinition;
+import com.mobifone.vdi.entity.enumeration.FailureClass;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gom các VM cùng 1 deployment job có cùng app plan thành 1 lần ansible-playbook nhiều host.
+ * 1 nhóm (job, app, vars) được flush khi mọi VM còn "sống" của job đã tới bước app,
+ * hoặc khi hết max-wait tính từ VM đầu tiên tới.
+ * Host lỗi transient trong run nhiều host (unreachable...) được chạy lại riêng, trừ ngân sách retry của VM đó.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class AppBatchCoordinator {
+
+    /** JSON chuẩn hoá (key map sắp xếp) → 2 bộ vars cùng nội dung cho cùng khoá nhóm, khác nội dung thì khác khoá */
+    static final ObjectMapper CANONICAL = new ObjectMapper().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+    AnsibleRunnerService ansible;
+    AnsibleExecutionScheduler scheduler;
+    RetryScheduler retryScheduler;
+    StepRetryService stepRetry;
+
+    Map<String, JobBatch> jobs = new ConcurrentHashMap<>();
+
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "app-batch-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @NonFinal
+    @Value("${ansible.batch.enabled:true}")
+    boolean enabled;
+
+    @NonFinal
+    @Value("${ansible.batch.max-wait-seconds:300}")
+    long maxWaitSeconds;
+
+    @PreDestroy
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /** Mở batch cho job với số VM dự kiến; trả false nếu batching tắt */
+    public boolean open(String jobId, int expectedVms, String tenant) {
+        if (!enabled || expectedVms <= 1) return false;
+        jobs.put(jobId, new JobBatch(jobId, expectedVms, tenant));
+        return true;
+    }
+
+    public boolean isOpen(String jobId) {
+        return jobs.containsKey(jobId);
+    }
+
+    /** VM (theo index trong job) đăng ký chạy 1 app; future hoàn tất khi playbook nhiều host (và retry riêng nếu có) xong */
+    public CompletableFuture<StepRetryService.Outcome> submit(String jobId, int vmIndex, AppDefinition def,
+                                                              Map<String, Object> vars, AnsibleHostTarget target,
+                                                              AtomicInteger budget) {
+        JobBatch jb = jobs.get(jobId);
+        if (jb == null) {
+            return CompletableFuture.completedFuture(runSingle(jobId, null, def, vars, target, budget));
+        }
+        String key = groupKey(def, vars);
+        Group flushNow;
+        CompletableFuture<StepRetryService.Outcome> f = new CompletableFuture<>();
+        synchronized (jb) {
+            Group g = jb.groups.computeIfAbsent(key, k -> new Group(k, def, vars));
+            if (g.flushed) {
+                // nhóm đã chạy (VM tới quá muộn) → chạy riêng
+                return CompletableFuture.completedFuture(runSingle(jobId, jb.tenant, def, vars, target, budget));
+            }
+            g.members.put(vmIndex, new Member(target, budget, f));
+            if (g.members.size() == 1) {
+                g.deadline = timer.schedule(() -> flushOnDeadline(jb, g), maxWaitSeconds, TimeUnit.SECONDS);
+            }
+            flushNow = jb.ready(g) ? g : null;
+            if (flushNow != null) g.flushed = true;
+        }
+        if (flushNow != null) execute(jb, flushNow);
+        return f;
+    }
+
+    /** VM rời job (lỗi trước bước app hoặc đã xong) → các nhóm không còn chờ VM này */
+    public void leave(String jobId, int vmIndex) {
+        JobBatch jb = jobs.get(jobId);
+        if (jb == null) return;
+        List<Group> toRun = new ArrayList<>();
+        synchronized (jb) {
+            jb.gone.add(vmIndex);
+            for (Group g : jb.groups.values()) {
+                if (!g.flushed && !g.members.isEmpty() && jb.ready(g)) {
+                    g.flushed = true;
+                    toRun.add(g);
+                }
+            }
+        }
+        toRun.forEach(g -> execute(jb, g));
+    }
+
+    public void close(String jobId) {
+        JobBatch jb = jobs.remove(jobId);
+        if (jb == null) return;
+        List<Group> toRun = new ArrayList<>();
+        synchronized (jb) {
+            for (Group g : jb.groups.values()) {
+                if (!g.flushed && !g.members.isEmpty()) {
+                    g.flushed = true;
+                    toRun.add(g);
+                }
+            }
+        }
+        toRun.forEach(g -> execute(jb, g));
+    }
+
+    /** Khoá nhóm theo nội dung vars; không serialize được → khoá riêng (chạy riêng, không gộp nhầm) */
+    static String groupKey(AppDefinition def, Map<String, Object> vars) {
+        try {
+            return def.getCode() + "#" + CANONICAL.writeValueAsString(vars == null ? Map.of() : vars);
+        } catch (Exception e) {
+            return def.getCode() + "#" + UUID.randomUUID();
+        }
+    }
+
+    private void flushOnDeadline(JobBatch jb, Group g) {
+        synchronized (jb) {
+            if (g.flushed) return;
+            g.flushed = true;
+        }
+        log.info("[batch {}] {} max-wait reached with {} host(s) → run", jb.jobId, g.def.getCode(), g.members.size());
+        execute(jb, g);
+    }
+
+    private void execute(JobBatch jb, Group g) {
+        if (g.deadline != null) g.deadline.cancel(false);
+        List<Member> members = new ArrayList<>(g.members.values());
+        Thread.ofVirtual().name("app-batch-" + jb.jobId + "-" + g.def.getCode()).start(() -> {
+            try {
+                if (members.size() == 1) {
+                    Member m = members.get(0);
+                    m.result.complete(runSingle(jb.jobId, jb.tenant, g.def, g.vars, m.target, m.budget));
+                    return;
+                }
+                String subJobId = jb.jobId + "_" + g.def.getCode();
+                List<AnsibleHostTarget> hosts = members.stream().map(m -> m.target).toList();
+                log.info("[batch {}] run {} on {} hosts in 1 playbook", jb.jobId, g.def.getCode(), hosts.size());
+                // cả nhóm chiếm 1 slot của scheduler (1 process ansible-playbook); work chạy trên thread này
+                AnsibleRunnerService.HostsOutcome res = scheduler.run(jb.tenant, AnsibleExecutionScheduler.Priority.APP,
+                        subJobId, () -> ansible.runPlanForHosts(subJobId, g.def, hosts, g.vars));
+                for (Member m : members) {
+                    if (res.ok().getOrDefault(m.target.getAlias(), false)) {
+                        m.result.complete(new StepRetryService.Outcome(true, null, 1));
+                        continue;
+                    }
+                    // host lỗi: transient → chạy lại riêng host đó (song song), lỗi khác → dừng
+                    FailureClassifier.Evidence ev = res.failures().get(m.target.getAlias());
+                    Thread.ofVirtual().name("app-batch-retry-" + m.target.getAlias()).start(() ->
+                            m.result.complete(retrySingle(jb.jobId, jb.tenant, g.def, g.vars, m, ev)));
+                }
+            } catch (Exception e) {
+                log.error("[batch {}] {} failed", jb.jobId, g.def.getCode(), e);
+                members.forEach(m -> m.result.complete(new StepRetryService.Outcome(false, FailureClass.UNKNOWN, 1)));
+            }
+        });
+    }
+
+    private StepRetryService.Outcome runSingle(String jobId, String tenant, AppDefinition def, Map<String, Object> vars,
+                                               AnsibleHostTarget t, AtomicInteger budget) {
+        String subJobId = jobId + "_" + def.getCode();
+        return stepRetry.run(subJobId + "_" + t.getAlias(), retryScheduler.appPolicy(), budget,
+                tenant, AnsibleExecutionScheduler.Priority.APP, subJobId,
+                () -> ansible.runPlanForApp(subJobId, def, t.getIp(), t.getPort(), t.getUser(), t.getPass(), vars));
+    }
+
+    private StepRetryService.Outcome retrySingle(String jobId, String tenant, AppDefinition def, Map<String, Object> vars,
+                                                 Member m, FailureClassifier.Evidence first) {
+        try {
+            String subJobId = jobId + "_" + def.getCode();
+            AnsibleHostTarget t = m.target;
+            return stepRetry.retryAfter(first, subJobId + "_" + t.getAlias(), retryScheduler.appPolicy(), m.budget,
+                    tenant, AnsibleExecutionScheduler.Priority.APP, subJobId,
+                    () -> ansible.runPlanForApp(subJobId, def, t.getIp(), t.getPort(), t.getUser(), t.getPass(), vars));
+        } catch (Exception e) {
+            log.error("[batch {}] {} retry for {} failed", jobId, def.getCode(), m.target.getAlias(), e);
+            return new StepRetryService.Outcome(false, FailureClass.UNKNOWN, 1);
+        }
+    }
+
+    // ===================== TYPES =====================
+
+    private static final class JobBatch {
+        final String jobId;
+        final int expected;
+        final String tenant;
+        final Set<Integer> gone = new HashSet<>();
+        final Map<String, Group> groups = new HashMap<>();
+
+        JobBatch(String jobId, int expected, String tenant) {
+            this.jobId = jobId;
+            this.expected = expected;
+            this.tenant = tenant;
+        }
+
+        /** Đủ khi: số VM đã vào nhóm + số VM đã rời (không thuộc nhóm) >= tổng VM của job */
+        boolean ready(Group g) {
+            long goneOutside = gone.stream().filter(i -> !g.members.containsKey(i)).count();
+            return g.members.size() + goneOutside >= expected;
+        }
+    }
+
+    private static final class Group {
+        final String key;
+        final AppDefinition def;
+        final Map<String, Object> vars;
+        final Map<Integer, Member> members = new LinkedHashMap<>();
+        boolean flushed;
+        ScheduledFuture<?> deadline;
+
+        Group(String key, AppDefinition def, Map<String, Object> vars) {
+            this.key = key;
+            this.def = def;
+            this.vars = vars;
+        }
+    }
+
+    private record Member(AnsibleHostTarget target, AtomicInteger budget,
+                          CompletableFuture<StepRetryService.Outcome> result) {}
+}
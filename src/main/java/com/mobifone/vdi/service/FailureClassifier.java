@@ -0,0 +1,79 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.entity.enumeration.FailureClass;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Phân loại lỗi 1 bước ansible theo exit code + chữ ký trong đuôi log
+ * (runner trả về tail log khi exit != 0, xem AnsibleRunnerService.RunOutcome).
+ * Thứ tự chữ ký quan trọng: lock/unreachable trước, lỗi cấu hình sau.
+ */
+@Service
+public class FailureClassifier {
+
+    /** Dấu vết lỗi của 1 run: exit null = không có exit code, lý do ở noExit (null = không rõ → coi như timeout) */
+    public record Evidence(Integer exit, String tail, AnsibleExecutor.NoExit noExit) {
+        public Evidence(Integer exit, String tail) {
+            this(exit, tail, null);
+        }
+    }
+
+    /** Kết quả phân loại + chữ ký khớp (để ghi log) */
+    public record Verdict(FailureClass failureClass, String signature) {}
+
+    // ansible-playbook: 2 = host fail, 4 = host unreachable; ssh: 255 = lỗi kết nối
+    static final int EXIT_FAILED_HOSTS = 2;
+    static final int EXIT_UNREACHABLE = 4;
+    static final int EXIT_SSH_ERROR = 255;
+
+    private record Signature(Pattern pattern, FailureClass failureClass) {}
+
+    private static final List<Signature> SIGNATURES = List.of(
+            sig("config\\.lock|Could not (?:acquire|obtain) lock|lock contention|database is locked"
+                    + "|Resource temporarily unavailable|another (?:process|instance|installation) is (?:already )?(?:running|in progress)"
+                    + "|(?:msiexec|exit code|return code|rc)\\W{0,4}1618\\b", FailureClass.LOCK_CONTENTION),
+            sig("UNREACHABLE!|unreachable=[1-9]|No route to host|Name or service not known", FailureClass.UNREACHABLE),
+            sig("ReadTimeout|Read timed out|timed out waiting|Timeout \\(\\d+s\\) waiting|WinRMOperationTimeoutError"
+                    + "|OperationTimeout|Operation timed out|Connection timed out", FailureClass.TIMEOUT),
+            sig("Connection reset|ConnectionResetError|Connection refused|Connection aborted|Broken pipe|BrokenPipeError"
+                    + "|Max retries exceeded|RemoteDisconnected|kex_exchange_identification|ssh_exchange_identification"
+                    + "|Connection closed by|Shared connection to .* closed", FailureClass.CONNECTION),
+            sig("ERROR! |is undefined|The task includes an option with an undefined variable|the role '.*' was not found"
+                    + "|couldn't resolve module|Syntax Error", FailureClass.CONFIG)
+    );
+
+    private static Signature sig(String regex, FailureClass c) {
+        return new Signature(Pattern.compile(regex, Pattern.CASE_INSENSITIVE), c);
+    }
+
+    public Verdict classify(Evidence e) {
+        if (e == null) return new Verdict(FailureClass.UNKNOWN, null);
+        if (e.exit() == null) return classifyNoExit(e.noExit());
+        String tail = e.tail() == null ? "" : e.tail();
+        for (Signature s : SIGNATURES) {
+            Matcher m = s.pattern().matcher(tail);
+            if (m.find()) return new Verdict(s.failureClass(), m.group());
+        }
+        return switch (e.exit()) {
+            case EXIT_UNREACHABLE -> new Verdict(FailureClass.UNREACHABLE, "exit=" + EXIT_UNREACHABLE);
+            case EXIT_SSH_ERROR -> new Verdict(FailureClass.CONNECTION, "exit=" + EXIT_SSH_ERROR);
+            case EXIT_FAILED_HOSTS -> new Verdict(FailureClass.TASK_FAILED, "exit=" + EXIT_FAILED_HOSTS);
+            default -> new Verdict(FailureClass.UNKNOWN, "exit=" + e.exit());
+        };
+    }
+
+    /** Không có exit code: cancel thì dừng hẳn; hết channel pool / lỗi transport của executor là transient */
+    private static Verdict classifyNoExit(AnsibleExecutor.NoExit reason) {
+        if (reason == null) return new Verdict(FailureClass.TIMEOUT, "no exit (timeout/lost)");
+        return switch (reason) {
+            case TIMEOUT -> new Verdict(FailureClass.TIMEOUT, "no exit (timeout)");
+            case CANCELLED -> new Verdict(FailureClass.CANCELLED, "no exit (cancelled)");
+            case NO_CAPACITY -> new Verdict(FailureClass.CONNECTION, "no exit (ssh pool exhausted)");
+            case ERROR -> new Verdict(FailureClass.CONNECTION, "no exit (executor error)");
+        };
+    }
+}
@@ -4,15 +4,18 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mobifone.vdi.configuration.InfraRabbitConfig;
+import com.mobifone.vdi.dto.response.InfraInstanceEvent;
 import com.mobifone.vdi.dto.response.InfraSuccessEvent;
 import com.mobifone.vdi.utils.ProvisionSignalBus;
 import com.rabbitmq.client.Channel;
 import lombok.AccessLevel;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.nio.charset.StandardCharsets;
@@ -28,6 +31,11 @@ public class InfraEventListener {
     ProvisionPersistService persistService;
     ProvisionSignalBus signalBus;
 
+    // event từng instance là contract đề xuất (xem InfraInstanceEvent), infra chưa gửi → mặc định tắt
+    @NonFinal
+    @Value("${provision.streaming.enabled:false}")
+    boolean streamingEnabled;
+
     ObjectMapper om = new ObjectMapper()
             .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
             .configure(com.fasterxml.jackson.core.JsonParser.Feature.ALLOW_SINGLE_QUOTES, true);
@@ -71,6 +79,17 @@ public class InfraEventListener {
                 return;
             }
 
+            // 1b) Từng instance đã chạy (infra báo dần): {"identifier": "...", "instance": {...}}
+            if (nodeWhole != null && nodeWhole.has("identifier") && nodeWhole.has("instance")) {
+                if (streamingEnabled) {
+                    persistService.handleInstanceReady(om.treeToValue(nodeWhole, InfraInstanceEvent.class));
+                } else {
+                    log.info("[InfraEvent] per-instance event ignored (provision.streaming.enabled=false)");
+                }
+                channel.basicAck(tag, false);
+                return;
+            }
+
             // 2) Thử cắt phần JSON ở trong text (nếu có)
             String jsonCandidate = extractJson(cleaned);
             JsonNode jsonCandidateNode = jsonCandidate != null ? tryParseJsonStrict(jsonCandidate) : null;
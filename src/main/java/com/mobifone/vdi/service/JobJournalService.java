@@ -0,0 +1,232 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.dto.response.JournalEntryResponse;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Journal marker vòng đời job (ATTEMPT START/RESULT, CANCEL, TIMEOUT ...):
+ * - append chỉ ghi vào buffer local theo job (giữ thứ tự), không spawn ssh
+ * - flush theo lô: gộp marker của mọi job vào 1 lần ssh theo chu kỳ, hoặc ngay khi job kết thúc
+ * - lần chạy ansible kế tiếp của job mang theo marker chưa flush (ghi trước START marker)
+ * - status API đọc marker local, không cần SSH
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class JobJournalService {
+
+    final SshConnectionPool sshPool;
+
+    final Map<String, Journal> journals = new ConcurrentHashMap<>();
+    final Object flushLock = new Object();    // các lần flush nối tiếp nhau → giữ thứ tự trong file log
+
+    @NonFinal @Value("${ansible.journal.max-entries-per-job:1000}")
+    int maxEntriesPerJob;
+
+    @NonFinal @Value("${ansible.journal.retention-minutes:120}")
+    long retentionMinutes;
+
+    /** Ghi marker vào buffer local (không I/O) */
+    public void append(String jobId, String logFile, String message) {
+        Journal j = journals.computeIfAbsent(jobId, k -> new Journal(logFile));
+        synchronized (j) {
+            j.closedAt = 0;
+            j.entries.addLast(new Entry(++j.seq, ZonedDateTime.now(), message));
+            // giữ buffer giới hạn: chỉ bỏ entry đã flush
+            while (j.entries.size() > Math.max(1, maxEntriesPerJob) && j.entries.peekFirst().seq <= j.remoteSeq) {
+                j.entries.pollFirst();
+            }
+        }
+    }
+
+    /**
+     * Lấy các dòng chưa flush để caller tự ghi (ví dụ trong script staging). Phần này được giữ chỗ như
+     * flushHost (flush định kỳ không ghi trùng); caller không chắc script đã ghi → restore để lần sau flush lại.
+     */
+    public Drain drain(String jobId) {
+        Journal j = journals.get(jobId);
+        if (j == null) return Drain.EMPTY;
+        synchronized (j) {
+            if (j.remoteSeq >= j.seq) return Drain.EMPTY;
+            Drain d = new Drain(j, pendingLines(j), j.remoteSeq, j.seq);
+            j.remoteSeq = j.seq;
+            return d;
+        }
+    }
+
+    /** Script staging không chạy tới đoạn ghi marker → trả lại phần đã drain (nếu chưa ai drain/flush sau đó) */
+    public void restore(Drain d) {
+        if (d.journal == null) return;
+        synchronized (d.journal) {
+            if (d.journal.remoteSeq == d.to) d.journal.remoteSeq = d.from;
+        }
+    }
+
+    /** Job kết thúc: flush ngay phần còn lại, giữ marker local thêm retention-minutes */
+    public void close(String jobId) {
+        Journal j = journals.get(jobId);
+        if (j == null) return;
+        j.closedAt = System.currentTimeMillis();
+        flush(Map.of(jobId, j));
+    }
+
+    public List<JournalEntryResponse> entries(String jobId) {
+        Journal j = journals.get(jobId);
+        if (j == null) return List.of();
+        synchronized (j) {
+            List<JournalEntryResponse> out = new ArrayList<>(j.entries.size());
+            for (Entry e : j.entries) {
+                out.add(JournalEntryResponse.builder()
+                        .seq(e.seq)
+                        .at(e.at)
+                        .message(e.message)
+                        .flushed(e.seq <= j.remoteSeq)
+                        .build());
+            }
+            return out;
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${ansible.journal.flush-ms:5000}")
+    public void flushAll() {
+        flush(journals);
+        long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(retentionMinutes);
+        journals.entrySet().removeIf(e -> {
+            Journal j = e.getValue();
+            synchronized (j) {
+                return j.closedAt > 0 && j.closedAt < cutoff && j.remoteSeq == j.seq;
+            }
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        flush(journals);
+    }
+
+    /** Flush mọi job có marker chưa flush: 1 lần ssh mỗi control host */
+    private void flush(Map<String, Journal> targets) {
+        synchronized (flushLock) {
+            flushLocked(targets);
+        }
+    }
+
+    private void flushLocked(Map<String, Journal> targets) {
+        // gom theo control host của job: mỗi host 1 lần ssh
+        Map<String, Map<String, Journal>> byHost = new LinkedHashMap<>();
+        targets.forEach((jobId, j) -> byHost
+                .computeIfAbsent(Objects.requireNonNullElse(sshPool.hostOf(jobId), ""), k -> new LinkedHashMap<>())
+                .put(jobId, j));
+        byHost.forEach(this::flushHost);
+    }
+
+    private void flushHost(String host, Map<String, Journal> targets) {
+        Map<Journal, long[]> taken = new LinkedHashMap<>();   // journal -> {seq trước, seq sau}
+        StringBuilder sh = new StringBuilder();
+        String eof = "__VDI_EOF_" + UUID.randomUUID().toString().replace("-", "") + "__";
+        for (Journal j : targets.values()) {
+            synchronized (j) {
+                if (j.remoteSeq >= j.seq) continue;
+                List<String> lines = pendingLines(j);
+                taken.put(j, new long[]{j.remoteSeq, j.seq});
+                j.remoteSeq = j.seq;
+                int slash = j.logFile.lastIndexOf('/');
+                if (slash > 0) {
+                    sh.append("mkdir -p ").append(AnsibleRunnerService.shellQuote(j.logFile.substring(0, slash))).append('\n');
+                }
+                sh.append("cat >> ").append(AnsibleRunnerService.shellQuote(j.logFile))
+                        .append(" <<'").append(eof).append("'\n");
+                for (String line : lines) sh.append(line).append('\n');
+                sh.append(eof).append('\n');
+            }
+        }
+        if (taken.isEmpty()) return;
+
+        boolean ok = false;
+        try (SshConnectionPool.Lease lease = host.isEmpty() ? sshPool.acquire() : sshPool.acquireOn(host)) {
+            Process p = new ProcessBuilder(lease.command("bash -s"))
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            try (var os = p.getOutputStream()) {
+                os.write(sh.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            ok = p.waitFor(30, TimeUnit.SECONDS) && p.exitValue() == 0;
+            if (!ok) p.destroyForcibly();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("[journal] flush failed: {}", e.getMessage());
+        }
+
+        if (!ok) {
+            // trả lại phần chưa ghi được để lần sau flush tiếp (nếu chưa ai drain sau đó)
+            taken.forEach((j, r) -> {
+                synchronized (j) {
+                    if (j.remoteSeq == r[1]) j.remoteSeq = r[0];
+                }
+            });
+        }
+    }
+
+    /** Gọi trong synchronized(j) */
+    private List<String> pendingLines(Journal j) {
+        List<String> lines = new ArrayList<>();
+        for (Entry e : j.entries) {
+            if (e.seq > j.remoteSeq) lines.add("[" + e.at + "] " + e.message);
+        }
+        return lines;
+    }
+
+    // ===================== TYPES =====================
+
+    private record Entry(long seq, ZonedDateTime at, String message) {}
+
+    /** Phần marker đã drain cho 1 lần chạy: dòng cần ghi + seq trước/sau để restore */
+    public static final class Drain {
+        static final Drain EMPTY = new Drain(null, List.of(), 0, 0);
+
+        final Journal journal;
+        final List<String> lines;
+        final long from;
+        final long to;
+
+        private Drain(Journal journal, List<String> lines, long from, long to) {
+            this.journal = journal;
+            this.lines = lines;
+            this.from = from;
+            this.to = to;
+        }
+
+        public List<String> lines() {
+            return lines;
+        }
+    }
+
+    private static final class Journal {
+        final String logFile;
+        final Deque<Entry> entries = new ArrayDeque<>();
+        long seq;
+        long remoteSeq;           // seq lớn nhất đã ghi xuống log từ xa
+        volatile long closedAt;
+
+        Journal(String logFile) {
+            this.logFile = logFile;
+        }
+    }
+}
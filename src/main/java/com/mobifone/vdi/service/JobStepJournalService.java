@@ -0,0 +1,185 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.entity.JobStepLog;
+import com.mobifone.vdi.repository.JobStepLogRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind cho JobStepLog (timeline job/VM):
+ * - append chỉ đưa vào hàng đợi giới hạn (không I/O) → virtual thread của VM không tranh Hikari pool với việc chính
+ * - 1 writer flush theo lô JDBC khi đủ batch-size hoặc sau flush-ms, 1 transaction / lô
+ * - hàng đợi đầy → caller tự flush (chậm lại thay vì mất bước)
+ * - flush(): ghi ngay phần còn lại (job kết thúc, trước khi đọc DB để tóm tắt; shutdown)
+ * - steps(jobId): DB + bước chưa flush → timeline trên UI vẫn live
+ * Crash (không qua shutdown) mất tối đa phần chưa flush: ≤ flush-ms gần nhất, ≤ capacity bước.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class JobStepJournalService {
+
+    static final String INSERT = "insert into job_step_log "
+            + "(id, job_id, vd_id, step, status, detail, failure_class, attempts, created_at) "
+            + "values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    static final int FALLBACK_DETAIL_LEN = 500;
+
+    final JobStepLogRepository stepRepo;
+    final JdbcTemplate jdbc;
+    final TransactionTemplate tx;
+
+    final Map<String, JobStepLog> unflushed = new ConcurrentHashMap<>();   // id → bước chưa vào DB (cho steps)
+    final Object flushLock = new Object();    // 1 lần flush tại 1 thời điểm → giữ thứ tự ghi
+    final Object wake = new Object();
+    final AtomicLong dropped = new AtomicLong();
+    BlockingQueue<JobStepLog> queue;
+    Thread writer;
+
+    @NonFinal @Value("${provision.step-log.capacity:10000}")
+    int capacity;
+
+    @NonFinal @Value("${provision.step-log.batch-size:100}")
+    int batchSize;
+
+    @NonFinal @Value("${provision.step-log.flush-ms:1000}")
+    long flushMs;
+
+    @PostConstruct
+    void start() {
+        queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        writer = Thread.ofPlatform().daemon().name("step-log-writer").start(this::writerLoop);
+    }
+
+    @PreDestroy
+    void stop() {
+        writer.interrupt();
+        flush();
+    }
+
+    // ===================== API =====================
+
+    public void append(JobStepLog step) {
+        unflushed.put(step.getId(), step);
+        if (!queue.offer(step)) {
+            // đầy (DB chậm/đứt) → caller gánh 1 lần flush
+            flush();
+            if (!queue.offer(step)) {
+                write(List.of(step));
+                return;
+            }
+        }
+        if (queue.size() >= batchSize) {
+            synchronized (wake) {
+                wake.notify();
+            }
+        }
+    }
+
+    /** Ghi ngay mọi bước đang chờ (chặn tới khi xong) */
+    public void flush() {
+        synchronized (flushLock) {
+            List<JobStepLog> batch = new ArrayList<>(Math.max(1, batchSize));
+            while (queue.drainTo(batch, Math.max(1, batchSize)) > 0) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /** Timeline của job: đã ghi DB + chưa flush, theo thời gian */
+    public List<JobStepLog> steps(String jobId) {
+        // lấy phần chưa flush trước: bước flush giữa 2 lần đọc nằm trong DB, trùng thì bỏ theo id
+        List<JobStepLog> pending = unflushed.values().stream()
+                .filter(s -> jobId.equals(s.getJobId()))
+                .toList();
+        List<JobStepLog> out = new ArrayList<>(stepRepo.findByJobIdOrderByCreatedAtAsc(jobId));
+        if (pending.isEmpty()) return out;
+        Set<String> seen = new HashSet<>();
+        out.forEach(s -> seen.add(s.getId()));
+        pending.stream().filter(s -> seen.add(s.getId())).forEach(out::add);
+        out.sort(Comparator.comparing(JobStepLog::getCreatedAt, Comparator.nullsFirst(Comparator.naturalOrder())));
+        return out;
+    }
+
+    public int pending() {
+        return queue.size();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    // ===================== WRITER =====================
+
+    private void writerLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                synchronized (wake) {
+                    if (queue.size() < batchSize) wake.wait(Math.max(1, flushMs));
+                }
+                flush();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("[step-log] writer error", e);
+            }
+        }
+    }
+
+    /** 1 lô JDBC trong 1 transaction; lỗi → ghi lại từng dòng (detail rút gọn), dòng vẫn lỗi thì bỏ */
+    private void write(List<JobStepLog> batch) {
+        try {
+            tx.executeWithoutResult(st ->
+                    jdbc.batchUpdate(INSERT, batch, batch.size(), (ps, s) -> bind(ps, s, s.getDetail())));
+        } catch (Exception e) {
+            log.warn("[step-log] batch of {} failed ({}) → per row", batch.size(), e.getMessage());
+            for (JobStepLog s : batch) {
+                try {
+                    jdbc.update(INSERT, ps -> bind(ps, s, clamp(s.getDetail())));
+                } catch (Exception ex) {
+                    long n = dropped.incrementAndGet();
+                    log.warn("[step-log] drop {} {}/{} ({} dropped so far): {}",
+                            s.getJobId(), s.getStep(), s.getStatus(), n, ex.getMessage());
+                }
+            }
+        }
+        batch.forEach(s -> unflushed.remove(s.getId()));
+    }
+
+    private static void bind(PreparedStatement ps, JobStepLog s, String detail) throws SQLException {
+        ps.setString(1, s.getId());
+        ps.setString(2, s.getJobId());
+        ps.setString(3, s.getVdId());
+        ps.setString(4, s.getStep());
+        ps.setString(5, s.getStatus());
+        ps.setString(6, detail);
+        ps.setString(7, s.getFailureClass() == null ? null : s.getFailureClass().name());
+        if (s.getAttempts() == null) ps.setNull(8, Types.INTEGER);
+        else ps.setInt(8, s.getAttempts());
+        ps.setObject(9, s.getCreatedAt());
+    }
+
+    private static String clamp(String s) {
+        if (s == null || s.length() <= FALLBACK_DETAIL_LEN) return s;
+        return s.substring(0, FALLBACK_DETAIL_LEN - 15) + "...(truncated)";
+    }
+}
@@ -0,0 +1,104 @@
+package com.mobifone.vdi.service;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+/** Kho log lưu trữ trên đĩa local: ansible.log-archive.dir/<jobId>/<file> */
+@Service
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class LocalLogArchiveStore implements LogArchiveStore {
+
+    @NonFinal @Value("${ansible.log-archive.dir:./data/log-archive}")
+    String dir;
+
+    @Override
+    public String name() {
+        return "local";
+    }
+
+    @Override
+    public void put(String key, byte[] data) throws IOException {
+        Path target = pathOf(key);
+        Files.createDirectories(target.getParent());
+        // ghi file tạm + move → reader không bao giờ thấy object ghi dở
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(tmp, data);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        SeekableByteChannel ch = Files.newByteChannel(pathOf(key));
+        ch.position(Math.max(0, offset));
+        InputStream in = Channels.newInputStream(ch);
+        return length < 0 ? in : new BoundedInputStream(in, length);
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return Files.isRegularFile(pathOf(key));
+    }
+
+    @Override
+    public List<String> list(String name) throws IOException {
+        Path root = Path.of(dir).toAbsolutePath().normalize();
+        if (!Files.isDirectory(root)) return List.of();
+        try (Stream<Path> jobs = Files.list(root)) {
+            return jobs.filter(p -> Files.isRegularFile(p.resolve(name)))
+                    .map(p -> p.getFileName() + "/" + name)
+                    .toList();
+        }
+    }
+
+    private Path pathOf(String key) {
+        Path root = Path.of(dir).toAbsolutePath().normalize();
+        Path p = root.resolve(key).normalize();
+        if (!p.startsWith(root)) throw new IllegalArgumentException("Invalid archive key " + key);
+        return p;
+    }
+
+    /** Cắt stream sau length byte */
+    private static final class BoundedInputStream extends InputStream {
+        final InputStream in;
+        long left;
+
+        BoundedInputStream(InputStream in, long left) {
+            this.in = in;
+            this.left = left;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (left <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) left--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (left <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, left));
+            if (n > 0) left -= n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
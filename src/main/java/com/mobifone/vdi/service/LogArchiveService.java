@@ -0,0 +1,351 @@
+package com.mobifone.vdi.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Lưu trữ log ansible của job đã kết thúc:
+ * - job xong → kéo mọi file <logs-dir>/<jobId>*.log về đúng 1 lần (1 lệnh ssh, nén gzip trên đường truyền)
+ * - mỗi file lưu thành chuỗi segment gzip độc lập (segment-bytes byte gốc/segment) + file index offset
+ *   → đọc theo khoảng chỉ giải nén 1 vài segment, không giải nén cả file
+ * - key trong store: <jobId>/<file>.gz, <jobId>/<file>.idx, <jobId>/_manifest.json (có manifest = đã lưu xong)
+ * - prune-remote: xoá bản trên Ansible host sau khi lưu xong
+ * Job đã lưu trữ thì mọi lần đọc log đi qua store, không còn SSH.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class LogArchiveService {
+
+    static final ObjectMapper JSON = new ObjectMapper();
+    static final String MANIFEST = "_manifest.json";
+
+    final SshConnectionPool sshPool;
+    final List<LogArchiveStore> stores;
+
+    // gọi sau khi 1 job lưu trữ xong (ví dụ LogSearchIndexService đánh chỉ mục)
+    final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    // jobId → lần lưu trữ đang chạy (đọc log của job vừa xong thì chờ nó thay vì đọc SSH song song)
+    final Map<String, CompletableFuture<Boolean>> inflight = new ConcurrentHashMap<>();
+
+    @NonFinal
+    LogArchiveStore store;
+
+    @NonFinal @Value("${ansible.log-archive.enabled:true}")
+    boolean enabled;
+
+    @NonFinal @Value("${ansible.log-archive.store:local}")
+    String storeType;
+
+    @NonFinal @Value("${ansible.log-archive.segment-bytes:262144}")
+    int segmentBytes;
+
+    @NonFinal @Value("${ansible.log-archive.prune-remote:false}")
+    boolean pruneRemote;
+
+    @NonFinal @Value("${ansible.log-archive.pull-timeout-seconds:300}")
+    long pullTimeoutSeconds;
+
+    @NonFinal @Value("${ansible.remote.logs-dir:/ansible-host/logs}")
+    String remoteLogsDir;
+
+    @NonFinal @Value("${ansible.executor.type:ssh}")
+    String executorType;
+
+    /** Manifest của job: file → kích thước gốc, thời điểm lưu trữ (epoch ms) */
+    public record Manifest(String jobId, Map<String, Long> files, long archivedAt) {}
+
+    /** Index của 1 file: kích thước gốc, cỡ segment, offset (trong file .gz) của từng segment */
+    public record SegmentIndex(long size, int segment, List<Long> offsets) {}
+
+    /** 1 khoảng log đã giải nén; size = kích thước gốc của cả file */
+    public record Range(long size, byte[] data) {}
+
+    // ===================== ARCHIVE =====================
+
+    /** Lưu trữ nền (gọi khi job kết thúc); trả future của lần đang chạy nếu đã có */
+    public CompletableFuture<Boolean> archiveAsync(String jobId) {
+        if (!active() || isArchived(jobId)) return CompletableFuture.completedFuture(isArchived(jobId));
+        CompletableFuture<Boolean> mine = new CompletableFuture<>();
+        CompletableFuture<Boolean> running = inflight.putIfAbsent(jobId, mine);
+        if (running != null) return running;
+        Thread.ofVirtual().name("log-archive-" + jobId).start(() -> {
+            try {
+                boolean ok = archive(jobId);
+                mine.complete(ok);
+                if (ok) notifyArchived(jobId);
+            } catch (Exception e) {
+                log.warn("[log-archive {}] failed: {}", jobId, e.getMessage());
+                mine.complete(false);
+            } finally {
+                inflight.remove(jobId, mine);
+            }
+        });
+        return mine;
+    }
+
+    /** Chờ lưu trữ (nếu chưa có thì chạy ngay); true nếu job đã nằm trong store */
+    public boolean ensureArchived(String jobId) {
+        if (isArchived(jobId)) return true;
+        try {
+            return archiveAsync(jobId).get(pullTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public void onArchived(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    /** Manifest của job đã lưu trữ; null nếu chưa có */
+    public Manifest manifest(String jobId) throws IOException {
+        if (!isArchived(jobId)) return null;
+        try (InputStream in = store().get(jobId + "/" + MANIFEST, 0, -1)) {
+            return JSON.readValue(in, Manifest.class);
+        }
+    }
+
+    /** Mọi jobId đang có trong archive */
+    public List<String> archivedJobs() throws IOException {
+        if (!active()) return List.of();
+        return store().list(MANIFEST).stream().map(k -> k.substring(0, k.indexOf('/'))).toList();
+    }
+
+    /** Dữ liệu phụ theo job (ví dụ chỉ mục tìm kiếm) nằm cạnh log: <jobId>/_<name> */
+    public void putSidecar(String jobId, String name, byte[] data) throws IOException {
+        store().put(jobId + "/_" + name, data);
+    }
+
+    public byte[] getSidecar(String jobId, String name) throws IOException {
+        String key = jobId + "/_" + name;
+        if (!store().exists(key)) return null;
+        try (InputStream in = store().get(key, 0, -1)) {
+            return in.readAllBytes();
+        }
+    }
+
+    /** Đang có lần lưu trữ chạy cho job */
+    public boolean isArchiving(String jobId) {
+        return inflight.containsKey(jobId);
+    }
+
+    public boolean isArchived(String jobId) {
+        return active() && store().exists(jobId + "/" + MANIFEST);
+    }
+
+    /** Kéo + lưu mọi log của job; chạy đồng bộ trên thread gọi */
+    private boolean archive(String jobId) throws Exception {
+        long t0 = System.currentTimeMillis();
+        Map<String, Long> files = new LinkedHashMap<>();
+        String dir = AnsibleRunnerService.shellQuote(remoteLogsDir);
+        String prefix = AnsibleRunnerService.shellQuote(jobId);
+        // mỗi file: "<tên> <size>\n" rồi đúng size byte (head -c: file còn được ghi thêm cũng không lệch khung)
+        String cmd = "cd " + dir + " && for f in " + prefix + "*.log; do [ -f \"$f\" ] || continue; "
+                + "s=$(stat -c %s \"$f\"); printf '%s %s\\n' \"$f\" \"$s\"; head -c \"$s\" \"$f\"; done | gzip -c";
+
+        try (SshConnectionPool.Lease lease = sshPool.acquireFor(jobId)) {
+            Process p = new ProcessBuilder(lease.command(cmd)).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            try (InputStream in = new GZIPInputStream(p.getInputStream(), 65536)) {
+                String header;
+                while ((header = readLine(in)) != null) {
+                    int sp = header.lastIndexOf(' ');
+                    if (sp <= 0) throw new IOException("Bad archive frame: " + header);
+                    String name = header.substring(0, sp);
+                    long size = Long.parseLong(header.substring(sp + 1).trim());
+                    checkName(jobId, name);
+                    writeFile(jobId, name, in, size);
+                    files.put(name, size);
+                }
+            }
+            if (!p.waitFor(pullTimeoutSeconds, TimeUnit.SECONDS)) {
+                p.destroyForcibly();
+                throw new IOException("Log pull timed out");
+            }
+        }
+
+        // manifest ghi sau cùng → chỉ có khi mọi file đã lưu đủ
+        store().put(jobId + "/" + MANIFEST, JSON.writeValueAsBytes(new Manifest(jobId, files, System.currentTimeMillis())));
+        log.info("[log-archive {}] {} file(s), {} bytes in {} ms",
+                jobId, files.size(), files.values().stream().mapToLong(Long::longValue).sum(),
+                System.currentTimeMillis() - t0);
+
+        if (pruneRemote && !files.isEmpty()) prune(jobId, files.keySet());
+        return true;
+    }
+
+    /** Đọc size byte từ stream, cắt thành segment gzip độc lập, ghi .gz + .idx */
+    void writeFile(String jobId, String name, InputStream in, long size) throws IOException {
+        int seg = Math.max(4096, segmentBytes);
+        ByteArrayOutputStream gz = new ByteArrayOutputStream();
+        List<Long> offsets = new ArrayList<>();
+        long left = size;
+        byte[] buf = new byte[seg];
+        while (left > 0) {
+            int want = (int) Math.min(seg, left);
+            int n = in.readNBytes(buf, 0, want);
+            if (n < want) throw new IOException("Truncated log " + name);
+            offsets.add((long) gz.size());
+            try (GZIPOutputStream out = new GZIPOutputStream(new NonClosing(gz), 8192)) {
+                out.write(buf, 0, n);
+            }
+            left -= n;
+        }
+        store().put(jobId + "/" + name + ".gz", gz.toByteArray());
+        store().put(jobId + "/" + name + ".idx", JSON.writeValueAsBytes(new SegmentIndex(size, seg, offsets)));
+    }
+
+    private void prune(String jobId, Iterable<String> names) {
+        StringBuilder cmd = new StringBuilder("cd ").append(AnsibleRunnerService.shellQuote(remoteLogsDir))
+                .append(" && rm -f --");
+        names.forEach(n -> cmd.append(' ').append(AnsibleRunnerService.shellQuote(n)));
+        try (SshConnectionPool.Lease lease = sshPool.acquireFor(jobId)) {
+            Process p = new ProcessBuilder(lease.command(cmd.toString()))
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            p.waitFor(60, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("[log-archive {}] prune remote failed: {}", jobId, e.getMessage());
+        }
+    }
+
+    // ===================== READ =====================
+
+    /**
+     * Đọc [offset, offset+limit) của 1 file log đã lưu trữ (path: đường dẫn log từ xa, chỉ dùng tên file).
+     * null nếu job/file chưa có trong archive → caller tự quyết đọc SSH.
+     */
+    public Range read(String jobId, String path, long offset, int limit) throws IOException {
+        if (!isArchived(jobId)) return null;
+        String name = baseName(path);
+        checkName(jobId, name);
+        String key = jobId + "/" + name;
+        if (!store().exists(key + ".idx")) return null;
+
+        SegmentIndex idx;
+        try (InputStream in = store().get(key + ".idx", 0, -1)) {
+            idx = JSON.readValue(in, SegmentIndex.class);
+        }
+        long from = Math.max(0, offset);
+        if (from >= idx.size() || limit <= 0) return new Range(idx.size(), new byte[0]);
+
+        int seg = (int) (from / idx.segment());
+        long skip = from - (long) seg * idx.segment();
+        int want = (int) Math.min(limit, idx.size() - from);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(want);
+        // mỗi segment là 1 member gzip độc lập → mở đúng khoảng byte của nó trong .gz
+        while (out.size() < want && seg < idx.offsets().size()) {
+            long start = idx.offsets().get(seg);
+            long len = seg + 1 < idx.offsets().size() ? idx.offsets().get(seg + 1) - start : -1;
+            try (InputStream in = new GZIPInputStream(store().get(key + ".gz", start, len), 8192)) {
+                in.skipNBytes(skip);
+                out.write(in.readNBytes(want - out.size()));
+            }
+            skip = 0;
+            seg++;
+        }
+        return new Range(idx.size(), out.toByteArray());
+    }
+
+    /** Đọc nguyên file (API log cũ); null nếu chưa lưu trữ */
+    public byte[] readAll(String jobId, String path) throws IOException {
+        Range r = read(jobId, path, 0, Integer.MAX_VALUE - 8);
+        return r == null ? null : r.data();
+    }
+
+    // ===================== INTERNAL =====================
+
+    private void notifyArchived(String jobId) {
+        for (Consumer<String> l : listeners) {
+            try {
+                l.accept(jobId);
+            } catch (Exception e) {
+                log.warn("[log-archive {}] listener failed: {}", jobId, e.getMessage());
+            }
+        }
+    }
+
+    private boolean active() {
+        return enabled && !"simulated".equalsIgnoreCase(executorType == null ? "" : executorType.trim());
+    }
+
+    /** Store theo ansible.log-archive.store, chọn 1 lần */
+    private LogArchiveStore store() {
+        LogArchiveStore s = store;
+        if (s == null) {
+            String type = storeType == null || storeType.isBlank() ? "local" : storeType.trim();
+            s = stores.stream().filter(x -> x.name().equalsIgnoreCase(type)).findFirst()
+                    .orElseThrow(() -> new IllegalStateException("Unknown ansible.log-archive.store: " + type));
+            store = s;
+        }
+        return s;
+    }
+
+    static String baseName(String path) {
+        if (path == null) return "";
+        int i = path.lastIndexOf('/');
+        return i < 0 ? path : path.substring(i + 1);
+    }
+
+    /** Chỉ chấp nhận file log thuộc job (chặn đọc/ghi ra ngoài thư mục của job) */
+    private static void checkName(String jobId, String name) {
+        if (!name.startsWith(jobId) || !name.endsWith(".log") || name.contains("/") || name.contains("..")) {
+            throw new IllegalArgumentException("Log file " + name + " does not belong to job " + jobId);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') line.write(b);
+        if (b == -1 && line.size() == 0) return null;
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /** GZIPOutputStream.close() ghi trailer rồi đóng stream dưới – giữ buffer chung mở */
+    private static final class NonClosing extends java.io.FilterOutputStream {
+        NonClosing(java.io.OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            // không đóng buffer chung
+        }
+    }
+}
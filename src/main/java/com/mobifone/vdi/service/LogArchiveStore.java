@@ -0,0 +1,25 @@
+package com.mobifone.vdi.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Kho object cho log đã lưu trữ: ghi nguyên object, đọc theo khoảng byte (giống GET Range của object store).
+ * Key dạng "<jobId>/<tên file>"; bản local: LocalLogArchiveStore.
+ */
+public interface LogArchiveStore {
+
+    /** Tên dùng trong ansible.log-archive.store */
+    String name();
+
+    void put(String key, byte[] data) throws IOException;
+
+    /** Đọc từ offset, tối đa length byte (length < 0: tới hết object) */
+    InputStream get(String key, long offset, long length) throws IOException;
+
+    boolean exists(String key);
+
+    /** Các key có tên (phần sau "/" cuối) = name, ví dụ list("_manifest.json") → mọi job đã lưu trữ */
+    List<String> list(String name) throws IOException;
+}
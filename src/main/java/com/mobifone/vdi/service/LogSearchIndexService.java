@@ -0,0 +1,397 @@
+package com.mobifone.vdi.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mobifone.vdi.dto.response.LogSearchResponse;
+import jakarta.annotation.PostConstruct;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Chỉ mục ngược (in-process) trên log đã lưu trữ, để tìm job lỗi theo chữ ký thay vì grep trên Ansible host:
+ * - mỗi job lưu trữ xong → tách các dòng lỗi (fatal/failed/ERROR!) kèm role, task, host, lớp lỗi, byte offset
+ * - phần tách được ghi cạnh log trong archive (_search.json) → khởi động lại chỉ nạp file này, không parse lại log
+ * - term: w:<từ trong dòng lỗi>, r:<role>, t:<từ trong tên task>, h:<host>, c:<lớp lỗi>; posting = danh sách docId tăng dần
+ * - truy vấn = giao các posting (AND) + lọc thời gian, gom theo job
+ * - job quá retention-days bị loại khỏi chỉ mục (sidecar vẫn nằm trong archive)
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class LogSearchIndexService {
+
+    static final ObjectMapper JSON = new ObjectMapper();
+    static final String SIDECAR = "search.json";
+
+    static final Pattern TASK = Pattern.compile("^(?:TASK|RUNNING HANDLER) \\[(?:(.+?) : )?(.+?)]");
+    static final Pattern FAIL = Pattern.compile("^(?:fatal|failed): \\[([^\\]]+)]");
+    static final Pattern TOKEN_SPLIT = Pattern.compile("[^\\p{L}\\p{N}_]+");
+    static final int MAX_LINE = 500;
+    static final int MAX_TOKENS_PER_LINE = 96;
+    static final int SAMPLE_LINES = 5;
+    static final int MAX_HOSTS = 20;
+
+    final LogArchiveService logArchive;
+    final FailureClassifier classifier;
+
+    final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
+    final List<Hit> docs = new ArrayList<>();
+    final Map<String, Postings> postings = new HashMap<>();
+    final Map<String, Long> indexedJobs = new HashMap<>();   // jobId → thời điểm lưu trữ (cả job không có dòng lỗi)
+
+    @NonFinal @Value("${ansible.log-search.enabled:true}")
+    boolean enabled;
+
+    @NonFinal @Value("${ansible.log-search.retention-days:180}")
+    int retentionDays;
+
+    @NonFinal @Value("${ansible.log-search.max-hits-per-job:200}")
+    int maxHitsPerJob;
+
+    /** 1 dòng lỗi đã tách (1 document của chỉ mục) */
+    public record Hit(String jobId, String file, long offset, String role, String task, String host,
+                      String failureClass, String line, long at) {}
+
+    /** Phần tách của 1 job (sidecar trong archive) */
+    record Extract(String jobId, long at, List<Hit> hits) {}
+
+    @PostConstruct
+    void start() {
+        if (!enabled) return;
+        // job lưu trữ xong → đánh chỉ mục ngay trên thread lưu trữ
+        logArchive.onArchived(this::indexJob);
+        Thread.ofVirtual().name("log-search-load").start(this::loadAll);
+    }
+
+    // ===================== INDEXING =====================
+
+    /** Nạp mọi job trong archive (sidecar có sẵn; job lưu trữ trước khi có chỉ mục thì tách bù) */
+    private void loadAll() {
+        long t0 = System.currentTimeMillis();
+        try {
+            for (String jobId : logArchive.archivedJobs()) indexJob(jobId);
+        } catch (Exception e) {
+            log.warn("[log-search] load failed: {}", e.getMessage());
+        }
+        log.info("[log-search] loaded {} job(s), {} line(s) in {} ms",
+                indexedJobs(), docCount(), System.currentTimeMillis() - t0);
+    }
+
+    /** Đánh chỉ mục 1 job đã lưu trữ; idempotent */
+    public void indexJob(String jobId) {
+        if (!enabled || contains(jobId)) return;
+        try {
+            byte[] side = logArchive.getSidecar(jobId, SIDECAR);
+            Extract ex = side != null ? JSON.readValue(side, Extract.class) : extract(jobId);
+            if (ex == null) return;
+            if (side == null) logArchive.putSidecar(jobId, SIDECAR, JSON.writeValueAsBytes(ex));
+            if (ex.at() < cutoff()) return;
+            add(ex);
+        } catch (Exception e) {
+            log.warn("[log-search {}] index failed: {}", jobId, e.getMessage());
+        }
+    }
+
+    private Extract extract(String jobId) throws Exception {
+        LogArchiveService.Manifest m = logArchive.manifest(jobId);
+        if (m == null) return null;
+        List<Hit> hits = new ArrayList<>();
+        for (String file : m.files().keySet()) {
+            if (hits.size() >= maxHitsPerJob) break;
+            byte[] data = logArchive.readAll(jobId, file);
+            if (data != null) parse(jobId, file, data, m.archivedAt(), hits);
+        }
+        return new Extract(jobId, m.archivedAt(), hits);
+    }
+
+    /** Quét log theo dòng: nhớ TASK [role : task] gần nhất, lấy các dòng fatal/failed/ERROR! (bỏ lỗi được ignore) */
+    void parse(String jobId, String file, byte[] data, long at, List<Hit> out) {
+        String role = null;
+        String task = null;
+        Hit pending = null;
+        int start = 0;
+        while (start < data.length && out.size() < maxHitsPerJob) {
+            int end = start;
+            while (end < data.length && data[end] != '\n') end++;
+            String line = AnsibleLogStreamService.ANSI
+                    .matcher(new String(data, start, Math.min(end - start, MAX_LINE * 4), StandardCharsets.UTF_8))
+                    .replaceAll("").stripTrailing();
+            long offset = start;
+            start = end + 1;
+            if (line.isBlank()) continue;
+
+            if (pending != null) {
+                if (!line.trim().equals("...ignoring")) out.add(pending);
+                pending = null;
+            }
+
+            Matcher t = TASK.matcher(line);
+            if (t.find()) {
+                role = t.group(1);
+                task = t.group(2);
+                continue;
+            }
+            Matcher f = FAIL.matcher(line);
+            if (f.find()) {
+                pending = hit(jobId, file, offset, role, task, f.group(1), line, at, FailureClassifier.EXIT_FAILED_HOSTS);
+            } else if (line.startsWith("ERROR! ")) {
+                out.add(hit(jobId, file, offset, role, task, null, line, at, 1));
+            }
+        }
+        if (pending != null && out.size() < maxHitsPerJob) out.add(pending);
+    }
+
+    private Hit hit(String jobId, String file, long offset, String role, String task, String host,
+                    String line, long at, int exit) {
+        String fc = classifier.classify(new FailureClassifier.Evidence(exit, line)).failureClass().name();
+        String text = line.length() > MAX_LINE ? line.substring(0, MAX_LINE) : line;
+        return new Hit(jobId, file, offset, role, task, host, fc, text, at);
+    }
+
+    private void add(Extract ex) {
+        rw.writeLock().lock();
+        try {
+            if (indexedJobs.putIfAbsent(ex.jobId(), ex.at()) != null) return;
+            ex.hits().forEach(this::addDoc);
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /** Gọi trong write lock */
+    private void addDoc(Hit h) {
+        int id = docs.size();
+        docs.add(h);
+        for (String term : terms(h)) postings.computeIfAbsent(term, k -> new Postings()).add(id);
+    }
+
+    static Set<String> terms(Hit h) {
+        Set<String> terms = new LinkedHashSet<>();
+        tokens(h.line(), MAX_TOKENS_PER_LINE).forEach(t -> terms.add("w:" + t));
+        tokens(h.task(), MAX_TOKENS_PER_LINE).forEach(t -> terms.add("t:" + t));
+        if (h.role() != null) terms.add("r:" + h.role().trim().toLowerCase(Locale.ROOT));
+        if (h.host() != null) terms.add("h:" + h.host().trim().toLowerCase(Locale.ROOT));
+        if (h.failureClass() != null) terms.add("c:" + h.failureClass().toLowerCase(Locale.ROOT));
+        return terms;
+    }
+
+    static List<String> tokens(String text, int max) {
+        if (text == null || text.isBlank()) return List.of();
+        Set<String> out = new LinkedHashSet<>();
+        for (String t : TOKEN_SPLIT.split(text.toLowerCase(Locale.ROOT))) {
+            if (t.length() < 2) continue;
+            out.add(t);
+            if (out.size() >= max) break;
+        }
+        return new ArrayList<>(out);
+    }
+
+    /** Bỏ job quá retention: dựng lại chỉ mục từ các dòng còn giữ */
+    @Scheduled(fixedDelayString = "${ansible.log-search.compact-ms:86400000}",
+            initialDelayString = "${ansible.log-search.compact-ms:86400000}")
+    public void compact() {
+        long cutoff = cutoff();
+        rw.writeLock().lock();
+        try {
+            indexedJobs.values().removeIf(at -> at < cutoff);
+            if (docs.stream().noneMatch(h -> h.at() < cutoff)) return;
+            List<Hit> keep = docs.stream().filter(h -> h.at() >= cutoff).toList();
+            docs.clear();
+            postings.clear();
+            keep.forEach(this::addDoc);
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    // ===================== QUERY =====================
+
+    /**
+     * Tìm job có dòng lỗi khớp mọi điều kiện (AND):
+     * q = các từ trong dòng lỗi, role = tên role, task = các từ trong tên task, host, failureClass; days = trong N ngày gần nhất.
+     */
+    public LogSearchResponse search(String q, String role, String task, String host, String failureClass,
+                                    int days, int limit) {
+        long t0 = System.nanoTime();
+        List<String> terms = new ArrayList<>();
+        tokens(q, MAX_TOKENS_PER_LINE).forEach(t -> terms.add("w:" + t));
+        tokens(task, MAX_TOKENS_PER_LINE).forEach(t -> terms.add("t:" + t));
+        if (role != null && !role.isBlank()) terms.add("r:" + role.trim().toLowerCase(Locale.ROOT));
+        if (host != null && !host.isBlank()) terms.add("h:" + host.trim().toLowerCase(Locale.ROOT));
+        if (failureClass != null && !failureClass.isBlank()) terms.add("c:" + failureClass.trim().toLowerCase(Locale.ROOT));
+        long since = days > 0 ? System.currentTimeMillis() - days * 86_400_000L : 0;
+
+        Map<String, JobAcc> byJob = new HashMap<>();
+        int totalHits = 0;
+        int indexed;
+        rw.readLock().lock();
+        try {
+            indexed = indexedJobs.size();
+            int[] ids = match(terms);
+            for (int i = ids.length - 1; i >= 0; i--) {
+                Hit h = docs.get(ids[i]);
+                if (h.at() < since) continue;
+                totalHits++;
+                byJob.computeIfAbsent(h.jobId(), k -> new JobAcc(h.jobId(), h.at())).add(h);
+            }
+        } finally {
+            rw.readLock().unlock();
+        }
+
+        List<JobAcc> jobs = new ArrayList<>(byJob.values());
+        jobs.sort(Comparator.comparingLong((JobAcc a) -> a.at).reversed());
+        List<LogSearchResponse.JobHit> result = jobs.stream()
+                .limit(Math.max(1, limit))
+                .map(JobAcc::toResponse)
+                .toList();
+        return LogSearchResponse.builder()
+                .tookMs((System.nanoTime() - t0) / 1_000_000)
+                .totalJobs(jobs.size())
+                .totalHits(totalHits)
+                .indexedJobs(indexed)
+                .jobs(result)
+                .build();
+    }
+
+    /** Gọi trong read lock: docId khớp mọi term (không có term → mọi doc) */
+    private int[] match(List<String> terms) {
+        if (terms.isEmpty()) {
+            int[] all = new int[docs.size()];
+            for (int i = 0; i < all.length; i++) all[i] = i;
+            return all;
+        }
+        List<Postings> lists = new ArrayList<>();
+        for (String t : new LinkedHashSet<>(terms)) {
+            Postings p = postings.get(t);
+            if (p == null) return new int[0];
+            lists.add(p);
+        }
+        lists.sort(Comparator.comparingInt(p -> p.n));   // giao từ danh sách ngắn nhất
+        int[] acc = Arrays.copyOf(lists.get(0).ids, lists.get(0).n);
+        for (int k = 1; k < lists.size() && acc.length > 0; k++) acc = intersect(acc, lists.get(k));
+        return acc;
+    }
+
+    static int[] intersect(int[] a, Postings b) {
+        int[] out = new int[Math.min(a.length, b.n)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.n) {
+            if (a[i] == b.ids[j]) {
+                out[n++] = a[i];
+                i++;
+                j++;
+            } else if (a[i] < b.ids[j]) {
+                i++;
+            } else {
+                // posting dài → nhảy bằng binary search thay vì đi từng phần tử
+                j = b.n - a.length > 64 ? lowerBound(b, a[i], j) : j + 1;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static int lowerBound(Postings p, int key, int from) {
+        int lo = from, hi = p.n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (p.ids[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    public int indexedJobs() {
+        rw.readLock().lock();
+        try {
+            return indexedJobs.size();
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    private int docCount() {
+        rw.readLock().lock();
+        try {
+            return docs.size();
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    private boolean contains(String jobId) {
+        rw.readLock().lock();
+        try {
+            return indexedJobs.containsKey(jobId);
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    private long cutoff() {
+        return retentionDays > 0 ? System.currentTimeMillis() - retentionDays * 86_400_000L : 0;
+    }
+
+    /** Danh sách docId tăng dần (docId cấp tuần tự khi thêm) */
+    static final class Postings {
+        int[] ids = new int[4];
+        int n;
+
+        void add(int id) {
+            if (n == ids.length) ids = Arrays.copyOf(ids, n * 2);
+            ids[n++] = id;
+        }
+    }
+
+    /** Gom kết quả theo job */
+    private static final class JobAcc {
+        final String jobId;
+        final long at;
+        final List<Hit> samples = new ArrayList<>();
+        final Set<String> hosts = new LinkedHashSet<>();
+        int hits;
+
+        JobAcc(String jobId, long at) {
+            this.jobId = jobId;
+            this.at = at;
+        }
+
+        void add(Hit h) {
+            hits++;
+            if (samples.size() < SAMPLE_LINES) samples.add(h);
+            if (h.host() != null && hosts.size() < MAX_HOSTS) hosts.add(h.host());
+        }
+
+        LogSearchResponse.JobHit toResponse() {
+            return LogSearchResponse.JobHit.builder()
+                    .jobId(jobId)
+                    .at(LocalDateTime.ofInstant(Instant.ofEpochMilli(at), ZoneId.systemDefault()))
+                    .hits(hits)
+                    .hosts(new ArrayList<>(hosts))
+                    .lines(samples.stream().map(h -> LogSearchResponse.LineHit.builder()
+                            .file(h.file())
+                            .offset(h.offset())
+                            .role(h.role())
+                            .task(h.task())
+                            .host(h.host())
+                            .failureClass(h.failureClass())
+                            .line(h.line())
+                            .build()).toList())
+                    .build();
+        }
+    }
+}
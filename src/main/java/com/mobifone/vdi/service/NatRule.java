@@ -0,0 +1,24 @@
+package com.mobifone.vdi.service;
+
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+/** 1 rule NAT port-forward trên pfSense (tạo hoặc xoá), định danh theo wan_ip:port */
+@Getter
+@Builder
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class NatRule {
+    public enum Action { CREATE, DELETE }
+
+    Action action;
+    String runId;        // jobId của caller (log, retry history)
+    String wanIp;
+    int port;            // destination_port trên WAN
+    String localIp;      // chỉ dùng khi CREATE
+    int localPort;
+
+    public String key() {
+        return wanIp + ":" + port;
+    }
+}
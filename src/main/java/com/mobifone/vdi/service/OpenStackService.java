@@ -50,15 +50,19 @@ public class OpenStackService {
     // =====================================================================
     // Provision with retry
     // =====================================================================
-    public String provisionWithRetry(String mode, InstanceRequest req, String userId, String region) {
+    /**
+     * taskId = identifier gửi infra, do caller sinh và lưu trước khi gọi (idempotency key):
+     * retry và chạy tiếp sau restart dùng lại đúng key này → event infra vẫn về 1 task.
+     */
+    public String provisionWithRetry(String mode, InstanceRequest req, String userId, String region, String taskId) {
         int attempts = 0;
         while (true) {
             try {
                 InstanceResponse resp = switch (mode.toLowerCase()) {
-                    case "personal"     -> provisionPersonal(req, userId, region);
-                    case "organization" -> provisionOrganization(req, userId, region);
-                    case "add-resource" -> addResource(req, userId, region);
-                    case "add-resource-for-personal" -> addResourceForPersonal(req, userId, region);
+                    case "personal"     -> provisionPersonal(req, userId, region, taskId);
+                    case "organization" -> provisionOrganization(req, userId, region, taskId);
+                    case "add-resource" -> addResource(req, userId, region, taskId);
+                    case "add-resource-for-personal" -> addResourceForPersonal(req, userId, region, taskId);
                     default -> throw new IllegalArgumentException("Unsupported mode: " + mode);
                 };
                 return resp.getTask_id();
@@ -319,7 +323,10 @@ public class OpenStackService {
     // =====================================================================
     @PreAuthorize("hasRole('create_openstack_instance')")
     public InstanceResponse provisionPersonal(InstanceRequest req, String userId, String region) {
-        String taskId = UUID.randomUUID().toString();
+        return provisionPersonal(req, userId, region, UUID.randomUUID().toString());
+    }
+
+    private InstanceResponse provisionPersonal(InstanceRequest req, String userId, String region, String taskId) {
         provisionPersistService.createProvisioning(taskId, 1);
 
         var body = new java.util.HashMap<String, Object>();
@@ -346,7 +353,10 @@ public class OpenStackService {
 
     @PreAuthorize("hasRole('create_openstack_instance')")
     public InstanceResponse provisionOrganization(InstanceRequest req, String userId, String region) {
-        String taskId = UUID.randomUUID().toString();
+        return provisionOrganization(req, userId, region, UUID.randomUUID().toString());
+    }
+
+    private InstanceResponse provisionOrganization(InstanceRequest req, String userId, String region, String taskId) {
         provisionPersistService.createProvisioning(taskId, 1);
 
         var body = new java.util.HashMap<String, Object>();
@@ -374,7 +384,10 @@ public class OpenStackService {
 
     @PreAuthorize("hasRole('create_openstack_instance')")
     public InstanceResponse addResourceForPersonal(InstanceRequest req, String userId, String region) {
-        String taskId = UUID.randomUUID().toString();
+        return addResourceForPersonal(req, userId, region, UUID.randomUUID().toString());
+    }
+
+    private InstanceResponse addResourceForPersonal(InstanceRequest req, String userId, String region, String taskId) {
         int count = Math.max(1, Math.toIntExact(Optional.ofNullable(req.getCount()).orElse(1L)));
         provisionPersistService.createProvisioning(taskId, count);
 
@@ -418,7 +431,10 @@ public class OpenStackService {
 
     @PreAuthorize("hasRole('create_openstack_instance')")
     public InstanceResponse addResource(InstanceRequest req, String userId, String region) {
-        String taskId = UUID.randomUUID().toString();
+        return addResource(req, userId, region, UUID.randomUUID().toString());
+    }
+
+    private InstanceResponse addResource(InstanceRequest req, String userId, String region, String taskId) {
         int count = Math.max(1, Math.toIntExact(Optional.ofNullable(req.getCount()).orElse(1L)));
         provisionPersistService.createProvisioning(taskId, count);
 
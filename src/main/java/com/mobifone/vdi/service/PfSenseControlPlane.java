@@ -0,0 +1,411 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.dto.response.PfSenseNatTableResponse;
+import com.mobifone.vdi.dto.response.RetryAttemptResponse;
+import com.mobifone.vdi.entity.enumeration.FailureClass;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Control plane của pfSense: mọi thao tác ghi (NAT create/delete, assign interface, reconcile)
+ * đi qua 1 hàng đợi và được 1 writer duy nhất thực hiện tuần tự (config pfSense vốn ghi tuần tự).
+ * - NAT: gom trong cửa sổ ngắn → 1 playbook/1 lần reload; cặp create+delete cùng wan_ip:port bị triệt tiêu
+ * - giữ mirror bảng NAT (PfSenseNatTable): load khi khởi động + reconcile định kỳ,
+ *   dùng để bỏ qua create đã có sẵn và chặn xung đột; chỉ tin key có lần ghi cuối đã xác nhận.
+ *   Delete luôn chạy thật (đường dọn dẹp/teardown), run lỗi → key bị đánh dấu chưa chắc + reconcile sớm
+ * - batch lỗi → chạy lại từng rule để trả đúng kết quả cho từng caller
+ * - rule/assign lỗi được phân loại (FailureClassifier): chỉ lỗi transient (config lock, mất kết nối...) mới retry
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class PfSenseControlPlane {
+
+    static final String TENANT = "pfsense";
+
+    final AnsibleRunnerService ansible;
+    final AnsibleExecutionScheduler scheduler;
+    final RetryScheduler retryScheduler;
+    final PfSenseNatTable natTable;
+    final FailureClassifier classifier;
+
+    final BlockingQueue<Op> queue = new LinkedBlockingQueue<>();
+    Thread writer;
+    volatile boolean reconcileQueued;
+
+    @NonFinal @Value("${ansible.nat-batch.enabled:true}")
+    boolean batchEnabled;
+
+    @NonFinal @Value("${ansible.nat-batch.window-ms:1500}")
+    long windowMs;
+
+    // urgent (applyNow) không chờ cửa sổ, chỉ chờ ngắn để nhặt nốt rule của cùng lần gọi
+    @NonFinal @Value("${ansible.nat-batch.urgent-window-ms:20}")
+    long urgentWindowMs;
+
+    @NonFinal @Value("${ansible.nat-batch.max-rules:100}")
+    int maxRules;
+
+    // địa chỉ WAN thật của pfSense: rule có đích "wanip" mà interface WAN không có IP tĩnh (dhcp/pppoe)
+    @NonFinal @Value("${ansible.pfsense.wan-address:}")
+    String wanAddress;
+
+    @PostConstruct
+    void start() {
+        writer = Thread.ofPlatform().daemon().name("pfsense-writer").start(this::writerLoop);
+        requestReconcile();   // load mirror lúc khởi động
+    }
+
+    @PreDestroy
+    void stop() {
+        writer.interrupt();
+    }
+
+    // ===================== API =====================
+
+    public CompletableFuture<Boolean> createNat(String runId, String wanIp, int port, String localIp, int localPort) {
+        return submit(NatRule.builder().action(NatRule.Action.CREATE).runId(runId)
+                .wanIp(wanIp).port(port).localIp(localIp).localPort(localPort).build(), false);
+    }
+
+    public CompletableFuture<Boolean> deleteNat(String runId, String wanIp, int port) {
+        return submit(NatRule.builder().action(NatRule.Action.DELETE).runId(runId)
+                .wanIp(wanIp).port(port).build(), false);
+    }
+
+    /**
+     * Áp ngay 1 tập rule (ví dụ teardown cả project), không chờ cửa sổ gom; chờ kết quả từng rule.
+     * Lần chạy đầu của cả tập vào hàng đợi cùng lúc từ thread gọi → writer lấy trọn trong 1 batch;
+     * rule lỗi transient retry riêng như submit.
+     */
+    public Map<NatRule, Boolean> applyNow(List<NatRule> rules) {
+        Map<NatRule, Op> first = new LinkedHashMap<>();
+        rules.forEach(r -> first.put(r, Op.nat(r, true)));
+        queue.addAll(first.values());
+        Map<NatRule, CompletableFuture<Boolean>> futures = new LinkedHashMap<>();
+        first.forEach((r, op) -> futures.put(r, submit(r, true, op)));
+        Map<NatRule, Boolean> out = new LinkedHashMap<>();
+        futures.forEach((r, f) -> out.put(r, f.join()));
+        return out;
+    }
+
+    /** Assign interface cũng là thao tác ghi config → xếp hàng cùng NAT; mỗi attempt xếp hàng lại */
+    public boolean assignInterface(String jobId, String assignName, String assignType, String assignDescr,
+                                   String assignIp, int assignMask) {
+        String label = jobId + "_assign_interface";
+        return retryScheduler.executeClassified(label, retryScheduler.natPolicy(), nth -> {
+            Op op = Op.task(label,
+                    () -> ansible.runAssignInterface(jobId, assignName, assignType, assignDescr, assignIp, assignMask));
+            queue.add(op);
+            return failureOf(op);
+        }, null).join();
+    }
+
+    /** Attempt cuối của NAT (lớp lỗi + số lần chạy) để ghi vào JobStepLog; null nếu chưa chạy */
+    public RetryAttemptResponse lastNatAttempt(String runId, int port) {
+        return last(natKey(runId, NatRule.Action.CREATE, port));
+    }
+
+    public RetryAttemptResponse lastAssignAttempt(String jobId) {
+        return last(jobId + "_assign_interface");
+    }
+
+    /** Mirror NAT hiện tại (O(1) tra cứu qua PfSenseNatTable, ở đây là snapshot cho API) */
+    public PfSenseNatTableResponse natTable() {
+        List<PfSenseNatTableResponse.Rule> rules = natTable.snapshot().stream()
+                .sorted(Comparator.comparing(PfSenseNatTable.Entry::wanIp).thenComparingInt(PfSenseNatTable.Entry::port))
+                .map(e -> PfSenseNatTableResponse.Rule.builder()
+                        .wanIp(e.wanIp()).port(e.port()).target(e.target()).localPort(e.localPort()).descr(e.descr())
+                        .build())
+                .toList();
+        return PfSenseNatTableResponse.builder()
+                .synced(natTable.isSynced())
+                .syncedAt(natTable.syncedAt())
+                .pendingOps(queue.size())
+                .dirty(natTable.dirtyCount())
+                .size(rules.size())
+                .rules(rules)
+                .build();
+    }
+
+    @Scheduled(fixedDelayString = "${ansible.pfsense.reconcile-ms:600000}",
+            initialDelayString = "${ansible.pfsense.reconcile-ms:600000}")
+    public void requestReconcile() {
+        if (reconcileQueued) return;
+        reconcileQueued = true;
+        queue.add(Op.reconcile());
+    }
+
+    /** Mỗi attempt xếp hàng lại vào writer; thời gian chờ retry nằm ngoài writer; chỉ retry lỗi transient */
+    private CompletableFuture<Boolean> submit(NatRule rule, boolean urgent) {
+        return submit(rule, urgent, null);
+    }
+
+    /** queued: Op của attempt 1 đã được xếp hàng sẵn (applyNow) */
+    private CompletableFuture<Boolean> submit(NatRule rule, boolean urgent, Op queued) {
+        return retryScheduler.executeClassified(natKey(rule.getRunId(), rule.getAction(), rule.getPort()),
+                retryScheduler.natPolicy(), nth -> {
+                    Op op = nth == 1 && queued != null ? queued : Op.nat(rule, urgent);
+                    if (op != queued) queue.add(op);
+                    return failureOf(op);
+                }, null);
+    }
+
+    private static String natKey(String runId, NatRule.Action action, int port) {
+        return runId + "_" + (action == NatRule.Action.CREATE ? "nat_" : "nat_del_") + port;
+    }
+
+    private static FailureClass failureOf(Op op) {
+        if (op.result.join()) return null;
+        return op.failure == null ? FailureClass.UNKNOWN : op.failure;
+    }
+
+    private RetryAttemptResponse last(String key) {
+        List<RetryAttemptResponse> h = retryScheduler.history(key);
+        return h.isEmpty() ? null : h.get(h.size() - 1);
+    }
+
+    /** Dấu vết lỗi của run (RunOutcome) → lớp lỗi */
+    private FailureClass classify(AnsibleRunnerService.RunOutcome out) {
+        FailureClassifier.Verdict v = classifier.classify(out.evidence());
+        log.warn("[pfsense] run failed: {} ({})", v.failureClass(), v.signature());
+        return v.failureClass();
+    }
+
+    // ===================== WRITER =====================
+
+    private void writerLoop() {
+        if (batchEnabled && !ansible.natBatchPlaybookPresent()) {
+            // bản build thiếu resources/ansible/pfsense/nat_batch.yml → mọi batch sẽ lỗi rồi mới fallback từng rule
+            log.warn("[pfsense] NAT batch playbook missing from build → NAT batching disabled");
+            batchEnabled = false;
+        }
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Op first = queue.take();
+                List<Op> nats = new ArrayList<>();
+                Op tail = null;
+                if (first.rule != null) {
+                    nats.add(first);
+                    // gom thêm NAT trong cửa sổ (urgent → chỉ chờ ngắn, lấy phần cùng lần gọi applyNow)
+                    long deadline = System.currentTimeMillis() + (first.urgent ? urgentWindowMs : windowMs);
+                    while (batchEnabled && nats.size() < Math.max(1, maxRules)) {
+                        long wait = deadline - System.currentTimeMillis();
+                        Op next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                        if (next == null) break;
+                        if (next.rule == null) { tail = next; break; }   // giữ thứ tự: NAT trước, thao tác khác sau
+                        nats.add(next);
+                    }
+                } else {
+                    tail = first;
+                }
+                if (!nats.isEmpty()) applyNat(nats);
+                if (tail != null) runOther(tail);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("[pfsense] writer error", e);
+            }
+        }
+    }
+
+    private void runOther(Op op) {
+        if (op.reconcile) {
+            reconcileQueued = false;
+            reconcile();
+            op.result.complete(true);
+            return;
+        }
+        try {
+            AnsibleRunnerService.RunOutcome out = scheduler.run(TENANT, AnsibleExecutionScheduler.Priority.NAT, op.label, op.task);
+            if (!out.ok()) op.failure = classify(out);
+            op.result.complete(out.ok());
+        } catch (Exception e) {
+            log.error("[pfsense] {} error", op.label, e);
+            op.result.complete(false);
+        }
+    }
+
+    private void reconcile() {
+        try {
+            String out = scheduler.run(TENANT, AnsibleExecutionScheduler.Priority.NAT, "pfsense_reconcile",
+                    ansible::dumpPfSenseConfig);
+            if (out == null) return;
+            List<PfSenseNatTable.Entry> fresh = PfSenseNatTable.parseConfig(out, wanAddress);
+            int drift = natTable.replaceAll(fresh);
+            log.info("[pfsense] NAT mirror reconciled: {} rules, {} drifted", fresh.size(), drift);
+        } catch (Exception e) {
+            log.warn("[pfsense] reconcile failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Gộp + lọc theo mirror rồi áp 1 lần; hoàn tất future của từng Op (gọi trên writer thread).
+     * Run lỗi/timeout (kể cả batch áp dở) → key liên quan không còn được tin + xin reconcile.
+     */
+    void applyNat(List<Op> ops) {
+        // 1) net effect theo wan_ip:port, giữ thứ tự xuất hiện
+        Map<String, List<Op>> byKey = new LinkedHashMap<>();
+        for (Op op : ops) byKey.computeIfAbsent(op.rule.key(), k -> new ArrayList<>()).add(op);
+
+        List<NatRule> toApply = new ArrayList<>();
+        Map<NatRule, List<Op>> waiters = new LinkedHashMap<>();
+        for (List<Op> chain : byKey.values()) {
+            NatRule net = null;
+            List<Op> group = new ArrayList<>();
+            for (Op op : chain) {
+                NatRule r = op.rule;
+                if (net != null && net.getAction() == NatRule.Action.CREATE && r.getAction() == NatRule.Action.DELETE) {
+                    // create chưa chạy đã bị delete → bỏ create; delete vẫn chạy (pfSense có thể có rule mà mirror không thấy)
+                    group.forEach(o -> o.result.complete(true));
+                    group = new ArrayList<>();
+                    net = r;
+                    group.add(op);
+                    continue;
+                }
+                if (net != null && net.getAction() == r.getAction() && sameTarget(net, r)) {
+                    group.add(op);          // trùng lặp → dùng chung kết quả
+                    continue;
+                }
+                if (net != null) { toApply.add(net); waiters.put(net, group); group = new ArrayList<>(); }
+                net = r;
+                group.add(op);
+            }
+            if (net != null) { toApply.add(net); waiters.put(net, group); }
+        }
+
+        // 2) lọc create bằng mirror (chỉ key đã xác nhận): đã đúng trạng thái → bỏ qua; trùng port khác target → xung đột.
+        //    Delete không lọc: mirror "không có" chưa đủ chắc để bỏ qua 1 lần dọn dẹp
+        List<NatRule> rules = new ArrayList<>();
+        Set<String> touched = new HashSet<>();
+        for (NatRule r : toApply) {
+            boolean seen = !touched.add(r.key());   // key có nhiều bước → không lọc bằng mirror
+            if (r.getAction() == NatRule.Action.CREATE && !seen && natTable.isTrusted(r.getWanIp(), r.getPort())) {
+                Optional<PfSenseNatTable.Entry> cur = natTable.find(r.getWanIp(), r.getPort());
+                if (cur.isPresent()) {
+                    boolean same = Objects.equals(cur.get().target(), r.getLocalIp()) && cur.get().localPort() == r.getLocalPort();
+                    if (!same) {
+                        log.warn("[pfsense] NAT conflict {} → đang trỏ {}:{}", r.key(), cur.get().target(), cur.get().localPort());
+                    }
+                    complete(waiters.get(r), same);
+                    continue;
+                }
+            }
+            rules.add(r);
+        }
+        if (rules.isEmpty()) return;
+
+        // 3) áp
+        if (rules.size() == 1) {
+            NatRule r = rules.get(0);
+            if (!applySingle(r, waiters.get(r))) requestReconcile();
+            return;
+        }
+        String runId = "natbatch_" + UUID.randomUUID().toString().substring(0, 8);
+        boolean ok;
+        try {
+            log.info("[pfsense {}] apply {} NAT rules in 1 run", runId, rules.size());
+            ok = scheduler.run(TENANT, AnsibleExecutionScheduler.Priority.NAT, runId,
+                    () -> ansible.runNatBatch(runId, rules)).ok();
+        } catch (Exception e) {
+            log.error("[pfsense {}] error", runId, e);
+            ok = false;
+        }
+        if (ok) {
+            rules.forEach(r -> { mirror(r); complete(waiters.get(r), true); });
+            return;
+        }
+        // batch có thể đã áp 1 phần trước khi lỗi → mọi key trong batch không còn chắc
+        log.warn("[pfsense {}] batch failed → fallback per rule", runId);
+        rules.forEach(r -> natTable.markDirty(r.getWanIp(), r.getPort()));
+        boolean allOk = true;
+        for (NatRule r : rules) allOk &= applySingle(r, waiters.get(r));
+        if (!allOk) requestReconcile();
+    }
+
+    /** Chạy 1 rule + cập nhật mirror: thành công → ghi mirror, lỗi → key chưa chắc (chờ reconcile) */
+    private boolean applySingle(NatRule r, List<Op> waiters) {
+        FailureClass failure = runSingle(r);
+        if (failure == null) mirror(r);
+        else natTable.markDirty(r.getWanIp(), r.getPort());
+        complete(waiters, failure);
+        return failure == null;
+    }
+
+    /** Chạy 1 rule; null nếu thành công, ngược lại lớp lỗi */
+    private FailureClass runSingle(NatRule r) {
+        try {
+            AnsibleRunnerService.RunOutcome out = scheduler.run(TENANT, AnsibleExecutionScheduler.Priority.NAT, r.getRunId(),
+                    () -> r.getAction() == NatRule.Action.CREATE
+                            ? ansible.runNatCreate(r.getRunId(), r.getWanIp(), r.getPort(), r.getLocalIp(), r.getLocalPort())
+                            : ansible.runNatDelete(r.getRunId(), r.getWanIp(), r.getPort()));
+            return out.ok() ? null : classify(out);
+        } catch (Exception e) {
+            log.error("[pfsense] NAT {} {} error", r.getAction(), r.key(), e);
+            return FailureClass.UNKNOWN;
+        }
+    }
+
+    private void mirror(NatRule r) {
+        if (r.getAction() == NatRule.Action.CREATE) {
+            natTable.put(new PfSenseNatTable.Entry(r.getWanIp(), r.getPort(), r.getLocalIp(), r.getLocalPort(), null));
+        } else {
+            natTable.remove(r.getWanIp(), r.getPort());
+        }
+    }
+
+    private static boolean sameTarget(NatRule a, NatRule b) {
+        return a.getAction() == NatRule.Action.DELETE
+                || (Objects.equals(a.getLocalIp(), b.getLocalIp()) && a.getLocalPort() == b.getLocalPort());
+    }
+
+    private static void complete(List<Op> ops, boolean ok) {
+        complete(ops, ok ? null : FailureClass.TASK_FAILED);   // xung đột mirror: chạy lại vẫn xung đột
+    }
+
+    private static void complete(List<Op> ops, FailureClass failure) {
+        if (ops == null) return;
+        ops.forEach(o -> {
+            o.failure = failure;
+            o.result.complete(failure == null);
+        });
+    }
+
+    // ===================== TYPES =====================
+
+    static final class Op {
+        final NatRule rule;             // != null → thao tác NAT
+        final boolean urgent;
+        final boolean reconcile;
+        final String label;
+        final Supplier<AnsibleRunnerService.RunOutcome> task;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        volatile FailureClass failure;  // gán trước khi complete result (false)
+
+        private Op(NatRule rule, boolean urgent, boolean reconcile, String label,
+                   Supplier<AnsibleRunnerService.RunOutcome> task) {
+            this.rule = rule;
+            this.urgent = urgent;
+            this.reconcile = reconcile;
+            this.label = label;
+            this.task = task;
+        }
+
+        static Op nat(NatRule rule, boolean urgent) { return new Op(rule, urgent, false, rule.getRunId(), null); }
+        static Op task(String label, Supplier<AnsibleRunnerService.RunOutcome> task) { return new Op(null, false, false, label, task); }
+        static Op reconcile() { return new Op(null, false, true, "pfsense_reconcile", null); }
+    }
+}
@@ -0,0 +1,195 @@
+package com.mobifone.vdi.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Bản sao in-memory bảng NAT port-forward của pfSense (key = wan_ip:port).
+ * Chỉ PfSenseControlPlane được ghi (sau mỗi lần apply thành công / reconcile); nơi khác chỉ đọc.
+ * Key có lần ghi lỗi/timeout bị đánh dấu dirty: không tin cho tới lần apply thành công hoặc reconcile kế tiếp.
+ */
+@Component
+@Slf4j
+public class PfSenseNatTable {
+
+    public record Entry(String wanIp, int port, String target, int localPort, String descr) {
+        public String key() { return wanIp + ":" + port; }
+    }
+
+    private static final Pattern IPV4 = Pattern.compile("\\d{1,3}(?:\\.\\d{1,3}){3}");
+
+    private final Map<String, Entry> rules = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> portRefs = new ConcurrentHashMap<>();   // port WAN -> số rule dùng port đó
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();              // lần ghi cuối chưa xác nhận
+    private volatile boolean synced;
+    private volatile long syncedAt;
+
+    /** true khi đã load được từ pfSense ít nhất 1 lần → có thể tin để bỏ qua/chặn thao tác */
+    public boolean isSynced() { return synced; }
+
+    public long syncedAt() { return syncedAt; }
+
+    /** Mirror đúng cho key này: đã sync và lần ghi cuối lên key đã được xác nhận */
+    public boolean isTrusted(String wanIp, int port) {
+        return synced && !dirty.contains(wanIp + ":" + port);
+    }
+
+    public int dirtyCount() { return dirty.size(); }
+
+    public Optional<Entry> find(String wanIp, int port) {
+        return Optional.ofNullable(rules.get(wanIp + ":" + port));
+    }
+
+    public boolean isPortUsed(int port) {
+        return portRefs.getOrDefault(port, 0) > 0;
+    }
+
+    public int size() { return rules.size(); }
+
+    public List<Entry> snapshot() {
+        return new ArrayList<>(rules.values());
+    }
+
+    // ===================== WRITE (chỉ gọi từ pfSense writer) =====================
+
+    synchronized void put(Entry e) {
+        dirty.remove(e.key());
+        Entry old = rules.put(e.key(), e);
+        if (old == null) portRefs.merge(e.port(), 1, Integer::sum);
+    }
+
+    synchronized void remove(String wanIp, int port) {
+        dirty.remove(wanIp + ":" + port);
+        if (rules.remove(wanIp + ":" + port) != null) {
+            portRefs.computeIfPresent(port, (k, v) -> v <= 1 ? null : v - 1);
+        }
+    }
+
+    /** Run ghi key lỗi/timeout/áp dở: không biết pfSense đang ở trạng thái nào */
+    synchronized void markDirty(String wanIp, int port) {
+        dirty.add(wanIp + ":" + port);
+    }
+
+    /** Thay toàn bộ bằng snapshot mới; trả số rule lệch so với mirror cũ */
+    synchronized int replaceAll(Collection<Entry> fresh) {
+        Map<String, Entry> next = new HashMap<>();
+        fresh.forEach(e -> next.put(e.key(), e));
+        int drift = 0;
+        for (String k : rules.keySet()) if (!next.containsKey(k)) drift++;
+        for (Map.Entry<String, Entry> e : next.entrySet()) {
+            if (!e.getValue().equals(rules.get(e.getKey()))) drift++;
+        }
+        rules.clear();
+        portRefs.clear();
+        dirty.clear();
+        next.values().forEach(this::put);
+        synced = true;
+        syncedAt = System.currentTimeMillis();
+        return drift;
+    }
+
+    static List<Entry> parseConfig(String output) throws Exception {
+        return parseConfig(output, null);
+    }
+
+    /**
+     * Parse các <nat><rule> trong config.xml của pfSense (output của lệnh dump có thể kèm header của ansible).
+     * Đích dạng "<if>ip" (wanip, opt1ip...) → IP tĩnh của interface đó trong <interfaces>;
+     * wanip mà WAN không có IP tĩnh → wanFallback. Đích không quy về 1 địa chỉ cụ thể (alias, subnet, any, not)
+     * bị bỏ khỏi mirror → không bao giờ dùng để lọc.
+     */
+    static List<Entry> parseConfig(String output, String wanFallback) throws Exception {
+        int start = output.indexOf("<?xml");
+        int end = output.lastIndexOf("</pfsense>");
+        if (start < 0 || end < 0) throw new IllegalArgumentException("pfSense config.xml not found in output");
+        String xml = output.substring(start, end + "</pfsense>".length());
+
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        f.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        f.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        f.setAttribute(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+        DocumentBuilder b = f.newDocumentBuilder();
+        Document doc = b.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+
+        Map<String, String> ifaceIps = interfaceAddresses(doc.getDocumentElement());
+        if (isAddress(wanFallback)) ifaceIps.putIfAbsent("wan", wanFallback.trim());
+
+        List<Entry> out = new ArrayList<>();
+        int skipped = 0;
+        NodeList nats = doc.getDocumentElement().getElementsByTagName("nat");
+        for (int n = 0; n < nats.getLength(); n++) {
+            Node nat = nats.item(n);
+            if (nat.getParentNode() != doc.getDocumentElement()) continue;
+            for (Node r = nat.getFirstChild(); r != null; r = r.getNextSibling()) {
+                if (!(r instanceof Element rule) || !"rule".equals(rule.getTagName())) continue;
+                Element dst = child(rule, "destination");
+                if (dst == null) continue;
+                String wan = destinationAddress(dst, ifaceIps);
+                String port = text(child(dst, "port"));
+                if (wan == null || port == null || !port.matches("\\d+")) {
+                    skipped++;
+                    continue;
+                }
+                String localPort = text(child(rule, "local-port"));
+                out.add(new Entry(wan, Integer.parseInt(port), text(child(rule, "target")),
+                        localPort != null && localPort.matches("\\d+") ? Integer.parseInt(localPort) : 0,
+                        text(child(rule, "descr"))));
+            }
+        }
+        if (skipped > 0) log.info("pfSense NAT: {} rules without a literal wan_ip:port left out of the mirror", skipped);
+        return out;
+    }
+
+    /** IP tĩnh theo tên interface (wan, lan, opt1...); interface dhcp/pppoe không có trong map */
+    private static Map<String, String> interfaceAddresses(Element root) {
+        Map<String, String> out = new HashMap<>();
+        Element ifaces = child(root, "interfaces");
+        if (ifaces == null) return out;
+        for (Node c = ifaces.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (!(c instanceof Element iface)) continue;
+            String ip = text(child(iface, "ipaddr"));
+            if (isAddress(ip)) out.put(iface.getTagName(), ip);
+        }
+        return out;
+    }
+
+    /** Địa chỉ đích của rule: IP literal hoặc "<if>ip" đã resolve; null nếu không quy về 1 địa chỉ */
+    private static String destinationAddress(Element dst, Map<String, String> ifaceIps) {
+        if (child(dst, "not") != null) return null;
+        String address = text(child(dst, "address"));
+        if (address != null) return isAddress(address) ? address : null;   // alias/FQDN
+        String network = text(child(dst, "network"));
+        if (network == null || !network.endsWith("ip")) return null;        // "wan" = cả subnet
+        return ifaceIps.get(network.substring(0, network.length() - 2));
+    }
+
+    private static boolean isAddress(String s) {
+        return s != null && IPV4.matcher(s.trim()).matches();
+    }
+
+    private static Element child(Element parent, String tag) {
+        for (Node c = parent.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (c instanceof Element e && tag.equals(e.getTagName())) return e;
+        }
+        return null;
+    }
+
+    private static String text(Element e) {
+        if (e == null) return null;
+        String t = e.getTextContent();
+        return t == null || t.isBlank() ? null : t.trim();
+    }
+}
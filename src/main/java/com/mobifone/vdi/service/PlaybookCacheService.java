@@ -0,0 +1,189 @@
+package com.mobifone.vdi.service;
+
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Playbook theo địa chỉ nội dung trên Ansible host:
+ * - playbook render từ role + vars không bí mật → jobs-dir/cache/pb_<sha256>.yml, dùng chung mọi VM/job
+ * - vars bí mật (password, token...) tách ra file vars riêng của run (-e @file), không vào hash
+ * - nhớ theo từng control host các file cache đã có → bỏ upload; host mất file (GC, host mới) → script
+ *   thoát CACHE_MISS_EXIT và runner upload lại
+ * - GC định kỳ xoá inventory/playbook/vars của job quá hạn và file cache lâu không dùng
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class PlaybookCacheService {
+
+    /** Exit code của script staging khi file cache không còn trên host */
+    public static final int CACHE_MISS_EXIT = 97;
+
+    final SshConnectionPool sshPool;
+
+    final Map<String, Set<String>> present = new ConcurrentHashMap<>();   // control host -> path cache đã có
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong bytesSkipped = new AtomicLong();
+
+    @NonFinal @Value("${ansible.remote.jobs-dir:/ansible-host/jobs}")
+    String remoteJobsDir;
+
+    @NonFinal @Value("${ansible.playbook-cache.secret-keys:pass,password,secret,token,key}")
+    String secretKeys;
+
+    @NonFinal @Value("${ansible.playbook-cache.retention-hours:168}")
+    long cacheRetentionHours;
+
+    @NonFinal @Value("${ansible.artifacts.retention-hours:24}")
+    long artifactRetentionHours;
+
+    @NonFinal @Value("${ansible.executor.type:ssh}")
+    String executorType;
+
+    @NonFinal
+    Pattern secretPattern;
+
+    /** Vars của role tách làm 2: plain (vào playbook, vào hash) và secret (file vars riêng của run) */
+    public record SplitVars(Map<String, Object> plain, Map<String, Object> secret) {}
+
+    // ===================== API =====================
+
+    public String cacheDir() {
+        return remoteJobsDir + "/cache";
+    }
+
+    /** Đường dẫn theo nội dung: cùng nội dung → cùng file trên mọi job */
+    public String pathOf(String content) {
+        return cacheDir() + "/pb_" + sha256(content).substring(0, 32) + ".yml";
+    }
+
+    public SplitVars split(Map<String, Object> vars) {
+        Map<String, Object> plain = new LinkedHashMap<>();
+        Map<String, Object> secret = new LinkedHashMap<>();
+        if (vars != null) {
+            // thứ tự key cố định → cùng vars cho cùng playbook/hash
+            new TreeMap<>(vars).forEach((k, v) -> (isSecret(k) ? secret : plain).put(k, v));
+        }
+        return new SplitVars(plain, secret);
+    }
+
+    public boolean isSecret(String key) {
+        return key != null && secretPattern().matcher(key).find();
+    }
+
+    /** Các file cache (trong paths) mà host đã có; host chưa biết → rỗng (upload hết) */
+    public Set<String> presentOn(String host, Map<String, String> files) {
+        if (host == null || files.isEmpty()) return Set.of();
+        Set<String> known = present.getOrDefault(host, Set.of());
+        Set<String> out = new HashSet<>();
+        files.forEach((path, content) -> {
+            if (known.contains(path)) {
+                out.add(path);
+                hits.incrementAndGet();
+                bytesSkipped.addAndGet(content == null ? 0 : content.length());
+            } else {
+                misses.incrementAndGet();
+            }
+        });
+        return out;
+    }
+
+    public void remember(String host, Collection<String> paths) {
+        if (host == null || paths.isEmpty()) return;
+        present.computeIfAbsent(host, k -> ConcurrentHashMap.newKeySet()).addAll(paths);
+    }
+
+    public void forget(String host, Collection<String> paths) {
+        Set<String> known = host == null ? null : present.get(host);
+        if (known != null) known.removeAll(paths);
+    }
+
+    /** Xoá artifact của job quá hạn + file cache lâu không dùng trên mọi control host */
+    @Scheduled(fixedDelayString = "${ansible.artifacts.gc-ms:3600000}",
+            initialDelayString = "${ansible.artifacts.gc-initial-delay-ms:300000}")
+    public void gc() {
+        if ("simulated".equalsIgnoreCase(executorType)) return;
+        String jobs = AnsibleRunnerService.shellQuote(remoteJobsDir);
+        String cache = AnsibleRunnerService.shellQuote(cacheDir());
+        // file cache được touch mỗi lần dùng → mtime = lần dùng gần nhất
+        String cmd = "find " + jobs + " -maxdepth 1 -type f -mmin +" + TimeUnit.HOURS.toMinutes(Math.max(1, artifactRetentionHours))
+                + " \\( -name 'inventory_*' -o -name 'playbook_*' -o -name 'vars_*' -o -name '*_nat_rules.json' \\) -print -delete | wc -l; "
+                + "find " + cache + " -maxdepth 1 -type f -mmin +" + TimeUnit.HOURS.toMinutes(Math.max(1, cacheRetentionHours))
+                + " -print -delete 2>/dev/null | wc -l";
+        for (String host : sshPool.hostNames()) {
+            try (SshConnectionPool.Lease lease = sshPool.acquireOn(host)) {
+                Process p = new ProcessBuilder(lease.command(cmd))
+                        .redirectError(ProcessBuilder.Redirect.DISCARD)
+                        .start();
+                // đọc output trên virtual thread → waitFor mới thực sự giới hạn thời gian chờ
+                CompletableFuture<String> out = CompletableFuture.supplyAsync(() -> {
+                    try (var in = p.getInputStream()) {
+                        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                    } catch (java.io.IOException e) {
+                        return "";
+                    }
+                }, r -> Thread.ofVirtual().name("artifacts-gc-" + host).start(r));
+                boolean done = p.waitFor(120, TimeUnit.SECONDS);
+                // không biết file cache nào còn → quên hết, lần sau kiểm tra lại qua CACHE_MISS_EXIT
+                present.remove(host);
+                if (!done) {
+                    p.destroyForcibly();
+                    log.warn("[artifacts-gc {}] still running after 120 s → killed", host);
+                    continue;
+                }
+                String[] counts = out.get(5, TimeUnit.SECONDS).trim().split("\\s+");
+                log.info("[artifacts-gc {}] removed {} job files, {} cached playbooks (cache hits={}, misses={}, bytes skipped={})",
+                        host, counts.length > 0 ? counts[0] : "?", counts.length > 1 ? counts[1] : "?",
+                        hits.get(), misses.get(), bytesSkipped.get());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.warn("[artifacts-gc {}] failed: {}", host, e.getMessage());
+            }
+        }
+    }
+
+    // ===================== INTERNAL =====================
+
+    private Pattern secretPattern() {
+        Pattern p = secretPattern;
+        if (p == null) {
+            String alt = Arrays.stream(secretKeys.split(","))
+                    .map(String::trim).filter(s -> !s.isEmpty())
+                    .map(Pattern::quote)
+                    .reduce((a, b) -> a + "|" + b)
+                    .orElse("(?!)");
+            p = Pattern.compile(alt, Pattern.CASE_INSENSITIVE);
+            secretPattern = p;
+        }
+        return p;
+    }
+
+    static String sha256(String s) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(d);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
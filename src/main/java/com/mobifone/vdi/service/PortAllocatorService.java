@@ -14,18 +14,23 @@ import java.security.SecureRandom;
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
 public class PortAllocatorService {
     VirtualDesktopService virtualDesktopService; // thay vì repo
+    PfSenseNatTable natTable;                    // mirror NAT pfSense: port có thể đã bị chiếm ngoài DB
     SecureRandom rnd = new SecureRandom();
 
     public int allocateUnique() {
         for (int i = 0; i < 50; i++) {
             int p = 10000 + rnd.nextInt(40001); // [10000,50000]
-            if (!virtualDesktopService.isAnyPublicPortUsed(p)) return p;
+            if (isFree(p)) return p;
         }
         for (int p = 10000; p <= 50000; p++) {
-            if (!virtualDesktopService.isAnyPublicPortUsed(p)) return p;
+            if (isFree(p)) return p;
         }
         throw new AppException(ErrorCode.NO_AVAILABLE_PORT);
     }
+
+    private boolean isFree(int p) {
+        return !natTable.isPortUsed(p) && !virtualDesktopService.isAnyPublicPortUsed(p);
+    }
 }
 
 
@@ -0,0 +1,292 @@
+package com.mobifone.vdi.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chờ TCP port mở (WinRM/RDP sau khi tạo NAT):
+ * - mode "local": connect non-blocking, mọi probe dùng chung 1 selector/1 thread,
+ *   backoff tăng dần giữa các lần thử, hoàn tất future ngay khi port mở
+ * - mode "ansible-host": probe từ máy Ansible qua SSH (giữ đúng topo mạng nếu backend không thấy WAN)
+ * - mode "skip": coi như port đã mở (load test với ansible.executor.type=simulated, không có VM thật)
+ * awaitWinRm: sau khi port mở (mode local) còn chờ listener WinRM trả lời HTTP trên /wsman
+ * → bước app chạy ngay khi WinRM nhận lệnh, không chạy vào lúc port mở mà service chưa lên
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class PortReadinessProber {
+
+    final AnsibleRunnerService ansible;
+
+    final Queue<Probe> incoming = new ConcurrentLinkedQueue<>();
+    final AtomicLong inFlight = new AtomicLong();
+    Selector selector;
+    Thread loop;
+    HttpClient http;
+
+    @NonFinal @Value("${ansible.probe.mode:local}")
+    String mode;
+
+    @NonFinal @Value("${ansible.probe.deadline-ms:250000}")
+    long defaultDeadlineMs;
+
+    @NonFinal @Value("${ansible.probe.connect-timeout-ms:5000}")
+    long connectTimeoutMs;
+
+    @NonFinal @Value("${ansible.probe.initial-delay-ms:500}")
+    long initialDelayMs;
+
+    @NonFinal @Value("${ansible.probe.max-delay-ms:10000}")
+    long maxDelayMs;
+
+    @NonFinal @Value("${ansible.probe.winrm-http:true}")
+    boolean winRmHttp;
+
+    @PostConstruct
+    void start() throws IOException {
+        selector = Selector.open();
+        http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .build();
+        loop = Thread.ofPlatform().daemon().name("port-prober").start(this::selectLoop);
+    }
+
+    @PreDestroy
+    void stop() throws IOException {
+        loop.interrupt();
+        selector.close();
+    }
+
+    // ===================== API =====================
+
+    public CompletableFuture<Boolean> awaitOpen(String host, int port) {
+        return awaitOpen(host, port, Duration.ofMillis(defaultDeadlineMs));
+    }
+
+    /** true khi connect được trước deadline, false nếu hết hạn */
+    public CompletableFuture<Boolean> awaitOpen(String host, int port, Duration deadline) {
+        if ("skip".equalsIgnoreCase(mode)) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if ("ansible-host".equalsIgnoreCase(mode)) {
+            return viaAnsibleHost(host, port, deadline);
+        }
+        Probe p = new Probe(host, port, System.currentTimeMillis() + deadline.toMillis());
+        try {
+            p.address = new InetSocketAddress(host, port);   // resolve ở thread caller, không chặn selector
+        } catch (Exception e) {
+            log.warn("[probe] {}:{} invalid address: {}", host, port, e.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }
+        log.info("[probe] {}:{} START (deadline={}s)", host, port, deadline.toSeconds());
+        inFlight.incrementAndGet();
+        p.result.whenComplete((ok, e) -> {
+            inFlight.decrementAndGet();
+            log.info("[probe] {}:{} {} after {} tries, {} ms", host, port,
+                    Boolean.TRUE.equals(ok) ? "OPEN" : "GIVEUP", p.tries, System.currentTimeMillis() - p.startedAt);
+        });
+        incoming.add(p);
+        selector.wakeup();
+        return p.result;
+    }
+
+    /**
+     * WinRM sẵn sàng nhận lệnh: TCP mở rồi GET /wsman trả về HTTP (401/405... = listener đã đăng ký).
+     * 404/503 là HTTP.sys chưa có listener WinRM → thử lại với cùng backoff, chung deadline với phần TCP.
+     * Mode ansible-host/skip: chỉ kiểm tra TCP như awaitOpen.
+     */
+    public CompletableFuture<Boolean> awaitWinRm(String host, int port) {
+        long deadline = System.currentTimeMillis() + defaultDeadlineMs;
+        return awaitOpen(host, port).thenCompose(open -> {
+            if (!open || !winRmHttp || !"local".equalsIgnoreCase(mode)) {
+                return CompletableFuture.completedFuture(open);
+            }
+            long startedAt = System.currentTimeMillis();
+            return wsman(host, port, deadline, 0).whenComplete((ok, e) ->
+                    log.info("[probe] {}:{} WinRM {} after {} ms", host, port,
+                            Boolean.TRUE.equals(ok) ? "READY" : "GIVEUP", System.currentTimeMillis() - startedAt));
+        });
+    }
+
+    private CompletableFuture<Boolean> wsman(String host, int port, long deadline, long delayMs) {
+        HttpRequest req;
+        try {
+            req = HttpRequest.newBuilder(new URI("http", null, host, port, "/wsman", null, null))
+                    .timeout(Duration.ofMillis(connectTimeoutMs))
+                    .GET()
+                    .build();
+        } catch (Exception e) {
+            log.warn("[probe] {}:{} invalid WinRM url: {}", host, port, e.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }
+        return http.sendAsync(req, HttpResponse.BodyHandlers.discarding())
+                .handle((resp, e) -> resp != null && resp.statusCode() != 404 && resp.statusCode() != 503)
+                .thenCompose(ok -> {
+                    long now = System.currentTimeMillis();
+                    if (ok || now >= deadline) return CompletableFuture.completedFuture(ok);
+                    long next = delayMs == 0 ? initialDelayMs : Math.min(maxDelayMs, delayMs * 2);
+                    Executor later = CompletableFuture.delayedExecutor(Math.min(next, deadline - now), TimeUnit.MILLISECONDS);
+                    return CompletableFuture.runAsync(() -> {}, later)
+                            .thenCompose(v -> wsman(host, port, deadline, next));
+                });
+    }
+
+    public long inFlight() {
+        return inFlight.get();
+    }
+
+    /** Probe từ máy Ansible: vẫn là vòng nc -z nhưng chạy trên virtual thread, nhịp ngắn hơn */
+    private CompletableFuture<Boolean> viaAnsibleHost(String host, int port, Duration deadline) {
+        int delaySec = (int) Math.max(1, maxDelayMs / 1000);
+        int timeoutSec = (int) Math.max(1, connectTimeoutMs / 1000);
+        int attempts = (int) Math.max(1, deadline.toSeconds() / (delaySec + timeoutSec));
+        CompletableFuture<Boolean> f = new CompletableFuture<>();
+        Thread.ofVirtual().name("probe-" + host + ":" + port).start(() -> {
+            try {
+                f.complete(ansible.waitPortOpenFromAnsibleHost(host, port, attempts, delaySec, timeoutSec));
+            } catch (Exception e) {
+                f.completeExceptionally(e);
+            }
+        });
+        return f;
+    }
+
+    // ===================== SELECTOR LOOP =====================
+
+    private void selectLoop() {
+        // probe đang chờ tới lượt thử lại, theo thời điểm
+        PriorityQueue<Probe> waiting = new PriorityQueue<>(Comparator.comparingLong(p -> p.nextAt));
+        while (!Thread.currentThread().isInterrupted() && selector.isOpen()) {
+            try {
+                long now = System.currentTimeMillis();
+                for (Probe p; (p = incoming.poll()) != null; ) connect(p, now, waiting);
+                while (!waiting.isEmpty() && waiting.peek().nextAt <= now) connect(waiting.poll(), now, waiting);
+
+                // connect quá hạn → đóng, lên lịch thử lại
+                for (SelectionKey k : selector.keys()) {
+                    Probe p = (Probe) k.attachment();
+                    if (p != null && p.connectDeadline <= now) {
+                        closeQuietly(k);
+                        retryOrGiveUp(p, now, waiting);
+                    }
+                }
+
+                long wakeAt = Long.MAX_VALUE;
+                if (!waiting.isEmpty()) wakeAt = waiting.peek().nextAt;
+                for (SelectionKey k : selector.keys()) {
+                    Probe p = (Probe) k.attachment();
+                    if (p != null) wakeAt = Math.min(wakeAt, p.connectDeadline);
+                }
+                long timeout = wakeAt == Long.MAX_VALUE ? 0 : Math.max(1, wakeAt - System.currentTimeMillis());
+                selector.select(timeout);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey k = it.next();
+                    it.remove();
+                    Probe p = (Probe) k.attachment();
+                    boolean ok;
+                    try {
+                        ok = ((SocketChannel) k.channel()).finishConnect();
+                    } catch (IOException e) {
+                        ok = false;
+                    }
+                    closeQuietly(k);
+                    if (ok) p.result.complete(true);
+                    else retryOrGiveUp(p, System.currentTimeMillis(), waiting);
+                }
+            } catch (Exception e) {
+                if (!selector.isOpen()) break;
+                log.error("[probe] selector loop error", e);
+            }
+        }
+        // shutdown: trả false cho mọi probe còn lại
+        incoming.forEach(p -> p.result.complete(false));
+        waiting.forEach(p -> p.result.complete(false));
+    }
+
+    private void connect(Probe p, long now, PriorityQueue<Probe> waiting) {
+        if (p.result.isDone()) return;
+        p.tries++;
+        SocketChannel ch = null;
+        try {
+            ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            if (ch.connect(p.address)) {
+                ch.close();
+                p.result.complete(true);
+                return;
+            }
+            p.connectDeadline = Math.min(p.deadline, now + connectTimeoutMs);
+            ch.register(selector, SelectionKey.OP_CONNECT, p);
+        } catch (IOException e) {
+            if (ch != null) {
+                try { ch.close(); } catch (IOException ignore) {}
+            }
+            retryOrGiveUp(p, now, waiting);
+        }
+    }
+
+    private void retryOrGiveUp(Probe p, long now, PriorityQueue<Probe> waiting) {
+        if (now >= p.deadline) {
+            p.result.complete(false);
+            return;
+        }
+        p.delayMs = p.delayMs == 0 ? initialDelayMs : Math.min(maxDelayMs, p.delayMs * 2);
+        p.nextAt = Math.min(p.deadline, now + p.delayMs);
+        waiting.add(p);
+    }
+
+    private static void closeQuietly(SelectionKey k) {
+        k.cancel();
+        try { k.channel().close(); } catch (IOException ignore) {}
+    }
+
+    // ===================== TYPES =====================
+
+    private static final class Probe {
+        final String host;
+        final int port;
+        final long deadline;
+        final long startedAt = System.currentTimeMillis();
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        InetSocketAddress address;
+        long connectDeadline;
+        long nextAt;
+        long delayMs;
+        int tries;
+
+        Probe(String host, int port, long deadline) {
+            this.host = host;
+            this.port = port;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.dto.response.ProcessRunResponse;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Giám sát tiến trình SSH chạy lệnh trên Ansible host:
+ * - mỗi lần chạy có handle duy nhất (owner.rN), gom theo job (owner = jobId hoặc jobId_xxx)
+ * - output đọc trên virtual thread, giữ tối đa capture-max-bytes
+ * - deadline mỗi run: quá hạn → kill cả cây tiến trình local + cây tiến trình từ xa (qua pid file)
+ * - ghi nhận wall time, CPU các tiến trình con trên control host (bash `times` lúc shell từ xa thoát), exit code từng run
+ * - cancelJob(jobId): dừng mọi run của job và chặn run mới của job đó trong 1 khoảng thời gian
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class ProcessSupervisor {
+
+    /** Tạo tiến trình; remotePrefix (có thể rỗng) phải được chạy trước lệnh trên máy từ xa để ghi pid file */
+    @FunctionalInterface
+    public interface Launcher {
+        Process launch(String remotePrefix) throws IOException;
+    }
+
+    // trap EXIT của shell từ xa in marker + `times` ở cuối output (xem remotePrefix)
+    static final String TIMES_MARKER = "__VDI_TIMES__";
+    static final Pattern TIMES = Pattern.compile("(\\d+)m([\\d.]+)s\\s+(\\d+)m([\\d.]+)s");
+    static final long OUTPUT_DRAIN_MS = 2000;
+
+    final SshConnectionPool sshPool;
+
+    final AtomicLong seq = new AtomicLong();
+    final Map<String, Run> active = new ConcurrentHashMap<>();
+    final Map<String, Long> cancelledJobs = new ConcurrentHashMap<>();   // jobId -> thời điểm cancel
+    final Map<String, ProcessRunResponse> finished = new LinkedHashMap<>(256, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ProcessRunResponse> eldest) {
+            return size() > Math.max(1, historySize);
+        }
+    };
+
+    @NonFinal @Value("${ansible.supervisor.pids-dir:/ansible-host/pids}")
+    String pidsDir;
+
+    @NonFinal @Value("${ansible.supervisor.capture-max-bytes:8388608}")
+    int captureMaxBytes;
+
+    @NonFinal @Value("${ansible.supervisor.history-size:2000}")
+    int historySize;
+
+    @NonFinal @Value("${ansible.supervisor.cancel-ttl-minutes:30}")
+    long cancelTtlMinutes;
+
+    // ===================== API =====================
+
+    public Run start(String owner, String host, Duration timeout, Launcher launcher) throws IOException {
+        if (isCancelled(owner)) throw new CancellationException("job of " + owner + " was cancelled");
+        String handle = owner + ".r" + seq.incrementAndGet();
+        String pidFile = pidsDir == null ? null : pidsDir + "/" + handle + ".pid";
+        Process p = launcher.launch(remotePrefix(pidFile));
+        Run run = new Run(handle, owner, host, p, pidFile, System.currentTimeMillis() + timeout.toMillis());
+        active.put(handle, run);
+        // cancel xảy ra giữa check và put → dừng ngay
+        if (isCancelled(owner)) kill(List.of(run), "CANCELLED");
+        return run;
+    }
+
+    /** Chờ run kết thúc; exit code, hoặc null nếu timeout/bị cancel */
+    public Integer await(Run run) throws InterruptedException {
+        Process p = run.process;
+        try {
+            while (true) {
+                long left = run.deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    log.warn("[supervisor {}] deadline exceeded → kill tree", run.handle);
+                    kill(List.of(run), "TIMEOUT");
+                    p.waitFor(10, TimeUnit.SECONDS);
+                    return null;
+                }
+                if (p.waitFor(left, TimeUnit.MILLISECONDS)) break;
+            }
+            if (run.status != null) return null;          // bị kill (cancel) trong lúc chờ
+            run.exitCode = p.exitValue();
+            run.status = "EXITED";
+            // dòng `times` là phần cuối output: chờ reader đọc nốt trước khi chốt số liệu run
+            try {
+                run.outputDone.get(OUTPUT_DRAIN_MS, TimeUnit.MILLISECONDS);
+            } catch (Exception ignored) {
+                // reader chậm/không có → remoteCpuMs để null
+            }
+            return run.exitCode;
+        } catch (InterruptedException ie) {
+            kill(List.of(run), "CANCELLED");
+            throw ie;
+        } finally {
+            if (run.status == null) run.status = "ERROR";
+            finish(run);
+        }
+    }
+
+    /** Đọc toàn bộ output (giữ phần cuối, tối đa capture-max-bytes) trên virtual thread; tách dòng `times` ở cuối */
+    public CompletableFuture<String> capture(Run run) {
+        CompletableFuture<String> out = new CompletableFuture<>();
+        int max = captureMaxBytes > 0 ? captureMaxBytes : 8 << 20;
+        Thread.ofVirtual().name("proc-out-" + run.handle).start(() -> {
+            ByteArrayOutputStream acc = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            try (InputStream in = run.process.getInputStream()) {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    run.outputBytes.addAndGet(n);
+                    acc.write(buf, 0, n);
+                    if (acc.size() > 2L * max) acc = tail(acc, max);
+                }
+            } catch (IOException ignored) {
+                // tiến trình bị kill → stream đóng
+            }
+            String text = tail(acc, max).toString(StandardCharsets.UTF_8);
+            int at = text.lastIndexOf(TIMES_MARKER);
+            if (at >= 0) {
+                run.remoteCpuMs = parseTimes(text.substring(at + TIMES_MARKER.length()));
+                text = text.substring(0, at);
+            }
+            out.complete(text);
+            run.outputDone.complete(null);
+        });
+        return out;
+    }
+
+    private static ByteArrayOutputStream tail(ByteArrayOutputStream acc, int max) {
+        if (acc.size() <= max) return acc;
+        byte[] all = acc.toByteArray();
+        ByteArrayOutputStream t = new ByteArrayOutputStream(max);
+        t.write(all, all.length - max, max);
+        return t;
+    }
+
+    /** Đọc output theo dòng, đẩy cho sink (ví dụ log) trên virtual thread; dòng `times` ở cuối không đẩy cho sink */
+    public void streamLines(Run run, Consumer<String> sink) {
+        Thread.ofVirtual().name("proc-out-" + run.handle).start(() -> {
+            StringBuilder times = null;
+            try (BufferedReader br = new BufferedReader(
+                    new InputStreamReader(run.process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    run.outputBytes.addAndGet(line.length() + 1);
+                    if (times != null) {
+                        times.append(line).append('\n');
+                        continue;
+                    }
+                    int at = line.indexOf(TIMES_MARKER);
+                    if (at >= 0) {
+                        times = new StringBuilder();
+                        line = line.substring(0, at);
+                        if (line.isEmpty()) continue;
+                    }
+                    sink.accept(line);
+                }
+            } catch (IOException ignored) {
+                // tiến trình bị kill → stream đóng
+            } finally {
+                if (times != null) run.remoteCpuMs = parseTimes(times.toString());
+                run.outputDone.complete(null);
+            }
+        });
+    }
+
+    /** Caller không cần output: vẫn đọc (chỉ còn đuôi log khi lỗi + dòng `times`) để lấy CPU từ xa */
+    public void discard(Run run) {
+        streamLines(run, line -> { });
+    }
+
+    /** Dừng mọi run của job (owner = jobId hoặc jobId_xxx); trả số run đã kill */
+    public int cancelJob(String jobId) {
+        cancelledJobs.put(jobId, System.currentTimeMillis());
+        List<Run> runs = active.values().stream().filter(r -> belongsTo(r.owner, jobId)).toList();
+        if (!runs.isEmpty()) {
+            log.info("[supervisor] cancel job {} → kill {} run(s)", jobId, runs.size());
+            kill(runs, "CANCELLED");
+        }
+        return runs.size();
+    }
+
+    /** Bỏ cờ cancel (ví dụ job chạy lại với cùng jobId) */
+    public void clearCancelled(String jobId) {
+        cancelledJobs.remove(jobId);
+    }
+
+    public List<ProcessRunResponse> runs(String jobId) {
+        List<ProcessRunResponse> out = new ArrayList<>();
+        synchronized (finished) {
+            finished.values().stream().filter(r -> jobId == null || belongsTo(r.getOwner(), jobId)).forEach(out::add);
+        }
+        active.values().stream().filter(r -> jobId == null || belongsTo(r.owner, jobId)).map(Run::snapshot).forEach(out::add);
+        out.sort(Comparator.comparing(ProcessRunResponse::getStartedAt));
+        return out;
+    }
+
+    // ===================== INTERNAL =====================
+
+    private boolean isCancelled(String owner) {
+        long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(Math.max(1, cancelTtlMinutes));
+        cancelledJobs.values().removeIf(at -> at < cutoff);
+        for (String jobId : cancelledJobs.keySet()) {
+            if (belongsTo(owner, jobId)) return true;
+        }
+        return false;
+    }
+
+    private static boolean belongsTo(String owner, String jobId) {
+        return owner.equals(jobId) || owner.startsWith(jobId + "_");
+    }
+
+    /**
+     * Ghi pid shell từ xa vào pid file; trap EXIT xoá pid file rồi in marker + `times` (dòng 2 = user/sys
+     * của các tiến trình con đã kết thúc: ansible-playbook và worker của nó), giữ nguyên exit code.
+     * Shell bị kill -9 (timeout/cancel) thì không có dòng này.
+     */
+    static String remotePrefix(String pidFile) {
+        String trap = "rc=$?; ";
+        String prefix = "";
+        if (pidFile != null) {
+            String f = AnsibleRunnerService.shellQuote(pidFile);
+            int slash = pidFile.lastIndexOf('/');
+            prefix = (slash > 0 ? "mkdir -p " + AnsibleRunnerService.shellQuote(pidFile.substring(0, slash)) + "; " : "")
+                    + "echo $$ > " + f + "; ";
+            trap += "rm -f " + f + "; ";
+        }
+        trap += "echo " + TIMES_MARKER + "; times; exit $rc";
+        return prefix + "trap " + AnsibleRunnerService.shellQuote(trap) + " EXIT; ";
+    }
+
+    /** Output của `times` (2 dòng "XmY.YYYs XmY.YYYs": shell, con) → ms user+sys của các tiến trình con */
+    static Long parseTimes(String text) {
+        Matcher m = TIMES.matcher(text);
+        if (!m.find() || !m.find()) return null;
+        double seconds = Long.parseLong(m.group(1)) * 60 + Double.parseDouble(m.group(2))
+                + Long.parseLong(m.group(3)) * 60 + Double.parseDouble(m.group(4));
+        return Math.round(seconds * 1000);
+    }
+
+    private void kill(List<Run> runs, String status) {
+        Map<String, List<String>> pidFiles = new LinkedHashMap<>();   // host -> pid files
+        for (Run r : runs) {
+            synchronized (r) {
+                if (r.status == null) r.status = status;
+            }
+            // cây tiến trình local: ssh (ControlMaster=no → không đụng master) + con
+            r.process.descendants().forEach(ProcessHandle::destroyForcibly);
+            r.process.destroyForcibly();
+            if (r.pidFile != null) pidFiles.computeIfAbsent(r.host, k -> new ArrayList<>()).add(r.pidFile);
+        }
+        pidFiles.forEach(this::killRemote);
+    }
+
+    /** 1 lần ssh mỗi host: kill đệ quy cây tiến trình từ xa theo từng pid file */
+    private void killRemote(String host, List<String> pidFiles) {
+        StringBuilder sh = new StringBuilder("kt() { for c in $(pgrep -P \"$1\"); do kt \"$c\"; done; kill -9 \"$1\" 2>/dev/null; }\n");
+        for (String f : pidFiles) {
+            String q = AnsibleRunnerService.shellQuote(f);
+            sh.append("test -f ").append(q).append(" && kt \"$(cat ").append(q).append(")\"; rm -f ").append(q).append('\n');
+        }
+        sh.append("exit 0\n");
+        try (SshConnectionPool.Lease lease = host == null ? sshPool.acquire() : sshPool.acquireOn(host)) {
+            Process p = new ProcessBuilder(lease.command("bash -s"))
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            try (var os = p.getOutputStream()) {
+                os.write(sh.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            if (!p.waitFor(30, TimeUnit.SECONDS)) p.destroyForcibly();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("[supervisor] remote kill failed: {}", e.getMessage());
+        }
+    }
+
+    private void finish(Run run) {
+        active.remove(run.handle);
+        ProcessRunResponse snap = run.snapshot();
+        synchronized (finished) {
+            finished.put(run.handle, snap);
+        }
+        log.debug("[supervisor {}] {} exit={} wall={}ms remote-cpu={}ms", run.handle, snap.getStatus(),
+                snap.getExitCode(), snap.getWallMs(), snap.getRemoteCpuMs());
+    }
+
+    // ===================== TYPES =====================
+
+    @Getter
+    public static final class Run {
+        final String handle;
+        final String owner;
+        final String host;                // control host chạy run (kill từ xa đúng host)
+        final Process process;
+        final String pidFile;
+        final long deadline;
+        final long startMs = System.currentTimeMillis();
+        final LocalDateTime startedAt = LocalDateTime.now();
+        final AtomicLong outputBytes = new AtomicLong();
+        final CompletableFuture<Void> outputDone = new CompletableFuture<>();
+        volatile Long remoteCpuMs;
+        volatile Integer exitCode;
+        volatile String status;
+        volatile long endMs;
+
+        Run(String handle, String owner, String host, Process process, String pidFile, long deadline) {
+            this.handle = handle;
+            this.owner = owner;
+            this.host = host;
+            this.process = process;
+            this.pidFile = pidFile;
+            this.deadline = deadline;
+        }
+
+        ProcessRunResponse snapshot() {
+            if (status != null && endMs == 0) endMs = System.currentTimeMillis();
+            long end = endMs > 0 ? endMs : System.currentTimeMillis();
+            return ProcessRunResponse.builder()
+                    .handle(handle)
+                    .owner(owner)
+                    .host(host)
+                    .pid(process.pid())
+                    .startedAt(startedAt)
+                    .wallMs(end - startMs)
+                    .remoteCpuMs(remoteCpuMs)
+                    .exitCode(exitCode)
+                    .status(status == null ? "RUNNING" : status)
+                    .outputBytes(outputBytes.get())
+                    .build();
+        }
+    }
+}
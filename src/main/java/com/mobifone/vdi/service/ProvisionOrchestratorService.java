@@ -5,13 +5,18 @@ import com.mobifone.vdi.dto.request.AppPlanRequest;
 import com.mobifone.vdi.dto.request.InstanceRequest;
 import com.mobifone.vdi.dto.request.ProvisionAndConfigureRequest;
 import com.mobifone.vdi.dto.response.JobStatusResponse;
+import com.mobifone.vdi.dto.response.RetryAttemptResponse;
 import com.mobifone.vdi.entity.*;
+import com.mobifone.vdi.entity.enumeration.FailureClass;
+import com.mobifone.vdi.entity.enumeration.ProvisionStep;
 import com.mobifone.vdi.entity.enumeration.TaskStatus;
 import com.mobifone.vdi.exception.AppException;
 import com.mobifone.vdi.exception.ErrorCode;
 import com.mobifone.vdi.repository.DeploymentJobRepository;
-import com.mobifone.vdi.repository.JobStepLogRepository;
+import com.mobifone.vdi.repository.VmProvisionStateRepository;
+import com.mobifone.vdi.service.AnsibleExecutionScheduler.Priority;
 import com.mobifone.vdi.utils.ProvisionSignalBus;
+import jakarta.annotation.PostConstruct;
 import lombok.AccessLevel;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
@@ -20,11 +25,12 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.IntStream;
+import java.util.function.Supplier;
 
 @Service
 @RequiredArgsConstructor
@@ -34,7 +40,8 @@ public class ProvisionOrchestratorService {
 
     // ====== Chỉ inject SERVICE, không inject repository ======
     DeploymentJobRepository jobRepo;          // (jobRepo thuộc domain job – Orchestrator sở hữu)
-    JobStepLogRepository stepRepo;            // (logRepo thuộc domain job – Orchestrator sở hữu)
+    JobStepJournalService stepJournal;        // timeline job/VM: ghi write-behind, đọc gộp phần chưa flush
+    VmProvisionStateRepository stateRepo;     // checkpoint từng VM (domain job)
 
     AppDeploymentService appDeploymentService;
     AppDefinitionService appDefinitionService;
@@ -43,13 +50,34 @@ public class ProvisionOrchestratorService {
     ProjectService projectService;            // chỉ dùng load entity (không tạo vòng vì ProjectService KHÔNG phụ thuộc Orchestrator)
     OpenStackService openStackService;
     AnsibleRunnerService ansible;
+    RetryScheduler retryScheduler;
+    PfSenseControlPlane pfSense;
+    AppBatchCoordinator appBatcher;
+    TargetExecutionLanes lanes;
+    StepRetryService stepRetry;
+    LogArchiveService logArchive;
     PortAllocatorService portAllocator;
+    PortReadinessProber portProber;
     ProvisionSignalBus signalBus;
     Executor taskExecutor;
     ProvisionPersistService provisionPersistService;
 
     ObjectMapper om = new ObjectMapper();
 
+    // job đang chạy/chờ infra trên node này → ProvisionRecoveryWorker gửi heartbeat
+    Set<String> active = ConcurrentHashMap.newKeySet();
+
+    // phần chạy tiếp sau event infra: mỗi job 1 virtual thread, job chờ infra không giữ thread nào
+    ExecutorService continuations = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("provision-job-", 0).factory());
+
+    // hẹn giờ timeout chờ infra
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "provision-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
     @NonFinal
     @Value("${provision.infra-timeout-minutes:6}")
     long infraTimeoutMinutes;
@@ -61,20 +89,64 @@ public class ProvisionOrchestratorService {
     @Value("${provision.infra-timeout-grace-seconds:90}")
     long infraTimeoutGraceSeconds;
 
-    private ProvisionTask waitInfraOrFallback(String infraTaskId) throws Exception {
-        var fut = signalBus.future(infraTaskId);
-        try {
-            return fut.get(infraTimeoutMinutes, java.util.concurrent.TimeUnit.MINUTES);
-        } catch (java.util.concurrent.TimeoutException te) {
+    @NonFinal
+    @Value("${provision.recovery.max-resumes:3}")
+    int maxResumes;
+
+    // số VM đồng thời ở pha bring-up (lưu DB → assign interface → tạo NAT), thay cho stagger 10s/VM
+    @NonFinal
+    @Value("${provision.bring-up-concurrency:8}")
+    int bringUpConcurrency;
+
+    @NonFinal
+    Semaphore bringUp;
+
+    // VM vào pipeline ngay khi infra báo từng instance (chỉ các mode không cần dữ liệu của event cuối);
+    // infra hiện chỉ gửi event cuối → mặc định tắt, bật khi infra gửi InfraInstanceEvent
+    @NonFinal
+    @Value("${provision.streaming.enabled:false}")
+    boolean streamingEnabled;
+
+    @NonFinal
+    @Value("${provision.streaming.modes:personal,add-resource,add-resource-for-personal}")
+    String streamingModes;
+
+    @PostConstruct
+    void initLimiter() {
+        bringUp = new Semaphore(Math.max(1, bringUpConcurrency), true);
+    }
+
+    /**
+     * Chờ event infra không chặn thread: hết infra-timeout-minutes → log + cửa sổ grace;
+     * hết grace → đọc DB qua service persist (KHÔNG dùng repo trực tiếp) trên virtual thread.
+     * Timer chỉ giữ lịch hẹn, không giữ thread của job.
+     */
+    private CompletableFuture<ProvisionTask> awaitInfra(String infraTaskId) {
+        CompletableFuture<ProvisionTask> out = new CompletableFuture<>();
+        signalBus.future(infraTaskId).whenComplete((t, e) -> {
+            if (e != null) out.completeExceptionally(e);
+            else out.complete(t);
+        });
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (out.isDone()) return;
             log.warn("Infra wait timed out at {}m → applying {}s grace window",
                     infraTimeoutMinutes, infraTimeoutGraceSeconds);
-            try {
-                return fut.get(infraTimeoutGraceSeconds, java.util.concurrent.TimeUnit.SECONDS);
-            } catch (java.util.concurrent.TimeoutException ignore) {
-                // Fallback: đọc DB qua service persist (KHÔNG dùng repo trực tiếp)
-                return provisionPersistService.findEntity(infraTaskId).orElse(null);
-            }
-        }
+            timer.schedule(() -> {
+                if (out.isDone()) return;
+                continuations.execute(() -> {
+                    try {
+                        out.complete(provisionPersistService.findEntity(infraTaskId).orElse(null));
+                    } catch (Exception e) {
+                        out.completeExceptionally(e);
+                    }
+                });
+            }, infraTimeoutGraceSeconds, TimeUnit.SECONDS);
+        }, infraTimeoutMinutes, TimeUnit.MINUTES);
+        out.whenComplete((t, e) -> {
+            timeout.cancel(false);
+            signalBus.discard(infraTaskId);   // task đã có người nhận → bỏ khỏi bus
+        });
+        return out;
     }
 
     private String stripAnsi(String s) {
@@ -99,35 +171,146 @@ public class ProvisionOrchestratorService {
                 .status("PENDING")
                 .totalVms(Math.toIntExact(Math.max(1, req.getCount())))
                 .successVms(0).failedVms(0)
+                .requestJson(writeRequest(req))
+                .osRegion(osRegion)
+                .heartbeatAt(LocalDateTime.now())
+                .resumeCount(0)
                 .createdAt(LocalDateTime.now()).updatedAt(LocalDateTime.now())
                 .build();
         jobRepo.save(job);
 
-        taskExecutor.execute(() -> {
-            try { run(jobId, mode, req, osRegion); }
-            catch (Exception e) {
-                log.error("Orchestrator crashed", e);
-                DeploymentJob j = jobRepo.findById(jobId).orElseThrow();
-                j.setStatus("FAILED");
-                j.setMessage("Exception: " + e.getMessage());
-                j.setUpdatedAt(LocalDateTime.now());
-                jobRepo.save(j);
+        launch(jobId, mode, req, osRegion);
+        return jobId;
+    }
+
+    /**
+     * Chạy tiếp job bị gián đoạn (node restart) từ checkpoint: không gọi lại OpenStack nếu đã có infraTaskId,
+     * mỗi VM bỏ qua các bước đã xong. Gọi bởi ProvisionRecoveryWorker sau khi đã claim job.
+     */
+    public boolean resume(String jobId) {
+        DeploymentJob job = jobRepo.findById(jobId).orElse(null);
+        if (job == null) return false;
+        ProvisionAndConfigureRequest req = readRequest(job);
+        int nth = Optional.ofNullable(job.getResumeCount()).orElse(0) + 1;
+        if (req == null) {
+            abandon(job, "Interrupted: no checkpoint to resume from");
+            return false;
+        }
+        if (nth > maxResumes) {
+            abandon(job, "Interrupted " + nth + " times – giving up");
+            return false;
+        }
+        job.setResumeCount(nth);
+        job.setUpdatedAt(LocalDateTime.now());
+        jobRepo.save(job);
+        logStep(jobId, null, "resume", "INFO", "resume #" + nth
+                + (job.getInfraTaskId() != null ? " from checkpoint, infraTaskId=" + job.getInfraTaskId()
+                : job.getInfraRequestKey() != null ? " after infra submit, key=" + job.getInfraRequestKey()
+                : " from start"));
+        launch(jobId, job.getMode(), req, job.getOsRegion());
+        return true;
+    }
+
+    /** Job đang chạy/chờ trên node này */
+    public Set<String> activeJobs() {
+        return Set.copyOf(active);
+    }
+
+    /** taskExecutor chỉ chạy phần gọi infra; phần còn lại là continuation (xem run) */
+    private void launch(String jobId, String mode, ProvisionAndConfigureRequest req, String osRegion) {
+        active.add(jobId);
+        CompletableFuture<Void> flow;
+        try {
+            flow = CompletableFuture.supplyAsync(() -> run(jobId, mode, req, osRegion), taskExecutor)
+                    .thenCompose(f -> f);
+        } catch (RuntimeException e) {
+            active.remove(jobId);
+            throw e;
+        }
+        flow.whenComplete((v, e) -> {
+            try {
+                if (e != null) crashed(jobId, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            } finally {
+                active.remove(jobId);
             }
         });
+    }
 
-        return jobId;
+    private void crashed(String jobId, Throwable e) {
+        log.error("Orchestrator crashed", e);
+        try {
+            DeploymentJob j = jobRepo.findById(jobId).orElseThrow();
+            j.setStatus("FAILED");
+            j.setMessage("Exception: " + e.getMessage());
+            j.setFinishedAt(LocalDateTime.now());
+            stepJournal.flush();
+            j.setUpdatedAt(LocalDateTime.now());
+            jobRepo.save(j);
+        } catch (Exception ex) {
+            log.error("[{}] cannot mark job FAILED", jobId, ex);
+        }
     }
 
-    /** Orchestrate toàn bộ flow */
-    public void run(String jobId, String mode, ProvisionAndConfigureRequest req, String osRegion) {
+    /** Không chạy tiếp được → đóng job, VM dở dang chuyển ERROR và gỡ NAT WinRM */
+    private void abandon(DeploymentJob job, String reason) {
+        String jobId = job.getId();
+        log.warn("[recovery {}] abandon: {}", jobId, reason);
+        int ok = 0;
+        int bad = 0;
+        for (VirtualDesktop vd : virtualDesktopService.findByJobId(jobId)) {
+            if ("READY".equals(vd.getStatus())) { ok++; continue; }
+            bad++;
+            if (!"CREATED".equals(vd.getStatus())) continue;
+            markVDIFailed(vd, "ERROR");
+            try {
+                if (vd.getIpPublic() != null && vd.getPortWinRmPublic() != null) {
+                    pfSense.deleteNat(jobId + "_winrm_del_abandon_" + vd.getId(),
+                            vd.getIpPublic(), Integer.parseInt(vd.getPortWinRmPublic())).join();
+                }
+            } catch (Exception e) {
+                log.warn("[recovery {}] delete WinRM NAT of {} failed: {}", jobId, vd.getId(), e.getMessage());
+            }
+        }
+        logStep(jobId, null, "resume", "FAILED", reason);
+        stepJournal.flush();
+        job.setSuccessVms(ok);
+        job.setFailedVms(Math.max(bad, Optional.ofNullable(job.getTotalVms()).orElse(0) - ok));
+        job.setStatus("FAILED");
+        job.setMessage(clamp(reason, MAX_MESSAGE_LEN));
+        job.setFinishedAt(LocalDateTime.now());
+        job.setUpdatedAt(LocalDateTime.now());
+        jobRepo.save(job);
+    }
+
+    private String writeRequest(ProvisionAndConfigureRequest req) {
+        try {
+            return om.writeValueAsString(req);
+        } catch (Exception e) {
+            log.warn("Cannot checkpoint provision request: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private ProvisionAndConfigureRequest readRequest(DeploymentJob job) {
+        if (job.getRequestJson() == null) return null;
+        try {
+            return om.readValue(job.getRequestJson(), ProvisionAndConfigureRequest.class);
+        } catch (Exception e) {
+            log.warn("[recovery {}] bad request checkpoint: {}", job.getId(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Orchestrate toàn bộ flow. Thread gọi chỉ làm phần gọi infra; chờ OpenStack build VM không giữ thread nào:
+     * event infra (ProvisionSignalBus) hoặc timer hết hạn sẽ chạy tiếp phần cấu hình VM trên virtual thread.
+     */
+    public CompletableFuture<Void> run(String jobId, String mode, ProvisionAndConfigureRequest req, String osRegion) {
         DeploymentJob job = jobRepo.findById(jobId).orElseThrow();
         job.setStatus("RUNNING");
         job.setUpdatedAt(LocalDateTime.now());
         jobRepo.save(job);
 
-        AtomicInteger success = new AtomicInteger(0);
-        AtomicInteger failed  = new AtomicInteger(0);
-
         // --- Validate đầu vào dùng chung ---
         final String usernameOfVdi = Optional.ofNullable(req.getUsernameOfVdi())
                 .filter(s -> !s.isBlank())
@@ -136,27 +319,95 @@ public class ProvisionOrchestratorService {
         // ===========================================================
         // 1) GỌI INFRA 1 LẦN & CHỜ KẾT QUẢ
         // ===========================================================
-        String infraTaskId = openStackService.provisionWithRetry(
-                mode, toInstanceRequest(req), req.getUserId(), osRegion);
-        logStep(jobId, null, "create_instance", "INFO", "taskId=" + infraTaskId);
+        String infraTaskId = job.getInfraTaskId();
+        ProvisionTask infraTask = null;
+        if (infraTaskId == null && job.getInfraRequestKey() != null
+                && provisionPersistService.findEntity(job.getInfraRequestKey()).isPresent()) {
+            // dừng giữa lúc gửi và lúc lưu infraTaskId: yêu cầu có thể đã tới infra → nhận lại theo key, không gửi lần 2
+            infraTaskId = adoptInfraTask(job);
+        }
+        if (infraTaskId == null) {
+            // checkpoint SUBMITTING + idempotency key TRƯỚC khi gọi infra: restart giữa chừng vẫn tra lại được
+            String key = Optional.ofNullable(job.getInfraRequestKey()).orElseGet(() -> UUID.randomUUID().toString());
+            job.setInfraRequestKey(key);
+            job.setStatus("SUBMITTING");
+            job.setUpdatedAt(LocalDateTime.now());
+            jobRepo.save(job);
 
-        log.info("Waiting infra task {} up to {} minutes ...", infraTaskId, infraTimeoutMinutes);
-        ProvisionTask infraTask;
-        try {
-            infraTask = waitInfraOrFallback(infraTaskId);
-        } catch (Exception e) {
-            throw stepError(jobId, "Infra wait error: " + e.getMessage());
+            infraTaskId = openStackService.provisionWithRetry(
+                    mode, toInstanceRequest(req), req.getUserId(), osRegion, key);
+            // checkpoint: chạy tiếp sau restart dùng lại task này, không tạo infra lần 2
+            job.setInfraTaskId(infraTaskId);
+            job.setStatus("RUNNING");
+            job.setUpdatedAt(LocalDateTime.now());
+            jobRepo.save(job);
+            logStep(jobId, null, "create_instance", "INFO", "taskId=" + infraTaskId);
+        } else {
+            // chạy tiếp: event infra có thể đã tới lúc node còn sống → đọc DB trước
+            infraTask = provisionPersistService.findEntity(infraTaskId)
+                    .filter(t -> t.getStatus() == TaskStatus.SUCCESS || t.getStatus() == TaskStatus.FAILED)
+                    .orElse(null);
+        }
+
+        final VmPipeline pipeline = new VmPipeline(jobId, mode, req, osRegion, usernameOfVdi);
+
+        CompletableFuture<ProvisionTask> infra;
+        if (infraTask != null) {
+            infra = CompletableFuture.completedFuture(infraTask);
+        } else {
+            if (streams(mode)) {
+                // infra báo từng instance → VM vào pipeline ngay, không chờ instance cuối cùng boot xong
+                // (đăng ký trước, đọc phần đã báo sau: event tới giữa 2 bước vẫn không mất, trùng thì bỏ)
+                signalBus.onInstance(infraTaskId, pipeline::offerEarly);
+                provisionPersistService.reportedInstances(infraTaskId).forEach(pipeline::offerEarly);
+            }
+            log.info("Waiting infra task {} up to {} minutes ...", infraTaskId, infraTimeoutMinutes);
+            infra = awaitInfra(infraTaskId);
         }
+        // handle/then chạy trên virtual thread: không chạy trên thread listener đã hoàn tất event
+        return infra.handleAsync((task, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                pipeline.drain(List.of(), null);
+                throw stepError(jobId, "Infra wait error: " + cause.getMessage());
+            }
+            configure(jobId, task, pipeline);
+            return null;
+        }, continuations);
+    }
+
+    /** Dùng task infra đã gửi với infraRequestKey làm infraTaskId của job */
+    private String adoptInfraTask(DeploymentJob job) {
+        String key = job.getInfraRequestKey();
+        job.setInfraTaskId(key);
+        job.setStatus("RUNNING");
+        job.setUpdatedAt(LocalDateTime.now());
+        jobRepo.save(job);
+        logStep(job.getId(), null, "create_instance", "INFO", "resume: reuse infra request " + key);
+        return key;
+    }
+
+    /**
+     * Phần sau khi infra xong: kiểm tra kết quả infra, đưa các VM chưa vào pipeline vào nốt,
+     * job xong khi mọi VM trong pipeline đã chạy hết.
+     */
+    private void configure(String jobId, ProvisionTask infraTask, VmPipeline pipeline) {
+        DeploymentJob job = jobRepo.findById(jobId).orElseThrow();
+
         if (infraTask == null) {
+            pipeline.drain(List.of(), null);   // VM đã vào sớm vẫn chạy cho xong
             throw stepError(jobId, "Infra timeout – no event received");
         }
         if (infraTask.getStatus() != TaskStatus.SUCCESS) {
+            pipeline.drain(List.of(), null);
             String err = clamp(infraTask.getErrorMessage(), 1000);
             logStep(jobId, null, "create_instance", "FAILED", err);
-            job.setFailedVms(0);
-            job.setSuccessVms(0);
+            job.setFailedVms(pipeline.failed.get());
+            job.setSuccessVms(pipeline.success.get());
             job.setStatus("FAILED");
             job.setMessage(clamp("Provision infra FAILED: " + err, MAX_MESSAGE_LEN));
+            job.setFinishedAt(LocalDateTime.now());
+            stepJournal.flush();
             job.setUpdatedAt(LocalDateTime.now());
             jobRepo.save(job);
             return;
@@ -164,9 +415,14 @@ public class ProvisionOrchestratorService {
 
         final String infraId = infraTask.getInfraId();
         if (infraId == null || infraId.isBlank()) {
+            pipeline.drain(List.of(), null);
             throw stepError(jobId, "infraId missing from infra task");
         }
-        logStep(jobId, null, "infra_id", "INFO", "infraId=" + infraId);
+        if (!infraId.equals(job.getInfraId())) {
+            job.setInfraId(infraId);
+            jobRepo.save(job);
+            logStep(jobId, null, "infra_id", "INFO", "infraId=" + infraId);
+        }
 
         // Parse instances: [{instance_id, access_ip_v4, fixed_ip_v4}]
         List<Map<String, Object>> instances;
@@ -174,9 +430,11 @@ public class ProvisionOrchestratorService {
             instances = om.readValue(infraTask.getInstanceFloatingPairs(),
                     new com.fasterxml.jackson.core.type.TypeReference<>() {});
         } catch (Exception ex) {
+            pipeline.drain(List.of(), null);
             throw stepError(jobId, "Bad infra payload: " + ex.getMessage());
         }
         if (instances == null || instances.isEmpty()) {
+            pipeline.drain(List.of(), null);
             throw stepError(jobId, "Infra returned empty instances");
         }
 
@@ -185,39 +443,141 @@ public class ProvisionOrchestratorService {
         jobRepo.save(job);
 
         // ===========================================================
-        // THIẾT LẬP BIẾN DÙNG CHUNG & CHẠY SONG SONG (STAGGER 10s)
+        // CHẠY NỐT CÁC VM CÒN LẠI & CHỜ PIPELINE CHẠY HẾT
         // ===========================================================
-        final String baseName = Optional.ofNullable(req.getName()).filter(s -> !s.isBlank()).orElse("vdi");
-
-        final boolean planHasDC  = planHasDomainController(req);
-        final Optional<String> domainFromPlan = extractDomainNameFromPlan(req);
-
-        try (ExecutorService vexec = Executors.newVirtualThreadPerTaskExecutor()) {
-            CompletableFuture<?>[] futures = IntStream.range(0, instances.size())
-                    .mapToObj(idx -> {
-                        long delaySec = idx * 10L; // mỗi instance bắt đầu trễ hơn instance trước 10s
-                        Executor delayedVexec = CompletableFuture.delayedExecutor(delaySec, TimeUnit.SECONDS, vexec);
-                        return CompletableFuture.runAsync(() -> processOneInstance(
-                                idx, instances, baseName,
-                                mode, planHasDC, domainFromPlan,
-                                jobId, req, usernameOfVdi, osRegion,
-                                success, failed, infraId
-                        ), delayedVexec);
-                    })
-                    .toArray(CompletableFuture[]::new);
-
-            CompletableFuture.allOf(futures).join(); // chờ tất cả xong
-        } catch (Exception ex) {
-            log.error("Parallel execution failed", ex);
-        }
+        pipeline.drain(instances, infraId);
+
+        AtomicInteger success = pipeline.success;
+        AtomicInteger failed  = pipeline.failed;
 
         // Hoàn tất job
+        LocalDateTime now = LocalDateTime.now();
         job.setSuccessVms(success.get());
         job.setFailedVms(failed.get());
         job.setStatus(failed.get()==0 ? "SUCCESS" : (success.get()==0 ? "FAILED" : "PARTIAL_FAILED"));
+        stepJournal.flush();   // job xong → timeline vào DB ngay, không đợi nhịp flush
         job.setMessage(buildSummary(job.getId()));
-        job.setUpdatedAt(LocalDateTime.now());
+        job.setFinishedAt(now);
+        job.setUpdatedAt(now);
         jobRepo.save(job);
+        jobRepo.findById(jobId).map(DeploymentJob::getFirstReadyAt).ifPresent(first ->
+                log.info("[{}] time-to-first-desktop {} ms, makespan {} ms ({} early / {} VMs)", jobId,
+                        Duration.between(job.getCreatedAt(), first).toMillis(),
+                        Duration.between(job.getCreatedAt(), now).toMillis(),
+                        pipeline.early, instances.size()));
+
+        // log mọi bước/app của job → archive local (đọc sau này không qua SSH)
+        logArchive.archiveAsync(jobId);
+    }
+
+    private boolean streams(String mode) {
+        if (!streamingEnabled) return false;
+        return Arrays.stream(streamingModes.split(","))
+                .map(String::trim)
+                .anyMatch(m -> m.equalsIgnoreCase(mode));
+    }
+
+    /**
+     * Các VM của 1 job, mỗi VM 1 virtual thread, vào ngay khi infra báo:
+     * - offerEarly: event từng instance (trước event cuối) → VM đó cấu hình ngay, không chờ cả task
+     * - drain: event cuối → đưa nốt instance chưa vào, chờ mọi VM chạy hết
+     * Chỉ khi không VM nào vào sớm mới gom app nhiều host (AppBatchCoordinator): gom thì VM đầu phải chờ VM cuối.
+     * vmIndex ổn định qua resume: lấy lại theo instanceId từ checkpoint, instance mới nhận index trống nhỏ nhất.
+     */
+    private final class VmPipeline {
+        final String jobId;
+        final String mode;
+        final ProvisionAndConfigureRequest req;
+        final String osRegion;
+        final String usernameOfVdi;
+        final String baseName;
+        final boolean planHasDC;
+        final Optional<String> domainFromPlan;
+
+        final AtomicInteger success = new AtomicInteger(0);
+        final AtomicInteger failed  = new AtomicInteger(0);
+        final Map<String, Integer> indexOf = new HashMap<>();
+        final Set<String> started = new HashSet<>();
+        final List<CompletableFuture<Void>> running = new ArrayList<>();
+        int total;
+        int early;
+        boolean sealed;
+
+        VmPipeline(String jobId, String mode, ProvisionAndConfigureRequest req, String osRegion, String usernameOfVdi) {
+            this.jobId = jobId;
+            this.mode = mode;
+            this.req = req;
+            this.osRegion = osRegion;
+            this.usernameOfVdi = usernameOfVdi;
+            this.baseName = Optional.ofNullable(req.getName()).filter(s -> !s.isBlank()).orElse("vdi");
+            this.planHasDC = planHasDomainController(req);
+            this.domainFromPlan = extractDomainNameFromPlan(req);
+            this.total = (int) Math.max(1, req.getCount());
+            stateRepo.findByJobIdOrderByVmIndexAsc(jobId).forEach(cp -> indexOf.put(cp.getInstanceId(), cp.getVmIndex()));
+            ansible.bindJob(jobId, tenantOf(req));   // mọi run/log của job nằm trên cùng 1 Ansible control host
+        }
+
+        /** Event từng instance; cần infra_id đi kèm (VD lưu infraId), thiếu thì chờ event cuối */
+        void offerEarly(Map<String, Object> inst) {
+            Object infraId = inst.get("infra_id");
+            if (infraId == null || String.valueOf(infraId).isBlank()) return;
+            synchronized (this) {
+                if (sealed) return;   // event cuối đã có đủ instance
+                if (start(inst, String.valueOf(infraId))) {
+                    early++;
+                    logStep(jobId, null, "instance_ready", "INFO", "instance=" + inst.get("instance_id") + " (early)");
+                }
+            }
+        }
+
+        /** Event cuối (instances rỗng nếu infra lỗi): chạy nốt rồi chờ mọi VM xong */
+        void drain(List<Map<String, Object>> instances, String infraId) {
+            synchronized (this) {
+                sealed = true;
+                if (!instances.isEmpty()) {
+                    total = instances.size();
+                    // đủ VM cùng lúc → gom app cùng plan của các VM thành 1 playbook nhiều host
+                    if (early == 0) appBatcher.open(jobId, instances.size(), tenantOf(req));
+                    instances.forEach(inst -> start(inst, infraId));
+                }
+            }
+            try {
+                CompletableFuture.allOf(running.toArray(CompletableFuture[]::new)).join(); // chờ tất cả xong
+            } catch (Exception ex) {
+                log.error("Parallel execution failed", ex);
+            } finally {
+                appBatcher.close(jobId);
+            }
+        }
+
+        /** Gọi trong lock; false nếu instance đã vào pipeline */
+        private boolean start(Map<String, Object> inst, String infraId) {
+            String instanceId = String.valueOf(inst.get("instance_id"));
+            if (!started.add(instanceId)) return false;
+            int idx = indexOf.computeIfAbsent(instanceId, k -> freeIndex());
+            int n = total;
+            running.add(CompletableFuture.runAsync(() -> {
+                try {
+                    processOneInstance(
+                            idx, inst, n, baseName,
+                            mode, planHasDC, domainFromPlan,
+                            jobId, req, usernameOfVdi, osRegion,
+                            success, failed, infraId
+                    );
+                } finally {
+                    // VM không còn tham gia batch app nữa (lỗi sớm hoặc đã xong)
+                    appBatcher.leave(jobId, idx);
+                }
+            }, continuations));
+            return true;
+        }
+
+        private int freeIndex() {
+            Collection<Integer> used = indexOf.values();
+            int i = 0;
+            while (used.contains(i)) i++;
+            return i;
+        }
     }
 
     private String extractOrgProviderIp(Map<String, Object> inst) {
@@ -237,7 +597,8 @@ public class ProvisionOrchestratorService {
 
     private void processOneInstance(
             int i,
-            List<Map<String, Object>> instances,
+            Map<String, Object> inst,
+            int total,
             String baseName,
             String mode,
             boolean planHasDC,
@@ -250,14 +611,23 @@ public class ProvisionOrchestratorService {
             AtomicInteger failed,
             String infraId
     ) {
-        final Map<String, Object> inst = instances.get(i);
-        final String vdName = (instances.size() == 1) ? baseName : baseName + "-" + (i + 1);
+        final String vdName = (total == 1) ? baseName : baseName + "-" + (i + 1);
 
         final String instanceId = String.valueOf(inst.get("instance_id"));
         final String ipLocal    = String.valueOf(inst.get("access_ip_v4"));
+
+        // checkpoint của VM: chạy tiếp sau restart thì bỏ qua các bước đã xong
+        final VmProvisionState cp = loadCheckpoint(jobId, i, instanceId);
+        if ("READY".equals(cp.getStatus())) { success.incrementAndGet(); return; }
+        if ("FAILED".equals(cp.getStatus())) { failed.incrementAndGet(); return; }
+
+        VirtualDesktop vd = cp.getVdId() == null ? null : virtualDesktopService.findById(cp.getVdId()).orElse(null);
+
         String ipPublic   = inst.get("fixed_ip_v4") == null ? null : String.valueOf(inst.get("fixed_ip_v4"));
 
-        if ("personal".equalsIgnoreCase(mode)) {
+        if (vd != null) {
+            ipPublic = vd.getIpPublic();
+        } else if ("personal".equalsIgnoreCase(mode)) {
             ipPublic = "42.1.65.60";
         } else if ("add-resource-for-personal".equalsIgnoreCase(mode)) {
             // Lấy infraId từ task → tìm VDI personal đầu tiên trong DB
@@ -275,32 +645,45 @@ public class ProvisionOrchestratorService {
         final boolean isOrgMode  = "organization".equalsIgnoreCase(mode);
         final boolean isAddMode  = "add-resource".equalsIgnoreCase(mode);
 
-        VirtualDesktop vd = null;
-
-        try {
+        // bring-up (DB → interface → NAT) giới hạn theo số chỗ; VM chạy tiếp đã qua NAT thì không cần chỗ
+        try (BringUpPermit permit = acquireBringUp(jobId, i, !done(cp, ProvisionStep.CREATE_NAT_WINRM))) {
             // =======================================================
             // 2) LƯU VDI (CẤP PORT RDP + WINRM RIÊNG)
             // =======================================================
-            int rdpPortPublic   = portAllocator.allocateUnique();
-            int winRmPortPublic = portAllocator.allocateUnique();
+            final boolean resumed = vd != null;
+            int rdpPortPublic;
+            int winRmPortPublic;
+            if (!resumed) {
+                rdpPortPublic   = portAllocator.allocateUnique();
+                winRmPortPublic = portAllocator.allocateUnique();
 
-            vd = buildVD(jobId, vdName, req, ipLocal, ipPublic, rdpPortPublic, instanceId, osRegion, infraId);
-            vd.setPortWinRmPublic(String.valueOf(winRmPortPublic));
+                vd = buildVD(jobId, vdName, req, ipLocal, ipPublic, rdpPortPublic, instanceId, osRegion, infraId);
+                vd.setPortWinRmPublic(String.valueOf(winRmPortPublic));
+
+                if (isOrgMode && planHasDC) {
+                    vd.setIsDomainController(true);
+                    domainFromPlan.ifPresent(vd::setDomainName);
+                }
 
-            if (isOrgMode && planHasDC) {
-                vd.setIsDomainController(true);
-                domainFromPlan.ifPresent(vd::setDomainName);
+                vd = virtualDesktopService.save(vd);
+                logStep(jobId, vd.getId(), "save_db", "SUCCESS", "vdId=" + vd.getId());
+                cp.setVdId(vd.getId());
+                checkpoint(cp, ProvisionStep.SAVE_DB);
+            } else {
+                rdpPortPublic   = Integer.parseInt(vd.getPortPublic());
+                winRmPortPublic = Integer.parseInt(vd.getPortWinRmPublic());
+                logStep(jobId, vd.getId(), "resume", "INFO", "continue after " + cp.getStep());
             }
 
-            vd = virtualDesktopService.save(vd);
-            logStep(jobId, vd.getId(), "save_db", "SUCCESS", "vdId=" + vd.getId());
+            // lỗi transient (unreachable, reset, timeout, lock) được chạy lại tại chỗ thay vì bỏ cả VM;
+            // mọi bước của VM trừ chung 1 ngân sách retry
+            final AtomicInteger retryBudget = retryScheduler.vmBudget();
 
             // =======================================================
             // STEP 3) PFSENSE & NAT
             // =======================================================
-            safeSleep(); // đợi pfSense ổn định
-
-            if (isOrgMode) {
+            // ghi config pfSense đã tuần tự qua writer của PfSenseControlPlane → không cần ngủ chờ "ổn định"
+            if (isOrgMode && !done(cp, ProvisionStep.ASSIGN_INTERFACE)) {
                 String assignName  = Optional.ofNullable(req.getUserId()).map(id -> id.replaceAll("-", "")).orElse("PhanhCute");
                 String assignType  = "static";
                 String assignIp    = toGatewayIp(ipLocal);
@@ -309,81 +692,106 @@ public class ProvisionOrchestratorService {
                 logStep(jobId, vd.getId(), "assign_interface",
                         "INFO", "assign_name=" + assignName + ", assign_ip=" + assignIp + "/24");
 
-                boolean assignOk = ansible.runAssignInterface(jobId, assignName, assignType, assignName, assignIp, assignMask);
+                // ghi config pfSense → xếp hàng qua writer duy nhất của control plane
+                boolean assignOk = pfSense.assignInterface(jobId, assignName, assignType, assignName, assignIp, assignMask);
                 if (!assignOk) {
                     vd = markVDIFailed(vd, "ASSIGN_IF_ERROR");
                     logStep(jobId, vd.getId(), "assign_interface", "FAILED",
-                            "/ansible-host/logs/" + jobId + "_assign_interface.log");
-                    failed.incrementAndGet();
+                            "/ansible-host/logs/" + jobId + "_assign_interface.log", pfSense.lastAssignAttempt(jobId));
+                    finish(cp, false, failed);
                     return;
                 }
                 logStep(jobId, vd.getId(), "assign_interface", "SUCCESS",
                         "/ansible-host/logs/" + jobId + "_assign_interface.log");
+                checkpoint(cp, ProvisionStep.ASSIGN_INTERFACE);
             }
 
             if (ipPublic == null || ipPublic.isBlank()) {
                 vd = markVDIFailed(vd, "NAT_ERROR");
                 logStep(jobId, vd.getId(), "create_nat", "FAILED", "No public IP (fixed_ip_v4) from infra");
-                failed.incrementAndGet();
+                finish(cp, false, failed);
                 return;
             }
 
-            boolean natOk = ansible.runNatCreate(jobId, ipPublic, rdpPortPublic, ipLocal, 3389);
-            if (!natOk) {
-                vd = markVDIFailed(vd, "NAT_ERROR");
-                logStep(jobId, vd.getId(), "create_nat", "FAILED", "/ansible-host/logs/" + jobId + "_nat.log");
-                failed.incrementAndGet();
-                return;
-            }
-            logStep(jobId, vd.getId(), "create_nat", "SUCCESS", "/ansible-host/logs/" + jobId + "_nat.log");
+            // RDP + WinRM vào cùng cửa sổ gom NAT (1 lần apply pfSense cho nhiều VM/job)
+            final String natIp = ipPublic;
+            if (!done(cp, ProvisionStep.CREATE_NAT_WINRM)) {
+                CompletableFuture<Boolean> natRdp = done(cp, ProvisionStep.CREATE_NAT)
+                        ? CompletableFuture.completedFuture(true)
+                        : pfSense.createNat(jobId, natIp, rdpPortPublic, ipLocal, 3389);
+                CompletableFuture<Boolean> natWinrm = pfSense.createNat(jobId + "_winrm_" + (i+1), natIp, winRmPortPublic, ipLocal, 5985);
+                boolean natOk = natRdp.join();
+                boolean natWinrmOk = natWinrm.join();
+                if (!natOk) {
+                    vd = markVDIFailed(vd, "NAT_ERROR");
+                    logStep(jobId, vd.getId(), "create_nat", "FAILED", "/ansible-host/logs/" + jobId + "_nat.log",
+                            pfSense.lastNatAttempt(jobId, rdpPortPublic));
+                    finish(cp, false, failed);
+                    return;
+                }
+                if (!done(cp, ProvisionStep.CREATE_NAT)) {
+                    logStep(jobId, vd.getId(), "create_nat", "SUCCESS", "/ansible-host/logs/" + jobId + "_nat.log");
+                    checkpoint(cp, ProvisionStep.CREATE_NAT);
+                }
 
-            boolean natWinrmOk = ansible.runNatCreate(jobId + "_winrm_" + (i+1), ipPublic, winRmPortPublic, ipLocal, 5985);
-            if (!natWinrmOk) {
-                vd = markVDIFailed(vd, "NAT_ERROR");
-                logStep(jobId, vd.getId(), "create_nat_winrm", "FAILED",
+                if (!natWinrmOk) {
+                    vd = markVDIFailed(vd, "NAT_ERROR");
+                    logStep(jobId, vd.getId(), "create_nat_winrm", "FAILED",
+                            "/ansible-host/logs/" + jobId + "_winrm_nat.log",
+                            pfSense.lastNatAttempt(jobId + "_winrm_" + (i+1), winRmPortPublic));
+                    finish(cp, false, failed);
+                    return;
+                }
+                logStep(jobId, vd.getId(), "create_nat_winrm", "SUCCESS",
                         "/ansible-host/logs/" + jobId + "_winrm_nat.log");
-                failed.incrementAndGet();
-                return;
+                checkpoint(cp, ProvisionStep.CREATE_NAT_WINRM);
             }
-            logStep(jobId, vd.getId(), "create_nat_winrm", "SUCCESS",
-                    "/ansible-host/logs/" + jobId + "_winrm_nat.log");
 
-            boolean natReady = ansible.waitPortOpenFromAnsibleHost(ipPublic, winRmPortPublic, 10, 20, 5);
-            if (!natReady) {
-                vd = markVDIFailed(vd, "NAT_ERROR");
-                logStep(jobId, vd.getId(), "wait_nat_winrm", "FAILED",
-                        ipPublic + ":" + winRmPortPublic + " not reachable");
-                failed.incrementAndGet();
-                return;
+            // NAT xong → nhả chỗ bring-up cho VM khác, việc chờ WinRM không chiếm chỗ
+            permit.close();
+
+            // đi tiếp ngay khi WinRM trả lời (không chờ tới nhịp thử cố định kế tiếp)
+            if (!done(cp, ProvisionStep.WAIT_NAT_WINRM)) {
+                boolean natReady = portProber.awaitWinRm(ipPublic, winRmPortPublic).join();
+                if (!natReady) {
+                    vd = markVDIFailed(vd, "NAT_ERROR");
+                    logStep(jobId, vd.getId(), "wait_nat_winrm", "FAILED",
+                            ipPublic + ":" + winRmPortPublic + " WinRM not responding");
+                    finish(cp, false, failed);
+                    return;
+                }
+                logStep(jobId, vd.getId(), "wait_nat_winrm", "SUCCESS",
+                        ipPublic + ":" + winRmPortPublic + " WinRM responding");
+                checkpoint(cp, ProvisionStep.WAIT_NAT_WINRM);
             }
-            logStep(jobId, vd.getId(), "wait_nat_winrm", "SUCCESS",
-                    ipPublic + ":" + winRmPortPublic + " reachable");
 
             // =======================================================
-            // STEP 4) CÀI/CONFIG APP (song song trong 1 instance nếu nhiều app)
+            // STEP 4) CÀI/CONFIG APP (theo làn của endpoint WinRM, tôn trọng thứ tự/xung đột app)
             // =======================================================
-            seedAppDeployment(jobId, vd.getId(), req.getApps());
-            VirtualDesktop finalVd = vd;
-            List<Boolean> results = Optional.ofNullable(req.getApps()).orElse(List.of())
-                    .parallelStream()
-                    .map(plan -> runApp(jobId, finalVd, plan, usernameOfVdi))
-                    .toList();
-
-            boolean allOk = results.isEmpty() || results.stream().allMatch(Boolean::booleanValue);
-            if (!allOk) {
-                vd = markVDIFailed(vd, "APP_ERROR");
-                logStep(jobId, vd.getId(), "apps", "FAILED", "One or more apps failed");
-                failed.incrementAndGet();
-                return;
+            if (!done(cp, ProvisionStep.APPS)) {
+                seedAppDeployment(jobId, vd.getId(), req.getApps());
+                // chạy tiếp: app đã SUCCESS trước khi gián đoạn không cài lại
+                Set<String> installed = resumed ? installedApps(jobId, vd.getId()) : Set.of();
+                List<Boolean> results = runApps(jobId, i, vd, req.getApps(), usernameOfVdi, tenantOf(req),
+                        retryBudget, installed);
+
+                boolean allOk = results.isEmpty() || results.stream().allMatch(Boolean::booleanValue);
+                if (!allOk) {
+                    vd = markVDIFailed(vd, "APP_ERROR");
+                    logStep(jobId, vd.getId(), "apps", "FAILED", "One or more apps failed");
+                    finish(cp, false, failed);
+                    return;
+                }
+                logStep(jobId, vd.getId(), "apps", "SUCCESS", null);
+                checkpoint(cp, ProvisionStep.APPS);
             }
-            logStep(jobId, vd.getId(), "apps", "SUCCESS", null);
 
             // =======================================================
             // NHÁNH THEO MODE
             // =======================================================
             if (isOrgMode) {
                 // Chỉ phần đặc thù khi có domain controller
-                if (planHasDC) {
+                if (planHasDC && !done(cp, ProvisionStep.DC_BOOTSTRAP)) {
                     final String domain = domainFromPlan
                             .filter(s -> !s.isBlank())
                             .orElseThrow(() -> new AppException(ErrorCode.MISSING_REQUIRED_VARS));
@@ -393,34 +801,38 @@ public class ProvisionOrchestratorService {
                     final String adminUserName2 = "MbfAdmin";
                     final String adminUserPass2 = randomStrongPass();
 
-                    boolean okBoot = ansible.runDcPostBootstrap(
-                            jobId + "_dc_boot_" + (i+1),
-                            vd.getIpPublic(), Integer.parseInt(vd.getPortWinRmPublic()),
-                            usernameOfVdi, vd.getPassword(),
-                            domain, ouName, adminGroupName, adminUserName2, adminUserPass2
-                    );
-                    if (!okBoot) {
+                    final VirtualDesktop bootVd = vd;
+                    StepRetryService.Outcome boot = runStep(req, jobId + "_dc_boot_" + (i+1), retryBudget,
+                            () -> ansible.runDcPostBootstrap(
+                                    jobId + "_dc_boot_" + (i+1),
+                                    bootVd.getIpPublic(), Integer.parseInt(bootVd.getPortWinRmPublic()),
+                                    usernameOfVdi, bootVd.getPassword(),
+                                    domain, ouName, adminGroupName, adminUserName2, adminUserPass2
+                            ));
+                    if (!boot.ok()) {
                         vd = markVDIFailed(vd, "APP_ERROR");
                         logStep(jobId, vd.getId(), "dc_post_bootstrap", "FAILED",
-                                "/ansible-host/logs/" + jobId + "_dc_boot_" + (i+1) + ".log");
-                        failed.incrementAndGet();
+                                "/ansible-host/logs/" + jobId + "_dc_boot_" + (i+1) + ".log", boot);
+                        finish(cp, false, failed);
                         return;
                     }
                     logStep(jobId, vd.getId(), "dc_post_bootstrap", "SUCCESS",
-                            "/ansible-host/logs/" + jobId + "_dc_boot_" + (i+1) + ".log");
+                            "/ansible-host/logs/" + jobId + "_dc_boot_" + (i+1) + ".log", boot);
 
-                    // Gắn thông tin DC
+                    // Gắn thông tin DC (lưu ngay: chạy tiếp sau checkpoint cần tài khoản vừa tạo)
                     vd.setIsDomainController(true);
                     vd.setDomainName(domain);
                     vd.setDomainOu(ouName);
                     vd.setDomainAccountUsername(adminUserName2);
                     vd.setDomainAccountPassword(adminUserPass2);
+                    vd = virtualDesktopService.save(vd);
+                    checkpoint(cp, ProvisionStep.DC_BOOTSTRAP);
                 }
 
                 // ✅ PHẦN COMMON CHO CẢ CÓ/KO DC
                 vd.setStatus("READY");
                 virtualDesktopService.save(vd);
-                success.incrementAndGet();
+                finish(cp, true, success);
                 return;
             }
 
@@ -435,53 +847,70 @@ public class ProvisionOrchestratorService {
 
                 final String ouName  = Optional.ofNullable(dc.getDomainOu()).filter(s -> !s.isBlank()).orElse("MbfOU");
                 final String group   = "VDIUsers";
-                final String newUser = (instances.size() == 1) ? req.getDomainAccountUsername() : req.getDomainAccountUsername() + "-" + (i + 1);
-                final String newPass = randomStrongPass();
 
                 final String dcWanIp = dc.getIpPublic();
                 final int    dcWinrm = Integer.parseInt(dc.getPortWinRmPublic());
                 final String daUser  = "Administrator";
                 final String daPass  = dc.getPassword();
 
-                boolean okAcc = ansible.runAdAccountBootstrap(
-                        jobId + "_adacct_" + (i+1),
-                        dcWanIp, dcWinrm,
-                        daUser, daPass,
-                        domain, ouName, group, newUser, newPass
-                );
-                if (!okAcc) {
-                    vd = markVDIFailed(vd, "APP_ERROR");
-                    logStep(jobId, vd.getId(), "ad_account_bootstrap", "FAILED",
-                            "/ansible-host/logs/" + jobId + "_adacct_" + (i+1) + ".log");
-                    failed.incrementAndGet();
-                    return;
-                }
-                logStep(jobId, vd.getId(), "ad_account_bootstrap", "SUCCESS",
-                        "/ansible-host/logs/" + jobId + "_adacct_" + (i+1) + ".log");
+                if (!done(cp, ProvisionStep.AD_ACCOUNT)) {
+                    final String acctUser = (total == 1) ? req.getDomainAccountUsername() : req.getDomainAccountUsername() + "-" + (i + 1);
+                    final String acctPass = randomStrongPass();
+
+                    // DC là target WinRM dùng chung cho mọi VM của project → đi qua làn của DC.
+                    // Làn bọc ngoài runStep (như app: làn → scheduler) để thứ tự giữ chỗ luôn giống nhau
+                    StepRetryService.Outcome acc = lanes.run(dcWanIp + ":" + dcWinrm, jobId + "_adacct_" + (i+1),
+                            () -> runStep(req, jobId + "_adacct_" + (i+1), retryBudget,
+                                    () -> ansible.runAdAccountBootstrap(
+                                            jobId + "_adacct_" + (i+1),
+                                            dcWanIp, dcWinrm,
+                                            daUser, daPass,
+                                            domain, ouName, group, acctUser, acctPass
+                                    )));
+                    if (!acc.ok()) {
+                        vd = markVDIFailed(vd, "APP_ERROR");
+                        logStep(jobId, vd.getId(), "ad_account_bootstrap", "FAILED",
+                                "/ansible-host/logs/" + jobId + "_adacct_" + (i+1) + ".log", acc);
+                        finish(cp, false, failed);
+                        return;
+                    }
+                    logStep(jobId, vd.getId(), "ad_account_bootstrap", "SUCCESS",
+                            "/ansible-host/logs/" + jobId + "_adacct_" + (i+1) + ".log", acc);
 
-                vd.setDomainName(domain);
-                vd.setDomainOu(ouName);
-                vd.setDomainAccountUsername(newUser);
-                vd.setDomainAccountPassword(newPass);
-                virtualDesktopService.save(vd);
+                    vd.setDomainName(domain);
+                    vd.setDomainOu(ouName);
+                    vd.setDomainAccountUsername(acctUser);
+                    vd.setDomainAccountPassword(acctPass);
+                    vd = virtualDesktopService.save(vd);
+                    checkpoint(cp, ProvisionStep.AD_ACCOUNT);
+                }
 
-                boolean okJoin = ansible.runJoinDomain(
-                        jobId + "_join_" + (i+1),
-                        vd.getIpPublic(), Integer.parseInt(vd.getPortWinRmPublic()),
-                        usernameOfVdi, vd.getPassword(),
-                        domain, dc.getIpLocal(),
-                        newUser, newPass,
-                        newUser
-                );
-                if (!okJoin) {
-                    vd = markVDIFailed(vd, "APP_ERROR");
-                    logStep(jobId, vd.getId(), "join_domain", "FAILED",
-                            "/ansible-host/logs/" + jobId + "_join_" + (i+1) + ".log");
-                    failed.incrementAndGet();
-                    return;
+                // tài khoản domain đọc lại từ VD → bước join chạy tiếp được sau checkpoint AD_ACCOUNT
+                final String newUser = vd.getDomainAccountUsername();
+                final String newPass = vd.getDomainAccountPassword();
+
+                if (!done(cp, ProvisionStep.JOIN_DOMAIN)) {
+                    final VirtualDesktop joinVd = vd;
+                    StepRetryService.Outcome join = runStep(req, jobId + "_join_" + (i+1), retryBudget,
+                            () -> ansible.runJoinDomain(
+                                    jobId + "_join_" + (i+1),
+                                    joinVd.getIpPublic(), Integer.parseInt(joinVd.getPortWinRmPublic()),
+                                    usernameOfVdi, joinVd.getPassword(),
+                                    domain, dc.getIpLocal(),
+                                    newUser, newPass,
+                                    newUser
+                            ));
+                    if (!join.ok()) {
+                        vd = markVDIFailed(vd, "APP_ERROR");
+                        logStep(jobId, vd.getId(), "join_domain", "FAILED",
+                                "/ansible-host/logs/" + jobId + "_join_" + (i+1) + ".log", join);
+                        finish(cp, false, failed);
+                        return;
+                    }
+                    logStep(jobId, vd.getId(), "join_domain", "SUCCESS",
+                            "/ansible-host/logs/" + jobId + "_join_" + (i+1) + ".log", join);
+                    checkpoint(cp, ProvisionStep.JOIN_DOMAIN);
                 }
-                logStep(jobId, vd.getId(), "join_domain", "SUCCESS",
-                        "/ansible-host/logs/" + jobId + "_join_" + (i+1) + ".log");
 
 //                boolean winrmDisabled = ansible.runWinRmDisable(
 //                        jobId,
@@ -499,16 +928,16 @@ public class ProvisionOrchestratorService {
 //                        winrmDisabled ? "SUCCESS" : "FAILED",
 //                        "/ansible-host/logs/" + jobId + "_winrm_disable.log");
 
-                boolean delOk = ansible.runNatDelete(
-                        jobId + "_winrm_del_" + (i+1),
-                        ipPublic,
-                        Integer.parseInt(vd.getPortWinRmPublic())
-                );
-                logStep(jobId, vd.getId(), "delete_nat_winrm",
-                        delOk ? "SUCCESS" : "FAILED",
-                        "/ansible-host/logs/" + jobId + "_winrm_del_nat_delete.log");
+                if (!done(cp, ProvisionStep.DELETE_NAT_WINRM)) {
+                    final int winRmPort = Integer.parseInt(vd.getPortWinRmPublic());
+                    boolean delOk = pfSense.deleteNat(jobId + "_winrm_del_" + (i+1), natIp, winRmPort).join();
+                    logStep(jobId, vd.getId(), "delete_nat_winrm",
+                            delOk ? "SUCCESS" : "FAILED",
+                            "/ansible-host/logs/" + jobId + "_winrm_del_nat_delete.log");
+                    checkpoint(cp, ProvisionStep.DELETE_NAT_WINRM);
+                }
 
-                success.incrementAndGet();
+                finish(cp, true, success);
                 return;
             }
 
@@ -517,7 +946,7 @@ public class ProvisionOrchestratorService {
             // Mặc định
             vd.setStatus("READY");
             virtualDesktopService.save(vd);
-            success.incrementAndGet();
+            finish(cp, true, success);
 
         } catch (Exception e) {
             logStep(jobId, (vd != null ? vd.getId() : null),
@@ -526,13 +955,13 @@ public class ProvisionOrchestratorService {
             if (vd != null && "CREATED".equals(vd.getStatus())) {
                 markVDIFailed(vd, "ERROR");
             }
-            failed.incrementAndGet();
+            finish(cp, false, failed);
 
             try {
                 if (vd != null && vd.getIpPublic() != null && vd.getPortWinRmPublic() != null) {
-                    ansible.runNatDelete(jobId + "_winrm_del_err_" + (i+1),
+                    pfSense.deleteNat(jobId + "_winrm_del_err_" + (i+1),
                             vd.getIpPublic(),
-                            Integer.parseInt(vd.getPortWinRmPublic()));
+                            Integer.parseInt(vd.getPortWinRmPublic())).join();
                     logStep(jobId, vd.getId(), "delete_nat_winrm_on_error", "INFO",
                             "/ansible-host/logs/" + jobId + "_winrm_del_nat_delete.log");
                 }
@@ -540,6 +969,73 @@ public class ProvisionOrchestratorService {
         }
     }
 
+    // ====== Checkpoint từng VM ======
+
+    /** Lấy/tạo checkpoint; VD đã lưu nhưng chưa kịp ghi checkpoint (crash giữa 2 lệnh) → nhận lại theo instanceId */
+    private VmProvisionState loadCheckpoint(String jobId, int vmIndex, String instanceId) {
+        VmProvisionState cp = stateRepo.findById(jobId + ":" + vmIndex).orElseGet(() -> VmProvisionState.builder()
+                .id(jobId + ":" + vmIndex)
+                .jobId(jobId)
+                .vmIndex(vmIndex)
+                .instanceId(instanceId)
+                .status("RUNNING")
+                .build());
+        if (cp.getVdId() == null) {
+            virtualDesktopService.findByIdInstanceOpt(instanceId)
+                    .filter(v -> jobId.equals(v.getJobId()))
+                    .ifPresent(v -> {
+                        cp.setVdId(v.getId());
+                        cp.setStep(ProvisionStep.SAVE_DB);
+                    });
+        }
+        cp.setUpdatedAt(LocalDateTime.now());
+        return stateRepo.save(cp);
+    }
+
+    private boolean done(VmProvisionState cp, ProvisionStep step) {
+        return cp.getStep() != null && cp.getStep().reached(step);
+    }
+
+    private void checkpoint(VmProvisionState cp, ProvisionStep step) {
+        cp.setStep(step);
+        cp.setUpdatedAt(LocalDateTime.now());
+        saveState(cp);
+    }
+
+    /** VM kết thúc (READY/FAILED): job chạy tiếp sau này chỉ đếm lại, không chạy lại */
+    private void finish(VmProvisionState cp, boolean ok, AtomicInteger counter) {
+        if (ok) {
+            cp.setStep(ProvisionStep.READY);
+            try {
+                if (jobRepo.markFirstReady(cp.getJobId(), LocalDateTime.now()) == 1) {
+                    log.info("[{}] first desktop ready: vm#{}", cp.getJobId(), cp.getVmIndex() + 1);
+                }
+            } catch (Exception e) {
+                log.warn("[{}] cannot record first ready: {}", cp.getJobId(), e.getMessage());
+            }
+        }
+        cp.setStatus(ok ? "READY" : "FAILED");
+        cp.setUpdatedAt(LocalDateTime.now());
+        saveState(cp);
+        counter.incrementAndGet();
+    }
+
+    private void saveState(VmProvisionState cp) {
+        try {
+            stateRepo.save(cp);
+        } catch (Exception e) {
+            log.warn("[{}] cannot save checkpoint {} → {}: {}", cp.getJobId(), cp.getId(), cp.getStep(), e.getMessage());
+        }
+    }
+
+    private Set<String> installedApps(String jobId, String vdId) {
+        Set<String> codes = new HashSet<>();
+        for (AppDeployment ad : appDeploymentService.findByJobId(jobId)) {
+            if (vdId.equals(ad.getVdId()) && "SUCCESS".equals(ad.getStatus())) codes.add(ad.getAppCode());
+        }
+        return codes;
+    }
+
 
     // ====== Helpers mới (đặt trong class) ======
     private boolean planHasDomainController(ProvisionAndConfigureRequest req) {
@@ -578,17 +1074,168 @@ public class ProvisionOrchestratorService {
         return virtualDesktopService.save(vd);
     }
 
-    private void safeSleep() {
-        try { Thread.sleep(10000); } catch (InterruptedException ignored) {}
+    /** Tenant cho fair-queue của scheduler: project (org) hoặc user (personal) */
+    private String tenantOf(ProvisionAndConfigureRequest req) {
+        if (req.getProjectId() != null && !req.getProjectId().isBlank()) return "project:" + req.getProjectId();
+        return "user:" + req.getUserId();
     }
 
-    // ====== Run một app theo AppDefinition + validate requiredVars ======
-    private boolean runApp(String jobId, VirtualDesktop vd, AppPlanRequest plan, String usernameOfVdi) {
-        // 1) Lấy AppDefinition & validate biến bắt buộc
-        AppDefinition def = appDefinitionService.getEntityByCodeOrThrow(plan.getCode());
-        ensureRequiredVars(def, plan);
+    /** Bước ansible trên VM: retry tại chỗ khi lỗi transient, trừ ngân sách retry của VM */
+    private StepRetryService.Outcome runStep(ProvisionAndConfigureRequest req, String label, AtomicInteger retryBudget,
+                                             Supplier<AnsibleRunnerService.RunOutcome> call) {
+        return stepRetry.run(label, retryScheduler.stepPolicy(), retryBudget, tenantOf(req), Priority.APP, label, call);
+    }
 
-        // 2) Gộp biến cho ansible
+    /** Chờ chỗ bring-up (FIFO); chờ lâu thì ghi log để thấy giới hạn đang nghẽn */
+    private BringUpPermit acquireBringUp(String jobId, int vmIndex, boolean needed) throws InterruptedException {
+        if (!needed) return new BringUpPermit(null);
+        long t0 = System.currentTimeMillis();
+        bringUp.acquire();
+        long waited = System.currentTimeMillis() - t0;
+        if (waited > 1000) {
+            log.info("[{}] vm#{} bring-up admitted after {} ms", jobId, vmIndex + 1, waited);
+        }
+        return new BringUpPermit(bringUp);
+    }
+
+    /** Chỗ bring-up của 1 VM: nhả sớm khi NAT xong, close lần nữa (cuối try) vô hại */
+    private static final class BringUpPermit implements AutoCloseable {
+        Semaphore sem;
+
+        BringUpPermit(Semaphore sem) {
+            this.sem = sem;
+        }
+
+        @Override
+        public void close() {
+            if (sem == null) return;
+            sem.release();
+            sem = null;
+        }
+    }
+
+    // ====== Chạy các app của 1 VM qua làn của endpoint WinRM ======
+    /**
+     * App độc lập chạy song song trong giới hạn làn (ansible.lanes.max-per-target);
+     * dependsOn/after: chờ app trước xong và thành công (thất bại → app sau bị bỏ qua, FAILED);
+     * conflictsWith: không chạy đồng thời, app đứng sau trong plan chờ app đứng trước.
+     * Xếp vào làn tuần tự theo thứ tự topo ổn định → mọi VM của job vào làn cùng thứ tự (batch không kẹt chéo).
+     */
+    private List<Boolean> runApps(String jobId, int vmIndex, VirtualDesktop vd, List<AppPlanRequest> apps,
+                                  String usernameOfVdi, String tenant, AtomicInteger retryBudget,
+                                  Set<String> installed) {
+        if (apps == null || apps.isEmpty()) return List.of();
+        Map<AppPlanRequest, AppDefinition> defs = new IdentityHashMap<>();
+        for (AppPlanRequest plan : apps) {
+            AppDefinition def = appDefinitionService.getEntityByCodeOrThrow(plan.getCode());
+            ensureRequiredVars(def, plan);
+            defs.put(plan, def);
+        }
+
+        String target = vd.getIpPublic() + ":" + vd.getPortWinRmPublic();
+        Map<String, CompletableFuture<Boolean>> byCode = new HashMap<>();
+        Map<String, AppDefinition> started = new HashMap<>();
+        List<CompletableFuture<Boolean>> all = new ArrayList<>();
+        for (AppPlanRequest plan : orderApps(apps, defs)) {
+            AppDefinition def = defs.get(plan);
+            if (installed.contains(def.getCode())) {
+                // đã cài xong trước khi job bị gián đoạn
+                CompletableFuture<Boolean> done = CompletableFuture.completedFuture(true);
+                byCode.put(def.getCode(), done);
+                started.put(def.getCode(), def);
+                all.add(done);
+                continue;
+            }
+            List<CompletableFuture<Boolean>> deps = new ArrayList<>();
+            for (String code : requiredBefore(def, plan)) {
+                CompletableFuture<Boolean> f = byCode.get(code);
+                if (f != null) deps.add(f);
+            }
+            List<CompletableFuture<Boolean>> conflicts = new ArrayList<>();
+            started.forEach((code, other) -> {
+                if (conflicts(def, other)) conflicts.add(byCode.get(code));
+            });
+
+            // chờ trên thread của VM (virtual thread) rồi mới xếp vào làn → giữ đúng thứ tự xếp hàng
+            List<CompletableFuture<Boolean>> gate = new ArrayList<>(deps);
+            gate.addAll(conflicts);
+            CompletableFuture.allOf(gate.toArray(CompletableFuture[]::new)).exceptionally(ex -> null).join();
+
+            CompletableFuture<Boolean> f;
+            if (!deps.stream().allMatch(d -> !d.isCompletedExceptionally() && d.join())) {
+                f = CompletableFuture.completedFuture(skipApp(jobId, vd, def, plan));
+            } else {
+                String subJobId = jobId + "_" + def.getCode();
+                f = lanes.submit(target, subJobId + "_" + (vmIndex + 1),
+                        () -> runApp(jobId, vmIndex, vd, def, plan, usernameOfVdi, tenant, retryBudget));
+            }
+            byCode.put(def.getCode(), f);
+            started.put(def.getCode(), def);
+            all.add(f);
+        }
+
+        return all.stream().map(f -> {
+            try {
+                return f.join();
+            } catch (CompletionException ce) {
+                if (ce.getCause() instanceof RuntimeException re) throw re;
+                throw ce;
+            }
+        }).toList();
+    }
+
+    /** Sắp xếp topo ổn định theo thứ tự plan; phụ thuộc ngoài plan bỏ qua, vòng lặp → giữ thứ tự plan */
+    private List<AppPlanRequest> orderApps(List<AppPlanRequest> apps, Map<AppPlanRequest, AppDefinition> defs) {
+        Set<String> codes = new HashSet<>();
+        apps.forEach(p -> codes.add(defs.get(p).getCode()));
+        List<AppPlanRequest> pending = new ArrayList<>(apps);
+        List<AppPlanRequest> out = new ArrayList<>();
+        Set<String> done = new HashSet<>();
+        while (!pending.isEmpty()) {
+            AppPlanRequest next = pending.stream()
+                    .filter(p -> requiredBefore(defs.get(p), p).stream()
+                            .allMatch(c -> !codes.contains(c) || done.contains(c)))
+                    .findFirst()
+                    .orElse(null);
+            if (next == null) {
+                log.warn("Cyclic app dependencies in plan {} → keep plan order",
+                        pending.stream().map(AppPlanRequest::getCode).toList());
+                next = pending.get(0);
+            }
+            pending.remove(next);
+            out.add(next);
+            done.add(defs.get(next).getCode());
+        }
+        return out;
+    }
+
+    private Set<String> requiredBefore(AppDefinition def, AppPlanRequest plan) {
+        Set<String> codes = new LinkedHashSet<>();
+        if (def.getDependsOn() != null) codes.addAll(def.getDependsOn());
+        if (plan.getAfter() != null) codes.addAll(plan.getAfter());
+        codes.remove(def.getCode());
+        return codes;
+    }
+
+    private boolean conflicts(AppDefinition a, AppDefinition b) {
+        return (a.getConflictsWith() != null && a.getConflictsWith().contains(b.getCode()))
+                || (b.getConflictsWith() != null && b.getConflictsWith().contains(a.getCode()));
+    }
+
+    /** App phụ thuộc vào app đã thất bại → không chạy, đánh dấu FAILED */
+    private boolean skipApp(String jobId, VirtualDesktop vd, AppDefinition def, AppPlanRequest plan) {
+        AppDeployment ad = stepSeedIfAbsent(jobId, vd, def, plan);
+        ad.setStatus("FAILED");
+        ad.setFinishedAt(LocalDateTime.now());
+        appDeploymentService.save(ad);
+        logStep(jobId, vd.getId(), "install:" + def.getCode(), "FAILED", "skipped: dependency failed");
+        return false;
+    }
+
+    // ====== Run một app theo AppDefinition (requiredVars đã validate ở runApps) ======
+    private boolean runApp(String jobId, int vmIndex, VirtualDesktop vd, AppDefinition def, AppPlanRequest plan,
+                           String usernameOfVdi, String tenant, AtomicInteger retryBudget) {
+        // 1) Gộp biến cho ansible
         Map<String, Object> merged = new LinkedHashMap<>();
         if (plan.getVars() != null) merged.putAll(plan.getVars());
         if (plan.getWinVersion() != null)   merged.put("win_version", plan.getWinVersion());
@@ -597,29 +1244,43 @@ public class ProvisionOrchestratorService {
 
         String subJobId = jobId + "_" + def.getCode();
 
-        // 3) Lấy/tạo AppDeployment
+        // 2) Lấy/tạo AppDeployment
         AppDeployment ad = stepSeedIfAbsent(jobId, vd, def, plan);
 
-        // 4) Đánh dấu RUNNING
+        // 3) Đánh dấu RUNNING
         ad.setStatus("RUNNING");
         ad.setStartedAt(LocalDateTime.now());
         appDeploymentService.save(ad); // <-- thay appRepo
 
         logStep(jobId, vd.getId(), "install:" + def.getCode(), "INFO", "start");
 
-        // 5) Chạy ansible
-        boolean ok = ansible.runPlanForApp(
-                subJobId, def, vd.getIpPublic(), Integer.parseInt(vd.getPortWinRmPublic()),
-                usernameOfVdi, vd.getPassword(), merged
-        );
+        // 4) Chạy ansible (gom nhiều VM vào 1 playbook nếu job đang batching)
+        StepRetryService.Outcome res;
+        if (appBatcher.isOpen(jobId)) {
+            AnsibleHostTarget target = AnsibleHostTarget.builder()
+                    .alias("vd_" + vd.getId().replace("-", ""))
+                    .ip(vd.getIpPublic())
+                    .port(Integer.parseInt(vd.getPortWinRmPublic()))
+                    .user(usernameOfVdi)
+                    .pass(vd.getPassword())
+                    .build();
+            res = appBatcher.submit(jobId, vmIndex, def, merged, target, retryBudget).join();
+        } else {
+            res = stepRetry.run(subJobId + "_" + (vmIndex + 1), retryScheduler.appPolicy(), retryBudget,
+                    tenant, Priority.APP, subJobId, () -> ansible.runPlanForApp(
+                            subJobId, def, vd.getIpPublic(), Integer.parseInt(vd.getPortWinRmPublic()),
+                            usernameOfVdi, vd.getPassword(), merged
+                    ));
+        }
+        boolean ok = res.ok();
 
-        // 6) Lưu kết quả
+        // 5) Lưu kết quả
         ad.setStatus(ok ? "SUCCESS" : "FAILED");
         ad.setFinishedAt(LocalDateTime.now());
         ad.setLogPath("/ansible-host/logs/" + subJobId + ".log");
         appDeploymentService.save(ad); // <-- thay appRepo
 
-        logStep(jobId, vd.getId(), "install:" + def.getCode(), ok ? "SUCCESS" : "FAILED", ad.getLogPath());
+        logStep(jobId, vd.getId(), "install:" + def.getCode(), ok ? "SUCCESS" : "FAILED", ad.getLogPath(), res);
         return ok;
     }
 
@@ -766,6 +1427,24 @@ public class ProvisionOrchestratorService {
     }
 
     private void logStep(String jobId, String vdId, String step, String status, String detail) {
+        logStep(jobId, vdId, step, status, detail, null, null);
+    }
+
+    private void logStep(String jobId, String vdId, String step, String status, String detail,
+                         StepRetryService.Outcome outcome) {
+        logStep(jobId, vdId, step, status, detail,
+                outcome == null ? null : outcome.failureClass(), outcome == null ? null : outcome.attempts());
+    }
+
+    private void logStep(String jobId, String vdId, String step, String status, String detail,
+                         RetryAttemptResponse attempt) {
+        logStep(jobId, vdId, step, status, detail,
+                attempt == null || attempt.getFailureClass() == null ? null : FailureClass.valueOf(attempt.getFailureClass()),
+                attempt == null ? null : attempt.getAttempt());
+    }
+
+    private void logStep(String jobId, String vdId, String step, String status, String detail,
+                         FailureClass failureClass, Integer attempts) {
         JobStepLog j = JobStepLog.builder()
                 .id(UUID.randomUUID().toString())
                 .jobId(jobId)
@@ -773,18 +1452,15 @@ public class ProvisionOrchestratorService {
                 .step(step)
                 .status(status)
                 .detail(clamp(detail, MAX_DETAIL_LEN))
+                .failureClass(failureClass)
+                .attempts(attempts)
                 .createdAt(LocalDateTime.now())
                 .build();
-        try {
-            stepRepo.save(j);
-        } catch (Exception e) {
-            j.setDetail(clamp(j.getDetail(), 500));
-            try { stepRepo.save(j); } catch (Exception ignored) {}
-        }
+        stepJournal.append(j);   // không ghi DB trên thread của VM; lỗi ghi xử lý ở writer
     }
 
     private String buildSummary(String jobId) {
-        List<JobStepLog> steps = stepRepo.findByJobIdOrderByCreatedAtAsc(jobId);
+        List<JobStepLog> steps = stepJournal.steps(jobId);
         Map<String, List<JobStepLog>> byVd = new LinkedHashMap<>();
         for (JobStepLog s : steps) {
             String key = s.getVdId() == null ? "__job__" : s.getVdId();
@@ -814,11 +1490,15 @@ public class ProvisionOrchestratorService {
         return sb.toString().trim();
     }
 
+    private static Long millisBetween(LocalDateTime from, LocalDateTime to) {
+        return from == null || to == null ? null : Duration.between(from, to).toMillis();
+    }
+
     public JobStatusResponse getStatus(String jobId) {
         DeploymentJob job = jobRepo.findById(jobId)
                 .orElseThrow(() -> new AppException(ErrorCode.ANSIBLE_JOB_NOT_FOUND));
         List<VirtualDesktop> vds = virtualDesktopService.findByJobId(jobId); // bạn có thể bọc thêm method này trong service
-        List<JobStepLog> steps = stepRepo.findByJobIdOrderByCreatedAtAsc(jobId);
+        List<JobStepLog> steps = stepJournal.steps(jobId);
 
         Map<String, List<JobStepLog>> stepsByVd = new HashMap<>();
         for (JobStepLog s : steps) {
@@ -843,6 +1523,8 @@ public class ProvisionOrchestratorService {
                             .step(s.getStep())
                             .status(s.getStatus())
                             .detail(s.getDetail())
+                            .failureClass(s.getFailureClass() == null ? null : s.getFailureClass().name())
+                            .attempts(s.getAttempts())
                             .at(s.getCreatedAt())
                             .build())
                     .toList();
@@ -869,6 +1551,8 @@ public class ProvisionOrchestratorService {
                         .step(s.getStep())
                         .status(s.getStatus())
                         .detail(s.getDetail())
+                        .failureClass(s.getFailureClass() == null ? null : s.getFailureClass().name())
+                        .attempts(s.getAttempts())
                         .at(s.getCreatedAt())
                         .build())
                 .toList();
@@ -881,6 +1565,11 @@ public class ProvisionOrchestratorService {
                 .successVMs(job.getSuccessVms())
                 .failedVMs(job.getFailedVms())
                 .message(job.getMessage())
+                .createdAt(job.getCreatedAt())
+                .firstReadyAt(job.getFirstReadyAt())
+                .finishedAt(job.getFinishedAt())
+                .timeToFirstDesktopMs(millisBetween(job.getCreatedAt(), job.getFirstReadyAt()))
+                .makespanMs(millisBetween(job.getCreatedAt(), job.getFinishedAt()))
                 .steps(jobTimeline)
                 .virtualDesktops(vdSnaps)
                 .build();
@@ -1,6 +1,7 @@
 package com.mobifone.vdi.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mobifone.vdi.dto.response.InfraInstanceEvent;
 import com.mobifone.vdi.dto.response.InfraSuccessEvent;
 import com.mobifone.vdi.entity.ProvisionTask;
 import com.mobifone.vdi.entity.enumeration.TaskStatus;
@@ -30,14 +31,17 @@ public class ProvisionPersistService {
     ProvisionSignalBus signalBus;
     VirtualDesktopService virtualDesktopService;
     ProjectCascadeService projectCascadeService;
-    AnsibleRunnerService ansible;
+    PfSenseControlPlane pfSense;
 
     public void createProvisioning(String taskId, int count) {
-        ProvisionTask t = ProvisionTask.builder()
-                .taskId(taskId)
-                .status(TaskStatus.PROVISIONING)
-                .build();
-        repo.save(t);
+        // gọi lại cùng identifier (retry/chạy tiếp) → giữ task cũ, không insert trùng task_id
+        if (repo.findByTaskId(taskId).isEmpty()) {
+            ProvisionTask t = ProvisionTask.builder()
+                    .taskId(taskId)
+                    .status(TaskStatus.PROVISIONING)
+                    .build();
+            repo.save(t);
+        }
         tracker.register(taskId, count);
     }
 
@@ -99,24 +103,20 @@ public class ProvisionPersistService {
                         String rdp = vd.getPortPublic();
                         String win = vd.getPortWinRmPublic();
 
-                        // RDP NAT
-                        if (wan != null && !wan.isBlank() && rdp != null && rdp.matches("\\d+")) {
-                            try {
-                                boolean delRdp = ansible.runNatDelete(taskId + "_rdp_del", wan, Integer.parseInt(rdp));
-                                log.info("[DeleteResult] NAT delete RDP {}:{} => {}", wan, rdp, delRdp ? "OK" : "FAILED");
-                            } catch (Exception ex) {
-                                log.warn("[DeleteResult] NAT delete RDP error: {}", ex.getMessage());
+                        // RDP + WinRM NAT: gửi cùng lúc → chung 1 batch pfSense
+                        var delRdp = (wan != null && !wan.isBlank() && rdp != null && rdp.matches("\\d+"))
+                                ? pfSense.deleteNat(taskId + "_rdp_del", wan, Integer.parseInt(rdp)) : null;
+                        var delWin = (wan != null && !wan.isBlank() && win != null && win.matches("\\d+"))
+                                ? pfSense.deleteNat(taskId + "_winrm_del", wan, Integer.parseInt(win)) : null;
+                        try {
+                            if (delRdp != null) {
+                                log.info("[DeleteResult] NAT delete RDP {}:{} => {}", wan, rdp, delRdp.join() ? "OK" : "FAILED");
                             }
-                        }
-
-                        // WinRM NAT
-                        if (wan != null && !wan.isBlank() && win != null && win.matches("\\d+")) {
-                            try {
-                                boolean delWin = ansible.runNatDelete(taskId + "_winrm_del", wan, Integer.parseInt(win));
-                                log.info("[DeleteResult] NAT delete WINRM {}:{} => {}", wan, win, delWin ? "OK" : "FAILED");
-                            } catch (Exception ex) {
-                                log.warn("[DeleteResult] NAT delete WINRM error: {}", ex.getMessage());
+                            if (delWin != null) {
+                                log.info("[DeleteResult] NAT delete WINRM {}:{} => {}", wan, win, delWin.join() ? "OK" : "FAILED");
                             }
+                        } catch (Exception ex) {
+                            log.warn("[DeleteResult] NAT delete error: {}", ex.getMessage());
                         }
                     });
 
@@ -126,9 +126,10 @@ public class ProvisionPersistService {
                     // ================== CASE 2: DESTROY PROJECT/INFRA ==================
                 } else if (projectId != null && !projectId.isBlank()) {
 
-                    // 2.1 XÓA NAT CHO TẤT CẢ VDI TRONG PROJECT
+                    // 2.1 XÓA NAT CHO TẤT CẢ VDI TRONG PROJECT – 1 lần apply pfSense cho cả project
                     try {
                         var VDIs = virtualDesktopService.findAllByProject(projectId);
+                        List<NatRule> rules = new ArrayList<>();
                         for (var vd : VDIs) {
                             String wan = vd.getIpPublic();
                             String rdp = vd.getPortPublic();
@@ -137,27 +138,19 @@ public class ProvisionPersistService {
                             if (wan == null || wan.isBlank()) continue;
 
                             if (rdp != null && rdp.matches("\\d+")) {
-                                try {
-                                    boolean delRdp = ansible.runNatDelete(taskId + "_proj_rdp_" + vd.getId(), wan, Integer.parseInt(rdp));
-                                    log.info("[DeleteResult] [Project {}] NAT delete RDP {}:{} => {}",
-                                            projectId, wan, rdp, delRdp ? "OK" : "FAILED");
-                                } catch (Exception ex) {
-                                    log.warn("[DeleteResult] [Project {}] NAT delete RDP error for vd {}: {}",
-                                            projectId, vd.getId(), ex.getMessage());
-                                }
+                                rules.add(NatRule.builder().action(NatRule.Action.DELETE)
+                                        .runId(taskId + "_proj_rdp_" + vd.getId())
+                                        .wanIp(wan).port(Integer.parseInt(rdp)).build());
                             }
-
                             if (win != null && win.matches("\\d+")) {
-                                try {
-                                    boolean delWin = ansible.runNatDelete(taskId + "_proj_winrm_" + vd.getId(), wan, Integer.parseInt(win));
-                                    log.info("[DeleteResult] [Project {}] NAT delete WINRM {}:{} => {}",
-                                            projectId, wan, win, delWin ? "OK" : "FAILED");
-                                } catch (Exception ex) {
-                                    log.warn("[DeleteResult] [Project {}] NAT delete WINRM error for vd {}: {}",
-                                            projectId, vd.getId(), ex.getMessage());
-                                }
+                                rules.add(NatRule.builder().action(NatRule.Action.DELETE)
+                                        .runId(taskId + "_proj_winrm_" + vd.getId())
+                                        .wanIp(wan).port(Integer.parseInt(win)).build());
                             }
                         }
+                        pfSense.applyNow(rules).forEach((rule, delOk) ->
+                                log.info("[DeleteResult] [Project {}] NAT delete {} => {}",
+                                        projectId, rule.key(), delOk ? "OK" : "FAILED"));
                     } catch (Exception ex) {
                         log.warn("[DeleteResult] NAT cleanup for project {} failed: {}", projectId, ex.getMessage());
                     }
@@ -292,6 +285,59 @@ public class ProvisionPersistService {
         signalBus.complete(taskId, task);
     }
 
+    /**
+     * Event từng phần: ghi thêm instance vào danh sách của task đang PROVISIONING (chạy tiếp sau restart đọc lại được)
+     * rồi báo orchestrator đưa VM đó vào pipeline ngay. Event cuối (handleSuccess) ghi đè danh sách đầy đủ.
+     */
+    public synchronized void handleInstanceReady(InfraInstanceEvent event) {
+        final String taskId = event.getIdentifier();
+        InfraSuccessEvent.Attributes a = event.getInstance();
+        if (taskId == null || a == null || a.getId() == null) {
+            log.warn("[InfraInstance] event missing identifier/instance id: {}", event);
+            return;
+        }
+        ProvisionTask task = repo.findByTaskId(taskId).orElse(null);
+        if (task == null || task.getStatus() != TaskStatus.PROVISIONING) {
+            log.info("[InfraInstance] task {} not provisioning → ignore instance {}", taskId, a.getId());
+            return;
+        }
+        List<Map<String, Object>> instances = readInstances(task.getInstanceFloatingPairs());
+        if (instances.stream().anyMatch(m -> a.getId().equals(String.valueOf(m.get("instance_id"))))) return;
+
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("instance_id", a.getId());
+        m.put("access_ip_v4", a.getAccessIpV4());
+        m.put("fixed_ip_v4", a.getFixedIpV4());
+        m.put("infra_id", event.getInfraId());
+        instances.add(m);
+        try {
+            task.setInstanceFloatingPairs(om.writeValueAsString(instances));
+        } catch (Exception e) {
+            log.warn("[InfraInstance] cannot serialize instances of {}: {}", taskId, e.getMessage());
+            return;
+        }
+        repo.save(task);
+        log.info("[InfraInstance] task {} instance {} ready ({} so far)", taskId, a.getId(), instances.size());
+        signalBus.instanceReady(taskId, m);
+    }
+
+    /** Instance đã báo từng phần của task còn PROVISIONING (rỗng nếu task đã xong/không có) */
+    public List<Map<String, Object>> reportedInstances(String taskId) {
+        return repo.findByTaskId(taskId)
+                .filter(t -> t.getStatus() == TaskStatus.PROVISIONING)
+                .map(t -> readInstances(t.getInstanceFloatingPairs()))
+                .orElseGet(List::of);
+    }
+
+    private List<Map<String, Object>> readInstances(String json) {
+        if (json == null || json.isBlank()) return new ArrayList<>();
+        try {
+            return om.readValue(json, new com.fasterxml.jackson.core.type.TypeReference<List<Map<String, Object>>>() {});
+        } catch (Exception e) {
+            return new ArrayList<>();
+        }
+    }
+
     /** Lấy public IP từ pfsense_config.network (mạng chứa EXTCLOUD_PROVIDER) */
     private String extractOrgProviderIp(InfraSuccessEvent.PfsenseConfig cfg) {
         if (cfg == null || cfg.getNetwork() == null) return null;
@@ -0,0 +1,137 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.entity.DeploymentJob;
+import com.mobifone.vdi.repository.DeploymentJobRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nhận lại job provision bị gián đoạn (node chết/restart giữa chừng):
+ * - node đang chạy job ghi heartbeat định kỳ lên deployment_job
+ * - job PENDING/RUNNING/SUBMITTING có heartbeat cũ hơn stale-seconds = không còn ai chạy
+ * - claim bằng 1 câu update có điều kiện → nhiều node quét cùng lúc chỉ 1 node nhận được
+ * - node nhận job gọi orchestrator.resume: chạy tiếp từ checkpoint của từng VM
+ * Heartbeat chạy trên thread riêng: scheduler chung của Spring còn các job chặn theo SSH
+ * (journal flush, artifact GC, compact index) → heartbeat không được xếp hàng sau chúng.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class ProvisionRecoveryWorker {
+
+    DeploymentJobRepository jobRepo;
+    ProvisionOrchestratorService orchestrator;
+
+    String node = nodeId();
+
+    ScheduledExecutorService beat = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "provision-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @NonFinal
+    @Value("${provision.recovery.enabled:true}")
+    boolean enabled;
+
+    @NonFinal
+    @Value("${provision.recovery.stale-seconds:120}")
+    long staleSeconds;
+
+    @NonFinal
+    @Value("${provision.recovery.heartbeat-ms:30000}")
+    long heartbeatMs;
+
+    /** Thời gian 1 lần heartbeat có thể bị chặn tối đa (chờ connection Hikari + câu update) */
+    @NonFinal
+    @Value("${provision.recovery.heartbeat-max-block-ms:${spring.datasource.hikari.connection-timeout:30000}}")
+    long heartbeatMaxBlockMs;
+
+    @PostConstruct
+    void start() {
+        validate(staleSeconds, heartbeatMs, heartbeatMaxBlockMs);
+        beat.scheduleWithFixedDelay(this::heartbeat, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        beat.shutdownNow();
+    }
+
+    /**
+     * stale-seconds phải đủ cho 2 nhịp heartbeat + 1 lần bị chặn tối đa; nhỏ hơn thì node còn sống
+     * cũng có thể bị coi là chết → 2 node cùng chạy 1 job.
+     */
+    static void validate(long staleSeconds, long heartbeatMs, long maxBlockMs) {
+        if (heartbeatMs <= 0) {
+            throw new IllegalStateException("provision.recovery.heartbeat-ms must be > 0");
+        }
+        long minStaleMs = 2 * heartbeatMs + maxBlockMs;
+        if (TimeUnit.SECONDS.toMillis(staleSeconds) < minStaleMs) {
+            throw new IllegalStateException(String.format(
+                    "provision.recovery.stale-seconds=%d too small: need >= %d s (2 x heartbeat-ms %d + max block %d ms)",
+                    staleSeconds, TimeUnit.MILLISECONDS.toSeconds(minStaleMs + 999), heartbeatMs, maxBlockMs));
+        }
+    }
+
+    public void heartbeat() {
+        Set<String> ids = orchestrator.activeJobs();
+        if (ids.isEmpty()) return;
+        try {
+            jobRepo.heartbeat(ids, node, LocalDateTime.now());
+        } catch (Exception e) {
+            log.warn("[recovery] heartbeat for {} jobs failed: {}", ids.size(), e.getMessage());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${provision.recovery.scan-ms:60000}",
+            initialDelayString = "${provision.recovery.initial-delay-ms:15000}")
+    public void scan() {
+        if (!enabled) return;
+        Set<String> mine = orchestrator.activeJobs();
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime staleBefore = now.minusSeconds(staleSeconds);
+
+        List<DeploymentJob> open = jobRepo.findByStatusIn(List.of("PENDING", "RUNNING", "SUBMITTING"));
+        for (DeploymentJob job : open) {
+            if (mine.contains(job.getId())) continue;
+            if (job.getHeartbeatAt() != null && !job.getHeartbeatAt().isBefore(staleBefore)) continue;
+            try {
+                if (jobRepo.claim(job.getId(), node, now, staleBefore) != 1) continue;
+                log.info("[recovery] claimed job {} (last heartbeat {} by {})",
+                        job.getId(), job.getHeartbeatAt(), job.getOwnerNode());
+                orchestrator.resume(job.getId());
+            } catch (Exception e) {
+                log.warn("[recovery] cannot resume job {}: {}", job.getId(), e.getMessage());
+            }
+        }
+    }
+
+    private static String nodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "unknown";
+        }
+        return host + ":" + ManagementFactory.getRuntimeMXBean().getPid();
+    }
+}
@@ -0,0 +1,307 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.dto.response.RetryAttemptResponse;
+import com.mobifone.vdi.entity.enumeration.FailureClass;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Retry/backoff dùng chung toàn process:
+ * - 1 timer duy nhất (delay queue) giữ các lần retry đang chờ, không tốn thread nào cho mỗi job
+ * - mỗi attempt chạy trên virtual thread
+ * - backoff luỹ thừa + jitter, lưu lịch sử attempt theo key (jobId/runId)
+ * - bản có phân loại lỗi: chỉ retry lớp transient, trừ vào ngân sách retry dùng chung (vd: của 1 VM)
+ */
+@Service
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class RetryScheduler {
+
+    /** 1 lần thử; trả true nếu thành công */
+    @FunctionalInterface
+    public interface Attempt {
+        boolean run(int attemptNo) throws Exception;
+    }
+
+    /** 1 lần thử có phân loại: null nếu thành công, ngược lại lớp lỗi (chỉ lớp transient mới retry) */
+    @FunctionalInterface
+    public interface ClassifiedAttempt {
+        FailureClass run(int attemptNo) throws Exception;
+    }
+
+    /** Hook sau mỗi attempt (ghi log marker, cập nhật DB ...) */
+    @FunctionalInterface
+    public interface Listener {
+        void onAttempt(RetryAttemptResponse record);
+    }
+
+    @Getter
+    @Builder(toBuilder = true)
+    public static class Policy {
+        int maxAttempts;          // tổng số lần chạy (>= 1)
+        long baseDelayMs;
+        long maxDelayMs;
+        double multiplier;
+        double jitter;            // 0.2 → delay ±20%
+        AtomicInteger budget;     // số retry còn lại dùng chung nhiều bước (null = không giới hạn)
+    }
+
+    @NonFinal @Value("${ansible.max-retries:1}")
+    int jobMaxRetries;
+
+    @NonFinal @Value("${ansible.retry-backoff-ms:10000}")
+    long baseDelayMs;
+
+    @NonFinal @Value("${ansible.retry.max-delay-ms:120000}")
+    long maxDelayMs;
+
+    @NonFinal @Value("${ansible.retry.multiplier:2.0}")
+    double multiplier;
+
+    @NonFinal @Value("${ansible.retry.jitter:0.2}")
+    double jitter;
+
+    @NonFinal @Value("${ansible.retry.nat.max-attempts:3}")
+    int natMaxAttempts;
+
+    @NonFinal @Value("${ansible.retry.app.max-attempts:2}")
+    int appMaxAttempts;
+
+    @NonFinal @Value("${ansible.retry.step.max-attempts:3}")
+    int stepMaxAttempts;
+
+    @NonFinal @Value("${ansible.retry.budget-per-vm:4}")
+    int budgetPerVm;
+
+    @NonFinal @Value("${ansible.retry.history-keys:2000}")
+    int historyKeys;
+
+    final ScheduledThreadPoolExecutor timer;
+    final Map<String, Execution> active = new ConcurrentHashMap<>();
+    final Map<String, List<RetryAttemptResponse>> history = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<RetryAttemptResponse>> eldest) {
+            return size() > Math.max(1, historyKeys);
+        }
+    };
+
+    public RetryScheduler() {
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "retry-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    // ===================== POLICIES =====================
+
+    /** Job ansible từ MQ: 1 + ansible.max-retries lần */
+    public Policy jobPolicy() {
+        return policy(jobMaxRetries + 1);
+    }
+
+    public Policy natPolicy() {
+        return policy(natMaxAttempts);
+    }
+
+    public Policy appPolicy() {
+        return policy(appMaxAttempts);
+    }
+
+    /** Bước orchestrator có phân loại lỗi (DC bootstrap, join domain...) */
+    public Policy stepPolicy() {
+        return policy(stepMaxAttempts);
+    }
+
+    /** Ngân sách retry mới cho 1 VM: mọi bước của VM trừ chung, hết thì lỗi transient cũng dừng */
+    public AtomicInteger vmBudget() {
+        return new AtomicInteger(Math.max(0, budgetPerVm));
+    }
+
+    private Policy policy(int attempts) {
+        return Policy.builder()
+                .maxAttempts(Math.max(1, attempts))
+                .baseDelayMs(baseDelayMs)
+                .maxDelayMs(maxDelayMs)
+                .multiplier(multiplier)
+                .jitter(jitter)
+                .build();
+    }
+
+    // ===================== API =====================
+
+    /** Chạy bất đồng bộ với retry; future = kết quả cuối cùng (false nếu hết lượt / bị cancel) */
+    public CompletableFuture<Boolean> execute(String key, Policy policy, Attempt attempt, Listener listener) {
+        // không phân loại → mọi thất bại đều được retry
+        return start(new Execution(key, policy, nth -> attempt.run(nth) ? null : FailureClass.UNKNOWN, listener, false), 0);
+    }
+
+    /** Như execute nhưng chỉ retry lỗi transient; lỗi khác dừng ngay (không đốt thời gian + ngân sách) */
+    public CompletableFuture<Boolean> executeClassified(String key, Policy policy, ClassifiedAttempt attempt, Listener listener) {
+        return executeClassified(key, policy, attempt, listener, 0);
+    }
+
+    /** firstDelayMs > 0: attempt đầu cũng chờ trên timer (lần chạy trước đó đã lỗi ở nơi khác, vd run nhiều host) */
+    public CompletableFuture<Boolean> executeClassified(String key, Policy policy, ClassifiedAttempt attempt,
+                                                        Listener listener, long firstDelayMs) {
+        return start(new Execution(key, policy, attempt, listener, true), firstDelayMs);
+    }
+
+    private CompletableFuture<Boolean> start(Execution ex, long firstDelayMs) {
+        String key = ex.key;
+        active.put(key, ex);
+        ex.result.whenComplete((r, e) -> active.remove(key, ex));
+        ex.schedule(firstDelayMs);
+        return ex.result;
+    }
+
+    /** Chạy và chờ kết quả (dùng trong luồng orchestrator – virtual thread) */
+    public boolean runBlocking(String key, Policy policy, Attempt attempt) {
+        return execute(key, policy, attempt, null).join();
+    }
+
+    /** Huỷ lần retry đang chờ (attempt đang chạy thì chạy nốt nhưng không retry nữa) */
+    public boolean cancel(String key) {
+        Execution ex = active.remove(key);
+        if (ex == null) return false;
+        ex.cancel();
+        return true;
+    }
+
+    public List<RetryAttemptResponse> history(String key) {
+        synchronized (history) {
+            List<RetryAttemptResponse> h = history.get(key);
+            return h == null ? List.of() : List.copyOf(h);
+        }
+    }
+
+    long backoff(Policy p, int attemptNo) {
+        double d = p.getBaseDelayMs() * Math.pow(Math.max(1.0, p.getMultiplier()), attemptNo - 1);
+        d = Math.min(d, p.getMaxDelayMs());
+        if (p.getJitter() > 0) {
+            d = d * (1 - p.getJitter() + ThreadLocalRandom.current().nextDouble() * 2 * p.getJitter());
+        }
+        return Math.max(0, (long) d);
+    }
+
+    private void record(RetryAttemptResponse r) {
+        synchronized (history) {
+            history.computeIfAbsent(r.getKey(), k -> new ArrayList<>()).add(r);
+        }
+    }
+
+    // ===================== EXECUTION =====================
+
+    private final class Execution {
+        final String key;
+        final Policy policy;
+        final ClassifiedAttempt attempt;
+        final Listener listener;
+        final boolean classified;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        int attemptNo;
+        volatile boolean cancelled;
+        volatile ScheduledFuture<?> pending;
+
+        Execution(String key, Policy policy, ClassifiedAttempt attempt, Listener listener, boolean classified) {
+            this.key = key;
+            this.policy = policy;
+            this.attempt = attempt;
+            this.listener = listener;
+            this.classified = classified;
+        }
+
+        void schedule(long delayMs) {
+            if (delayMs <= 0) {
+                Thread.ofVirtual().name("retry-" + key).start(this::runAttempt);
+                return;
+            }
+            // timer chỉ chuyển việc sang virtual thread, không chạy attempt trên thread của timer
+            pending = timer.schedule(() -> Thread.ofVirtual().name("retry-" + key).start(this::runAttempt),
+                    delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        /** Trừ 1 lượt của ngân sách dùng chung; hết → không retry */
+        boolean takeBudget() {
+            AtomicInteger b = policy.getBudget();
+            return b == null || b.getAndUpdate(v -> Math.max(0, v - 1)) > 0;
+        }
+
+        void cancel() {
+            cancelled = true;
+            ScheduledFuture<?> f = pending;
+            if (f != null) f.cancel(false);
+            result.complete(false);
+        }
+
+        private void runAttempt() {
+            if (cancelled) return;
+            int nth = ++attemptNo;
+            LocalDateTime startedAt = LocalDateTime.now();
+            long start = System.currentTimeMillis();
+            String outcome;
+            String error = null;
+            FailureClass failure = null;
+            try {
+                failure = attempt.run(nth);
+                outcome = failure == null ? "SUCCESS" : "FAILED";
+            } catch (Exception e) {
+                outcome = "ERROR";
+                failure = FailureClass.UNKNOWN;
+                error = e.getClass().getSimpleName() + ": " + e.getMessage();
+                log.warn("[retry {}] attempt {}/{} error: {}", key, nth, policy.getMaxAttempts(), error);
+            }
+
+            boolean success = "SUCCESS".equals(outcome);
+            boolean retryable = !success && (!classified || failure.isTransient());
+            boolean retry = retryable && !cancelled && nth < policy.getMaxAttempts() && takeBudget();
+            long delay = retry ? backoff(policy, nth) : -1;
+            if (cancelled && !success) outcome = "CANCELLED";
+
+            RetryAttemptResponse rec = RetryAttemptResponse.builder()
+                    .key(key)
+                    .attempt(nth)
+                    .maxAttempts(policy.getMaxAttempts())
+                    .startedAt(startedAt)
+                    .durationMs(System.currentTimeMillis() - start)
+                    .result(outcome)
+                    .error(error)
+                    .failureClass(classified && failure != null ? failure.name() : null)
+                    .nextDelayMs(delay)
+                    .build();
+            record(rec);
+            if (listener != null) {
+                try { listener.onAttempt(rec); }
+                catch (Exception e) { log.warn("[retry {}] listener error: {}", key, e.getMessage()); }
+            }
+
+            if (!success && classified && !retry) {
+                log.info("[retry {}] attempt {}/{} {} ({}) → give up", key, nth, policy.getMaxAttempts(), outcome, failure);
+            }
+            if (retry) {
+                log.info("[retry {}] attempt {}/{} {} → retry in {} ms", key, nth, policy.getMaxAttempts(), outcome, delay);
+                schedule(delay);
+            } else {
+                result.complete(success);
+            }
+        }
+    }
+}
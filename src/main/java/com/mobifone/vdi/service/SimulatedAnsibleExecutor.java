@@ -0,0 +1,244 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.dto.response.AnsibleExecutorMetricsResponse;
+import jakarta.annotation.PostConstruct;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor mô phỏng (ansible.executor.type=simulated): không ssh, không ansible-playbook.
+ * Mỗi run ngủ 1 khoảng lấy mẫu theo phân phối của role/playbook rồi trả exit/PLAY RECAP giả
+ * → load test ProvisionOrchestratorService với hàng nghìn VM ảo, đo throughput của riêng backend.
+ *
+ * Profile: "label=phân_phối[@tỉ_lệ_lỗi]", cách nhau bởi dấu phẩy, ví dụ
+ *   chrome=lognormal:60000:0.4@0.05, pfsense_nat_batch=uniform:3000-8000, join_domain=exp:90000@0.1
+ * Phân phối: fixed:ms | uniform:min-max | lognormal:median:sigma | exp:mean
+ * Label gộp nhiều role (a+b) → cộng độ trễ từng role, lỗi nếu 1 role lỗi.
+ */
+@Service
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class SimulatedAnsibleExecutor implements AnsibleExecutor {
+
+    record Profile(String spec, String dist, double a, double b, double failRate) {
+        long sampleMs(Random r) {
+            double ms = switch (dist) {
+                case "fixed" -> a;
+                case "uniform" -> a + r.nextDouble() * (b - a);
+                case "lognormal" -> a * Math.exp(b * r.nextGaussian());
+                case "exp" -> -a * Math.log(1 - r.nextDouble());
+                default -> 0;
+            };
+            return Math.max(0, Math.round(ms));
+        }
+
+        boolean fails(Random r) {
+            return failRate > 0 && r.nextDouble() < failRate;
+        }
+    }
+
+    static final class Stats {
+        final AtomicLong runs = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong cancelled = new AtomicLong();
+        final AtomicLong totalMs = new AtomicLong();
+        final AtomicLong maxMs = new AtomicLong();
+        final AtomicInteger inFlight = new AtomicInteger();
+    }
+
+    final Map<String, Profile> profiles = new ConcurrentHashMap<>();
+    final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    final Map<Thread, String> running = new ConcurrentHashMap<>();       // thread đang "chạy" -> owner
+    final Map<String, Long> cancelledJobs = new ConcurrentHashMap<>();   // jobId -> thời điểm cancel
+
+    @NonFinal @Value("${ansible.executor.simulated.profiles:}")
+    String profilesSpec;
+
+    @NonFinal @Value("${ansible.executor.simulated.default-profile:lognormal:30000:0.5@0.02}")
+    String defaultSpec;
+
+    @NonFinal @Value("${ansible.executor.simulated.time-scale:1.0}")
+    double timeScale;                        // 0.01 → chạy nhanh gấp 100 lần (giữ nguyên tỉ lệ giữa các role)
+
+    @NonFinal @Value("${ansible.supervisor.cancel-ttl-minutes:30}")
+    long cancelTtlMinutes;
+
+    @NonFinal
+    Profile defaultProfile;
+
+    @PostConstruct
+    void init() {
+        defaultProfile = parseProfile(defaultSpec);
+        if (profilesSpec != null && !profilesSpec.isBlank()) {
+            for (String item : profilesSpec.split(",")) {
+                int eq = item.indexOf('=');
+                if (eq <= 0) {
+                    log.warn("[simulated] bỏ qua profile không hợp lệ: '{}'", item.trim());
+                    continue;
+                }
+                profiles.put(item.substring(0, eq).trim(), parseProfile(item.substring(eq + 1)));
+            }
+        }
+    }
+
+    @Override
+    public String name() {
+        return "simulated";
+    }
+
+    @Override
+    public boolean isRemote() {
+        return false;
+    }
+
+    @Override
+    public Result execute(AnsibleExecRequest req) {
+        String owner = req.getRunId();
+        String label = req.getLabel() == null ? "unknown" : req.getLabel();
+        if (isCancelled(owner)) {
+            log.warn("[simulated] job {} đã bị cancel, bỏ qua run {}", owner, label);
+            return AnsibleExecutor.noExit(NoExit.CANCELLED);
+        }
+        Random r = ThreadLocalRandom.current();
+        List<String> parts = Arrays.stream(label.split("\\+")).map(String::trim).filter(s -> !s.isEmpty()).toList();
+
+        long latency = 0;
+        for (String p : parts) latency += profileOf(p).sampleMs(r);
+        long sleepMs = Math.round(latency * Math.max(0, timeScale));
+        long timeoutMs = req.getTimeoutMs() > 0 ? req.getTimeoutMs() : Long.MAX_VALUE;
+
+        Stats s = stats.computeIfAbsent(label, k -> new Stats());
+        s.inFlight.incrementAndGet();
+        running.put(Thread.currentThread(), owner);
+        long t0 = System.nanoTime();
+        try {
+            Thread.sleep(Math.min(sleepMs, timeoutMs));
+            if (sleepMs > timeoutMs) {
+                log.warn("[simulated] {} ({}) timeout sau {} ms", owner, label, timeoutMs);
+                return AnsibleExecutor.noExit(NoExit.TIMEOUT);
+            }
+        } catch (InterruptedException ie) {
+            s.cancelled.incrementAndGet();
+            return AnsibleExecutor.noExit(NoExit.CANCELLED);
+        } finally {
+            running.remove(Thread.currentThread());
+            s.inFlight.decrementAndGet();
+            long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+            s.runs.incrementAndGet();
+            s.totalMs.addAndGet(ms);
+            s.maxMs.accumulateAndGet(ms, Math::max);
+        }
+
+        // kết quả từng host độc lập (playbook nhiều host: host lỗi không kéo host khác)
+        List<String> hosts = req.getHosts().isEmpty() ? List.of("localhost") : req.getHosts();
+        StringBuilder recap = new StringBuilder("PLAY RECAP *********************************************************************\n");
+        boolean anyFailed = false;
+        for (String h : hosts) {
+            boolean failed = false;
+            for (String p : parts) failed |= profileOf(p).fails(r);
+            anyFailed |= failed;
+            recap.append(String.format("%-26s : ok=%d changed=%d unreachable=0 failed=%d skipped=0 rescued=0 ignored=0%n",
+                    h, parts.size() * 3, parts.size(), failed ? 1 : 0));
+        }
+        if (anyFailed) s.failures.incrementAndGet();
+
+        String output = recap.toString();
+        if (req.getLineSink() != null) output.lines().forEach(req.getLineSink());
+        return new Result(anyFailed ? 2 : 0, req.isCaptureOutput() ? output : "");
+    }
+
+    @Override
+    public int cancel(String jobId) {
+        cancelledJobs.put(jobId, System.currentTimeMillis());
+        int n = 0;
+        for (Map.Entry<Thread, String> e : running.entrySet()) {
+            if (belongsTo(e.getValue(), jobId)) {
+                e.getKey().interrupt();
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void clearCancelled(String jobId) {
+        cancelledJobs.remove(jobId);
+    }
+
+    @Override
+    public List<AnsibleExecutorMetricsResponse.Label> stats() {
+        List<AnsibleExecutorMetricsResponse.Label> out = new ArrayList<>();
+        stats.forEach((label, s) -> {
+            long runs = s.runs.get();
+            out.add(AnsibleExecutorMetricsResponse.Label.builder()
+                    .label(label)
+                    .profile(profileOf(label.split("\\+")[0].trim()).spec())
+                    .runs(runs)
+                    .failures(s.failures.get())
+                    .cancelled(s.cancelled.get())
+                    .inFlight(s.inFlight.get())
+                    .avgMs(runs == 0 ? 0 : s.totalMs.get() / runs)
+                    .maxMs(s.maxMs.get())
+                    .build());
+        });
+        out.sort(Comparator.comparing(AnsibleExecutorMetricsResponse.Label::getLabel));
+        return out;
+    }
+
+    // ===================== INTERNAL =====================
+
+    private Profile profileOf(String label) {
+        return profiles.getOrDefault(label, defaultProfile);
+    }
+
+    /** "dist:params[@failRate]" → Profile; sai cú pháp → fixed:0 (log cảnh báo) */
+    static Profile parseProfile(String spec) {
+        String s = spec == null ? "" : spec.trim();
+        double failRate = 0;
+        int at = s.lastIndexOf('@');
+        try {
+            if (at >= 0) {
+                failRate = Double.parseDouble(s.substring(at + 1).trim());
+                s = s.substring(0, at).trim();
+            }
+            String[] p = s.split(":");
+            return switch (p[0]) {
+                case "fixed" -> new Profile(spec.trim(), "fixed", Double.parseDouble(p[1]), 0, failRate);
+                case "uniform" -> {
+                    String[] mm = p[1].split("-");
+                    yield new Profile(spec.trim(), "uniform", Double.parseDouble(mm[0]), Double.parseDouble(mm[1]), failRate);
+                }
+                case "lognormal" -> new Profile(spec.trim(), "lognormal", Double.parseDouble(p[1]), Double.parseDouble(p[2]), failRate);
+                case "exp" -> new Profile(spec.trim(), "exp", Double.parseDouble(p[1]), 0, failRate);
+                default -> throw new IllegalArgumentException("unknown distribution " + p[0]);
+            };
+        } catch (RuntimeException e) {
+            log.warn("[simulated] profile '{}' không hợp lệ ({}), dùng fixed:0", spec, e.getMessage());
+            return new Profile("fixed:0", "fixed", 0, 0, 0);
+        }
+    }
+
+    private boolean isCancelled(String owner) {
+        long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(Math.max(1, cancelTtlMinutes));
+        cancelledJobs.values().removeIf(at -> at < cutoff);
+        for (String jobId : cancelledJobs.keySet()) {
+            if (belongsTo(owner, jobId)) return true;
+        }
+        return false;
+    }
+
+    private static boolean belongsTo(String owner, String jobId) {
+        return owner.equals(jobId) || owner.startsWith(jobId + "_");
+    }
+}
@@ -0,0 +1,109 @@
+package com.mobifone.vdi.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor thật: stream script qua `bash -s` trên 1 channel SSH của pool, tiến trình do supervisor quản lý.
+ * Mỗi run giữ 1 channel suốt playbook → capacity từng host phải đủ cho max-concurrent run
+ * + control-reserve channel cho lệnh ngắn (đọc log, kill, pid, cache) đi ngoài scheduler.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class SshAnsibleExecutor implements AnsibleExecutor {
+
+    SshConnectionPool sshPool;
+    ProcessSupervisor supervisor;
+
+    @NonFinal @Value("${ansible.executor.type:ssh}")
+    String executorType;
+
+    @NonFinal @Value("${ansible.scheduler.max-concurrent:8}")
+    int maxConcurrent;
+
+    @NonFinal @Value("${ansible.ssh.pool.control-reserve:2}")
+    int controlReserve;
+
+    @PostConstruct
+    void checkCapacity() {
+        if (!name().equalsIgnoreCase(executorType == null ? "" : executorType.trim())) return;
+        int capacity = sshPool.minCapacity();
+        int needed = Math.max(1, maxConcurrent) + Math.max(0, controlReserve);
+        if (capacity < needed) {
+            throw new IllegalStateException(String.format(
+                    "SSH pool capacity %d per host < ansible.scheduler.max-concurrent %d + ansible.ssh.pool.control-reserve %d:"
+                            + " playbooks would hold every channel and short control commands would time out",
+                    capacity, maxConcurrent, controlReserve));
+        }
+    }
+
+    @Override
+    public String name() {
+        return "ssh";
+    }
+
+    @Override
+    public boolean isRemote() {
+        return true;
+    }
+
+    @Override
+    public Result execute(AnsibleExecRequest req) {
+        String runId = req.getRunId();
+        try (SshConnectionPool.Lease lease = sshPool.acquireFor(runId)) {
+            ProcessSupervisor.Run run = supervisor.start(runId, lease.host(), Duration.ofMillis(req.getTimeoutMs()), prefix -> {
+                Process p = new ProcessBuilder(lease.command("bash -s")).redirectErrorStream(true).start();
+                try (var os = p.getOutputStream()) {
+                    os.write((prefix + "\n" + req.getScript()).getBytes(StandardCharsets.UTF_8));
+                }
+                return p;
+            });
+            // output đọc trên virtual thread, không chặn await
+            CompletableFuture<String> out = CompletableFuture.completedFuture("");
+            if (req.getLineSink() != null) supervisor.streamLines(run, req.getLineSink());
+            else if (req.isCaptureOutput()) out = supervisor.capture(run);
+            else supervisor.discard(run);
+
+            Integer exit = supervisor.await(run);
+            if (exit == null) {
+                log.warn("SSH command {} for job {}", run.status, runId);
+                return AnsibleExecutor.noExit("TIMEOUT".equals(run.status) ? NoExit.TIMEOUT : NoExit.CANCELLED);
+            }
+            lease.reportExit(exit);
+            return new Result(exit, out.get(30, TimeUnit.SECONDS));
+        } catch (CancellationException | InterruptedException e) {
+            log.warn("SSH command cancelled for job {}: {}", runId, e.getMessage());
+            return AnsibleExecutor.noExit(NoExit.CANCELLED);
+        } catch (SshConnectionPool.PoolExhaustedException e) {
+            log.warn("SSH command not started for job {}: {}", runId, e.getMessage());
+            return AnsibleExecutor.noExit(NoExit.NO_CAPACITY);
+        } catch (Exception e) {
+            log.error("SSH execution error for job {}", runId, e);
+            return AnsibleExecutor.noExit(NoExit.ERROR);
+        }
+    }
+
+    @Override
+    public int cancel(String jobId) {
+        return supervisor.cancelJob(jobId);
+    }
+
+    @Override
+    public void clearCancelled(String jobId) {
+        supervisor.clearCancelled(jobId);
+    }
+}
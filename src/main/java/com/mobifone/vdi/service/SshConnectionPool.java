@@ -0,0 +1,688 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.dto.response.SshPoolMetricsResponse;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool kết nối SSH tới các Ansible control host theo kiểu ControlMaster:
+ * mỗi slot là 1 master connection (1 lần handshake), các lệnh sau đó chỉ mở channel trên socket có sẵn.
+ * Số channel đồng thời / host bị chặn bởi capacity của host (chia đều cho các master).
+ *
+ * Nhiều control host (ansible.hosts): job được gắn (bind) vào 1 host khi bắt đầu – theo consistent-hash
+ * của project (log/job của 1 project ở cùng 1 host) hoặc host ít tải nhất; mọi lệnh sau của job
+ * (chạy, đọc log, kill) đi về đúng host đó. Host lỗi liên tiếp bị drain khỏi routing, tự quay lại khi khoẻ.
+ * Health check chạy trên thread riêng (kết nối lại master có thể chặn ~30s/slot) → không chiếm scheduler chung.
+ */
+@Service
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class SshConnectionPool {
+
+    static final int RING_VNODES = 64;
+    static final int SSH_TRANSPORT_ERROR = 255;   // exit code của ssh khi lỗi kết nối
+
+    @NonFinal @Value("${ansible.remote.host:42.1.124.196}")
+    protected String remoteHost;
+
+    @NonFinal @Value("${ansible.remote.port:2223}")
+    protected int remotePort;
+
+    @NonFinal @Value("${ansible.remote.user:root}")
+    protected String remoteUser;
+
+    // "ans1=root@10.0.0.1:22/8, ans2=root@10.0.0.2:22/4" (name=user@host:port/capacity); rỗng → chỉ ansible.remote.*
+    @NonFinal @Value("${ansible.hosts.list:}")
+    protected String hostsSpec;
+
+    @NonFinal @Value("${ansible.hosts.routing:project-hash}")
+    protected String routing;
+
+    @NonFinal @Value("${ansible.hosts.failure-threshold:3}")
+    protected int failureThreshold;
+
+    @NonFinal @Value("${ansible.hosts.binding-ttl-minutes:1440}")
+    protected long bindingTtlMinutes;
+
+    @NonFinal @Value("${ansible.ssh.pool.enabled:true}")
+    protected boolean enabled;
+
+    @NonFinal @Value("${ansible.ssh.pool.size:2}")
+    protected int poolSize;
+
+    @NonFinal @Value("${ansible.ssh.pool.channels-per-connection:8}")
+    protected int channelsPerConnection;
+
+    @NonFinal @Value("${ansible.ssh.pool.acquire-timeout-ms:120000}")
+    protected long acquireTimeoutMs;
+
+    @NonFinal @Value("${ansible.ssh.pool.keepalive-seconds:15}")
+    protected int keepAliveSeconds;
+
+    @NonFinal @Value("${ansible.ssh.pool.persist-seconds:600}")
+    protected int persistSeconds;
+
+    @NonFinal @Value("${ansible.ssh.pool.control-dir:${java.io.tmpdir}/vdi-ssh}")
+    protected String controlDir;
+
+    @NonFinal @Value("${ansible.ssh.pool.health-check-ms:30000}")
+    protected long healthCheckMs;
+
+    // probe chỉ chờ channel ngắn: host bận hết channel vẫn là host sống, không cần probe
+    @NonFinal @Value("${ansible.ssh.pool.probe-acquire-timeout-ms:2000}")
+    protected long probeAcquireTimeoutMs;
+
+    final List<ControlHost> hosts = new ArrayList<>();
+    final Map<String, Binding> bindings = new ConcurrentHashMap<>();   // jobId -> host
+    volatile NavigableMap<Long, ControlHost> ring = new TreeMap<>();
+
+    final AtomicLong totalAcquires = new AtomicLong();
+    final AtomicLong totalWaitMs = new AtomicLong();
+    final AtomicLong maxWaitMs = new AtomicLong();
+    final AtomicLong acquireTimeouts = new AtomicLong();
+
+    final ScheduledExecutorService health = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ssh-pool-health");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @PostConstruct
+    void init() {
+        if (System.getProperty("os.name").toLowerCase().contains("win")) {
+            // OpenSSH cho Windows không hỗ trợ ControlMaster → chạy kiểu ssh thường
+            enabled = false;
+        }
+        if (enabled) {
+            try { Files.createDirectories(Paths.get(controlDir)); }
+            catch (Exception e) {
+                log.warn("Cannot create ssh control dir {} → pool disabled", controlDir, e);
+                enabled = false;
+            }
+        }
+        int size = Math.max(1, poolSize);
+        for (String[] h : parseHosts()) {
+            String name = h[0];
+            int capacity = Integer.parseInt(h[4]);
+            int perMaster = Math.max(1, (capacity + size - 1) / size);
+            ControlHost ch = new ControlHost(name, h[1], h[2], Integer.parseInt(h[3]), capacity);
+            for (int i = 0; i < size; i++) {
+                ch.slots.add(new Slot(ch, i, Paths.get(controlDir, "cm-" + name + "-" + i).toString(), perMaster));
+            }
+            ch.permits = new Semaphore(ch.slots.stream().mapToInt(sl -> sl.capacity).sum(), true);
+            hosts.add(ch);
+        }
+        rebuildRing();
+        log.info("SSH pool: enabled={}, hosts={}, connections/host={}, routing={}",
+                enabled, hosts.stream().map(c -> c.name + "(" + c.capacity + ")").toList(), size, routing);
+        if (healthCheckMs > 0) {
+            health.scheduleWithFixedDelay(this::healthCheck, healthCheckMs, healthCheckMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** name, user, host, port, capacity */
+    private List<String[]> parseHosts() {
+        List<String[]> out = new ArrayList<>();
+        int defaultCapacity = Math.max(1, poolSize) * Math.max(1, channelsPerConnection);
+        if (hostsSpec != null && !hostsSpec.isBlank()) {
+            for (String part : hostsSpec.split(",")) {
+                String spec = part.trim();
+                if (spec.isEmpty()) continue;
+                String name = spec.contains("=") ? spec.substring(0, spec.indexOf('=')).trim() : "h" + out.size();
+                String rest = spec.contains("=") ? spec.substring(spec.indexOf('=') + 1).trim() : spec;
+                String capacity = String.valueOf(defaultCapacity);
+                if (rest.contains("/")) {
+                    capacity = rest.substring(rest.lastIndexOf('/') + 1).trim();
+                    rest = rest.substring(0, rest.lastIndexOf('/'));
+                }
+                String user = remoteUser;
+                if (rest.contains("@")) {
+                    user = rest.substring(0, rest.indexOf('@'));
+                    rest = rest.substring(rest.indexOf('@') + 1);
+                }
+                String port = String.valueOf(remotePort);
+                if (rest.contains(":")) {
+                    port = rest.substring(rest.lastIndexOf(':') + 1);
+                    rest = rest.substring(0, rest.lastIndexOf(':'));
+                }
+                out.add(new String[]{name, user, rest, port, capacity});
+            }
+        }
+        if (out.isEmpty()) {
+            out.add(new String[]{"default", remoteUser, remoteHost, String.valueOf(remotePort), String.valueOf(defaultCapacity)});
+        }
+        return out;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        health.shutdownNow();
+        if (!enabled) return;
+        for (ControlHost h : hosts) for (Slot s : h.slots) closeMaster(s);
+    }
+
+    // ===================== ROUTING =====================
+
+    /** Gắn job vào 1 control host (affinity = project/tenant); gọi lại với job đã gắn → giữ host cũ */
+    public String bind(String jobId, String affinity) {
+        Binding b = bindings.compute(jobId, (k, old) -> {
+            if (old != null && old.host.usable()) return old;
+            ControlHost h = choose(affinity == null ? jobId : affinity);
+            if (old != null) log.warn("SSH pool: job {} rebound {} → {} (host unusable)", jobId, old.host.name, h.name);
+            return new Binding(h, affinity);
+        });
+        return b.host.name;
+    }
+
+    public void unbind(String jobId) {
+        bindings.remove(jobId);
+    }
+
+    /** Host đang giữ job của key (jobId hoặc jobId_xxx); null nếu chưa gắn */
+    public String hostOf(String key) {
+        Binding b = lookup(key);
+        return b == null ? null : b.host.name;
+    }
+
+    /** Mượn 1 channel trên host của key (job đã bind → đúng host đó; chưa bind → chọn theo routing) */
+    public Lease acquireFor(String key) throws InterruptedException {
+        return acquire(resolve(key));
+    }
+
+    /** Host sẽ chạy key (cùng quy tắc acquireFor) nhưng không mượn channel – transport không đi qua ssh */
+    public String hostFor(String key) {
+        return resolve(key).name;
+    }
+
+    private ControlHost resolve(String key) {
+        Binding b = key == null ? null : lookup(key);
+        if (b != null && b.host.healthy) return b.host;
+        if (b != null) {
+            // host của job đang lỗi → chạy tiếp trên host khác (log phần sau nằm ở host mới)
+            return hostByName(bind(jobIdOf(key, b), b.affinity));
+        }
+        return choose(key);
+    }
+
+    /** Mượn 1 channel trên đúng host (kill/đọc log của run đã biết host) */
+    public Lease acquireOn(String hostName) throws InterruptedException {
+        ControlHost h = hostByName(hostName);
+        return acquire(h == null ? hosts.get(0) : h);
+    }
+
+    /** Không có key: host ít tải nhất */
+    public Lease acquire() throws InterruptedException {
+        return acquireFor(null);
+    }
+
+    /** Số channel nhỏ nhất trong các control host (job có thể dồn hết về 1 host theo affinity) */
+    public int minCapacity() {
+        return hosts.stream().mapToInt(h -> h.capacity).min().orElse(0);
+    }
+
+    public List<String> hostNames() {
+        return hosts.stream().map(h -> h.name).toList();
+    }
+
+    /** Ngừng nhận job mới trên host (job đang gắn vẫn chạy tiếp) */
+    public boolean drain(String hostName, boolean draining) {
+        ControlHost h = hostByName(hostName);
+        if (h == null) return false;
+        h.draining = draining;
+        rebuildRing();
+        log.info("SSH pool: host {} {}", hostName, draining ? "DRAINING" : "ACTIVE");
+        return true;
+    }
+
+    private Binding lookup(String key) {
+        Binding b = bindings.get(key);
+        if (b != null) return b;
+        // sub-run: jobId_xxx → thuộc job jobId
+        for (int i = key.indexOf('_'); i > 0; i = key.indexOf('_', i + 1)) {
+            b = bindings.get(key.substring(0, i));
+            if (b != null) return b;
+        }
+        return null;
+    }
+
+    private String jobIdOf(String key, Binding b) {
+        for (Map.Entry<String, Binding> e : bindings.entrySet()) {
+            if (e.getValue() == b && (key.equals(e.getKey()) || key.startsWith(e.getKey() + "_"))) return e.getKey();
+        }
+        return key;
+    }
+
+    private ControlHost hostByName(String name) {
+        for (ControlHost h : hosts) if (h.name.equals(name)) return h;
+        return null;
+    }
+
+    private ControlHost choose(String affinity) {
+        if (hosts.size() == 1) return hosts.get(0);
+        if (affinity != null && !"least-loaded".equalsIgnoreCase(routing)) {
+            NavigableMap<Long, ControlHost> r = ring;
+            if (!r.isEmpty()) {
+                Map.Entry<Long, ControlHost> e = r.ceilingEntry(hash(affinity));
+                return (e == null ? r.firstEntry() : e).getValue();
+            }
+        }
+        // least-loaded: (đang chạy + đang chờ) / capacity nhỏ nhất; không host nào khoẻ → xét tất cả
+        ControlHost best = null;
+        for (boolean onlyUsable : new boolean[]{true, false}) {
+            for (ControlHost h : hosts) {
+                if (onlyUsable && !h.usable()) continue;
+                if (best == null || h.load() < best.load()) best = h;
+            }
+            if (best != null) break;
+        }
+        return best;
+    }
+
+    private synchronized void rebuildRing() {
+        NavigableMap<Long, ControlHost> r = new TreeMap<>();
+        for (ControlHost h : hosts) {
+            if (!h.usable()) continue;
+            for (int v = 0; v < RING_VNODES; v++) r.put(hash(h.name + "#" + v), h);
+        }
+        ring = r;
+    }
+
+    private static long hash(String s) {
+        return UUID.nameUUIDFromBytes(s.getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
+    }
+
+    // ===================== LEASE =====================
+
+    private Lease acquire(ControlHost host) throws InterruptedException {
+        Lease lease = tryAcquire(host, acquireTimeoutMs);
+        if (lease == null) {
+            acquireTimeouts.incrementAndGet();
+            host.failures.incrementAndGet();
+            throw new PoolExhaustedException("SSH pool exhausted on " + host.name + " after " + acquireTimeoutMs + " ms");
+        }
+        return lease;
+    }
+
+    /**
+     * Chờ 1 chỗ của host (semaphore cấp host = tổng channel các slot) rồi mới chọn slot:
+     * channel trả về ở slot nào cũng đánh thức người chờ, không chờ riêng 1 slot trong khi slot khác rảnh.
+     * Hết timeoutMs → null.
+     */
+    private Lease tryAcquire(ControlHost host, long timeoutMs) throws InterruptedException {
+        long start = System.nanoTime();
+        if (!host.permits.tryAcquire()) {
+            host.waiting.incrementAndGet();
+            try {
+                if (!host.permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) return null;
+            } finally {
+                host.waiting.decrementAndGet();
+            }
+        }
+        Slot chosen = pickSlot(host);
+
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        totalAcquires.incrementAndGet();
+        totalWaitMs.addAndGet(waited);
+        maxWaitMs.accumulateAndGet(waited, Math::max);
+
+        if (enabled) ensureMaster(chosen);
+        chosen.uses.incrementAndGet();
+        host.active.incrementAndGet();
+        host.leases.incrementAndGet();
+        return new Lease(chosen);
+    }
+
+    /**
+     * Đã giữ chỗ của host → chắc chắn còn ít nhất 1 channel trống (slot được mượn sau chỗ host, trả trước chỗ host).
+     * Ưu tiên slot khoẻ + còn nhiều channel trống nhất; lặp lại nếu vừa bị người khác giành mất.
+     */
+    private Slot pickSlot(ControlHost host) {
+        while (true) {
+            List<Slot> order = new ArrayList<>(host.slots);
+            order.sort(Comparator.comparing((Slot s) -> !s.healthy)
+                    .thenComparing(s -> -s.permits.availablePermits()));
+            for (Slot s : order) {
+                if (s.permits.tryAcquire()) return s;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /** Lệnh ssh cơ bản (chưa có remote command) dùng chung cho mọi nơi */
+    List<String> baseCommand(Slot slot) {
+        ControlHost h = slot.host;
+        List<String> cmd = new ArrayList<>();
+        cmd.add("ssh");
+        cmd.add("-o"); cmd.add("StrictHostKeyChecking=no");
+        cmd.add("-o"); cmd.add("UserKnownHostsFile=/dev/null");
+        cmd.add("-o"); cmd.add("LogLevel=ERROR");
+        cmd.add("-o"); cmd.add("ServerAliveInterval=" + keepAliveSeconds);
+        cmd.add("-o"); cmd.add("ServerAliveCountMax=3");
+        if (enabled) {
+            // ControlMaster=no: chỉ dùng master sẵn có; nếu socket chết ssh tự kết nối thẳng
+            cmd.add("-o"); cmd.add("ControlMaster=no");
+            cmd.add("-o"); cmd.add("ControlPath=" + slot.controlPath);
+        }
+        cmd.add("-p"); cmd.add(String.valueOf(h.port));
+        cmd.add(h.user + "@" + h.address);
+        return cmd;
+    }
+
+    // ===================== MASTER LIFECYCLE =====================
+
+    private void ensureMaster(Slot s) {
+        if (s.connected && Files.exists(Path.of(s.controlPath))) return;
+        synchronized (s) {
+            if (s.connected && Files.exists(Path.of(s.controlPath))) return;
+            ControlHost h = s.host;
+            try {
+                List<String> cmd = new ArrayList<>();
+                cmd.add("ssh");
+                cmd.add("-o"); cmd.add("StrictHostKeyChecking=no");
+                cmd.add("-o"); cmd.add("UserKnownHostsFile=/dev/null");
+                cmd.add("-o"); cmd.add("LogLevel=ERROR");
+                cmd.add("-o"); cmd.add("ServerAliveInterval=" + keepAliveSeconds);
+                cmd.add("-o"); cmd.add("ServerAliveCountMax=3");
+                cmd.add("-o"); cmd.add("ControlMaster=yes");
+                cmd.add("-o"); cmd.add("ControlPath=" + s.controlPath);
+                cmd.add("-o"); cmd.add("ControlPersist=" + persistSeconds);
+                cmd.add("-fN");
+                cmd.add("-p"); cmd.add(String.valueOf(h.port));
+                cmd.add(h.user + "@" + h.address);
+
+                Process p = new ProcessBuilder(cmd).redirectErrorStream(true)
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+                boolean done = p.waitFor(30, TimeUnit.SECONDS);
+                if (!done) p.destroyForcibly();
+                s.connected = done && p.exitValue() == 0;
+                s.healthy = s.connected;
+                s.handshakes.incrementAndGet();
+                if (!s.connected) {
+                    log.warn("SSH master {}#{} connect failed (ssh sẽ tự kết nối thẳng)", h.name, s.index);
+                }
+            } catch (Exception e) {
+                s.connected = false;
+                log.warn("SSH master {}#{} connect error: {}", h.name, s.index, e.getMessage());
+            }
+        }
+    }
+
+    private boolean checkMaster(Slot s) {
+        return runControl(s, "check");
+    }
+
+    private void closeMaster(Slot s) {
+        runControl(s, "exit");
+        s.connected = false;
+    }
+
+    private boolean runControl(Slot s, String op) {
+        try {
+            Process p = new ProcessBuilder("ssh", "-o", "ControlPath=" + s.controlPath, "-O", op,
+                    "-p", String.valueOf(s.host.port), s.host.user + "@" + s.host.address)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            return p.waitFor(10, TimeUnit.SECONDS) && p.exitValue() == 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /** Health check định kỳ (thread ssh-pool-health): master chết → đóng hẳn + kết nối lại */
+    void healthCheck() {
+        try {
+            checkHosts();
+        } catch (Exception e) {
+            log.warn("SSH pool health check error: {}", e.getMessage());
+        }
+    }
+
+    private void checkHosts() {
+        for (ControlHost h : hosts) {
+            if (enabled) {
+                for (Slot s : h.slots) {
+                    if (!s.connected) {
+                        // đã từng thử mà hỏng → thử kết nối lại; slot chưa dùng lần nào thì để lazy
+                        if (s.handshakes.get() > 0) ensureMaster(s);
+                        continue;
+                    }
+                    if (checkMaster(s)) {
+                        s.healthy = true;
+                        continue;
+                    }
+                    log.warn("SSH master {}#{} unhealthy → reconnect", h.name, s.index);
+                    s.healthy = false;
+                    closeMaster(s);
+                    ensureMaster(s);
+                }
+            }
+            if (hosts.size() > 1) probeHost(h);
+        }
+        long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(Math.max(1, bindingTtlMinutes));
+        bindings.values().removeIf(b -> b.boundAt < cutoff);
+    }
+
+    /**
+     * Probe host: chạy `true` qua 1 channel; lỗi liên tiếp ≥ failure-threshold → drain khỏi routing.
+     * Không mượn được channel trong probe-acquire-timeout-ms = host đang bận → bỏ qua lần probe này.
+     */
+    private void probeHost(ControlHost h) {
+        boolean ok;
+        Lease lease;
+        try {
+            lease = tryAcquire(h, probeAcquireTimeoutMs);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (lease == null) return;
+        try (lease) {
+            Process p = new ProcessBuilder(lease.command("true"))
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            ok = p.waitFor(15, TimeUnit.SECONDS) && p.exitValue() == 0;
+            if (!ok) p.destroyForcibly();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            ok = false;
+        }
+        h.lastProbeAt = System.currentTimeMillis();
+        h.recordTransport(ok);
+    }
+
+    public SshPoolMetricsResponse metrics() {
+        List<SshPoolMetricsResponse.Connection> conns = new ArrayList<>();
+        List<SshPoolMetricsResponse.Host> hostStats = new ArrayList<>();
+        int inUse = 0;
+        Map<ControlHost, Integer> bound = new HashMap<>();
+        bindings.values().forEach(b -> bound.merge(b.host, 1, Integer::sum));
+        for (ControlHost h : hosts) {
+            for (Slot s : h.slots) {
+                int busy = s.capacity - s.permits.availablePermits();
+                inUse += busy;
+                conns.add(SshPoolMetricsResponse.Connection.builder()
+                        .host(h.name)
+                        .index(s.index)
+                        .connected(s.connected)
+                        .healthy(s.healthy)
+                        .channelsInUse(busy)
+                        .channelsCapacity(s.capacity)
+                        .handshakes(s.handshakes.get())
+                        .channelUses(s.uses.get())
+                        .build());
+            }
+            hostStats.add(SshPoolMetricsResponse.Host.builder()
+                    .name(h.name)
+                    .address(h.user + "@" + h.address + ":" + h.port)
+                    .healthy(h.healthy)
+                    .draining(h.draining)
+                    .capacity(h.capacity)
+                    .active(h.active.get())
+                    .queued(h.waiting.get())
+                    .totalLeases(h.leases.get())
+                    .failures(h.failures.get())
+                    .consecutiveFailures(h.consecutiveFailures.get())
+                    .boundJobs(bound.getOrDefault(h, 0))
+                    .lastProbeAt(h.lastProbeAt)
+                    .build());
+        }
+        long acquires = totalAcquires.get();
+        return SshPoolMetricsResponse.builder()
+                .enabled(enabled)
+                .routing(routing)
+                .poolSize(conns.size())
+                .channelsInUse(inUse)
+                .totalAcquires(acquires)
+                .acquireTimeouts(acquireTimeouts.get())
+                .avgWaitMs(acquires == 0 ? 0 : totalWaitMs.get() / acquires)
+                .maxWaitMs(maxWaitMs.get())
+                .hosts(hostStats)
+                .connections(conns)
+                .build();
+    }
+
+    // ===================== TYPES =====================
+
+    final class ControlHost {
+        final String name;
+        final String user;
+        final String address;
+        final int port;
+        final int capacity;
+        final List<Slot> slots = new ArrayList<>();
+        Semaphore permits;                          // tổng channel của các slot (chờ ở đây, không ở từng slot)
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger waiting = new AtomicInteger();
+        final AtomicLong leases = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        volatile boolean healthy = true;
+        volatile boolean draining;
+        volatile long lastProbeAt;
+
+        ControlHost(String name, String user, String address, int port, int capacity) {
+            this.name = name;
+            this.user = user;
+            this.address = address;
+            this.port = port;
+            this.capacity = Math.max(1, capacity);
+        }
+
+        boolean usable() {
+            return healthy && !draining;
+        }
+
+        double load() {
+            return (active.get() + waiting.get()) / (double) capacity;
+        }
+
+        /** Kết quả kết nối (probe hoặc lệnh thật): lỗi liên tiếp → unhealthy, thành công → healthy lại */
+        void recordTransport(boolean ok) {
+            if (ok) {
+                consecutiveFailures.set(0);
+                if (!healthy) {
+                    healthy = true;
+                    log.info("SSH pool: host {} healthy again", name);
+                    rebuildRing();
+                }
+                return;
+            }
+            failures.incrementAndGet();
+            if (consecutiveFailures.incrementAndGet() >= Math.max(1, failureThreshold) && healthy && hosts.size() > 1) {
+                healthy = false;
+                log.warn("SSH pool: host {} unhealthy after {} failures → drained", name, consecutiveFailures.get());
+                rebuildRing();
+            }
+        }
+    }
+
+    private record Binding(ControlHost host, String affinity, long boundAt) {
+        Binding(ControlHost host, String affinity) {
+            this(host, affinity, System.currentTimeMillis());
+        }
+    }
+
+    static final class Slot {
+        final ControlHost host;
+        final int index;
+        final String controlPath;
+        final int capacity;
+        final Semaphore permits;
+        final AtomicLong uses = new AtomicLong();
+        final AtomicInteger handshakes = new AtomicInteger();
+        volatile boolean connected;
+        volatile boolean healthy = true;
+
+        Slot(ControlHost host, int index, String controlPath, int capacity) {
+            this.host = host;
+            this.index = index;
+            this.controlPath = controlPath;
+            this.capacity = capacity;
+            this.permits = new Semaphore(capacity, true);
+        }
+    }
+
+    /** Hết channel trên control host sau acquire-timeout-ms */
+    public static class PoolExhaustedException extends IllegalStateException {
+        public PoolExhaustedException(String message) {
+            super(message);
+        }
+    }
+
+    /** 1 channel đang mượn từ pool */
+    public final class Lease implements AutoCloseable {
+        final Slot slot;
+        boolean released;
+
+        Lease(Slot slot) { this.slot = slot; }
+
+        /** Tên control host của channel này */
+        public String host() {
+            return slot.host.name;
+        }
+
+        /** ssh ... user@host '<remoteCommand>' – remote command chạy bởi shell phía Ansible host */
+        public List<String> command(String remoteCommand) {
+            List<String> cmd = baseCommand(slot);
+            cmd.add(remoteCommand);
+            return cmd;
+        }
+
+        /** Báo exit code của lệnh ssh: 255 = lỗi kết nối → tính vào sức khoẻ host */
+        public void reportExit(int exit) {
+            slot.host.recordTransport(exit != SSH_TRANSPORT_ERROR);
+        }
+
+        @Override
+        public void close() {
+            if (released) return;
+            released = true;
+            slot.host.active.decrementAndGet();
+            slot.permits.release();
+            slot.host.permits.release();
+        }
+    }
+}
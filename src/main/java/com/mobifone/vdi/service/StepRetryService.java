@@ -0,0 +1,78 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.entity.enumeration.FailureClass;
+import com.mobifone.vdi.service.AnsibleExecutionScheduler.Priority;
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Chạy 1 bước ansible của orchestrator với retry có phân loại lỗi:
+ * - mỗi attempt xin slot scheduler riêng (không giữ slot trong lúc backoff)
+ * - thất bại → dấu vết lỗi trong RunOutcome của chính attempt đó → FailureClassifier
+ * - chỉ lớp transient được retry, trừ vào ngân sách retry của VM
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class StepRetryService {
+
+    RetryScheduler retryScheduler;
+    AnsibleExecutionScheduler scheduler;
+    FailureClassifier classifier;
+
+    /** Kết quả cuối của 1 bước: failureClass = lớp lỗi của attempt cuối (null nếu thành công) */
+    public record Outcome(boolean ok, FailureClass failureClass, int attempts) {}
+
+    public Outcome run(String key, RetryScheduler.Policy policy, AtomicInteger budget,
+                       String tenant, Priority priority, String label, Supplier<AnsibleRunnerService.RunOutcome> call) {
+        return run(key, policy, budget, tenant, priority, label, call, 0);
+    }
+
+    private Outcome run(String key, RetryScheduler.Policy policy, AtomicInteger budget,
+                        String tenant, Priority priority, String label, Supplier<AnsibleRunnerService.RunOutcome> call,
+                        long firstDelayMs) {
+        AtomicReference<FailureClass> last = new AtomicReference<>();
+        AtomicInteger attempts = new AtomicInteger();
+        boolean ok = retryScheduler.executeClassified(key, policy.toBuilder().budget(budget).build(), nth -> {
+            attempts.set(nth);
+            AnsibleRunnerService.RunOutcome out = scheduler.run(tenant, priority, label, call);
+            if (out.ok()) {
+                last.set(null);
+                return null;
+            }
+            FailureClassifier.Verdict v = classifier.classify(out.evidence());
+            log.warn("[{}] attempt {} failed: {} ({})", key, nth, v.failureClass(), v.signature());
+            last.set(v.failureClass());
+            return v.failureClass();
+        }, null, firstDelayMs).join();
+        FailureClass failure = last.get() == null ? FailureClass.UNKNOWN : last.get();   // null: attempt ném exception
+        return new Outcome(ok, ok ? null : failure, attempts.get());
+    }
+
+    /** Bản có sẵn kết quả lần chạy đầu (ví dụ run nhiều host): chỉ retry khi lần đầu lỗi transient */
+    public Outcome retryAfter(FailureClassifier.Evidence first, String key, RetryScheduler.Policy policy,
+                              AtomicInteger budget, String tenant, Priority priority, String label,
+                              Supplier<AnsibleRunnerService.RunOutcome> call) {
+        FailureClass c = classifier.classify(first).failureClass();
+        if (!c.isTransient() || policy.getMaxAttempts() <= 1 || !take(budget)) {
+            return new Outcome(false, c, 1);
+        }
+        long delay = retryScheduler.backoff(policy, 1);
+        log.info("[{}] first run failed ({}) → retry alone in {} ms", key, c, delay);
+        Outcome rest = run(key, policy.toBuilder().maxAttempts(policy.getMaxAttempts() - 1).build(),
+                budget, tenant, priority, label, call, delay);
+        return new Outcome(rest.ok(), rest.failureClass(), rest.attempts() + 1);
+    }
+
+    private static boolean take(AtomicInteger budget) {
+        return budget == null || budget.getAndUpdate(v -> Math.max(0, v - 1)) > 0;
+    }
+}
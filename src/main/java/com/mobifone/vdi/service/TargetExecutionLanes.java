@@ -0,0 +1,116 @@
+package com.mobifone.vdi.service;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Làn chạy theo đích (endpoint WinRM/SSH của 1 VM):
+ * - mỗi đích tối đa max-per-target run đồng thời (WinRM có quota shell/host, MSI tự serialize)
+ * - VM khác nhau là làn khác nhau → vẫn song song hoàn toàn
+ * - trong 1 làn cấp chỗ đúng thứ tự gọi submit (FIFO) → các VM cùng job vào làn theo cùng thứ tự app,
+ *   không kẹt chéo khi AppBatchCoordinator gom nhiều VM vào 1 playbook
+ * Trần toàn cục vẫn do AnsibleExecutionScheduler giữ (work gọi scheduler bên trong làn).
+ */
+@Service
+@Slf4j
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class TargetExecutionLanes {
+
+    @NonFinal
+    @Value("${ansible.lanes.max-per-target:1}")
+    int maxPerTarget;
+
+    final Object lock = new Object();
+    final Map<String, Lane> lanes = new HashMap<>();
+
+    /** Xếp hàng ngay (thứ tự = thứ tự gọi); work chạy trên virtual thread khi làn còn chỗ */
+    public <T> CompletableFuture<T> submit(String target, String label, Supplier<T> work) {
+        Ticket t = enqueue(target, label);
+        return t.admission.thenApplyAsync(v -> {
+            try {
+                return work.get();
+            } finally {
+                release(target);
+            }
+        }, r -> Thread.ofVirtual().name("lane-" + label).start(r));
+    }
+
+    /** Bản chặn: chờ chỗ trong làn (chặn thread gọi) rồi chạy work; luôn trả chỗ khi xong */
+    public <T> T run(String target, String label, Supplier<T> work) {
+        enqueue(target, label).admission.join();
+        try {
+            return work.get();
+        } finally {
+            release(target);
+        }
+    }
+
+    /** Số run đang chạy + đang chờ trên target (0 nếu làn rảnh) */
+    public int load(String target) {
+        synchronized (lock) {
+            Lane lane = lanes.get(target);
+            return lane == null ? 0 : lane.running + lane.waiting.size();
+        }
+    }
+
+    // ===================== INTERNAL =====================
+
+    private Ticket enqueue(String target, String label) {
+        Ticket t = new Ticket(label);
+        synchronized (lock) {
+            Lane lane = lanes.computeIfAbsent(target, k -> new Lane());
+            lane.waiting.add(t);
+            dispatch(target, lane);
+        }
+        return t;
+    }
+
+    private void release(String target) {
+        synchronized (lock) {
+            Lane lane = lanes.get(target);
+            if (lane == null) return;
+            lane.running--;
+            dispatch(target, lane);
+            // làn rảnh → bỏ để map không phình theo số VM
+            if (lane.running == 0 && lane.waiting.isEmpty()) lanes.remove(target);
+        }
+    }
+
+    /** Gọi trong lock */
+    private void dispatch(String target, Lane lane) {
+        while (lane.running < Math.max(1, maxPerTarget) && !lane.waiting.isEmpty()) {
+            Ticket next = lane.waiting.poll();
+            lane.running++;
+            long waited = System.currentTimeMillis() - next.enqueuedAt;
+            if (waited > 1000) {
+                log.info("[lane {}] admit {} after {} ms", target, next.label, waited);
+            }
+            next.admission.complete(null);
+        }
+    }
+
+    private static final class Lane {
+        final ArrayDeque<Ticket> waiting = new ArrayDeque<>();
+        int running;
+    }
+
+    private static final class Ticket {
+        final String label;
+        final long enqueuedAt = System.currentTimeMillis();
+        final CompletableFuture<Void> admission = new CompletableFuture<>();
+
+        Ticket(String label) {
+            this.label = label;
+        }
+    }
+}
@@ -3,12 +3,18 @@ package com.mobifone.vdi.utils;
 import com.mobifone.vdi.entity.ProvisionTask;
 import org.springframework.stereotype.Component;
 
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
+@Slf4j
 @Component
 public class ProvisionSignalBus {
     private final ConcurrentHashMap<String, CompletableFuture<ProvisionTask>> bus = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Consumer<Map<String, Object>>> instanceListeners = new ConcurrentHashMap<>();
 
     /** Lấy (hoặc tạo) Future cho taskId */
     public CompletableFuture<ProvisionTask> future(String taskId) {
@@ -23,6 +29,28 @@ public class ProvisionSignalBus {
         }
     }
 
+    /** Bỏ future của taskId khi bên chờ đã nhận kết quả (tránh map phình theo số job) */
+    public void discard(String taskId) {
+        bus.remove(taskId);
+        instanceListeners.remove(taskId);
+    }
+
+    /** Nhận từng instance của taskId ngay khi infra báo (trước event cuối); 1 listener / task */
+    public void onInstance(String taskId, Consumer<Map<String, Object>> listener) {
+        instanceListeners.put(taskId, listener);
+    }
+
+    /** 1 instance của task đã chạy → báo listener (nếu có ai đang chờ task này) */
+    public void instanceReady(String taskId, Map<String, Object> instance) {
+        Consumer<Map<String, Object>> l = instanceListeners.get(taskId);
+        if (l == null) return;
+        try {
+            l.accept(instance);
+        } catch (Exception e) {
+            log.warn("[signal {}] instance listener failed: {}", taskId, e.getMessage());
+        }
+    }
+
     /** Tuỳ chọn: fail future nếu có exception ở listener */
     public void completeExceptionally(String taskId, Throwable t) {
         CompletableFuture<ProvisionTask> f = bus.computeIfAbsent(taskId, k -> new CompletableFuture<>());
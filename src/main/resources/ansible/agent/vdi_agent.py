@@ -0,0 +1,250 @@
+#!/usr/bin/env python3
+# -*- coding: utf-8 -*-
+# Agent chạy trên Ansible control host: nhận run từ backend qua 1 kết nối lâu dài, chạy `bash -s`,
+# đẩy stdout / task event / exit về theo id. Frame = 4 byte độ dài (big-endian) + JSON UTF-8
+# (xem AgentFrames.java). Backend tự cài file này (ansible.agent.install) và chạy:
+#   python3 vdi_agent.py --stdio              # qua 1 phiên ssh (stdin/stdout là kênh frame)
+#   python3 vdi_agent.py --listen 127.0.0.1:7070
+# Kết nối đóng → kill mọi run của kết nối đó.
+import base64
+import json
+import os
+import signal
+import socket
+import struct
+import subprocess
+import sys
+import threading
+
+EVENT_POLL_SECONDS = 0.5
+MAX_READ = 8 * 1024 * 1024
+
+
+def read_exact(f, n):
+    buf = b''
+    while len(buf) < n:
+        chunk = f.read(n - len(buf))
+        if not chunk:
+            return None
+        buf += chunk
+    return buf
+
+
+def belongs_to(owner, job_id):
+    return owner == job_id or owner.startswith(job_id + '_')
+
+
+class Channel(object):
+    def __init__(self, rfile, wfile):
+        self.rfile = rfile
+        self.wfile = wfile
+        self.write_lock = threading.Lock()
+        self.runs = {}
+        self.runs_lock = threading.Lock()
+
+    def send(self, frame):
+        data = json.dumps(frame, separators=(',', ':')).encode('utf-8')
+        with self.write_lock:
+            try:
+                self.wfile.write(struct.pack('>I', len(data)))
+                self.wfile.write(data)
+                self.wfile.flush()
+            except (OSError, ValueError):
+                pass  # backend đã đóng kết nối; serve() sẽ dọn run
+
+    def recv(self):
+        head = read_exact(self.rfile, 4)
+        if head is None:
+            return None
+        (n,) = struct.unpack('>I', head)
+        body = read_exact(self.rfile, n)
+        return None if body is None else json.loads(body.decode('utf-8'))
+
+    def cancel(self, run_id=None, owner=None):
+        with self.runs_lock:
+            targets = [r for r in self.runs.values()
+                       if (run_id and r.id == run_id) or (owner and belongs_to(r.owner, owner))]
+        for r in targets:
+            r.kill()
+        return len(targets)
+
+    def kill_all(self):
+        with self.runs_lock:
+            targets = list(self.runs.values())
+        for r in targets:
+            r.kill()
+
+
+class EventTail(object):
+    """Đọc dần file JSON lines của callback vdi_task_events và đẩy từng event về backend."""
+
+    def __init__(self, channel, run_id, path):
+        self.channel = channel
+        self.run_id = run_id
+        self.path = path
+        self.offset = 0
+        self.partial = b''
+        self.stopped = threading.Event()
+        self.thread = threading.Thread(target=self._loop, daemon=True)
+        self.thread.start()
+
+    def _loop(self):
+        while not self.stopped.wait(EVENT_POLL_SECONDS):
+            self._drain()
+
+    def _drain(self):
+        try:
+            with open(self.path, 'rb') as f:
+                f.seek(self.offset)
+                data = f.read()
+        except OSError:
+            return
+        self.offset += len(data)
+        data = self.partial + data
+        lines = data.split(b'\n')
+        self.partial = lines.pop()
+        for line in lines:
+            if not line.strip():
+                continue
+            try:
+                event = json.loads(line.decode('utf-8'))
+            except ValueError:
+                continue
+            self.channel.send({'type': 'event', 'id': self.run_id, 'event': event})
+
+    def stop(self):
+        self.stopped.set()
+        self.thread.join()
+        self._drain()
+        try:
+            os.remove(self.path)
+        except OSError:
+            pass
+
+
+class Run(object):
+    def __init__(self, channel, msg):
+        self.channel = channel
+        self.id = msg['id']
+        self.owner = msg.get('owner') or self.id
+        self.msg = msg
+        self.proc = None
+        self.killed = False
+
+    def start(self):
+        env = dict(os.environ, VDI_AGENT_RUN=self.id)
+        self.proc = subprocess.Popen(['bash', '-s'], stdin=subprocess.PIPE, stdout=subprocess.PIPE,
+                                     stderr=subprocess.STDOUT, env=env, start_new_session=True)
+        with self.channel.runs_lock:
+            self.channel.runs[self.id] = self
+        threading.Thread(target=self._feed, daemon=True).start()
+        self.channel.send({'type': 'accepted', 'id': self.id, 'pid': self.proc.pid})
+        threading.Thread(target=self._pump, daemon=True).start()
+
+    def _feed(self):
+        try:
+            self.proc.stdin.write(self.msg.get('script', '').encode('utf-8'))
+            self.proc.stdin.close()
+        except (OSError, ValueError):
+            pass
+
+    def _pump(self):
+        forward = self.msg.get('stream') or self.msg.get('capture')
+        events = self.msg.get('events')
+        tail = EventTail(self.channel, self.id, events) if events else None
+        timeout_ms = self.msg.get('timeoutMs') or 0
+        timer = None
+        if timeout_ms > 0:
+            timer = threading.Timer(timeout_ms / 1000.0, self.kill)
+            timer.daemon = True
+            timer.start()
+        for raw in self.proc.stdout:
+            if forward:
+                line = raw.decode('utf-8', 'replace').rstrip('\r\n')
+                self.channel.send({'type': 'out', 'id': self.id, 'line': line})
+        code = self.proc.wait()
+        if timer:
+            timer.cancel()
+        if tail:
+            tail.stop()
+        with self.channel.runs_lock:
+            self.channel.runs.pop(self.id, None)
+        self.channel.send({'type': 'exit', 'id': self.id, 'code': code, 'killed': self.killed})
+
+    def kill(self):
+        self.killed = True
+        try:
+            os.killpg(self.proc.pid, signal.SIGKILL)  # cả cây: ansible-playbook + worker + ssh/winrm
+        except (OSError, AttributeError):
+            pass
+
+
+def read_range(path, offset, limit):
+    try:
+        size = os.path.getsize(path)
+    except OSError:
+        return -1, b''
+    if size <= offset:
+        return size, b''
+    with open(path, 'rb') as f:
+        f.seek(offset)
+        return size, f.read(min(limit, MAX_READ))
+
+
+def serve(channel):
+    try:
+        while True:
+            msg = channel.recv()
+            if msg is None:
+                break
+            kind = msg.get('type')
+            mid = msg.get('id')
+            try:
+                if kind == 'submit':
+                    Run(channel, msg).start()
+                elif kind == 'cancel':
+                    n = channel.cancel(run_id=msg.get('run'), owner=msg.get('owner'))
+                    channel.send({'type': 'cancelled', 'id': mid, 'count': n})
+                elif kind == 'read':
+                    size, data = read_range(msg['path'], int(msg.get('offset', 0)), int(msg.get('limit', 32768)))
+                    channel.send({'type': 'data', 'id': mid, 'size': size,
+                                  'data': base64.b64encode(data).decode('ascii')})
+                elif kind == 'ping':
+                    channel.send({'type': 'pong', 'id': mid})
+                else:
+                    channel.send({'type': 'error', 'id': mid, 'message': 'unknown type %s' % kind})
+            except Exception as e:  # lỗi 1 request không làm rớt kết nối
+                channel.send({'type': 'error', 'id': mid, 'message': str(e)})
+    finally:
+        channel.kill_all()
+
+
+def main(argv):
+    if len(argv) >= 2 and argv[1] == '--stdio':
+        out = sys.stdout.buffer
+        sys.stdout = sys.stderr  # print() lạc không được làm hỏng kênh frame
+        serve(Channel(sys.stdin.buffer, out))
+        return 0
+    if len(argv) >= 3 and argv[1] == '--listen':
+        host, port = argv[2].rsplit(':', 1)
+        srv = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+        srv.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
+        srv.bind((host, int(port)))
+        srv.listen(8)
+        while True:
+            conn, _ = srv.accept()
+            conn.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+
+            def handle(c=conn):
+                try:
+                    serve(Channel(c.makefile('rb'), c.makefile('wb')))
+                finally:
+                    c.close()
+
+            threading.Thread(target=handle, daemon=True).start()
+    sys.stderr.write('usage: vdi_agent.py --stdio | --listen HOST:PORT\n')
+    return 2
+
+
+if __name__ == '__main__':
+    sys.exit(main(sys.argv))
@@ -0,0 +1,77 @@
+# -*- coding: utf-8 -*-
+# Callback aggregate: ghi 1 dòng JSON cho mỗi kết quả task/host vào file $VDI_TASK_EVENTS.
+# Backend (AnsibleTaskResultService) đọc file này sau mỗi lần chạy → bảng ansible_task_result.
+# Không thay stdout callback → log người đọc giữ nguyên.
+from __future__ import absolute_import, division, print_function
+__metaclass__ = type
+
+DOCUMENTATION = '''
+    name: vdi_task_events
+    type: aggregate
+    short_description: per-task JSON lines for the VDI backend
+    description:
+      - Writes one JSON line per task result (host, role, task, status, duration) to $VDI_TASK_EVENTS.
+    requirements:
+      - enable in configuration
+'''
+
+import json
+import os
+import time
+
+from ansible.plugins.callback import CallbackBase
+
+
+class CallbackModule(CallbackBase):
+    CALLBACK_VERSION = 2.0
+    CALLBACK_TYPE = 'aggregate'
+    CALLBACK_NAME = 'vdi_task_events'
+    CALLBACK_NEEDS_ENABLED = True
+
+    def __init__(self):
+        super(CallbackModule, self).__init__()
+        path = os.environ.get('VDI_TASK_EVENTS')
+        self._out = open(path, 'a', buffering=1) if path else None
+        self._task_start = {}
+        self._host_start = {}
+
+    def v2_playbook_on_task_start(self, task, is_conditional):
+        self._task_start[task._uuid] = time.time()
+
+    def v2_playbook_on_handler_task_start(self, task):
+        self._task_start[task._uuid] = time.time()
+
+    def v2_runner_on_start(self, host, task):
+        self._host_start[(task._uuid, host.get_name())] = time.time()
+
+    def _emit(self, result, status):
+        if self._out is None:
+            return
+        task = result._task
+        host = result._host.get_name()
+        end = time.time()
+        start = self._host_start.pop((task._uuid, host), None) or self._task_start.get(task._uuid, end)
+        role = task._role.get_name() if getattr(task, '_role', None) else None
+        if status == 'ok' and result._result.get('changed'):
+            status = 'changed'
+        self._out.write(json.dumps({
+            'host': host,
+            'role': role,
+            'task': task.get_name(),
+            'action': task.action,
+            'status': status,
+            'start': start,
+            'duration_ms': int((end - start) * 1000),
+        }) + '\n')
+
+    def v2_runner_on_ok(self, result):
+        self._emit(result, 'ok')
+
+    def v2_runner_on_failed(self, result, ignore_errors=False):
+        self._emit(result, 'ignored' if ignore_errors else 'failed')
+
+    def v2_runner_on_unreachable(self, result):
+        self._emit(result, 'unreachable')
+
+    def v2_runner_on_skipped(self, result):
+        self._emit(result, 'skipped')
@@ -0,0 +1,64 @@
+package com.mobifone.vdi.repository;
+
+import com.mobifone.vdi.entity.DeploymentJob;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** claim: update có điều kiện → chỉ 1 node nhận job bị bỏ rơi, job còn heartbeat/đã xong không bị nhận */
+@DataJpaTest(properties = "spring.jpa.hibernate.ddl-auto=create-drop")
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class DeploymentJobRepositoryTest {
+
+    static final LocalDateTime NOW = LocalDateTime.of(2024, 1, 1, 8, 0);
+
+    @Autowired
+    DeploymentJobRepository repo;
+
+    @Test
+    void onlyOneNodeClaimsAStaleJob() {
+        save("j1", "SUBMITTING", NOW.minusMinutes(10));
+        LocalDateTime staleBefore = NOW.minusMinutes(2);
+
+        assertEquals(1, repo.claim("j1", "node-a", NOW, staleBefore));
+        assertEquals(0, repo.claim("j1", "node-b", NOW, staleBefore), "heartbeat vừa được node-a làm mới");
+
+        DeploymentJob j = repo.findById("j1").orElseThrow();
+        assertEquals("node-a", j.getOwnerNode());
+        assertEquals(NOW, j.getHeartbeatAt());
+    }
+
+    @Test
+    void liveOrFinishedJobsAreNotClaimed() {
+        save("live", "RUNNING", NOW.minusSeconds(30));
+        save("done", "SUCCESS", NOW.minusMinutes(10));
+        save("never", "PENDING", null);
+        LocalDateTime staleBefore = NOW.minusMinutes(2);
+
+        assertEquals(0, repo.claim("live", "node-b", NOW, staleBefore));
+        assertEquals(0, repo.claim("done", "node-b", NOW, staleBefore));
+        assertEquals(1, repo.claim("never", "node-b", NOW, staleBefore));
+    }
+
+    @Test
+    void saveWithStaleEntityDoesNotRollBackHeartbeat() {
+        save("j2", "RUNNING", NOW.minusMinutes(10));
+        DeploymentJob stale = repo.findById("j2").orElseThrow();
+        repo.heartbeat(java.util.List.of("j2"), "node-a", NOW);
+
+        stale.setStatus("SUBMITTING");
+        repo.save(stale);
+        assertEquals(NOW, repo.findById("j2").orElseThrow().getHeartbeatAt());
+    }
+
+    private void save(String id, String status, LocalDateTime heartbeat) {
+        repo.save(DeploymentJob.builder().id(id).mode("personal").status(status)
+                .ownerNode("old-node").heartbeatAt(heartbeat).createdAt(NOW.minusHours(1)).build());
+    }
+}
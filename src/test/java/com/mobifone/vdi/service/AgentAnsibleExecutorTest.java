@@ -0,0 +1,106 @@
+package com.mobifone.vdi.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Transport agent với agent giả (TCP local): nhiều run trên 1 kết nối, stream/capture, event, cancel, đọc log */
+class AgentAnsibleExecutorTest {
+
+    FakeAnsibleAgent fake;
+    SshConnectionPool pool;
+    AnsibleAgentClient client;
+    AgentAnsibleExecutor executor;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        fake = new FakeAnsibleAgent();
+        pool = new SshConnectionPool();
+        ReflectionTestUtils.setField(pool, "enabled", false);
+        ReflectionTestUtils.setField(pool, "controlDir", Files.createTempDirectory("vdi-ssh").toString());
+        pool.init();
+
+        client = new AnsibleAgentClient(pool);
+        ReflectionTestUtils.setField(client, "executorType", "agent");
+        ReflectionTestUtils.setField(client, "transport", "tcp");
+        ReflectionTestUtils.setField(client, "endpointsSpec", "default=" + fake.endpoint());
+        ReflectionTestUtils.setField(client, "connectTimeoutMs", 5_000L);
+        ReflectionTestUtils.setField(client, "requestTimeoutMs", 5_000L);
+        ReflectionTestUtils.setField(client, "captureMaxBytes", 1 << 20);
+
+        executor = new AgentAnsibleExecutor(client, pool, null);
+        ReflectionTestUtils.setField(executor, "cancelTtlMinutes", 30L);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        ReflectionTestUtils.invokeMethod(client, "shutdown");
+        fake.close();
+    }
+
+    @Test
+    void runsAreMultiplexedOverOneConnection() {
+        List<CompletableFuture<AnsibleExecutor.Result>> runs = new java.util.ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            int n = i;
+            runs.add(CompletableFuture.supplyAsync(() -> executor.execute(AnsibleExecRequest.builder()
+                    .runId("job1_vm" + n)
+                    .script("sleep 20\necho PLAY RECAP\necho vm" + n + " : ok=3 changed=1 unreachable=0 failed=0\nexit " + (n % 2) + "\n")
+                    .captureOutput(true)
+                    .timeoutMs(10_000)
+                    .build())));
+        }
+        for (int i = 0; i < runs.size(); i++) {
+            AnsibleExecutor.Result r = runs.get(i).join();
+            assertNotNull(r);
+            assertEquals(i % 2, r.exit());
+            assertTrue(r.output().contains("vm" + i + " : ok=3"));
+        }
+        assertEquals(1, fake.connections);
+    }
+
+    @Test
+    void streamsLinesAndPushesTaskEvents() throws Exception {
+        List<String> lines = new CopyOnWriteArrayList<>();
+        AnsibleAgentClient.Call call = client.submit(pool.hostFor("job2"), "job2",
+                "echo a\necho b\nexit 0\n", "/tmp/job2.events.jsonl", false, lines::add, 10_000);
+        assertEquals(Integer.valueOf(0), call.exit().get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("a", "b"), lines);
+        assertEquals("fake task", call.events().get(0).path("task").asText());
+    }
+
+    @Test
+    void cancelKillsEveryRunOfTheJobAndRefusesNewOnes() throws Exception {
+        CompletableFuture<AnsibleExecutor.Result> r = CompletableFuture.supplyAsync(() -> executor.execute(
+                AnsibleExecRequest.builder().runId("job3_app").script("sleep 60000\nexit 0\n").timeoutMs(120_000).build()));
+        // chờ run tới được agent
+        for (int i = 0; i < 100 && fake.running.isEmpty(); i++) Thread.sleep(20);
+
+        assertEquals(1, executor.cancel("job3"));
+        assertFalse(r.get(5, TimeUnit.SECONDS).hasExit());
+        assertEquals(AnsibleExecutor.NoExit.CANCELLED, executor.execute(
+                AnsibleExecRequest.builder().runId("job3_next").script("exit 0\n").timeoutMs(1_000).build()).noExit());
+
+        executor.clearCancelled("job3");
+        assertEquals(0, executor.execute(AnsibleExecRequest.builder().runId("job3_next").script("exit 0\n").timeoutMs(1_000).build()).exit());
+    }
+
+    @Test
+    void readsLogRangesThroughTheAgent() throws Exception {
+        fake.file("/logs/job4.log", "line1\nline2\n");
+        AnsibleAgentClient.Range r = client.read("default", "/logs/job4.log", 6, 100);
+        assertEquals(12, r.size());
+        assertEquals("line2\n", new String(r.data(), StandardCharsets.UTF_8));
+        assertEquals(-1, client.read("default", "/logs/missing.log", 0, 100).size());
+    }
+}
@@ -0,0 +1,115 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.service.AnsibleExecutionScheduler.Priority;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Thứ tự admit: strict priority giữa các lớp, deficit round robin giữa tenant trong 1 lớp, trần max-concurrent */
+class AnsibleExecutionSchedulerTest {
+
+    final List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    void higherClassIsAlwaysAdmittedFirst() throws Exception {
+        AnsibleExecutionScheduler s = scheduler(1, 1);
+        CountDownLatch gate = new CountDownLatch(1);
+        List<CompletableFuture<String>> all = new ArrayList<>();
+        all.add(s.submit("t1", Priority.APP, "blocker", () -> { await(gate); return "blocker"; }));
+
+        all.add(track(s, "t1", Priority.BULK, "bulk1"));
+        all.add(track(s, "t1", Priority.APP, "app1"));
+        all.add(track(s, "t2", Priority.NAT, "nat1"));
+        all.add(track(s, "t1", Priority.BULK, "bulk2"));
+        all.add(track(s, "t3", Priority.NAT, "nat2"));
+
+        gate.countDown();
+        CompletableFuture.allOf(all.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+        assertEquals(List.of("nat1", "nat2", "app1", "bulk1", "bulk2"), order);
+    }
+
+    @Test
+    void tenantsInOneClassTakeTurns() throws Exception {
+        AnsibleExecutionScheduler s = scheduler(1, 1);
+        CountDownLatch gate = new CountDownLatch(1);
+        List<CompletableFuture<String>> all = new ArrayList<>();
+        all.add(s.submit("x", Priority.APP, "blocker", () -> { await(gate); return "blocker"; }));
+
+        // tenant A xếp 4 run trước, B xếp 2 run sau → vẫn xen kẽ, A không chiếm hết
+        for (int i = 1; i <= 4; i++) all.add(track(s, "A", Priority.APP, "A" + i));
+        for (int i = 1; i <= 2; i++) all.add(track(s, "B", Priority.APP, "B" + i));
+
+        gate.countDown();
+        CompletableFuture.allOf(all.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+        assertEquals(List.of("A1", "B1", "A2", "B2", "A3", "A4"), order);
+    }
+
+    @Test
+    void quantumLetsTenantRunSeveralInARow() throws Exception {
+        AnsibleExecutionScheduler s = scheduler(1, 2);
+        CountDownLatch gate = new CountDownLatch(1);
+        List<CompletableFuture<String>> all = new ArrayList<>();
+        all.add(s.submit("x", Priority.APP, "blocker", () -> { await(gate); return "blocker"; }));
+
+        for (int i = 1; i <= 3; i++) all.add(track(s, "A", Priority.APP, "A" + i));
+        for (int i = 1; i <= 3; i++) all.add(track(s, "B", Priority.APP, "B" + i));
+
+        gate.countDown();
+        CompletableFuture.allOf(all.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+        assertEquals(List.of("A1", "A2", "B1", "B2", "A3", "B3"), order);
+    }
+
+    @Test
+    void neverRunsMoreThanMaxConcurrent() throws Exception {
+        AnsibleExecutionScheduler s = scheduler(3, 1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        List<CompletableFuture<Integer>> all = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            all.add(s.submit("t" + (i % 4), Priority.values()[i % 3], "run" + i, () -> {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                }
+                return running.decrementAndGet();
+            }));
+        }
+        CompletableFuture.allOf(all.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+        assertEquals(3, peak.get());
+        assertEquals(0, s.metrics().getRunning());
+        assertEquals(0, s.metrics().getQueueDepth());
+    }
+
+    private AnsibleExecutionScheduler scheduler(int maxConcurrent, int quantum) {
+        AnsibleExecutionScheduler s = new AnsibleExecutionScheduler();
+        ReflectionTestUtils.setField(s, "maxConcurrent", maxConcurrent);
+        ReflectionTestUtils.setField(s, "quantum", quantum);
+        return s;
+    }
+
+    private CompletableFuture<String> track(AnsibleExecutionScheduler s, String tenant, Priority p, String label) {
+        return s.submit(tenant, p, label, () -> {
+            order.add(label);
+            return label;
+        });
+    }
+
+    private static void await(CountDownLatch gate) {
+        try {
+            gate.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
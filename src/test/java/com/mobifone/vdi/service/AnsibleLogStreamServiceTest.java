@@ -0,0 +1,103 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.dto.response.LogChunkResponse;
+import com.mobifone.vdi.entity.AnsibleJob;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/** Đọc log theo byte offset: cắt ở cuối dòng, bỏ mã ANSI, đoạn có giới hạn, không cắt đôi ký tự UTF-8 */
+class AnsibleLogStreamServiceTest {
+
+    static final String JOB = "job1";
+    static final String PATH = "/ansible-host/logs/job1.log";
+
+    AnsibleRunnerService runner;
+    LogArchiveService archive;
+    AnsibleLogStreamService stream;
+    AnsibleJob job;
+    byte[] file;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        runner = mock(AnsibleRunnerService.class);
+        archive = mock(LogArchiveService.class);
+        job = AnsibleJob.builder().status("RUNNING").logPath(PATH).build();
+        when(runner.getJob(JOB)).thenReturn(job);
+        when(archive.isArchived(JOB)).thenReturn(true);
+        when(archive.read(eq(JOB), eq(PATH), anyLong(), anyInt())).thenAnswer(inv -> {
+            long off = inv.getArgument(2);
+            int limit = inv.getArgument(3);
+            int from = (int) Math.min(off, file.length);
+            return new LogArchiveService.Range(file.length,
+                    Arrays.copyOfRange(file, from, Math.min(file.length, from + limit)));
+        });
+        stream = new AnsibleLogStreamService(runner, mock(SshConnectionPool.class), mock(AnsibleAgentClient.class), archive);
+        ReflectionTestUtils.setField(stream, "chunkBytes", 4);
+    }
+
+    @Test
+    void runningJobStopsAtLastCompleteLineAndResumesFromNextOffset() {
+        file = bytes("TASK [a]\nok: [vd1]\npartial");
+
+        LogChunkResponse first = stream.readChunk(JOB, 0, 1000);
+        assertEquals("TASK [a]\nok: [vd1]\n", first.getData());
+        assertEquals(19, first.getNextOffset());
+        assertEquals(file.length, first.getSize());
+        assertFalse(first.isEof());
+
+        LogChunkResponse again = stream.readChunk(JOB, first.getNextOffset(), 1000);
+        assertEquals("", again.getData(), "dòng chưa xong chưa được phát");
+        assertEquals(19, again.getNextOffset());
+    }
+
+    @Test
+    void finishedJobHandsOutTheLastPartialLineAndReportsEof() {
+        file = bytes("ok: [vd1]\nPLAY RECAP");
+        job.setStatus("SUCCESS");
+
+        LogChunkResponse c = stream.readChunk(JOB, 10, 1000);
+        assertEquals("PLAY RECAP", c.getData());
+        assertEquals(file.length, c.getNextOffset());
+        assertTrue(c.isEof());
+    }
+
+    @Test
+    void ansiColorCodesAreStrippedButOffsetsCountRawBytes() {
+        file = bytes("\u001B[0;32mok: [vd1]\u001B[0m\n");
+
+        LogChunkResponse c = stream.readChunk(JOB, 0, 1000);
+        assertEquals("ok: [vd1]\n", c.getData());
+        assertEquals(file.length, c.getNextOffset());
+    }
+
+    @Test
+    void chunkIsBoundedByChunkBytes() {
+        file = bytes("0123456789012345678901234567890123456789\n");   // 41 byte, chunkBytes*8 = 32
+
+        LogChunkResponse c = stream.readChunk(JOB, 0, 1_000_000);
+        assertEquals(32, c.getNextOffset(), "dòng dài hơn buffer → cắt ở giới hạn");
+        assertEquals("01234567890123456789012345678901", c.getData());
+    }
+
+    @Test
+    void longLineIsNotCutInsideAMultiByteCharacter() {
+        file = bytes("abệcd");                                    // ệ = 3 byte UTF-8
+
+        LogChunkResponse c = stream.readChunk(JOB, 0, 4);
+        assertEquals("ab", c.getData());
+        assertEquals(2, c.getNextOffset());
+        assertEquals("ệc", stream.readChunk(JOB, 2, 4).getData());
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
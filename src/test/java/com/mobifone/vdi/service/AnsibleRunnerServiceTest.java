@@ -0,0 +1,120 @@
+package com.mobifone.vdi.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.yaml.snakeyaml.Yaml;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Parse PLAY RECAP của run nhiều host; playbook NAT batch ship kèm backend; khi nào marker journal coi như đã ghi;
+ * stageAndRun: mkdir + ghi file + chạy lệnh trong 1 lần gọi executor (bash -s local thay cho ssh)
+ */
+class AnsibleRunnerServiceTest {
+
+    @Test
+    void recapMarksHostOkOnlyWithoutUnreachableOrFailed() {
+        String out = """
+                PLAY RECAP *********************************************************************
+                vd_1                       : ok=12   changed=3    unreachable=0    failed=0    skipped=1    rescued=0    ignored=0
+                vd_2                       : ok=2    changed=0    unreachable=1    failed=0    skipped=0    rescued=0    ignored=0
+                vd_3                       : ok=7    changed=1    unreachable=0    failed=2    skipped=0    rescued=0    ignored=0
+                """;
+        assertEquals(Map.of("vd_1", true, "vd_2", false, "vd_3", false), AnsibleRunnerService.parseRecap(out));
+    }
+
+    @Test
+    void recapIgnoresColorCodesAndOtherLines() {
+        String out = "TASK [chrome : install] ***\n"
+                + "fatal: [vd_2]: UNREACHABLE! => {\"msg\": \"ok=1 changed=0\"}\n"
+                + "PLAY RECAP ***\n"
+                + "\u001B[0;32mvd_1\u001B[0m : \u001B[0;32mok=4\u001B[0m changed=0 unreachable=0 failed=0 skipped=0\r\n"
+                + "\u001B[0;31mvd_2\u001B[0m : ok=0 changed=0 \u001B[1;31munreachable=1\u001B[0m failed=0 skipped=0\n";
+        assertEquals(Map.of("vd_1", true, "vd_2", false), AnsibleRunnerService.parseRecap(out));
+    }
+
+    @Test
+    void recapOfMissingOrEmptyOutputIsEmpty() {
+        assertTrue(AnsibleRunnerService.parseRecap(null).isEmpty());
+        assertTrue(AnsibleRunnerService.parseRecap("").isEmpty());
+        assertTrue(AnsibleRunnerService.parseRecap("ERROR! the playbook could not be found\n").isEmpty());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void natBatchPlaybookShipsWithBackend() {
+        assertNotNull(AnsibleRunnerService.NAT_BATCH_PLAYBOOK);
+        List<Map<String, Object>> plays = new Yaml().load(AnsibleRunnerService.NAT_BATCH_PLAYBOOK);
+        assertEquals(1, plays.size());
+        Map<String, Object> play = plays.get(0);
+        assertEquals("all", play.get("hosts"));
+        assertTrue(((Map<String, Object>) play.get("vars")).get("nat_php").toString().contains("nat_rules"));
+        assertEquals(1, ((List<?>) play.get("tasks")).size());
+    }
+
+    @Test
+    void journalCountsAsWrittenOnlyWhenTheScriptItselfExited() {
+        assertTrue(AnsibleRunnerService.journalWritten(new AnsibleExecutor.Result(0, "")));
+        assertTrue(AnsibleRunnerService.journalWritten(new AnsibleExecutor.Result(2, "")));
+        assertFalse(AnsibleRunnerService.journalWritten(new AnsibleExecutor.Result(SshConnectionPool.SSH_TRANSPORT_ERROR, "")));
+        assertFalse(AnsibleRunnerService.journalWritten(new AnsibleExecutor.Result(PlaybookCacheService.CACHE_MISS_EXIT, "")));
+        assertFalse(AnsibleRunnerService.journalWritten(AnsibleExecutor.noExit(AnsibleExecutor.NoExit.TIMEOUT)));
+    }
+
+    @Test
+    void stagedBundleWritesFilesAndRunsInOneRoundTrip(@TempDir Path dir) throws Exception {
+        List<String> scripts = new ArrayList<>();
+        AnsibleExecutor local = new AnsibleExecutor() {
+            public String name() { return "local"; }
+            public boolean isRemote() { return false; }
+            public int cancel(String jobId) { return 0; }
+            public void clearCancelled(String jobId) { }
+
+            public Result execute(AnsibleExecRequest req) {
+                scripts.add(req.getScript());
+                try {
+                    Process p = new ProcessBuilder("bash", "-s").redirectErrorStream(true).start();
+                    try (var os = p.getOutputStream()) {
+                        os.write(req.getScript().getBytes(StandardCharsets.UTF_8));
+                    }
+                    String out = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+                    return new Result(p.waitFor(), out);
+                } catch (Exception e) {
+                    return AnsibleExecutor.noExit(AnsibleExecutor.NoExit.ERROR);
+                }
+            }
+        };
+        SshConnectionPool pool = mock(SshConnectionPool.class);
+        AnsibleRunnerService runner = new AnsibleRunnerService(null, pool, null, null, new JobJournalService(pool), null,
+                List.of(local), mock(PlaybookCacheService.class), null);
+        ReflectionTestUtils.setField(runner, "executorType", "local");
+        ReflectionTestUtils.setField(runner, "timeoutMinutes", 1L);
+
+        String jobs = dir + "/jobs";
+        String logFile = dir + "/logs/job1.log";
+        String inventory = "[windows]\n10.0.0.1\n\n[windows:vars]\nansible_password='it''s $HOME'\n";
+        AnsibleRunnerService.RunOutcome out = runner.stageAndRun(AnsibleJobBundle.builder()
+                .runId("job1")
+                .dir(jobs).dir(dir + "/logs")
+                .file(jobs + "/inventory_job1.ini", inventory)
+                .logFile(logFile)
+                .startMarker("===== START =====")
+                .endMarkerPrefix("===== END")
+                .command("grep -c '' " + jobs + "/inventory_job1.ini")
+                .build());
+
+        assertTrue(out.ok());
+        assertEquals(1, scripts.size(), "mkdir + ghi file + chạy = 1 round-trip");
+        assertEquals(inventory, Files.readString(Path.of(jobs, "inventory_job1.ini")));
+        assertEquals(List.of("===== START =====", "5", "===== END (exit=0) ====="), Files.readAllLines(Path.of(logFile)));
+    }
+}
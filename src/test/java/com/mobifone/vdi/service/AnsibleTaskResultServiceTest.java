@@ -0,0 +1,111 @@
+package com.mobifone.vdi.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mobifone.vdi.entity.AnsibleTaskResult;
+import com.mobifone.vdi.repository.AnsibleTaskResultRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/** File JSON lines của callback vdi_task_events: parse dần theo dòng, lưu theo lô, bỏ dòng không phải task, xoá file */
+class AnsibleTaskResultServiceTest {
+
+    @TempDir
+    Path dir;
+
+    AnsibleTaskResultRepository repository;
+    AnsibleTaskResultService results;
+    List<List<AnsibleTaskResult>> batches;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() throws Exception {
+        repository = mock(AnsibleTaskResultRepository.class);
+        batches = new ArrayList<>();
+        when(repository.saveAll(anyList())).thenAnswer(inv -> {
+            batches.add(new ArrayList<>((List<AnsibleTaskResult>) inv.getArgument(0)));
+            return inv.getArgument(0);
+        });
+        // "ssh" = bash local: lệnh cat/rm chạy trên file tạm
+        SshConnectionPool pool = mock(SshConnectionPool.class);
+        SshConnectionPool.Lease lease = mock(SshConnectionPool.Lease.class);
+        when(lease.command(anyString())).thenAnswer(inv -> List.of("bash", "-c", inv.getArgument(0)));
+        when(pool.acquireFor(any())).thenReturn(lease);
+
+        results = new AnsibleTaskResultService(repository, pool);
+        ReflectionTestUtils.setField(results, "batchSize", 2);
+    }
+
+    @Test
+    void jsonLinesAreSavedInBatchesAndTheFileIsRemoved() throws Exception {
+        Path events = dir.resolve("job1_events.jsonl");
+        Files.writeString(events, String.join("\n",
+                "{\"host\":\"vd_1\",\"role\":\"chrome\",\"task\":\"Install Chrome\",\"action\":\"win_package\","
+                        + "\"status\":\"changed\",\"duration_ms\":42000,\"start\":1700000000.5}",
+                "{\"host\":\"vd_2\",\"task\":\"Gathering Facts\",\"status\":\"ok\",\"duration_ms\":900}",
+                "{\"event\":\"playbook_stats\"}",
+                "{\"host\":\"vd_2\",\"role\":\"chrome\",\"task\":\"Install Chrome\",\"status\":\"unreachable\"}",
+                ""));
+
+        assertEquals(3, results.collect("job1_chrome", events.toString()));
+
+        assertEquals(List.of(2, 1), batches.stream().map(List::size).toList());
+        AnsibleTaskResult first = batches.get(0).get(0);
+        assertEquals("job1_chrome", first.getRunId());
+        assertEquals("vd_1", first.getHost());
+        assertEquals("chrome", first.getRole());
+        assertEquals("Install Chrome", first.getTask());
+        assertEquals("win_package", first.getAction());
+        assertEquals("changed", first.getStatus());
+        assertEquals(42000L, first.getDurationMs());
+        assertEquals(LocalDateTime.ofInstant(Instant.ofEpochMilli(1_700_000_000_500L), ZoneId.systemDefault()),
+                first.getStartedAt());
+        assertNull(batches.get(0).get(1).getRole(), "task ngoài role");
+        assertEquals("unreachable", batches.get(1).get(0).getStatus());
+        assertFalse(Files.exists(events));
+    }
+
+    @Test
+    void truncatedLastLineKeepsTheRecordsBeforeIt() throws Exception {
+        ReflectionTestUtils.setField(results, "batchSize", 200);   // lô chưa đầy lúc gặp dòng hỏng
+        Path events = dir.resolve("job2_events.jsonl");
+        Files.writeString(events,
+                "{\"host\":\"vd_1\",\"task\":\"a\",\"status\":\"ok\"}\n"
+                        + "{\"host\":\"vd_1\",\"task\":\"b\",\"status\":\"ok\"}\n"
+                        + "{\"host\":\"vd_1\",\"task\":\"c\",\"sta");   // run bị kill giữa lúc ghi
+
+        assertEquals(2, results.collect("job2", events.toString()));
+        assertEquals(List.of("a", "b"), batches.stream().flatMap(List::stream).map(AnsibleTaskResult::getTask).toList());
+    }
+
+    @Test
+    void missingFileSavesNothing() {
+        assertEquals(0, results.collect("job3", dir.resolve("nope.jsonl").toString()));
+        verify(repository, never()).saveAll(anyList());
+    }
+
+    @Test
+    void agentEventsAreSavedWithoutReadingAFile() throws Exception {
+        ObjectMapper om = new ObjectMapper();
+        List<JsonNode> events = List.of(
+                om.readTree("{\"host\":\"vd_1\",\"task\":\"a\",\"status\":\"failed\"}"),
+                om.readTree("{\"host\":\"vd_1\"}"));
+
+        assertEquals(1, results.save("job4", events));
+        assertEquals("failed", batches.get(0).get(0).getStatus());
+    }
+}
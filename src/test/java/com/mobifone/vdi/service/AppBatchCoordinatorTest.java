@@ -0,0 +1,144 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.entity.AppDefinition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/** Gom VM theo (job, app, vars): flush khi đủ VM (ready), khi VM rời job, khi hết max-wait; khoá nhóm theo nội dung vars */
+class AppBatchCoordinatorTest {
+
+    AnsibleRunnerService ansible;
+    AnsibleExecutionScheduler scheduler;
+    StepRetryService stepRetry;
+    AppBatchCoordinator batch;
+
+    final AppDefinition chrome = AppDefinition.builder().code("chrome").build();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        ansible = mock(AnsibleRunnerService.class);
+        scheduler = mock(AnsibleExecutionScheduler.class);
+        stepRetry = mock(StepRetryService.class);
+        when(scheduler.run(any(), any(), any(), any()))
+                .thenAnswer(inv -> ((Supplier<Object>) inv.getArgument(3)).get());
+        when(ansible.runPlanForHosts(any(), any(), anyList(), any())).thenAnswer(inv -> {
+            Map<String, Boolean> ok = new HashMap<>();
+            List<AnsibleHostTarget> hosts = inv.getArgument(2);
+            hosts.forEach(h -> ok.put(h.getAlias(), true));
+            return new AnsibleRunnerService.HostsOutcome(ok, Map.of());
+        });
+        when(stepRetry.run(any(), any(), any(), any(), any(), any(), any()))
+                .thenReturn(new StepRetryService.Outcome(true, null, 1));
+
+        batch = new AppBatchCoordinator(ansible, scheduler, mock(RetryScheduler.class), stepRetry);
+        ReflectionTestUtils.setField(batch, "enabled", true);
+        ReflectionTestUtils.setField(batch, "maxWaitSeconds", 300L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        batch.shutdown();
+    }
+
+    @Test
+    void flushesOnceEveryVmHasArrived() throws Exception {
+        assertTrue(batch.open("job1", 3, "t1"));
+        CompletableFuture<StepRetryService.Outcome> a = submit(0, Map.of("v", "1"));
+        CompletableFuture<StepRetryService.Outcome> b = submit(1, Map.of("v", "1"));
+        assertFalse(a.isDone());
+        verify(ansible, never()).runPlanForHosts(any(), any(), anyList(), any());
+
+        CompletableFuture<StepRetryService.Outcome> c = submit(2, Map.of("v", "1"));
+        for (var f : List.of(a, b, c)) assertTrue(f.get(5, TimeUnit.SECONDS).ok());
+        verify(ansible, times(1)).runPlanForHosts(eq("job1_chrome"), eq(chrome), argThat(h -> h.size() == 3), any());
+        verifyNoInteractions(stepRetry);
+    }
+
+    @Test
+    void leaveReleasesGroupWaitingForTheGoneVm() throws Exception {
+        batch.open("job1", 3, "t1");
+        CompletableFuture<StepRetryService.Outcome> a = submit(0, Map.of());
+        CompletableFuture<StepRetryService.Outcome> b = submit(1, Map.of());
+        assertFalse(a.isDone());
+
+        batch.leave("job1", 2);
+        assertTrue(a.get(5, TimeUnit.SECONDS).ok());
+        assertTrue(b.get(5, TimeUnit.SECONDS).ok());
+        verify(ansible).runPlanForHosts(any(), any(), argThat(h -> h.size() == 2), any());
+    }
+
+    @Test
+    void leaveOfAMemberDoesNotCountTwice() {
+        batch.open("job1", 3, "t1");
+        CompletableFuture<StepRetryService.Outcome> a = submit(0, Map.of());
+        // VM 0 đã trong nhóm rồi mới rời → nhóm vẫn chờ VM 1, 2
+        batch.leave("job1", 0);
+        assertFalse(a.isDone());
+        verify(ansible, never()).runPlanForHosts(any(), any(), anyList(), any());
+    }
+
+    @Test
+    void deadlineFlushesWhatHasArrived() throws Exception {
+        ReflectionTestUtils.setField(batch, "maxWaitSeconds", 0L);
+        batch.open("job1", 3, "t1");
+        // 1 VM trong nhóm khi hết hạn → chạy riêng (không cần inventory nhiều host)
+        assertTrue(submit(0, Map.of()).get(5, TimeUnit.SECONDS).ok());
+        verify(stepRetry).run(eq("job1_chrome_vd_0"), any(), any(), eq("t1"), any(), eq("job1_chrome"), any());
+        verify(ansible, never()).runPlanForHosts(any(), any(), anyList(), any());
+    }
+
+    @Test
+    void varsWithSameContentShareGroup() throws Exception {
+        Map<String, Object> v1 = new LinkedHashMap<>();
+        v1.put("a", 1);
+        v1.put("b", Map.of("x", "y", "z", "w"));
+        Map<String, Object> v2 = new LinkedHashMap<>();
+        v2.put("b", new TreeMap<>(Map.of("z", "w", "x", "y")));
+        v2.put("a", 1);
+
+        batch.open("job1", 2, "t1");
+        CompletableFuture<StepRetryService.Outcome> a = submit(0, v1);
+        CompletableFuture<StepRetryService.Outcome> b = submit(1, v2);
+        assertTrue(a.get(5, TimeUnit.SECONDS).ok());
+        assertTrue(b.get(5, TimeUnit.SECONDS).ok());
+        verify(ansible).runPlanForHosts(any(), any(), argThat(h -> h.size() == 2), any());
+    }
+
+    @Test
+    void varsWithSameHashCodeButDifferentContentAreNotMerged() throws Exception {
+        Map<String, Object> v1 = Map.of("a", "Aa");
+        Map<String, Object> v2 = Map.of("a", "BB");
+        assertEquals(v1.hashCode(), v2.hashCode());
+        assertNotEquals(AppBatchCoordinator.groupKey(chrome, v1), AppBatchCoordinator.groupKey(chrome, v2));
+
+        batch.open("job1", 2, "t1");
+        CompletableFuture<StepRetryService.Outcome> a = submit(0, v1);
+        CompletableFuture<StepRetryService.Outcome> b = submit(1, v2);
+        // 2 nhóm 1 VM, không nhóm nào đủ → close chạy riêng từng VM với đúng vars của nó
+        assertFalse(a.isDone());
+        batch.close("job1");
+        assertTrue(a.get(5, TimeUnit.SECONDS).ok());
+        assertTrue(b.get(5, TimeUnit.SECONDS).ok());
+        verify(stepRetry, times(2)).run(any(), any(), any(), any(), any(), any(), any());
+        verify(ansible, never()).runPlanForHosts(any(), any(), anyList(), any());
+    }
+
+    private CompletableFuture<StepRetryService.Outcome> submit(int vm, Map<String, Object> vars) {
+        AnsibleHostTarget t = AnsibleHostTarget.builder()
+                .alias("vd_" + vm).ip("10.0.0." + (vm + 1)).port(5985).user("u").pass("p").build();
+        return batch.submit("job1", vm, chrome, vars, t, new AtomicInteger(3));
+    }
+}
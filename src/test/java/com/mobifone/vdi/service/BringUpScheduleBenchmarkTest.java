@@ -0,0 +1,218 @@
+package com.mobifone.vdi.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mobifone.vdi.dto.request.AppPlanRequest;
+import com.mobifone.vdi.dto.request.ProvisionAndConfigureRequest;
+import com.mobifone.vdi.entity.AppDefinition;
+import com.mobifone.vdi.entity.DeploymentJob;
+import com.mobifone.vdi.entity.ProvisionTask;
+import com.mobifone.vdi.entity.VirtualDesktop;
+import com.mobifone.vdi.entity.enumeration.ActionType;
+import com.mobifone.vdi.entity.enumeration.TaskStatus;
+import com.mobifone.vdi.repository.DeploymentJobRepository;
+import com.mobifone.vdi.repository.VmProvisionStateRepository;
+import com.mobifone.vdi.utils.ProvisionSignalBus;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Benchmark bring-up 1 job 30 VM (mode personal, 1 app) qua ProvisionOrchestratorService thật:
+ * cấu hình lấy từ application.yaml (bring-up-concurrency, nat-batch, batch app, scheduler, lanes, retry),
+ * chỉ đổi ansible.probe.mode=skip và thu nhỏ thời gian theo TIME_SCALE (time-scale của executor mô phỏng,
+ * nat-batch.window-ms nhân cùng hệ số).
+ * Thật: orchestrator, PfSenseControlPlane (writer + gom NAT), AnsibleExecutionScheduler, RetryScheduler,
+ * StepRetryService, AppBatchCoordinator, TargetExecutionLanes, PortReadinessProber, ProvisionSignalBus,
+ * SimulatedAnsibleExecutor. Mock: repository/service DB và AnsibleRunnerService (chuyển thẳng sang executor mô phỏng).
+ * Đo từ lúc event infra SUCCESS tới khi job xong, kết quả in ra đã quy về giây thật; so với cận dưới của
+ * lịch cũ (VM cuối bắt đầu trễ 29*10s + ngủ 10s trước pfSense, rồi cài app):
+ *   BENCH_BRINGUP=1 mvn test -Dtest=BringUpScheduleBenchmarkTest
+ */
+@Slf4j
+@EnabledIfEnvironmentVariable(named = "BENCH_BRINGUP", matches = ".+")
+@SpringBootTest(classes = {
+        ProvisionOrchestratorService.class, PfSenseControlPlane.class, PfSenseNatTable.class,
+        FailureClassifier.class, AnsibleExecutionScheduler.class, RetryScheduler.class, StepRetryService.class,
+        AppBatchCoordinator.class, TargetExecutionLanes.class, PortReadinessProber.class,
+        ProvisionSignalBus.class, SimulatedAnsibleExecutor.class, BringUpScheduleBenchmarkTest.SimulatedRunner.class
+}, properties = {
+        "ansible.probe.mode=skip",
+        "ansible.executor.type=simulated",
+        "ansible.executor.simulated.time-scale=" + BringUpScheduleBenchmarkTest.TIME_SCALE,
+        "ansible.executor.simulated.profiles=pfsense_nat_batch=uniform:3000-8000, pfsense_nat_create=uniform:4000-10000,"
+                + " chrome=fixed:60000",
+        "ansible.executor.simulated.default-profile=fixed:0",
+        "ansible.nat-batch.window-ms=" + BringUpScheduleBenchmarkTest.SCALED_WINDOW_MS
+})
+class BringUpScheduleBenchmarkTest {
+
+    static final int VMS = 30;
+    static final double TIME_SCALE = 0.01;
+    static final long SCALED_WINDOW_MS = 15;   // ansible.nat-batch.window-ms 1500 * TIME_SCALE
+    static final long APP_MS = 60_000;         // profile chrome
+    static final long STAGGER_MS = 10_000;     // stagger cũ idx * 10s
+    static final long SETTLE_MS = 10_000;      // safeSleep() cũ trước bước pfSense
+
+    /** AnsibleRunnerService mock có sẵn stub trước khi writer pfSense khởi động (đọc natBatchPlaybookPresent ngay) */
+    @TestConfiguration
+    static class SimulatedRunner {
+        @Bean
+        AnsibleRunnerService ansibleRunnerService(SimulatedAnsibleExecutor sim) {
+            AnsibleRunnerService ansible = mock(AnsibleRunnerService.class);
+            when(ansible.natBatchPlaybookPresent()).thenReturn(true);
+            when(ansible.runNatBatch(any(), anyList()))
+                    .thenAnswer(inv -> run(sim, inv.getArgument(0), "pfsense_nat_batch"));
+            when(ansible.runNatCreate(any(), any(), anyInt(), any(), anyInt()))
+                    .thenAnswer(inv -> run(sim, inv.getArgument(0), "pfsense_nat_create"));
+            when(ansible.runPlanForApp(any(), any(), any(), anyInt(), any(), any(), any()))
+                    .thenAnswer(inv -> run(sim, inv.getArgument(0), ((AppDefinition) inv.getArgument(1)).getCode()));
+            when(ansible.runPlanForHosts(any(), any(), anyList(), any())).thenAnswer(inv -> {
+                List<AnsibleHostTarget> hosts = inv.getArgument(2);
+                AnsibleRunnerService.RunOutcome out =
+                        run(sim, inv.getArgument(0), ((AppDefinition) inv.getArgument(1)).getCode());
+                return new AnsibleRunnerService.HostsOutcome(hosts.stream()
+                        .collect(Collectors.toMap(AnsibleHostTarget::getAlias, h -> out.ok())), Map.of());
+            });
+            return ansible;
+        }
+    }
+
+    @MockBean DeploymentJobRepository jobRepo;
+    @MockBean JobStepJournalService stepJournal;
+    @MockBean VmProvisionStateRepository stateRepo;
+    @MockBean AppDeploymentService appDeploymentService;
+    @MockBean AppDefinitionService appDefinitionService;
+    @MockBean VirtualDesktopService virtualDesktopService;
+    @MockBean UserService userService;
+    @MockBean ProjectService projectService;
+    @MockBean OpenStackService openStackService;
+    @MockBean LogArchiveService logArchive;
+    @MockBean PortAllocatorService portAllocator;
+    @MockBean ProvisionPersistService provisionPersistService;
+    @MockBean Executor taskExecutor;
+
+    @Autowired ProvisionOrchestratorService orchestrator;
+    @Autowired PfSenseControlPlane pfSense;
+    @Autowired AppBatchCoordinator appBatcher;
+    @Autowired ProvisionSignalBus signalBus;
+    @Autowired AnsibleRunnerService ansible;
+
+    @BeforeEach
+    void setUp() {
+        when(jobRepo.markFirstReady(any(), any())).thenReturn(1);
+        when(openStackService.provisionWithRetry(any(), any(), any(), any(), any()))
+                .thenAnswer(inv -> "task_" + inv.getArgument(4));
+        when(stateRepo.save(any())).thenAnswer(inv -> inv.getArgument(0));
+        when(appDeploymentService.save(any())).thenAnswer(inv -> inv.getArgument(0));
+        when(appDefinitionService.getEntityByCodeOrThrow("chrome"))
+                .thenReturn(AppDefinition.builder().code("chrome").actionType(ActionType.INSTALL).build());
+        AtomicInteger ids = new AtomicInteger();
+        when(virtualDesktopService.save(any())).thenAnswer(inv -> {
+            VirtualDesktop vd = inv.getArgument(0);
+            if (vd.getId() == null) vd.setId("vd-" + ids.incrementAndGet());
+            return vd;
+        });
+        AtomicInteger ports = new AtomicInteger(20000);
+        when(portAllocator.allocateUnique()).thenAnswer(inv -> ports.incrementAndGet());
+    }
+
+    @Test
+    void defaultConfigBringsUpThirtyVmsFasterThanStagger() throws Exception {
+        // cấu hình mặc định (application.yaml) đã vào bean thật
+        assertEquals(8, ReflectionTestUtils.getField(orchestrator, "bringUpConcurrency"));
+        assertEquals(true, ReflectionTestUtils.getField(pfSense, "batchEnabled"));
+        assertEquals(true, ReflectionTestUtils.getField(appBatcher, "enabled"));
+
+        bringUp("job_warmup");   // JIT/class loading lần đầu nhân 1/TIME_SCALE sẽ lấn át số đo
+        clearInvocations(ansible);
+
+        long t0 = System.nanoTime();
+        DeploymentJob job = bringUp("job_bench");
+        long makespan = real(System.nanoTime() - t0);
+        long firstReady = real(Duration.between(job.getCreatedAt(), job.getFirstReadyAt()).toNanos());
+
+        long natRuns = invocations("runNatBatch") + invocations("runNatCreate");
+        long appRuns = invocations("runPlanForHosts") + invocations("runPlanForApp");
+        long legacyFloor = ((VMS - 1) * STAGGER_MS + SETTLE_MS + APP_MS) / 1000;
+        log.info("[bench] {} VM: first desktop {} s, makespan {} s (stagger+sleep >= {} s), {} NAT run(s), {} app run(s)",
+                VMS, firstReady, makespan, legacyFloor, natRuns, appRuns);
+
+        assertEquals("SUCCESS", job.getStatus(), job.getMessage());
+        assertEquals(VMS, job.getSuccessVms());
+        assertTrue(natRuns < 2L * VMS, "NAT phải được gom (" + natRuns + " run cho " + 2 * VMS + " rule)");
+        assertTrue(makespan < legacyFloor, "makespan " + makespan + " s phải ngắn hơn lịch cũ >= " + legacyFloor + " s");
+    }
+
+    /** Chạy 1 job tới khi xong; đồng hồ của job bắt đầu lúc event infra SUCCESS tới */
+    private DeploymentJob bringUp(String jobId) throws Exception {
+        DeploymentJob job = DeploymentJob.builder().id(jobId).mode("personal").status("PENDING").totalVms(VMS).build();
+        when(jobRepo.findById(jobId)).thenReturn(Optional.of(job));
+        when(jobRepo.markFirstReady(eq(jobId), any())).thenAnswer(inv -> {
+            synchronized (job) {
+                if (job.getFirstReadyAt() != null) return 0;
+                job.setFirstReadyAt(inv.getArgument(1));
+                return 1;
+            }
+        });
+
+        CompletableFuture<Void> flow = orchestrator.run(jobId, "personal", request(), "hn");
+        job.setCreatedAt(LocalDateTime.now());
+        signalBus.complete(job.getInfraTaskId(), infraTask(job.getInfraTaskId()));
+        flow.get(10, TimeUnit.MINUTES);
+        return job;
+    }
+
+    private ProvisionTask infraTask(String taskId) throws Exception {
+        List<Map<String, Object>> instances = IntStream.range(0, VMS)
+                .mapToObj(i -> Map.<String, Object>of("instance_id", "inst-" + i, "access_ip_v4", "10.0.0." + (i + 10)))
+                .toList();
+        return ProvisionTask.builder().taskId(taskId).infraId("infra-1").status(TaskStatus.SUCCESS)
+                .instanceFloatingPairs(new ObjectMapper().writeValueAsString(instances)).build();
+    }
+
+    private static ProvisionAndConfigureRequest request() {
+        return ProvisionAndConfigureRequest.builder()
+                .vol_type("ssd").base_vol_id("vol").vol_size(40L).flavor_id("f1").count((long) VMS)
+                .usernameOfVdi("user1").userId("u1")
+                .apps(List.of(AppPlanRequest.builder().code("chrome").build()))
+                .build();
+    }
+
+    private long invocations(String method) {
+        return mockingDetails(ansible).getInvocations().stream()
+                .filter(i -> i.getMethod().getName().equals(method))
+                .count();
+    }
+
+    private static AnsibleRunnerService.RunOutcome run(SimulatedAnsibleExecutor sim, String runId, String label) {
+        return AnsibleRunnerService.RunOutcome.of(sim.execute(AnsibleExecRequest.builder().runId(runId).label(label).build()));
+    }
+
+    /** Thời gian thật (giây, đã bỏ hệ số scale) */
+    private static long real(long nanos) {
+        return Math.round(TimeUnit.NANOSECONDS.toMillis(nanos) / TIME_SCALE / 1000);
+    }
+}
@@ -0,0 +1,64 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.entity.enumeration.FailureClass;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Phân loại lỗi theo exit code, lý do không có exit và chữ ký trong đuôi log */
+class FailureClassifierTest {
+
+    final FailureClassifier classifier = new FailureClassifier();
+
+    @Test
+    void lockSignatureWinsOverUnreachable() {
+        String tail = "fatal: [pfsense]: UNREACHABLE! => {}\n"
+                + "PHP Fatal error: Could not obtain lock on /conf/config.lock\n";
+        FailureClassifier.Verdict v = classify(4, tail);
+        assertEquals(FailureClass.LOCK_CONTENTION, v.failureClass());
+        assertTrue(v.signature().toLowerCase().contains("lock"));
+    }
+
+    @Test
+    void unreachableCountInRecapLine() {
+        assertEquals(FailureClass.UNREACHABLE, classify(4,
+                "vd_2 : ok=0    changed=0    unreachable=1    failed=0    skipped=0").failureClass());
+        assertEquals(FailureClass.UNREACHABLE, classify(2,
+                "vd_2 : ok=3    changed=1    unreachable=12   failed=0    skipped=0").failureClass());
+    }
+
+    @Test
+    void zeroUnreachableInRecapLineIsNotUnreachable() {
+        String line = "vd_3 : ok=7    changed=1    unreachable=0    failed=1    skipped=0";
+        assertEquals(FailureClass.TASK_FAILED, classify(2, line).failureClass());
+    }
+
+    @Test
+    void exitCodeFallbackWhenNoSignature() {
+        assertEquals(FailureClass.UNREACHABLE, classify(4, "").failureClass());
+        assertEquals(FailureClass.CONNECTION, classify(255, null).failureClass());
+        assertEquals(FailureClass.TASK_FAILED, classify(2, "fatal: [vd_1]: FAILED! => {\"rc\": 3}").failureClass());
+        assertEquals(FailureClass.UNKNOWN, classify(1, "").failureClass());
+        assertEquals(FailureClass.UNKNOWN, classifier.classify(null).failureClass());
+    }
+
+    @Test
+    void noExitIsClassifiedByReason() {
+        assertEquals(FailureClass.TIMEOUT, noExit(AnsibleExecutor.NoExit.TIMEOUT));
+        assertEquals(FailureClass.TIMEOUT, noExit(null));
+        assertEquals(FailureClass.CONNECTION, noExit(AnsibleExecutor.NoExit.NO_CAPACITY));
+        assertEquals(FailureClass.CONNECTION, noExit(AnsibleExecutor.NoExit.ERROR));
+
+        FailureClass cancelled = noExit(AnsibleExecutor.NoExit.CANCELLED);
+        assertEquals(FailureClass.CANCELLED, cancelled);
+        assertFalse(cancelled.isTransient(), "cancel không được retry");
+    }
+
+    private FailureClassifier.Verdict classify(Integer exit, String tail) {
+        return classifier.classify(new FailureClassifier.Evidence(exit, tail));
+    }
+
+    private FailureClass noExit(AnsibleExecutor.NoExit reason) {
+        return classifier.classify(new FailureClassifier.Evidence(null, null, reason)).failureClass();
+    }
+}
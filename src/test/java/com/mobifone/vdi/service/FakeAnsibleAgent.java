@@ -0,0 +1,154 @@
+package com.mobifone.vdi.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Agent giả nói cùng giao thức với vdi_agent.py, chạy trong JVM test (không bash, không ansible).
+ * Script được hiểu theo vài lệnh tối thiểu: "echo X" → dòng out, "sleep MS", "exit N"; các dòng khác bỏ qua.
+ * Run có events → đẩy 1 task event giả. read → đọc từ map files.
+ */
+class FakeAnsibleAgent implements Closeable {
+
+    final ServerSocket server;
+    final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    final Map<String, Thread> running = new ConcurrentHashMap<>();    // run id -> thread
+    final Map<String, String> owners = new ConcurrentHashMap<>();     // run id -> owner
+    volatile int connections;
+
+    FakeAnsibleAgent() throws IOException {
+        server = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+        Thread.ofVirtual().start(this::acceptLoop);
+    }
+
+    String endpoint() {
+        return "127.0.0.1:" + server.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket s = server.accept();
+                connections++;
+                Thread.ofVirtual().start(() -> serve(s));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket s) {
+        try (s) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            JsonNode f;
+            while ((f = AgentFrames.read(in)) != null) {
+                String id = f.path("id").asText();
+                switch (f.path("type").asText()) {
+                    case "ping" -> send(out, frame("pong", id));
+                    case "submit" -> {
+                        JsonNode msg = f;
+                        owners.put(id, msg.path("owner").asText(id));
+                        Thread t = Thread.ofVirtual().unstarted(() -> run(out, msg));
+                        running.put(id, t);
+                        t.start();
+                    }
+                    case "cancel" -> {
+                        int n = 0;
+                        for (Map.Entry<String, Thread> e : running.entrySet()) {
+                            String owner = owners.getOrDefault(e.getKey(), "");
+                            String job = f.path("owner").asText(null);
+                            if (e.getKey().equals(f.path("run").asText(null))
+                                    || (job != null && (owner.equals(job) || owner.startsWith(job + "_")))) {
+                                e.getValue().interrupt();
+                                n++;
+                            }
+                        }
+                        send(out, frame("cancelled", id).put("count", n));
+                    }
+                    case "read" -> {
+                        byte[] data = files.get(f.path("path").asText());
+                        long offset = f.path("offset").asLong();
+                        int limit = f.path("limit").asInt();
+                        ObjectNode r = frame("data", id).put("size", data == null ? -1 : data.length);
+                        if (data != null && offset < data.length) {
+                            int end = (int) Math.min(data.length, offset + limit);
+                            r.put("data", Base64.getEncoder().encodeToString(java.util.Arrays.copyOfRange(data, (int) offset, end)));
+                        }
+                        send(out, r);
+                    }
+                    default -> send(out, frame("error", id).put("message", "unknown type"));
+                }
+            }
+        } catch (IOException e) {
+            // test đóng kết nối
+        } finally {
+            running.values().forEach(Thread::interrupt);
+        }
+    }
+
+    private void run(DataOutputStream out, JsonNode msg) {
+        String id = msg.path("id").asText();
+        int code = 0;
+        boolean killed = false;
+        try {
+            send(out, frame("accepted", id));
+            for (String line : msg.path("script").asText().split("\n")) {
+                line = line.trim();
+                if (line.startsWith("echo ") && (msg.path("stream").asBoolean() || msg.path("capture").asBoolean())) {
+                    send(out, frame("out", id).put("line", line.substring(5)));
+                } else if (line.startsWith("sleep ")) {
+                    Thread.sleep(Long.parseLong(line.substring(6).trim()));
+                } else if (line.startsWith("exit ")) {
+                    code = Integer.parseInt(line.substring(5).trim());
+                    break;
+                }
+            }
+            if (msg.hasNonNull("events")) {
+                ObjectNode ev = AgentFrames.JSON.createObjectNode()
+                        .put("host", "localhost").put("task", "fake task").put("status", "ok").put("duration_ms", 1);
+                send(out, frame("event", id).set("event", ev));
+            }
+        } catch (InterruptedException e) {
+            killed = true;
+            code = -9;
+        } catch (IOException e) {
+            return;
+        } finally {
+            running.remove(id);
+        }
+        try {
+            send(out, frame("exit", id).put("code", code).put("killed", killed));
+        } catch (IOException ignored) {
+            // kết nối đã đóng
+        }
+    }
+
+    private static ObjectNode frame(String type, String id) {
+        return AgentFrames.JSON.createObjectNode().put("type", type).put("id", id);
+    }
+
+    private static void send(DataOutputStream out, JsonNode f) throws IOException {
+        synchronized (out) {
+            AgentFrames.write(out, f);
+        }
+    }
+
+    void file(String path, String content) {
+        files.put(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+}
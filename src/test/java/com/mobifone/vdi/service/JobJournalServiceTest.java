@@ -0,0 +1,69 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.dto.response.JournalEntryResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/** Marker drain cho script staging: chưa chắc ghi → restore, lần chạy sau mang lại đủ, không ghi trùng */
+class JobJournalServiceTest {
+
+    static final String LOG = "/ansible-host/logs/job1.log";
+
+    JobJournalService journal;
+
+    @BeforeEach
+    void setUp() {
+        journal = new JobJournalService(mock(SshConnectionPool.class));
+        ReflectionTestUtils.setField(journal, "maxEntriesPerJob", 1000);
+    }
+
+    @Test
+    void confirmedDrainIsNotHandedOutAgain() {
+        journal.append("job1", LOG, "ATTEMPT #1 START");
+        journal.append("job1", LOG, "CANCEL requested");
+
+        JobJournalService.Drain d = journal.drain("job1");
+        assertEquals(2, d.lines().size());
+        assertTrue(d.lines().get(1).endsWith("CANCEL requested"));
+        assertTrue(journal.drain("job1").lines().isEmpty());
+        assertTrue(journal.entries("job1").stream().allMatch(JournalEntryResponse::isFlushed));
+    }
+
+    @Test
+    void restoredDrainIsCarriedByTheNextRun() {
+        journal.append("job1", LOG, "ATTEMPT #1 START");
+        JobJournalService.Drain lost = journal.drain("job1");   // ssh chết trước khi script chạy
+        journal.restore(lost);
+        assertFalse(journal.entries("job1").get(0).isFlushed());
+
+        journal.append("job1", LOG, "TIMEOUT");
+        List<String> next = journal.drain("job1").lines();
+        assertEquals(2, next.size());
+        assertTrue(next.get(0).endsWith("ATTEMPT #1 START"));
+        assertTrue(next.get(1).endsWith("TIMEOUT"));
+    }
+
+    @Test
+    void staleRestoreDoesNotRewindALaterDrain() {
+        journal.append("job1", LOG, "a");
+        JobJournalService.Drain first = journal.drain("job1");
+        journal.append("job1", LOG, "b");
+        journal.drain("job1");                                   // lần chạy sau đã lấy tiếp b
+
+        journal.restore(first);
+        assertTrue(journal.drain("job1").lines().isEmpty(), "phần của run sau đã ghi → không trả lại");
+    }
+
+    @Test
+    void unknownJobDrainsNothing() {
+        JobJournalService.Drain d = journal.drain("nope");
+        assertTrue(d.lines().isEmpty());
+        journal.restore(d);
+    }
+}
@@ -0,0 +1,138 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.entity.JobStepLog;
+import com.mobifone.vdi.repository.JobStepLogRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.PreparedStatement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/** Write-behind JobStepLog: flush theo lô, lô lỗi → từng dòng (detail rút gọn), hàng đợi đầy, timeline DB + chưa flush */
+class JobStepJournalServiceTest {
+
+    static final LocalDateTime T0 = LocalDateTime.of(2024, 1, 1, 8, 0);
+
+    JobStepLogRepository stepRepo;
+    JdbcTemplate jdbc;
+    JobStepJournalService journal;
+    final List<Integer> batches = new ArrayList<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        stepRepo = mock(JobStepLogRepository.class);
+        jdbc = mock(JdbcTemplate.class);
+        TransactionTemplate tx = mock(TransactionTemplate.class);
+        doAnswer(inv -> {
+            ((Consumer<TransactionStatus>) inv.getArgument(0)).accept(null);
+            return null;
+        }).when(tx).executeWithoutResult(any());
+        when(jdbc.batchUpdate(eq(JobStepJournalService.INSERT), anyCollection(), anyInt(), any()))
+                .thenAnswer(inv -> {
+                    batches.add(((Collection<?>) inv.getArgument(1)).size());
+                    return new int[0][];
+                });
+
+        journal = new JobStepJournalService(stepRepo, jdbc, tx);
+        ReflectionTestUtils.setField(journal, "batchSize", 2);
+        queue(10);   // không start() → không có writer, flush chỉ chạy khi test gọi
+    }
+
+    @Test
+    void flushWritesInBatchesAndClearsPending() {
+        for (int i = 1; i <= 5; i++) journal.append(step("s" + i, "job1", i));
+        assertEquals(5, journal.pending());
+
+        journal.flush();
+        assertEquals(List.of(2, 2, 1), batches);
+        assertEquals(0, journal.pending());
+
+        when(stepRepo.findByJobIdOrderByCreatedAtAsc("job1")).thenReturn(List.of());
+        assertTrue(journal.steps("job1").isEmpty(), "đã flush thì không còn trong phần chờ");
+    }
+
+    @Test
+    void stepsMergesDbAndPendingByTimeWithoutDuplicates() {
+        JobStepLog s1 = step("s1", "job1", 1);
+        JobStepLog s3 = step("s3", "job1", 3);
+        when(stepRepo.findByJobIdOrderByCreatedAtAsc("job1")).thenReturn(List.of(s1, s3));
+
+        journal.append(step("s2", "job1", 2));
+        journal.append(step("s3", "job1", 3));      // vừa flush giữa 2 lần đọc → trùng id
+        journal.append(step("x1", "job2", 0));      // job khác
+        JobStepLog noTime = step("s0", "job1", 0);
+        noTime.setCreatedAt(null);
+        journal.append(noTime);
+
+        assertEquals(List.of("s0", "s1", "s2", "s3"),
+                journal.steps("job1").stream().map(JobStepLog::getId).toList());
+    }
+
+    @Test
+    void failedBatchFallsBackPerRowWithClampedDetail() throws Exception {
+        reset(jdbc);
+        when(jdbc.batchUpdate(eq(JobStepJournalService.INSERT), anyCollection(), anyInt(), any()))
+                .thenThrow(new DataIntegrityViolationException("Data too long for column 'detail'"));
+        when(jdbc.update(eq(JobStepJournalService.INSERT), any(PreparedStatementSetter.class)))
+                .thenReturn(1)
+                .thenThrow(new DataIntegrityViolationException("duplicate key"));
+
+        JobStepLog big = step("s1", "job1", 1);
+        big.setDetail("x".repeat(5000));
+        journal.append(big);
+        journal.append(step("s2", "job1", 2));
+        journal.flush();
+
+        ArgumentCaptor<PreparedStatementSetter> rows = ArgumentCaptor.forClass(PreparedStatementSetter.class);
+        verify(jdbc, times(2)).update(eq(JobStepJournalService.INSERT), rows.capture());
+        PreparedStatement ps = mock(PreparedStatement.class);
+        rows.getAllValues().get(0).setValues(ps);
+        ArgumentCaptor<String> detail = ArgumentCaptor.forClass(String.class);
+        verify(ps).setString(eq(6), detail.capture());
+        assertTrue(detail.getValue().length() <= JobStepJournalService.FALLBACK_DETAIL_LEN);
+        assertTrue(detail.getValue().endsWith("...(truncated)"));
+
+        assertEquals(1, journal.dropped());
+        when(stepRepo.findByJobIdOrderByCreatedAtAsc("job1")).thenReturn(List.of());
+        assertTrue(journal.steps("job1").isEmpty(), "dòng bị bỏ không treo lại trong phần chờ");
+    }
+
+    @Test
+    void fullQueueMakesCallerFlush() {
+        queue(2);
+        journal.append(step("s1", "job1", 1));
+        journal.append(step("s2", "job1", 2));
+        assertTrue(batches.isEmpty());
+
+        journal.append(step("s3", "job1", 3));      // đầy → caller flush 2 bước cũ rồi xếp bước mới
+        assertEquals(List.of(2), batches);
+        assertEquals(1, journal.pending());
+        assertEquals(0, journal.dropped());
+    }
+
+    private void queue(int capacity) {
+        ReflectionTestUtils.setField(journal, "queue", new ArrayBlockingQueue<JobStepLog>(capacity));
+    }
+
+    private static JobStepLog step(String id, String jobId, int minute) {
+        return JobStepLog.builder().id(id).jobId(jobId).vdId("vd").step("create_instance")
+                .status("INFO").detail("ok").createdAt(T0.plusMinutes(minute)).build();
+    }
+}
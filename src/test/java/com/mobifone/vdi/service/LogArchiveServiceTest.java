@@ -0,0 +1,110 @@
+package com.mobifone.vdi.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Đọc theo khoảng từ log đã lưu trữ: chọn đúng segment gzip, cắt đầu/cuối, vượt ranh giới segment */
+class LogArchiveServiceTest {
+
+    static final String JOB = "job1";
+    static final String FILE = "job1_apps.log";
+    static final int SEG = 4096;              // segment nhỏ nhất cho phép
+    static final int SIZE = 3 * SEG + 123;    // 4 segment, segment cuối lẻ
+
+    @TempDir
+    Path dir;
+
+    LogArchiveService archive;
+    byte[] content;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        LocalLogArchiveStore store = new LocalLogArchiveStore();
+        ReflectionTestUtils.setField(store, "dir", dir.toString());
+        archive = new LogArchiveService(null, List.of(store));
+        ReflectionTestUtils.setField(archive, "enabled", true);
+        ReflectionTestUtils.setField(archive, "storeType", "local");
+        ReflectionTestUtils.setField(archive, "executorType", "ssh");
+        ReflectionTestUtils.setField(archive, "segmentBytes", SEG);
+
+        content = new byte[SIZE];
+        for (int i = 0; i < SIZE; i++) content[i] = (byte) ('a' + (i * 7 + i / 97) % 26);
+        archive.writeFile(JOB, FILE, new ByteArrayInputStream(content), SIZE);
+        store.put(JOB + "/" + LogArchiveService.MANIFEST, LogArchiveService.JSON.writeValueAsBytes(
+                new LogArchiveService.Manifest(JOB, Map.of(FILE, (long) SIZE), System.currentTimeMillis())));
+    }
+
+    @Test
+    void readsWithinOneSegment() throws Exception {
+        assertRange(10, 100);
+        assertRange(SEG, 50);                 // đúng đầu segment 2
+        assertRange(2 * SEG - 50, 50);        // kết thúc đúng cuối segment 2
+    }
+
+    @Test
+    void readsAcrossSegmentBoundaries() throws Exception {
+        assertRange(SEG - 10, 20);
+        assertRange(100, 3 * SEG);            // qua 4 segment
+        assertRange(0, SIZE);
+    }
+
+    @Test
+    void clampsAtEndOfFile() throws Exception {
+        LogArchiveService.Range r = archive.read(JOB, "/ansible-host/logs/" + FILE, SIZE - 20, 1000);
+        assertEquals(SIZE, r.size());
+        assertArrayEquals(Arrays.copyOfRange(content, SIZE - 20, SIZE), r.data());
+    }
+
+    @Test
+    void emptyRangeOutsideFileOrZeroLimit() throws Exception {
+        assertEquals(0, archive.read(JOB, FILE, SIZE, 100).data().length);
+        assertEquals(0, archive.read(JOB, FILE, SIZE + 5000, 100).data().length);
+        assertEquals(0, archive.read(JOB, FILE, 10, 0).data().length);
+        assertEquals(SIZE, archive.read(JOB, FILE, SIZE, 100).size());
+    }
+
+    @Test
+    void negativeOffsetReadsFromStart() throws Exception {
+        assertArrayEquals(Arrays.copyOfRange(content, 0, 30), archive.read(JOB, FILE, -5, 30).data());
+    }
+
+    @Test
+    void readAllReturnsWholeFile() throws Exception {
+        assertArrayEquals(content, archive.readAll(JOB, FILE));
+    }
+
+    @Test
+    void missingFileOrJobIsNotArchived() throws Exception {
+        assertNull(archive.read(JOB, "job1_other.log", 0, 10));
+        assertNull(archive.read("job2", "job2_apps.log", 0, 10));
+        assertThrows(IllegalArgumentException.class, () -> archive.read(JOB, "../job2/job2_apps.log", 0, 10));
+        assertThrows(IllegalArgumentException.class, () -> archive.read(JOB, "other.log", 0, 10));
+    }
+
+    @Test
+    void emptyFileHasNoSegments() throws Exception {
+        archive.writeFile(JOB, "job1_empty.log", new ByteArrayInputStream(new byte[0]), 0);
+        LogArchiveService.Range r = archive.read(JOB, "job1_empty.log", 0, 100);
+        assertEquals(0, r.size());
+        assertEquals(0, r.data().length);
+    }
+
+    private void assertRange(long offset, int limit) throws Exception {
+        LogArchiveService.Range r = archive.read(JOB, FILE, offset, limit);
+        assertEquals(SIZE, r.size());
+        byte[] want = Arrays.copyOfRange(content, (int) offset, (int) Math.min(SIZE, offset + limit));
+        assertEquals(new String(want, StandardCharsets.US_ASCII), new String(r.data(), StandardCharsets.US_ASCII),
+                "range " + offset + "+" + limit);
+    }
+}
@@ -0,0 +1,148 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.dto.response.LogSearchResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/** Chỉ mục dòng lỗi của log đã lưu trữ: tách fatal/ERROR! theo role/task/host/lớp lỗi, tìm theo chữ ký (AND), sidecar */
+class LogSearchIndexServiceTest {
+
+    static final long DAY = 86_400_000L;
+
+    static final String CHROME_LOG = String.join("\n",
+            "PLAY [all] ******",
+            "TASK [chrome : Install Chrome MSI] ******",
+            "fatal: [vd_1]: FAILED! => {\"msg\": \"msiexec exit code 1618: another installation is in progress\"}",
+            "TASK [chrome : Optional cleanup] ******",
+            "\u001B[0;31mfatal: [vd_2]: FAILED! => {\"msg\": \"file missing\"}\u001B[0m",
+            "...ignoring",
+            "ok: [vd_1]",
+            "");
+    static final String JOIN_LOG = String.join("\n",
+            "TASK [join_domain : Join AD domain] ******",
+            "fatal: [vd_9]: UNREACHABLE! => {\"msg\": \"winrm: Connection timed out\"}",
+            "");
+    static final String CONFIG_LOG = "ERROR! the role 'firefox' was not found\n";
+
+    LogArchiveService archive;
+    Map<String, byte[]> sidecars;
+    LogSearchIndexService index;
+    long now;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        now = System.currentTimeMillis();
+        archive = mock(LogArchiveService.class);
+        sidecars = new HashMap<>();
+        archived("job1", "job1_chrome.log", CHROME_LOG, now - DAY);
+        archived("job2", "job2_join.log", JOIN_LOG, now - 10 * DAY);
+        archived("job3", "job3_apps.log", CONFIG_LOG, now);
+        when(archive.getSidecar(any(), eq(LogSearchIndexService.SIDECAR)))
+                .thenAnswer(inv -> sidecars.get((String) inv.getArgument(0)));
+        doAnswer(inv -> sidecars.put(inv.getArgument(0), inv.getArgument(2)))
+                .when(archive).putSidecar(any(), eq(LogSearchIndexService.SIDECAR), any());
+
+        index = newIndex();
+        List.of("job1", "job2", "job3").forEach(index::indexJob);
+    }
+
+    @Test
+    void failedLineIsFoundBySignatureWithItsRoleTaskAndHost() {
+        LogSearchResponse r = index.search("1618", "chrome", null, null, null, 0, 10);
+
+        assertEquals(1, r.getTotalJobs());
+        assertEquals(1, r.getTotalHits());
+        assertEquals(3, r.getIndexedJobs());
+        LogSearchResponse.JobHit job = r.getJobs().get(0);
+        assertEquals("job1", job.getJobId());
+        assertEquals(List.of("vd_1"), job.getHosts());
+        LogSearchResponse.LineHit line = job.getLines().get(0);
+        assertEquals("job1_chrome.log", line.getFile());
+        assertEquals(CHROME_LOG.indexOf("fatal: [vd_1]"), line.getOffset());
+        assertEquals("chrome", line.getRole());
+        assertEquals("Install Chrome MSI", line.getTask());
+        assertEquals("LOCK_CONTENTION", line.getFailureClass());
+    }
+
+    @Test
+    void ignoredFailuresAreNotIndexed() {
+        assertEquals(0, index.search(null, null, null, "vd_2", null, 0, 10).getTotalHits());
+    }
+
+    @Test
+    void termsAreAndedAndFilteredByAge() {
+        assertEquals(List.of("job2"), jobIds(index.search(null, null, "join ad", null, "unreachable", 0, 10)));
+        assertTrue(index.search(null, null, "join ad", null, "unreachable", 5, 10).getJobs().isEmpty(),
+                "job2 lưu trữ 10 ngày trước");
+        assertTrue(index.search("1618", null, null, "vd_9", null, 0, 10).getJobs().isEmpty(), "AND, không phải OR");
+        assertTrue(index.search("nothing_like_this", null, null, null, null, 0, 10).getJobs().isEmpty());
+    }
+
+    @Test
+    void jobsComeNewestFirst() {
+        assertEquals(List.of("job3", "job1", "job2"), jobIds(index.search(null, null, null, null, null, 0, 10)));
+        assertEquals(List.of("job3"), jobIds(index.search(null, null, null, null, "config", 0, 10)));
+    }
+
+    @Test
+    void restartLoadsTheSidecarWithoutReparsingLogs() throws Exception {
+        assertEquals(Set.of("job1", "job2", "job3"), sidecars.keySet());
+        clearInvocations(archive);
+
+        LogSearchIndexService restarted = newIndex();
+        restarted.indexJob("job1");
+
+        verify(archive, never()).readAll(any(), any());
+        assertEquals(List.of("job1"), jobIds(restarted.search("1618", "chrome", null, "vd_1", null, 0, 10)));
+    }
+
+    @Test
+    void expiredJobsLeaveTheIndex() {
+        ReflectionTestUtils.setField(index, "retentionDays", 7);
+        index.compact();
+
+        assertEquals(2, index.indexedJobs());
+        assertTrue(index.search(null, null, null, "vd_9", null, 0, 10).getJobs().isEmpty());
+        assertEquals(List.of("job1"), jobIds(index.search("1618", null, null, null, null, 0, 10)));
+    }
+
+    @Test
+    void intersectMatchesNaiveAndOverLongPostings() {
+        Random rnd = new Random(42);
+        LogSearchIndexService.Postings p = new LogSearchIndexService.Postings();
+        IntStream.range(0, 5000).filter(i -> rnd.nextInt(3) == 0).forEach(p::add);   // posting dài → nhánh binary search
+        int[] a = IntStream.range(0, 5000).filter(i -> rnd.nextInt(97) == 0).toArray();
+
+        Set<Integer> inP = new HashSet<>();
+        for (int i = 0; i < p.n; i++) inP.add(p.ids[i]);
+        int[] expected = Arrays.stream(a).filter(inP::contains).toArray();
+        assertArrayEquals(expected, LogSearchIndexService.intersect(a, p));
+    }
+
+    private LogSearchIndexService newIndex() {
+        LogSearchIndexService s = new LogSearchIndexService(archive, new FailureClassifier());
+        ReflectionTestUtils.setField(s, "enabled", true);
+        ReflectionTestUtils.setField(s, "retentionDays", 180);
+        ReflectionTestUtils.setField(s, "maxHitsPerJob", 200);
+        return s;
+    }
+
+    private void archived(String jobId, String file, String log, long at) throws Exception {
+        byte[] data = log.getBytes(StandardCharsets.UTF_8);
+        when(archive.manifest(jobId)).thenReturn(new LogArchiveService.Manifest(jobId, Map.of(file, (long) data.length), at));
+        when(archive.readAll(jobId, file)).thenReturn(data);
+    }
+
+    private static List<String> jobIds(LogSearchResponse r) {
+        return r.getJobs().stream().map(LogSearchResponse.JobHit::getJobId).toList();
+    }
+}
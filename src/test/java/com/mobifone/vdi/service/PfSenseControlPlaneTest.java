@@ -0,0 +1,196 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.entity.enumeration.FailureClass;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/** applyNow gom 1 batch; applyNat: create+delete chỉ còn delete, gộp trùng lặp, lọc/xung đột theo mirror, batch lỗi → từng rule + reconcile */
+class PfSenseControlPlaneTest {
+
+    static final String WAN = "42.1.1.1";
+
+    AnsibleRunnerService ansible;
+    AnsibleExecutionScheduler scheduler;
+    PfSenseNatTable natTable;
+    PfSenseControlPlane plane;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        ansible = mock(AnsibleRunnerService.class);
+        scheduler = mock(AnsibleExecutionScheduler.class);
+        when(scheduler.run(any(), any(), any(), any()))
+                .thenAnswer(inv -> ((Supplier<Object>) inv.getArgument(3)).get());
+        natTable = new PfSenseNatTable();
+        natTable.replaceAll(List.of());   // mirror đã sync, rỗng
+        plane = new PfSenseControlPlane(ansible, scheduler, mock(RetryScheduler.class), natTable, new FailureClassifier());
+    }
+
+    @Test
+    void createThenDeleteSkipsTheCreateButStillDeletes() {
+        when(ansible.runNatDelete(any(), any(), anyInt())).thenReturn(AnsibleRunnerService.RunOutcome.OK);
+        PfSenseControlPlane.Op c = op(create("job1", 10001, "10.0.0.5"));
+        PfSenseControlPlane.Op d = op(delete("job1", 10001));
+        plane.applyNat(List.of(c, d));
+
+        assertTrue(c.result.join());
+        assertTrue(d.result.join());
+        verify(ansible, never()).runNatCreate(any(), any(), anyInt(), any(), anyInt());
+        verify(ansible).runNatDelete("job1", WAN, 10001);
+        assertTrue(natTable.find(WAN, 10001).isEmpty());
+    }
+
+    @Test
+    void duplicatesShareOneRuleAndDistinctRulesGoInOneBatch() {
+        when(ansible.runNatBatch(any(), anyList())).thenReturn(AnsibleRunnerService.RunOutcome.OK);
+        PfSenseControlPlane.Op a1 = op(create("job1", 10001, "10.0.0.5"));
+        PfSenseControlPlane.Op a2 = op(create("job1", 10001, "10.0.0.5"));
+        PfSenseControlPlane.Op b = op(create("job2", 10002, "10.0.0.6"));
+        plane.applyNat(List.of(a1, a2, b));
+
+        verify(ansible).runNatBatch(any(), argThat(rules -> rules.size() == 2));
+        verify(ansible, never()).runNatCreate(any(), any(), anyInt(), any(), anyInt());
+        List.of(a1, a2, b).forEach(o -> assertTrue(o.result.join()));
+        assertEquals("10.0.0.5", natTable.find(WAN, 10001).orElseThrow().target());
+        assertEquals("10.0.0.6", natTable.find(WAN, 10002).orElseThrow().target());
+    }
+
+    @Test
+    void mirrorSkipsCreatesAlreadyInPlaceAndRejectsConflicts() {
+        natTable.replaceAll(List.of(new PfSenseNatTable.Entry(WAN, 10001, "10.0.0.5", 5985, "vm1")));
+
+        PfSenseControlPlane.Op same = op(create("job1", 10001, "10.0.0.5"));
+        plane.applyNat(List.of(same));
+        assertTrue(same.result.join());
+
+        PfSenseControlPlane.Op conflict = op(create("job2", 10001, "10.0.0.9"));
+        plane.applyNat(List.of(conflict));
+        assertFalse(conflict.result.join());
+        assertEquals(FailureClass.TASK_FAILED, conflict.failure);
+        assertFalse(conflict.failure.isTransient());
+
+        verifyNoInteractions(scheduler);
+        assertEquals("10.0.0.5", natTable.find(WAN, 10001).orElseThrow().target());
+    }
+
+    @Test
+    void deleteMissingFromMirrorStillRunsOnPfSense() {
+        when(ansible.runNatDelete(any(), any(), anyInt())).thenReturn(AnsibleRunnerService.RunOutcome.OK);
+        PfSenseControlPlane.Op gone = op(delete("job1", 10002));
+        plane.applyNat(List.of(gone));
+
+        assertTrue(gone.result.join());
+        verify(ansible).runNatDelete("job1", WAN, 10002);
+    }
+
+    @Test
+    void timedOutWriteIsNotTrustedUntilReconcile() {
+        natTable.replaceAll(List.of(new PfSenseNatTable.Entry(WAN, 10003, "10.0.0.7", 5985, "vm3")));
+        when(ansible.runNatDelete(any(), any(), anyInt()))
+                .thenReturn(new AnsibleRunnerService.RunOutcome(false, null, null, AnsibleExecutor.NoExit.TIMEOUT));
+        when(ansible.runNatCreate(any(), any(), anyInt(), any(), anyInt())).thenReturn(AnsibleRunnerService.RunOutcome.OK);
+
+        PfSenseControlPlane.Op del = op(delete("job3", 10003));
+        plane.applyNat(List.of(del));
+        assertFalse(del.result.join());
+        assertEquals(FailureClass.TIMEOUT, del.failure);
+        assertFalse(natTable.isTrusted(WAN, 10003));
+        assertEquals(1, plane.natTable().getPendingOps(), "lỗi → xin reconcile");
+
+        // mirror vẫn ghi rule cũ nhưng không chắc → create cùng target không được bỏ qua
+        PfSenseControlPlane.Op again = op(create("job3", 10003, "10.0.0.7"));
+        plane.applyNat(List.of(again));
+        assertTrue(again.result.join());
+        verify(ansible).runNatCreate("job3", WAN, 10003, "10.0.0.7", 5985);
+        assertTrue(natTable.isTrusted(WAN, 10003));
+    }
+
+    @Test
+    void failedBatchFallsBackToOneRunPerRule() {
+        when(ansible.runNatBatch(any(), anyList())).thenReturn(failed("ERROR! nat_rules is undefined"));
+        when(ansible.runNatCreate(eq("job1"), eq(WAN), eq(10001), any(), anyInt()))
+                .thenReturn(AnsibleRunnerService.RunOutcome.OK);
+        when(ansible.runNatCreate(eq("job2"), eq(WAN), eq(10002), any(), anyInt()))
+                .thenReturn(failed("Could not obtain lock on /conf/config.lock"));
+
+        PfSenseControlPlane.Op ok = op(create("job1", 10001, "10.0.0.5"));
+        PfSenseControlPlane.Op bad = op(create("job2", 10002, "10.0.0.6"));
+        plane.applyNat(List.of(ok, bad));
+
+        verify(ansible).runNatBatch(any(), anyList());
+        verify(ansible, times(2)).runNatCreate(any(), any(), anyInt(), any(), anyInt());
+        assertTrue(ok.result.join());
+        assertFalse(bad.result.join());
+        assertEquals(FailureClass.LOCK_CONTENTION, bad.failure);
+        assertTrue(natTable.find(WAN, 10001).isPresent());
+        assertTrue(natTable.find(WAN, 10002).isEmpty());
+        assertTrue(natTable.isTrusted(WAN, 10001));
+        assertFalse(natTable.isTrusted(WAN, 10002), "batch áp dở + rule lỗi → chờ reconcile");
+        assertEquals(1, plane.natTable().getPendingOps(), "lỗi → xin reconcile");
+    }
+
+    @Test
+    void unsyncedMirrorDoesNotFilter() {
+        natTable = new PfSenseNatTable();
+        plane = new PfSenseControlPlane(ansible, scheduler, mock(RetryScheduler.class), natTable, new FailureClassifier());
+        when(ansible.runNatDelete(any(), any(), anyInt())).thenReturn(AnsibleRunnerService.RunOutcome.OK);
+
+        PfSenseControlPlane.Op d = op(delete("job1", 10001));
+        plane.applyNat(List.of(d));
+        assertTrue(d.result.join());
+        verify(ansible).runNatDelete("job1", WAN, 10001);
+    }
+
+    @Test
+    void applyNowSendsTheWholeSetInOneBatch() {
+        RetryScheduler retry = new RetryScheduler();
+        ReflectionTestUtils.setField(retry, "natMaxAttempts", 1);
+        plane = new PfSenseControlPlane(ansible, scheduler, retry, natTable, new FailureClassifier());
+        ReflectionTestUtils.setField(plane, "batchEnabled", true);
+        ReflectionTestUtils.setField(plane, "windowMs", 60_000L);     // urgent không được chờ cửa sổ thường
+        ReflectionTestUtils.setField(plane, "urgentWindowMs", 20L);
+        ReflectionTestUtils.setField(plane, "maxRules", 100);
+        when(ansible.natBatchPlaybookPresent()).thenReturn(true);
+        when(ansible.runNatBatch(any(), anyList())).thenReturn(AnsibleRunnerService.RunOutcome.OK);
+        plane.start();
+        try {
+            List<NatRule> rules = List.of(delete("job1", 10001), delete("job1", 10002), delete("job1", 10003));
+            Map<NatRule, Boolean> out = plane.applyNow(rules);
+
+            assertEquals(3, out.size());
+            out.values().forEach(Assertions::assertTrue);
+            verify(ansible, times(1)).runNatBatch(any(), argThat(batch -> batch.size() == 3));
+            verify(ansible, never()).runNatDelete(any(), any(), anyInt());
+        } finally {
+            plane.stop();
+            retry.shutdown();
+        }
+    }
+
+    private static AnsibleRunnerService.RunOutcome failed(String tail) {
+        return new AnsibleRunnerService.RunOutcome(false, 1, tail, null);
+    }
+
+    private static PfSenseControlPlane.Op op(NatRule rule) {
+        return PfSenseControlPlane.Op.nat(rule, false);
+    }
+
+    private static NatRule create(String runId, int port, String localIp) {
+        return NatRule.builder().action(NatRule.Action.CREATE).runId(runId)
+                .wanIp(WAN).port(port).localIp(localIp).localPort(5985).build();
+    }
+
+    private static NatRule delete(String runId, int port) {
+        return NatRule.builder().action(NatRule.Action.DELETE).runId(runId).wanIp(WAN).port(port).build();
+    }
+}
@@ -0,0 +1,217 @@
+package com.mobifone.vdi.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** parseConfig trên config.xml pfSense 2.8: wanip/optXip → IP interface, alias/subnet/range bị bỏ; dirty key */
+class PfSenseNatTableTest {
+
+    // output của `ansible -m raw -a 'cat /conf/config.xml'`: header ansible + config (rút gọn phần không liên quan)
+    static final String DUMP = """
+            pfsense | CHANGED | rc=0 >>
+            <?xml version="1.0"?>
+            <pfsense>
+            	<interfaces>
+            		<wan>
+            			<enable></enable>
+            			<if>vtnet0</if>
+            			<ipaddr>42.1.1.1</ipaddr>
+            			<subnet>24</subnet>
+            			<gateway>WANGW</gateway>
+            			<blockpriv></blockpriv>
+            			<blockbogons></blockbogons>
+            		</wan>
+            		<lan>
+            			<enable></enable>
+            			<if>vtnet1</if>
+            			<ipaddr>10.0.0.1</ipaddr>
+            			<subnet>24</subnet>
+            		</lan>
+            		<opt1>
+            			<descr><![CDATA[PUBLIC2]]></descr>
+            			<if>vtnet2</if>
+            			<enable></enable>
+            			<ipaddr>42.1.2.1</ipaddr>
+            			<subnet>28</subnet>
+            		</opt1>
+            		<opt2>
+            			<descr><![CDATA[UPLINK]]></descr>
+            			<if>vtnet3</if>
+            			<enable></enable>
+            			<ipaddr>dhcp</ipaddr>
+            		</opt2>
+            	</interfaces>
+            	<nat>
+            		<outbound>
+            			<mode>automatic</mode>
+            		</outbound>
+            		<separator></separator>
+            		<rule>
+            			<source>
+            				<any></any>
+            			</source>
+            			<destination>
+            				<network>wanip</network>
+            				<port>10001</port>
+            			</destination>
+            			<ipprotocol>inet</ipprotocol>
+            			<protocol>tcp</protocol>
+            			<target>10.0.0.5</target>
+            			<local-port>3389</local-port>
+            			<interface>wan</interface>
+            			<descr><![CDATA[job1 rdp]]></descr>
+            			<associated-rule-id>pass</associated-rule-id>
+            			<created>
+            				<time>1718000000</time>
+            				<username><![CDATA[admin@10.0.0.2 (Local Database)]]></username>
+            			</created>
+            		</rule>
+            		<rule>
+            			<source>
+            				<any></any>
+            			</source>
+            			<destination>
+            				<address>42.1.1.1</address>
+            				<port>20001</port>
+            			</destination>
+            			<ipprotocol>inet</ipprotocol>
+            			<protocol>tcp</protocol>
+            			<target>10.0.0.5</target>
+            			<local-port>5985</local-port>
+            			<interface>wan</interface>
+            			<descr><![CDATA[job1 winrm]]></descr>
+            			<associated-rule-id>pass</associated-rule-id>
+            		</rule>
+            		<rule>
+            			<source>
+            				<any></any>
+            			</source>
+            			<destination>
+            				<network>opt1ip</network>
+            				<port>10002</port>
+            			</destination>
+            			<protocol>tcp</protocol>
+            			<target>10.0.0.6</target>
+            			<local-port>3389</local-port>
+            			<interface>opt1</interface>
+            			<descr><![CDATA[job2 rdp]]></descr>
+            		</rule>
+            		<rule>
+            			<source>
+            				<any></any>
+            			</source>
+            			<destination>
+            				<address>PUBLIC_IPS</address>
+            				<port>10003</port>
+            			</destination>
+            			<protocol>tcp</protocol>
+            			<target>10.0.0.7</target>
+            			<local-port>3389</local-port>
+            			<interface>wan</interface>
+            			<descr><![CDATA[alias]]></descr>
+            		</rule>
+            		<rule>
+            			<source>
+            				<any></any>
+            			</source>
+            			<destination>
+            				<network>wan</network>
+            				<port>10004</port>
+            			</destination>
+            			<protocol>tcp</protocol>
+            			<target>10.0.0.8</target>
+            			<local-port>3389</local-port>
+            			<interface>wan</interface>
+            			<descr><![CDATA[wan subnet]]></descr>
+            		</rule>
+            		<rule>
+            			<source>
+            				<any></any>
+            			</source>
+            			<destination>
+            				<network>wanip</network>
+            				<port>8000-8010</port>
+            			</destination>
+            			<protocol>tcp</protocol>
+            			<target>10.0.0.9</target>
+            			<local-port>8000</local-port>
+            			<interface>wan</interface>
+            			<descr><![CDATA[range]]></descr>
+            		</rule>
+            		<rule>
+            			<source>
+            				<any></any>
+            			</source>
+            			<destination>
+            				<network>opt2ip</network>
+            				<port>10005</port>
+            			</destination>
+            			<protocol>tcp</protocol>
+            			<target>10.0.0.10</target>
+            			<local-port>3389</local-port>
+            			<interface>opt2</interface>
+            			<descr><![CDATA[dhcp uplink]]></descr>
+            		</rule>
+            	</nat>
+            	<filter>
+            		<rule>
+            			<destination>
+            				<address>10.0.0.5</address>
+            				<port>3389</port>
+            			</destination>
+            		</rule>
+            	</filter>
+            </pfsense>
+            """;
+
+    @Test
+    void resolvesInterfaceAddressesAndSkipsNonLiteralDestinations() throws Exception {
+        Map<String, PfSenseNatTable.Entry> byKey = PfSenseNatTable.parseConfig(DUMP).stream()
+                .collect(Collectors.toMap(PfSenseNatTable.Entry::key, e -> e));
+
+        assertEquals(List.of("42.1.1.1:10001", "42.1.1.1:20001", "42.1.2.1:10002"),
+                byKey.keySet().stream().sorted().toList());
+        PfSenseNatTable.Entry rdp = byKey.get("42.1.1.1:10001");
+        assertEquals("10.0.0.5", rdp.target());
+        assertEquals(3389, rdp.localPort());
+        assertEquals("job1 rdp", rdp.descr());
+        assertEquals(5985, byKey.get("42.1.1.1:20001").localPort());
+    }
+
+    @Test
+    void wanipFallsBackToConfiguredAddressWhenWanHasNoStaticIp() throws Exception {
+        String dhcpWan = DUMP.replace("<ipaddr>42.1.1.1</ipaddr>", "<ipaddr>dhcp</ipaddr>");
+        assertFalse(PfSenseNatTable.parseConfig(dhcpWan).stream().anyMatch(e -> e.port() == 10001),
+                "không biết IP WAN → không đoán");
+
+        List<PfSenseNatTable.Entry> entries = PfSenseNatTable.parseConfig(dhcpWan, "42.1.1.9");
+        assertTrue(entries.stream().anyMatch(e -> e.key().equals("42.1.1.9:10001")));
+        assertFalse(entries.stream().anyMatch(e -> e.port() == 10005), "opt2 dhcp không dùng địa chỉ WAN");
+    }
+
+    @Test
+    void dirtyKeyIsUntrustedUntilConfirmedWriteOrReconcile() {
+        PfSenseNatTable table = new PfSenseNatTable();
+        assertFalse(table.isTrusted("42.1.1.1", 10001), "chưa sync");
+
+        table.replaceAll(List.of(new PfSenseNatTable.Entry("42.1.1.1", 10001, "10.0.0.5", 3389, null)));
+        assertTrue(table.isTrusted("42.1.1.1", 10001));
+
+        table.markDirty("42.1.1.1", 10001);
+        table.markDirty("42.1.1.1", 10002);
+        assertFalse(table.isTrusted("42.1.1.1", 10001));
+        assertEquals(2, table.dirtyCount());
+
+        table.remove("42.1.1.1", 10001);
+        assertTrue(table.isTrusted("42.1.1.1", 10001));
+        assertFalse(table.isTrusted("42.1.1.1", 10002));
+
+        table.replaceAll(List.of());
+        assertEquals(0, table.dirtyCount());
+    }
+}
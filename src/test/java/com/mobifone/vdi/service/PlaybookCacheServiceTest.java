@@ -0,0 +1,119 @@
+package com.mobifone.vdi.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/** Playbook theo nội dung: hash ổn định, vars bí mật không vào hash, nhớ file theo host, GC theo tuổi */
+class PlaybookCacheServiceTest {
+
+    @TempDir
+    Path jobs;
+
+    PlaybookCacheService cache;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        // "ssh" = bash local trên thư mục tạm
+        SshConnectionPool pool = mock(SshConnectionPool.class);
+        SshConnectionPool.Lease lease = mock(SshConnectionPool.Lease.class);
+        when(lease.command(anyString())).thenAnswer(inv -> List.of("bash", "-c", inv.getArgument(0)));
+        when(pool.acquireOn(any())).thenReturn(lease);
+        when(pool.hostNames()).thenReturn(List.of("ans1"));
+
+        cache = new PlaybookCacheService(pool);
+        ReflectionTestUtils.setField(cache, "remoteJobsDir", jobs.toString());
+        ReflectionTestUtils.setField(cache, "secretKeys", "pass,password,secret,token,key");
+        ReflectionTestUtils.setField(cache, "cacheRetentionHours", 2L);
+        ReflectionTestUtils.setField(cache, "artifactRetentionHours", 1L);
+        ReflectionTestUtils.setField(cache, "executorType", "ssh");
+    }
+
+    @Test
+    void pathDependsOnlyOnContent() {
+        String a = cache.pathOf("- hosts: all\n  roles: [chrome]\n");
+        assertEquals(a, cache.pathOf("- hosts: all\n  roles: [chrome]\n"));
+        assertNotEquals(a, cache.pathOf("- hosts: all\n  roles: [firefox]\n"));
+        assertTrue(a.matches(Pattern.quote(jobs + "/cache/pb_") + "[0-9a-f]{32}\\.yml"), a);
+    }
+
+    @Test
+    void secretVarsAreSplitOutAndPlainOrderIsStable() {
+        Map<String, Object> vars = new LinkedHashMap<>();
+        vars.put("win_version", "11");
+        vars.put("admin_password", "Mbf@123");
+        vars.put("API_TOKEN", "t");
+        vars.put("domain_name", "corp.local");
+        Map<String, Object> reversed = new LinkedHashMap<>();
+        List.copyOf(vars.keySet()).reversed().forEach(k -> reversed.put(k, vars.get(k)));
+
+        PlaybookCacheService.SplitVars s = cache.split(vars);
+        assertEquals(List.of("domain_name", "win_version"), List.copyOf(s.plain().keySet()));
+        assertEquals(Set.of("admin_password", "API_TOKEN"), s.secret().keySet());
+        assertEquals(List.copyOf(s.plain().entrySet()), List.copyOf(cache.split(reversed).plain().entrySet()),
+                "thứ tự nhập khác nhau → cùng plain vars → cùng playbook/hash");
+        assertTrue(cache.split(null).plain().isEmpty());
+    }
+
+    @Test
+    void presentFilesAreRememberedPerHost() {
+        String pb = cache.pathOf("a");
+        String other = cache.pathOf("b");
+        Map<String, String> files = Map.of(pb, "a", other, "b");
+
+        assertTrue(cache.presentOn("ans1", files).isEmpty(), "host chưa biết → upload hết");
+        cache.remember("ans1", List.of(pb));
+        assertEquals(Set.of(pb), cache.presentOn("ans1", files));
+        assertTrue(cache.presentOn("ans2", files).isEmpty(), "host khác không dùng chung trí nhớ");
+
+        cache.forget("ans1", List.of(pb));   // CACHE_MISS_EXIT: host đã mất file
+        assertTrue(cache.presentOn("ans1", files).isEmpty());
+    }
+
+    @Test
+    void gcRemovesOnlyExpiredArtifactsAndCacheFiles() throws Exception {
+        Path cacheDir = Files.createDirectories(jobs.resolve("cache"));
+        Path oldInventory = file(jobs.resolve("inventory_job1.ini"), 90);
+        Path oldVars = file(jobs.resolve("vars_job1.json"), 90);
+        Path oldRules = file(jobs.resolve("natbatch_1_nat_rules.json"), 90);
+        Path freshPlaybook = file(jobs.resolve("playbook_job2.yml"), 10);
+        Path unrelated = file(jobs.resolve("notes.txt"), 90);
+        Path oldCache = file(cacheDir.resolve("pb_old.yml"), 180);
+        Path usedCache = file(cacheDir.resolve("pb_used.yml"), 90);   // touch lúc dùng → còn trong hạn 2h
+        cache.remember("ans1", List.of(usedCache.toString()));
+
+        cache.gc();
+
+        assertFalse(Files.exists(oldInventory));
+        assertFalse(Files.exists(oldVars));
+        assertFalse(Files.exists(oldRules));
+        assertTrue(Files.exists(freshPlaybook));
+        assertTrue(Files.exists(unrelated), "chỉ xoá artifact của job");
+        assertFalse(Files.exists(oldCache));
+        assertTrue(Files.exists(usedCache));
+        assertTrue(cache.presentOn("ans1", Map.of(usedCache.toString(), "x")).isEmpty(),
+                "sau GC không chắc file nào còn → kiểm tra lại");
+    }
+
+    private static Path file(Path p, long ageMinutes) throws Exception {
+        Files.writeString(p, "x");
+        Files.setLastModifiedTime(p, FileTime.from(Instant.now().minus(ageMinutes, ChronoUnit.MINUTES)));
+        return p;
+    }
+}
@@ -0,0 +1,104 @@
+package com.mobifone.vdi.service;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/** Probe NIO chung 1 selector: port mở muộn → hoàn tất ngay khi mở, hết deadline → false, chờ listener WinRM */
+class PortReadinessProberTest {
+
+    static final String HOST = "127.0.0.1";
+
+    PortReadinessProber prober;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        prober = new PortReadinessProber(mock(AnsibleRunnerService.class));
+        ReflectionTestUtils.setField(prober, "mode", "local");
+        ReflectionTestUtils.setField(prober, "defaultDeadlineMs", 10_000L);
+        ReflectionTestUtils.setField(prober, "connectTimeoutMs", 500L);
+        ReflectionTestUtils.setField(prober, "initialDelayMs", 50L);
+        ReflectionTestUtils.setField(prober, "maxDelayMs", 200L);
+        ReflectionTestUtils.setField(prober, "winRmHttp", true);
+        prober.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        prober.stop();
+    }
+
+    @Test
+    void portOpenedLateCompletesSoonAfterItOpens() throws Exception {
+        int port = freePort();
+        CompletableFuture<Boolean> f = prober.awaitOpen(HOST, port);
+
+        Thread.sleep(400);
+        assertFalse(f.isDone(), "port chưa mở → vẫn đang thử lại");
+        try (ServerSocket server = listen(port)) {
+            long opened = System.nanoTime();
+            assertTrue(f.get(5, TimeUnit.SECONDS));
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - opened);
+            assertTrue(waited < 1000, "hoàn tất trong 1 nhịp backoff (max-delay 200 ms), thực tế " + waited + " ms");
+        }
+    }
+
+    @Test
+    void closedPortGivesUpAtTheDeadline() throws Exception {
+        int port = freePort();
+        long t0 = System.nanoTime();
+        assertFalse(prober.awaitOpen(HOST, port, Duration.ofMillis(600)).get(5, TimeUnit.SECONDS));
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+        assertTrue(took >= 550 && took < 2000, "bỏ cuộc đúng deadline, thực tế " + took + " ms");
+    }
+
+    @Test
+    void winRmWaitsUntilTheListenerAnswers() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getByName(HOST), 0), 0);
+        http.createContext("/wsman", ex -> {
+            // 2 lần đầu: HTTP.sys chưa có listener WinRM (404), sau đó listener trả 405 cho GET
+            ex.sendResponseHeaders(calls.incrementAndGet() <= 2 ? 404 : 405, -1);
+            ex.close();
+        });
+        http.start();
+        try {
+            assertTrue(prober.awaitWinRm(HOST, http.getAddress().getPort()).get(5, TimeUnit.SECONDS));
+            assertEquals(3, calls.get());
+        } finally {
+            http.stop(0);
+        }
+    }
+
+    @Test
+    void skipModeTreatsEveryPortAsOpen() {
+        ReflectionTestUtils.setField(prober, "mode", "skip");
+        assertTrue(prober.awaitWinRm("203.0.113.1", 5985).join());
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket s = listen(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static ServerSocket listen(int port) throws Exception {
+        ServerSocket s = new ServerSocket();
+        s.setReuseAddress(true);
+        s.bind(new InetSocketAddress(InetAddress.getByName(HOST), port));
+        return s;
+    }
+}
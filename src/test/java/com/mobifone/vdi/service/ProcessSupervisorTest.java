@@ -0,0 +1,77 @@
+package com.mobifone.vdi.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/** CPU từ xa lấy từ `times` trong trap EXIT của shell (bash -s local thay cho ssh), output không lẫn dòng times */
+class ProcessSupervisorTest {
+
+    // tiến trình con đốt CPU (vài chục ms trở lên)
+    static final String BURN = "bash -c 'i=0; while [ $i -lt 50000 ]; do i=$((i+1)); done'\n";
+
+    ProcessSupervisor supervisor;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        supervisor = new ProcessSupervisor(mock(SshConnectionPool.class));
+        ReflectionTestUtils.setField(supervisor, "pidsDir", Files.createTempDirectory("vdi-pids").toString());
+        ReflectionTestUtils.setField(supervisor, "captureMaxBytes", 1 << 20);
+        ReflectionTestUtils.setField(supervisor, "historySize", 100);
+        ReflectionTestUtils.setField(supervisor, "cancelTtlMinutes", 30L);
+    }
+
+    @Test
+    void capturedRunReportsChildCpuAndKeepsExitCode() throws Exception {
+        ProcessSupervisor.Run run = start("job1", BURN + "echo done\nexit 3\n");
+        var out = supervisor.capture(run);
+
+        assertEquals(3, supervisor.await(run));
+        assertEquals("done\n", out.get(5, TimeUnit.SECONDS));
+        Long cpu = supervisor.runs("job1").get(0).getRemoteCpuMs();
+        assertNotNull(cpu);
+        assertTrue(cpu > 0, "cpu=" + cpu);
+    }
+
+    @Test
+    void streamedAndDiscardedRunsAlsoReportCpu() throws Exception {
+        List<String> lines = new ArrayList<>();
+        ProcessSupervisor.Run streamed = start("job2", BURN + "printf 'a\\nb'\n");
+        supervisor.streamLines(streamed, lines::add);
+        assertEquals(0, supervisor.await(streamed));
+        assertEquals(List.of("a", "b"), lines);
+
+        ProcessSupervisor.Run quiet = start("job3", BURN);
+        supervisor.discard(quiet);
+        assertEquals(0, supervisor.await(quiet));
+
+        assertTrue(supervisor.runs("job2").get(0).getRemoteCpuMs() > 0);
+        assertTrue(supervisor.runs("job3").get(0).getRemoteCpuMs() > 0);
+    }
+
+    @Test
+    void timesOutputIsParsedFromChildLine() {
+        assertEquals(61_500L, ProcessSupervisor.parseTimes("0m0.010s 0m0.020s\n1m0.250s 0m1.250s\n"));
+        assertNull(ProcessSupervisor.parseTimes("0m0.010s 0m0.020s\n"));
+    }
+
+    private ProcessSupervisor.Run start(String owner, String script) throws Exception {
+        return supervisor.start(owner, "local", Duration.ofSeconds(30), prefix -> {
+            Process p = new ProcessBuilder("bash", "-s").redirectErrorStream(true).start();
+            try (var os = p.getOutputStream()) {
+                os.write((prefix + "\n" + script).getBytes(StandardCharsets.UTF_8));
+            }
+            return p;
+        });
+    }
+}
@@ -0,0 +1,195 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.dto.request.ProvisionAndConfigureRequest;
+import com.mobifone.vdi.entity.DeploymentJob;
+import com.mobifone.vdi.entity.JobStepLog;
+import com.mobifone.vdi.entity.ProvisionTask;
+import com.mobifone.vdi.entity.enumeration.TaskStatus;
+import com.mobifone.vdi.exception.AppException;
+import com.mobifone.vdi.repository.DeploymentJobRepository;
+import com.mobifone.vdi.repository.VmProvisionStateRepository;
+import com.mobifone.vdi.utils.ProvisionSignalBus;
+import com.rabbitmq.client.Channel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checkpoint SUBMITTING + idempotency key trước khi gọi infra; chạy tiếp tra theo key, không tạo VM lần 2.
+ * Chờ infra không giữ thread: event infra (qua InfraEventListener) hoặc timer hết hạn chạy tiếp job trên virtual thread.
+ */
+class ProvisionOrchestratorServiceTest {
+
+    static final String JOB = "job1";
+
+    DeploymentJobRepository jobRepo;
+    OpenStackService openStack;
+    ProvisionPersistService persist;
+    JobStepJournalService journal;
+    ProvisionSignalBus signalBus;
+    ProvisionOrchestratorService orchestrator;
+    DeploymentJob job;
+
+    @BeforeEach
+    void setUp() {
+        jobRepo = mock(DeploymentJobRepository.class);
+        openStack = mock(OpenStackService.class);
+        persist = mock(ProvisionPersistService.class);
+        VmProvisionStateRepository stateRepo = mock(VmProvisionStateRepository.class);
+        when(stateRepo.findByJobIdOrderByVmIndexAsc(any())).thenReturn(List.of());
+
+        job = DeploymentJob.builder().id(JOB).mode("organization").status("PENDING").totalVms(1).build();
+        when(jobRepo.findById(JOB)).thenReturn(Optional.of(job));
+        journal = mock(JobStepJournalService.class);
+        signalBus = new ProvisionSignalBus();
+
+        orchestrator = new ProvisionOrchestratorService(jobRepo, journal, stateRepo,
+                mock(AppDeploymentService.class), mock(AppDefinitionService.class), mock(VirtualDesktopService.class),
+                mock(UserService.class), mock(ProjectService.class), openStack, mock(AnsibleRunnerService.class),
+                mock(RetryScheduler.class), mock(PfSenseControlPlane.class), mock(AppBatchCoordinator.class),
+                mock(TargetExecutionLanes.class), mock(StepRetryService.class), mock(LogArchiveService.class),
+                mock(PortAllocatorService.class), mock(PortReadinessProber.class), signalBus,
+                mock(Executor.class), persist);
+        ReflectionTestUtils.setField(orchestrator, "infraTimeoutMinutes", 6L);
+        ReflectionTestUtils.setField(orchestrator, "infraTimeoutGraceSeconds", 90L);
+    }
+
+    @Test
+    void submittingCheckpointIsSavedBeforeInfraIsCalled() {
+        AtomicReference<String> statusAtCall = new AtomicReference<>();
+        AtomicReference<String> keyAtCall = new AtomicReference<>();
+        when(openStack.provisionWithRetry(any(), any(), any(), any(), any())).thenAnswer(inv -> {
+            verify(jobRepo, atLeastOnce()).save(job);
+            statusAtCall.set(job.getStatus());
+            keyAtCall.set(job.getInfraRequestKey());
+            throw new IllegalStateException("node died mid-request");
+        });
+
+        assertThrows(IllegalStateException.class, () -> orchestrator.run(JOB, "organization", request(), "hn"));
+
+        assertEquals("SUBMITTING", statusAtCall.get());
+        assertNotNull(keyAtCall.get());
+        verify(openStack).provisionWithRetry(eq("organization"), any(), any(), eq("hn"), eq(keyAtCall.get()));
+        assertNull(job.getInfraTaskId());
+        assertEquals("SUBMITTING", job.getStatus(), "job vẫn ở SUBMITTING → recovery nhận lại");
+    }
+
+    @Test
+    void resumeAfterSubmitReusesTheInfraTaskInsteadOfCreatingAgain() {
+        job.setStatus("SUBMITTING");
+        job.setInfraRequestKey("key-1");
+        ProvisionTask failed = ProvisionTask.builder().taskId("key-1").status(TaskStatus.FAILED)
+                .errorMessage("quota exceeded").build();
+        when(persist.findEntity("key-1")).thenReturn(Optional.of(failed));
+
+        orchestrator.run(JOB, "organization", request(), "hn").join();
+
+        verify(openStack, never()).provisionWithRetry(any(), any(), any(), any(), any());
+        assertEquals("key-1", job.getInfraTaskId());
+        assertEquals("FAILED", job.getStatus());
+        assertTrue(job.getMessage().contains("quota exceeded"));
+    }
+
+    @Test
+    void resumeBeforeTaskWasRecordedSubmitsWithTheSameKey() {
+        job.setStatus("SUBMITTING");
+        job.setInfraRequestKey("key-2");
+        when(persist.findEntity("key-2")).thenReturn(Optional.empty());
+        when(openStack.provisionWithRetry(any(), any(), any(), any(), any()))
+                .thenThrow(new IllegalStateException("infra down"));
+
+        assertThrows(IllegalStateException.class, () -> orchestrator.run(JOB, "organization", request(), "hn"));
+        verify(openStack).provisionWithRetry(eq("organization"), any(), any(), eq("hn"), eq("key-2"));
+    }
+
+    @Test
+    void infraEventResumesTheJobOnAContinuationThread() throws Exception {
+        when(openStack.provisionWithRetry(any(), any(), any(), any(), any())).thenReturn("t1");
+        when(persist.findEntity("t1")).thenReturn(Optional.of(failedTask("t1")));
+        AtomicReference<String> finishedOn = new AtomicReference<>();
+        when(jobRepo.save(job)).thenAnswer(inv -> {
+            if ("FAILED".equals(job.getStatus())) finishedOn.set(Thread.currentThread().getName());
+            return job;
+        });
+
+        CompletableFuture<Void> flow = orchestrator.run(JOB, "organization", request(), "hn");
+
+        assertFalse(flow.isDone(), "run() trả về ngay, không chờ infra trên thread gọi");
+        assertEquals("t1", job.getInfraTaskId());
+        assertEquals("RUNNING", job.getStatus());
+
+        Channel channel = mock(Channel.class);
+        new InfraEventListener(persist, signalBus).onInfra(infraMessage(
+                "Provision failed: {'identifier': 't1', 'error': 'quota exceeded'}"), channel);
+
+        flow.get(5, TimeUnit.SECONDS);
+        verify(persist).handleError(eq("t1"), contains("quota exceeded"));
+        verify(channel).basicAck(anyLong(), eq(false));
+        assertEquals("FAILED", job.getStatus());
+        assertTrue(job.getMessage().contains("quota exceeded"));
+        assertTrue(finishedOn.get().startsWith("provision-job-"), "chạy tiếp trên virtual thread, không trên listener");
+        assertFalse(signalBus.future("t1").isDone(), "future đã nhận bị bỏ khỏi bus");
+    }
+
+    @Test
+    void eventArrivingBeforeTheWaitStartsIsNotLost() throws Exception {
+        when(openStack.provisionWithRetry(any(), any(), any(), any(), any())).thenAnswer(inv -> {
+            signalBus.complete("t2", failedTask("t2"));   // infra trả lời trước khi run() kịp đăng ký chờ
+            return "t2";
+        });
+
+        orchestrator.run(JOB, "organization", request(), "hn").get(5, TimeUnit.SECONDS);
+
+        assertEquals("FAILED", job.getStatus());
+    }
+
+    @Test
+    void noEventFallsBackToTheDbAfterTimeoutAndGrace() throws Exception {
+        ReflectionTestUtils.setField(orchestrator, "infraTimeoutMinutes", 0L);
+        ReflectionTestUtils.setField(orchestrator, "infraTimeoutGraceSeconds", 0L);
+        when(openStack.provisionWithRetry(any(), any(), any(), any(), any())).thenReturn("t3", "t4");
+        when(persist.findEntity("t3")).thenReturn(Optional.of(failedTask("t3")));   // event mất, DB đã có kết quả
+        when(persist.findEntity("t4")).thenReturn(Optional.empty());
+
+        orchestrator.run(JOB, "organization", request(), "hn").get(5, TimeUnit.SECONDS);
+        assertEquals("FAILED", job.getStatus());
+        assertTrue(job.getMessage().contains("quota exceeded"));
+
+        job.setInfraTaskId(null);
+        job.setStatus("PENDING");
+        CompletableFuture<Void> lost = orchestrator.run(JOB, "organization", request(), "hn");
+        ExecutionException e = assertThrows(ExecutionException.class, () -> lost.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(AppException.class, e.getCause());
+        verify(journal).append(argThat((JobStepLog j) -> j.getDetail().contains("Infra timeout")));
+    }
+
+    private static ProvisionTask failedTask(String taskId) {
+        return ProvisionTask.builder().taskId(taskId).status(TaskStatus.FAILED).errorMessage("quota exceeded").build();
+    }
+
+    private static Message infraMessage(String body) {
+        return new Message(body.getBytes(StandardCharsets.UTF_8), new MessageProperties());
+    }
+
+    private static ProvisionAndConfigureRequest request() {
+        return ProvisionAndConfigureRequest.builder()
+                .vol_type("ssd").base_vol_id("vol").vol_size(40L).flavor_id("f1").count(1L)
+                .usernameOfVdi("user1").userId("u1")
+                .build();
+    }
+}
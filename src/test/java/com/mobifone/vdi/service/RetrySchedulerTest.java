@@ -0,0 +1,147 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.dto.response.RetryAttemptResponse;
+import com.mobifone.vdi.entity.enumeration.FailureClass;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Backoff luỹ thừa (trần + jitter), chỉ retry lỗi transient, ngân sách retry dùng chung, cancel lần chờ */
+class RetrySchedulerTest {
+
+    final RetryScheduler retry = new RetryScheduler();
+
+    @AfterEach
+    void tearDown() {
+        retry.shutdown();
+    }
+
+    @Test
+    void backoffGrowsExponentiallyUpToMax() {
+        RetryScheduler.Policy p = policy(10, 100, 0).toBuilder().maxDelayMs(1000).multiplier(2.0).build();
+        assertEquals(100, retry.backoff(p, 1));
+        assertEquals(200, retry.backoff(p, 2));
+        assertEquals(400, retry.backoff(p, 3));
+        assertEquals(800, retry.backoff(p, 4));
+        assertEquals(1000, retry.backoff(p, 5));
+        assertEquals(1000, retry.backoff(p, 9));
+    }
+
+    @Test
+    void multiplierBelowOneMeansConstantDelay() {
+        RetryScheduler.Policy p = policy(10, 100, 0).toBuilder().multiplier(0.5).build();
+        assertEquals(100, retry.backoff(p, 1));
+        assertEquals(100, retry.backoff(p, 4));
+    }
+
+    @Test
+    void jitterStaysWithinBounds() {
+        RetryScheduler.Policy p = policy(10, 1000, 0.2);
+        for (int i = 0; i < 500; i++) {
+            long d = retry.backoff(p, 1);
+            assertTrue(d >= 800 && d <= 1200, "delay " + d + " ngoài ±20%");
+        }
+    }
+
+    @Test
+    void transientFailureIsRetriedUntilSuccess() throws Exception {
+        boolean ok = retry.executeClassified("k1", policy(5, 1, 0),
+                nth -> nth < 3 ? FailureClass.CONNECTION : null, null).get(5, TimeUnit.SECONDS);
+        assertTrue(ok);
+
+        List<RetryAttemptResponse> h = retry.history("k1");
+        assertEquals(3, h.size());
+        assertEquals(List.of("FAILED", "FAILED", "SUCCESS"), h.stream().map(RetryAttemptResponse::getResult).toList());
+        assertEquals("CONNECTION", h.get(0).getFailureClass());
+        assertEquals(-1, h.get(2).getNextDelayMs());
+    }
+
+    @Test
+    void nonTransientFailureStopsImmediately() throws Exception {
+        for (FailureClass c : List.of(FailureClass.CONFIG, FailureClass.TASK_FAILED, FailureClass.CANCELLED)) {
+            AtomicInteger calls = new AtomicInteger();
+            boolean ok = retry.executeClassified("k-" + c, policy(5, 1, 0), nth -> {
+                calls.incrementAndGet();
+                return c;
+            }, null).get(5, TimeUnit.SECONDS);
+            assertFalse(ok);
+            assertEquals(1, calls.get(), c + " không được retry");
+        }
+    }
+
+    @Test
+    void maxAttemptsBoundsRetries() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        boolean ok = retry.executeClassified("k2", policy(3, 1, 0), nth -> {
+            calls.incrementAndGet();
+            return FailureClass.TIMEOUT;
+        }, null).get(5, TimeUnit.SECONDS);
+        assertFalse(ok);
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void sharedBudgetLimitsRetriesAcrossSteps() throws Exception {
+        AtomicInteger budget = new AtomicInteger(1);
+        AtomicInteger calls = new AtomicInteger();
+        RetryScheduler.Policy p = policy(5, 1, 0).toBuilder().budget(budget).build();
+
+        // bước 1: lỗi 1 lần rồi thành công → tiêu 1 lượt ngân sách
+        assertTrue(retry.executeClassified("step1", p, nth -> nth == 1 ? FailureClass.UNREACHABLE : null, null)
+                .get(5, TimeUnit.SECONDS));
+        assertEquals(0, budget.get());
+
+        // bước 2: hết ngân sách → lỗi transient cũng không retry
+        assertFalse(retry.executeClassified("step2", p, nth -> {
+            calls.incrementAndGet();
+            return FailureClass.UNREACHABLE;
+        }, null).get(5, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertEquals(0, budget.get());
+    }
+
+    @Test
+    void unclassifiedExecuteRetriesAnyFailureAndExceptions() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        boolean ok = retry.execute("k3", policy(3, 1, 0), nth -> {
+            calls.incrementAndGet();
+            if (nth == 1) throw new IllegalStateException("boom");
+            return nth == 3;
+        }, null).get(5, TimeUnit.SECONDS);
+        assertTrue(ok);
+        assertEquals(3, calls.get());
+        assertEquals("ERROR", retry.history("k3").get(0).getResult());
+    }
+
+    @Test
+    void cancelDropsPendingRetry() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        var f = retry.executeClassified("k4", policy(3, 60_000, 0), nth -> {
+            calls.incrementAndGet();
+            return FailureClass.TIMEOUT;
+        }, null);
+        // chờ attempt 1 xong (retry đã nằm trên timer)
+        long until = System.currentTimeMillis() + 5000;
+        while (retry.history("k4").isEmpty() && System.currentTimeMillis() < until) Thread.sleep(5);
+
+        assertTrue(retry.cancel("k4"));
+        assertFalse(f.get(1, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertFalse(retry.cancel("k4"));
+    }
+
+    private static RetryScheduler.Policy policy(int attempts, long baseMs, double jitter) {
+        return RetryScheduler.Policy.builder()
+                .maxAttempts(attempts)
+                .baseDelayMs(baseMs)
+                .maxDelayMs(Long.MAX_VALUE)
+                .multiplier(2.0)
+                .jitter(jitter)
+                .build();
+    }
+}
@@ -0,0 +1,119 @@
+package com.mobifone.vdi.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Pool ssh (không mở ssh thật): chờ channel ở cấp host, hết chỗ → PoolExhaustedException; gắn job theo affinity, drain */
+class SshConnectionPoolTest {
+
+    SshConnectionPool pool;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        pool = new SshConnectionPool();
+        ReflectionTestUtils.setField(pool, "enabled", false);
+        ReflectionTestUtils.setField(pool, "controlDir", Files.createTempDirectory("vdi-ssh").toString());
+        ReflectionTestUtils.setField(pool, "poolSize", 2);
+        ReflectionTestUtils.setField(pool, "channelsPerConnection", 1);
+        ReflectionTestUtils.setField(pool, "acquireTimeoutMs", 5_000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    void waiterTakesChannelFreedOnAnySlot() throws Exception {
+        pool.init();
+        SshConnectionPool.Lease first = pool.acquire();
+        SshConnectionPool.Lease second = pool.acquire();
+        assertNotSame(first.slot, second.slot, "2 master, mỗi master 1 channel");
+
+        CompletableFuture<SshConnectionPool.Lease> waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.acquire();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(waiter.isDone());
+
+        second.close();                             // trả channel ở slot không phải slot "tốt nhất" ban đầu
+        SshConnectionPool.Lease got = waiter.get(1, TimeUnit.SECONDS);
+        assertSame(second.slot, got.slot);
+        got.close();
+        first.close();
+        assertEquals(0, pool.metrics().getAcquireTimeouts());
+    }
+
+    @Test
+    void exhaustedHostTimesOut() throws Exception {
+        ReflectionTestUtils.setField(pool, "acquireTimeoutMs", 50L);
+        pool.init();
+        try (SshConnectionPool.Lease a = pool.acquire(); SshConnectionPool.Lease b = pool.acquire()) {
+            assertThrows(SshConnectionPool.PoolExhaustedException.class, pool::acquire);
+        }
+        assertEquals(1, pool.metrics().getAcquireTimeouts());
+        try (SshConnectionPool.Lease again = pool.acquire()) {
+            assertNotNull(again.host());
+        }
+    }
+
+    @Test
+    void jobsOfOneAffinityShareAHostAndSubRunsFollowTheJob() {
+        twoHosts();
+        String host = pool.bind("job1", "project:A");
+        assertEquals(host, pool.bind("job2", "project:A"), "cùng project → cùng control host");
+        assertEquals(host, pool.bind("job1", "project:B"), "job đã gắn giữ host cũ");
+        assertEquals(host, pool.hostFor("job1_chrome_3"), "sub-run jobId_xxx chạy trên host của job");
+        assertEquals(host, pool.hostOf("job2_nat"));
+        assertNull(pool.hostOf("job9"));
+    }
+
+    @Test
+    void drainedHostTakesNoNewJobsButKeepsBoundOnes() {
+        twoHosts();
+        String host = pool.bind("job1", "project:A");
+
+        assertTrue(pool.drain(host, true));
+        String other = pool.bind("job2", "project:A");
+        assertNotEquals(host, other, "host đang drain không nhận job mới");
+        assertEquals(host, pool.hostFor("job1_chrome"), "job đang gắn (host vẫn khoẻ) chạy tiếp tại chỗ");
+
+        pool.drain(host, false);
+        assertEquals(host, pool.bind("job3", "project:A"), "hết drain → affinity quay về host cũ");
+        assertFalse(pool.drain("nope", true));
+    }
+
+    @Test
+    void unhealthyHostMovesItsJobsToAnotherHost() throws Exception {
+        twoHosts();
+        String host = pool.bind("job1", "project:A");
+        try (SshConnectionPool.Lease lease = pool.acquireOn(host)) {
+            for (int i = 0; i < 3; i++) lease.reportExit(SshConnectionPool.SSH_TRANSPORT_ERROR);   // failure-threshold
+        }
+
+        String moved = pool.hostFor("job1_chrome");
+        assertNotEquals(host, moved);
+        assertEquals(moved, pool.hostOf("job1"), "job được gắn lại sang host mới");
+    }
+
+    private void twoHosts() {
+        ReflectionTestUtils.setField(pool, "hostsSpec", "ans1=root@10.0.0.1:22/2, ans2=root@10.0.0.2:22/2");
+        ReflectionTestUtils.setField(pool, "routing", "project-hash");
+        ReflectionTestUtils.setField(pool, "failureThreshold", 3);
+        pool.init();
+        assertEquals(List.of("ans1", "ans2"), pool.hostNames());
+    }
+}
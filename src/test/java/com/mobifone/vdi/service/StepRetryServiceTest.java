@@ -0,0 +1,90 @@
+package com.mobifone.vdi.service;
+
+import com.mobifone.vdi.entity.enumeration.FailureClass;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/** Phân loại lỗi theo RunOutcome của chính attempt, kể cả khi run chạy trên thread khác thread retry */
+class StepRetryServiceTest {
+
+    final RetryScheduler retry = new RetryScheduler();
+    final ExecutorService lane = Executors.newSingleThreadExecutor();
+    StepRetryService stepRetry;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        AnsibleExecutionScheduler scheduler = mock(AnsibleExecutionScheduler.class);
+        // work chạy trên thread khác (như làn/scheduler) → dấu vết lỗi phải đi theo giá trị trả về
+        when(scheduler.run(any(), any(), any(), any()))
+                .thenAnswer(inv -> lane.submit(() -> ((Supplier<Object>) inv.getArgument(3)).get()).get());
+        stepRetry = new StepRetryService(retry, scheduler, new FailureClassifier());
+    }
+
+    @AfterEach
+    void tearDown() {
+        retry.shutdown();
+        lane.shutdownNow();
+    }
+
+    @Test
+    void transientFailureFromAnotherThreadIsRetried() {
+        AtomicInteger calls = new AtomicInteger();
+        StepRetryService.Outcome out = stepRetry.run("k1", policy(3), null, "t1",
+                AnsibleExecutionScheduler.Priority.APP, "k1", () -> calls.incrementAndGet() == 1
+                        ? new AnsibleRunnerService.RunOutcome(false, 2, "Could not obtain lock on /conf/config.lock", null)
+                        : AnsibleRunnerService.RunOutcome.OK);
+
+        assertTrue(out.ok());
+        assertNull(out.failureClass());
+        assertEquals(2, out.attempts());
+    }
+
+    @Test
+    void nonTransientFailureStopsWithItsOwnClass() {
+        AtomicInteger calls = new AtomicInteger();
+        StepRetryService.Outcome out = stepRetry.run("k2", policy(3), null, "t1",
+                AnsibleExecutionScheduler.Priority.APP, "k2", () -> {
+                    calls.incrementAndGet();
+                    return new AnsibleRunnerService.RunOutcome(false, 1, "ERROR! the role 'chrome' was not found", null);
+                });
+
+        assertFalse(out.ok());
+        assertEquals(FailureClass.CONFIG, out.failureClass());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void cancelledRunIsNeverRetried() {
+        AtomicInteger calls = new AtomicInteger();
+        StepRetryService.Outcome out = stepRetry.run("k3", policy(3), null, "t1",
+                AnsibleExecutionScheduler.Priority.APP, "k3", () -> {
+                    calls.incrementAndGet();
+                    return new AnsibleRunnerService.RunOutcome(false, null, null, AnsibleExecutor.NoExit.CANCELLED);
+                });
+
+        assertFalse(out.ok());
+        assertEquals(FailureClass.CANCELLED, out.failureClass());
+        assertEquals(1, calls.get());
+    }
+
+    private static RetryScheduler.Policy policy(int attempts) {
+        return RetryScheduler.Policy.builder()
+                .maxAttempts(attempts)
+                .baseDelayMs(1)
+                .maxDelayMs(10)
+                .multiplier(2.0)
+                .jitter(0)
+                .build();
+    }
+}
@@ -0,0 +1,118 @@
+package com.mobifone.vdi.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Làn theo đích: FIFO theo thứ tự submit, tối đa max-per-target run/đích, đích khác nhau chạy song song */
+class TargetExecutionLanesTest {
+
+    static final String VM1 = "42.1.65.60:20001";
+    static final String VM2 = "42.1.65.60:20003";
+
+    TargetExecutionLanes lanes;
+
+    @BeforeEach
+    void setUp() {
+        lanes = new TargetExecutionLanes();
+        ReflectionTestUtils.setField(lanes, "maxPerTarget", 1);
+    }
+
+    @Test
+    void runsOnOneTargetAreAdmittedInSubmitOrder() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<String>> all = new ArrayList<>();
+        all.add(lanes.submit(VM1, "chrome", () -> {
+            await(gate);
+            order.add("chrome");
+            return "chrome";
+        }));
+        for (String app : List.of("office", "zoom", "7zip", "vlc")) {
+            all.add(lanes.submit(VM1, app, () -> {
+                order.add(app);
+                return app;
+            }));
+        }
+        assertEquals(5, lanes.load(VM1), "1 chạy + 4 chờ");
+
+        gate.countDown();
+        CompletableFuture.allOf(all.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("chrome", "office", "zoom", "7zip", "vlc"), order);
+        assertEquals(0, lanes.load(VM1), "làn rảnh được bỏ khỏi map");
+    }
+
+    @Test
+    void concurrencyPerTargetIsCapped() throws Exception {
+        ReflectionTestUtils.setField(lanes, "maxPerTarget", 2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        List<CompletableFuture<Integer>> all = IntStream.range(0, 8)
+                .mapToObj(i -> lanes.submit(VM1, "app" + i, () -> {
+                    peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    sleep(30);
+                    running.decrementAndGet();
+                    return i;
+                }))
+                .toList();
+
+        CompletableFuture.allOf(all.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+        assertEquals(2, peak.get());
+    }
+
+    @Test
+    void differentTargetsDoNotWaitForEachOther() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        CompletableFuture<Boolean> blocked = lanes.submit(VM1, "chrome", () -> {
+            await(gate);
+            return true;
+        });
+
+        assertEquals("vm2", lanes.submit(VM2, "chrome", () -> "vm2").get(2, TimeUnit.SECONDS));
+        assertFalse(blocked.isDone());
+        gate.countDown();
+        assertTrue(blocked.get(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void failedRunReleasesItsSlot() throws Exception {
+        CompletableFuture<Object> failed = lanes.submit(VM1, "broken", () -> {
+            throw new IllegalStateException("winrm reset");
+        });
+        CompletableFuture<String> next = lanes.submit(VM1, "office", () -> "ok");
+
+        assertThrows(Exception.class, () -> failed.get(2, TimeUnit.SECONDS));
+        assertEquals("ok", next.get(2, TimeUnit.SECONDS));
+        assertThrows(IllegalStateException.class, () -> lanes.run(VM1, "broken-sync", () -> {
+            throw new IllegalStateException("winrm reset");
+        }));
+        assertEquals("ok", lanes.run(VM1, "office-sync", () -> "ok"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}